@@ -4,23 +4,23 @@ import org.mosh4j.core.datagram.*;
 import org.mosh4j.crypto.MoshKey;
 import org.mosh4j.crypto.SspCipher;
 import org.mosh4j.terminal.Framebuffer;
+import org.mosh4j.terminal.FramebufferDiff;
+import org.mosh4j.terminal.FramebufferSnapshot;
+import org.mosh4j.terminal.PredictionEngine;
+import org.mosh4j.terminal.Scrollback;
 import org.mosh4j.terminal.SimpleFramebuffer;
+import org.mosh4j.protocol.HostMessageCodec;
+import org.mosh4j.protocol.InstructionView;
+import org.mosh4j.transport.OutgoingInstruction;
 import org.mosh4j.transport.TransportInstruction;
-import org.mosh4j.transport.TransportReceiver;
+import org.mosh4j.transport.StateReceiver;
+import org.mosh4j.transport.TransportSender;
 
-import TransportBuffers.Transportinstruction;
-import ClientBuffers.Userinput;
-import HostBuffers.Hostinput;
-
-import com.google.protobuf.ByteString;
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.InvalidProtocolBufferException;
-
-import java.net.DatagramSocket;
+import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,89 +34,177 @@ import java.util.logging.Logger;
  *   <li>HostBuffers.HostMessage for receiving terminal output</li>
  *   <li>protocol_version=2, random chaff bytes</li>
  * </ul>
+ * <p>
+ * User input is an SSP state stream like host output: keystrokes and resizes are appended
+ * to a {@link UserStream} and a {@link TransportSender} sends what accumulated as one
+ * {@code UserMessage} per send interval, diffed against the state the server is assumed to
+ * have, and retransmits it from the last acknowledged state after the RTO.
+ * <p>
+ * Host output is acknowledged as in mosh: a new server state arms the
+ * {@link TransportSender#ACK_DELAY_MS} ack timer, input sent before it expires carries the
+ * ack, and the timer keeps the connection alive every {@link TransportSender#ACK_INTERVAL_MS}
+ * without help from the caller.
+ * <p>
+ * Typed keys are also fed to a {@link PredictionEngine}, which echoes them locally
+ * ({@link #getDisplayFrame()}) and checks them against the server's screen once its
+ * {@code EchoAck} covers them.
  */
 public class MoshClientSession {
     private static final Logger LOG = Logger.getLogger(MoshClientSession.class.getName());
     private static final int DEFAULT_UDP_RECEIVE_TIMEOUT_MS = 250;
     private static final boolean DEBUG = Boolean.parseBoolean(System.getenv("KORTTY_MOSH_DEBUG"));
+    /** The sender's state is kept as the {@link UserStream}; it only needs a non-null marker. */
+    private static final byte[] STATE_MARKER = new byte[0];
 
     private final InetSocketAddress serverAddress;
     private final DatagramChannel channel;
     private final SspDatagramCodec codec;
     private final Framebuffer framebuffer;
-    private final TransportReceiver outputReceiver;
+    private final StateReceiver<FramebufferSnapshot> outputReceiver;
     private final FragmentCodec fragmentDecoder;
-    private final AtomicLong sendSeq = new AtomicLong(0);
-    private final AtomicLong clientStateSeq = new AtomicLong(1);
-    private final AtomicLong instructionId = new AtomicLong(0);
+    private final InstructionSender instructionSender;
+    private final RttEstimator rtt = new RttEstimator();
+    private final UserStream userStream = new UserStream();
+    private final TransportSender inputSender;
+    private final SendTimer sendTimer;
     private final LinkedBlockingQueue<byte[]> hostBytesQueue = new LinkedBlockingQueue<>(2048);
     private volatile boolean running = true;
-    private volatile int lastTimestampReceived = 0;
-    private volatile long lastReceivedServerSeq = 0;
-    private volatile long lastAckedClientSeq = 0;
-    private volatile long lastSentClientState = 0;
 
-    private final ExtensionRegistry hostExtensionRegistry;
+    private final InstructionView receivedInstruction = new InstructionView();
+    // Receive thread only: which state the framebuffer holds, which one the host byte
+    // consumers show, and the last diff applied. States are framebuffer snapshots, held by
+    // the receiver and compared by identity.
+    private FramebufferSnapshot framebufferState;
+    private volatile FramebufferSnapshot displayedFrame;
+    private long appliedEchoAck;
+    private final PredictionEngine predictions = new PredictionEngine();
+    private FramebufferSnapshot appliedBase;
+    private final ByteArrayOutputStream appliedHostBytes = new ByteArrayOutputStream();
+    /**
+     * Where rows scrolled off the displayed screen go. The framebuffer only writes to it
+     * while applying a diff to the displayed state; replays after a restore would add rows
+     * that are already there.
+     */
+    private volatile Scrollback scrollback;
 
     public MoshClientSession(InetSocketAddress serverAddress, MoshKey key, int width, int height) throws Exception {
+        this(serverAddress, key, width, height, SendScheduler.shared());
+    }
+
+    /**
+     * Create a session whose input is sent from {@code scheduler}'s threads.
+     */
+    public MoshClientSession(InetSocketAddress serverAddress, MoshKey key, int width, int height,
+                             SendScheduler scheduler) throws Exception {
         this.serverAddress = serverAddress;
-        DatagramSocket socket = new DatagramSocket();
+        this.inputSender = new TransportSender(() -> STATE_MARKER, userStream);
+        this.sendTimer = new SendTimer(scheduler, this::sendTick);
+        NioDatagramChannel nioChannel = NioDatagramChannel.open(null);
         try {
-            UdpDatagramChannel udpChannel = new UdpDatagramChannel(socket);
-            udpChannel.setReceiveTimeoutMillis(DEFAULT_UDP_RECEIVE_TIMEOUT_MS);
-            this.channel = udpChannel;
+            nioChannel.setReceiveTimeoutMillis(DEFAULT_UDP_RECEIVE_TIMEOUT_MS);
+            nioChannel.setDontFragment(true);
+            this.channel = nioChannel;
             SspCipher cipher = new SspCipher(key);
             this.codec = new SspDatagramCodec(cipher);
+            this.instructionSender = new InstructionSender(codec, false,
+                    new PathMtuEstimator(TransportInstruction.getMaxFragmentSize()));
             this.framebuffer = new SimpleFramebuffer(width, height);
             this.fragmentDecoder = new FragmentCodec();
 
-            hostExtensionRegistry = ExtensionRegistry.newInstance();
-            Hostinput.registerAllExtensions(hostExtensionRegistry);
-
-            this.outputReceiver = new TransportReceiver(
-                    (base, diff) -> applyHostDiff(diff),
-                    state -> {});
+            this.displayedFrame = ((SimpleFramebuffer) framebuffer).snapshot();
+            this.framebufferState = displayedFrame;
+            this.outputReceiver = new StateReceiver<>(this::applyHostDiff, this::onNewHostState, displayedFrame,
+                    StateReceiver.DEFAULT_MAX_STATES, StateReceiver.DEFAULT_MAX_BYTES, MoshClientSession::stateSize);
+            predictions.serverState(displayedFrame, 0, rtt.getSrttMs(), nowMillis());
+            sendTimer.arm(0); // first heartbeat, then the tick keeps itself scheduled
         } catch (Exception e) {
-            socket.close();
+            nioChannel.close();
             throw e;
         }
     }
 
     /**
      * Apply a diff received from the server. The diff contains a serialized
-     * HostBuffers.HostMessage protobuf with HostBytes, ResizeMessage, EchoAck.
+     * HostBuffers.HostMessage protobuf with HostBytes, ResizeMessage, EchoAck, and is
+     * relative to {@code base}, the state the server assumed we have. The framebuffer is
+     * first brought to that state if it holds another one (after loss or reordering). The
+     * new state is a snapshot, which costs O(1) rather than a serialization of the screen.
+     * Rows go to the scrollback only when the diff applies to the displayed state. A
+     * malformed message is undone and dropped, so its state is never acknowledged.
      */
-    private byte[] applyHostDiff(byte[] diff) {
+    private FramebufferSnapshot applyHostDiff(FramebufferSnapshot base, byte[] diff) {
+        SimpleFramebuffer buf = (SimpleFramebuffer) framebuffer;
+        if (base != framebufferState) {
+            buf.restore(base);
+            framebufferState = base;
+        }
+        buf.setScrollback(base == displayedFrame ? scrollback : null);
+        appliedBase = base;
+        appliedHostBytes.reset();
         if (diff == null || diff.length == 0) {
-            return ((SimpleFramebuffer) framebuffer).toStateBytes();
+            return base;
         }
         try {
-            Hostinput.HostMessage hostMsg = Hostinput.HostMessage.parseFrom(diff, hostExtensionRegistry);
-            SimpleFramebuffer buf = (SimpleFramebuffer) framebuffer;
-            for (Hostinput.Instruction instr : hostMsg.getInstructionList()) {
-                if (instr.hasExtension(Hostinput.hostbytes)) {
-                    Hostinput.HostBytes hb = instr.getExtension(Hostinput.hostbytes);
-                    if (hb.hasHoststring()) {
-                        byte[] hostBytes = hb.getHoststring().toByteArray();
-                        buf.feedHostBytes(hostBytes);
-                        enqueueHostBytes(hostBytes);
-                    }
-                }
-                if (instr.hasExtension(Hostinput.resize)) {
-                    Hostinput.ResizeMessage rm = instr.getExtension(Hostinput.resize);
-                    if (rm.hasWidth() && rm.hasHeight()) {
-                        buf.resize(rm.getWidth(), rm.getHeight());
-                    }
-                }
-            }
-            return buf.toStateBytes();
-        } catch (InvalidProtocolBufferException e) {
+            HostMessageCodec.decode(ByteBuffer.wrap(diff), hostMessageApplier);
+            framebufferState = buf.snapshot();
+            return framebufferState;
+        } catch (IllegalArgumentException e) {
             LOG.log(Level.WARNING, "Failed to parse HostMessage protobuf", e);
-            if (framebuffer instanceof SimpleFramebuffer buf) {
-                return buf.toStateBytes();
-            }
-            return new byte[0];
+            // partly applied: undo it and drop the instruction, so the state is not acked
+            buf.restore(base);
+            framebufferState = base;
+            return null;
+        }
+    }
+
+    /**
+     * Applies decoded HostMessage instructions to the framebuffer (receive thread only).
+     * The message is always decoded from an array-backed buffer.
+     */
+    private final HostMessageCodec.Handler hostMessageApplier = new HostMessageCodec.Handler() {
+        @Override
+        public void hostBytes(ByteBuffer src, int offset, int length) {
+            int start = src.arrayOffset() + offset;
+            framebuffer.feedHostBytes(src.array(), start, length);
+            appliedHostBytes.write(src.array(), start, length);
+        }
+
+        @Override
+        public void resize(int width, int height) {
+            ((SimpleFramebuffer) framebuffer).resize(width, height);
+        }
+
+        @Override
+        public void echoAck(long echoAckNum) {
+            appliedEchoAck = Math.max(appliedEchoAck, echoAckNum);
+        }
+    };
+
+    /**
+     * A newer server state became current; the framebuffer holds it. Hand the host bytes
+     * that update the displayed screen to {@link #pollHostBytes()} consumers: the received
+     * diff itself if it was based on the displayed state, otherwise a redraw computed locally.
+     * In the latter case the framebuffer did not scroll the displayed screen, so the rows the
+     * redraw scrolls off are added to the scrollback here.
+     */
+    private void onNewHostState(FramebufferSnapshot state) {
+        if (appliedBase == displayedFrame) {
+            enqueueHostBytes(appliedHostBytes.toByteArray());
+        } else {
+            enqueueHostBytes(FramebufferDiff.newFrame(displayedFrame, state));
+            Scrollback sb = scrollback;
+            if (sb != null) sb.appendScrolledOff(displayedFrame, state);
         }
+        displayedFrame = state;
+        predictions.serverState(state, appliedEchoAck, rtt.getSrttMs(), nowMillis());
+    }
+
+    /**
+     * Bytes a held state may cost: a full screen of packed cells. Snapshots share unchanged
+     * rows, so this overestimates, which only makes the receiver evict old states sooner.
+     */
+    private static long stateSize(FramebufferSnapshot state) {
+        return (long) state.getWidth() * state.getHeight() * 9;
     }
 
     /**
@@ -128,106 +216,136 @@ public class MoshClientSession {
     }
 
     /**
-     * Send user input (keystrokes) to the server. Wraps in ClientBuffers.UserMessage,
-     * then in a TransportBuffers.Instruction, fragments with zlib, and sends.
+     * Send user input (keystrokes) to the server. The keys are queued and go out with the
+     * next send tick, together with any further input until then.
      */
     public void sendUserInput(byte[] keys) {
         if (keys == null || keys.length == 0) return;
-
-        Userinput.Keystroke keystroke = Userinput.Keystroke.newBuilder()
-                .setKeys(ByteString.copyFrom(keys))
-                .build();
-        Userinput.Instruction clientInstr = Userinput.Instruction.newBuilder()
-                .setExtension(Userinput.keystroke, keystroke)
-                .build();
-        Userinput.UserMessage userMsg = Userinput.UserMessage.newBuilder()
-                .addInstruction(clientInstr)
-                .build();
-        sendWrappedUserMessage(userMsg.toByteArray());
+        long delay;
+        long frame;
+        synchronized (inputSender) {
+            userStream.pushKeystroke(keys);
+            frame = inputSender.getLastSentStateNum() + 1; // the next state carries the keys
+            inputSender.markStateChanged();
+            delay = millisUntilNextSend();
+        }
+        predictions.newUserInput(keys, frame, nowMillis());
+        sendTimer.arm(delay);
     }
 
     /**
      * Send a resize notification to the server.
      */
     public void sendResize(int width, int height) {
-        Userinput.ResizeMessage resizeMsg = Userinput.ResizeMessage.newBuilder()
-                .setWidth(width)
-                .setHeight(height)
-                .build();
-        Userinput.Instruction clientInstr = Userinput.Instruction.newBuilder()
-                .setExtension(Userinput.resize, resizeMsg)
-                .build();
-        Userinput.UserMessage userMsg = Userinput.UserMessage.newBuilder()
-                .addInstruction(clientInstr)
-                .build();
-        sendWrappedUserMessage(userMsg.toByteArray());
+        long delay;
+        synchronized (inputSender) {
+            userStream.pushResize(width, height);
+            inputSender.markStateChanged();
+            delay = millisUntilNextSend();
+        }
+        predictions.reset();
+        sendTimer.arm(delay);
     }
 
-    private void sendWrappedUserMessage(byte[] userMsgBytes) {
-        long seq = sendSeq.getAndIncrement();
-        long newClientState = clientStateSeq.getAndIncrement();
-        long oldClientState = Math.max(0, Math.max(lastSentClientState, lastAckedClientSeq));
-        if (oldClientState >= newClientState) {
-            oldClientState = Math.max(0, newClientState - 1);
+    /**
+     * Send tick: send whatever {@link TransportSender#nextAction} says is due, then re-arm
+     * the timer for the next deadline.
+     */
+    private void sendTick() {
+        if (!running) return;
+        long delay;
+        synchronized (inputSender) {
+            try {
+                OutgoingInstruction inst = switch (inputSender.nextAction(rtt.getSendIntervalMs(), rtt.getRtoMs())) {
+                    case NEW_STATE -> inputSender.nextInstruction(
+                            inputSender.getAssumedReceiverState(rtt.getSrttMs()));
+                    case RETRANSMIT -> inputSender.retransmitInstruction();
+                    case ACK -> inputSender.createTrialInstruction();
+                    case NONE -> null;
+                };
+                if (inst != null) {
+                    sendInstruction(inst);
+                }
+            } catch (RuntimeException e) {
+                // Transient UDP send failures can happen while network is interrupted.
+                // Keep session alive so roaming/recovery can continue.
+                LOG.log(Level.FINE, "Ignoring transient send failure in userinput", e);
+            }
+            delay = millisUntilNextSend();
         }
-        long clientThrowaway = Math.max(0, lastAckedClientSeq);
-        int ts = currentTimestamp();
-        int tsReply = lastTimestampReceived;
-
-        Transportinstruction.Instruction inst = TransportInstruction.create(
-                oldClientState, newClientState, lastReceivedServerSeq, clientThrowaway, userMsgBytes);
-        byte[] protobufBytes = TransportInstruction.toBytes(inst);
-
-        long fragId = instructionId.getAndIncrement();
-        byte[] fragmentPayload = FragmentCodec.encodeSingle(fragId, protobufBytes);
+        sendTimer.arm(delay);
+    }
 
-        try {
-            byte[] packet = codec.encode(false, seq, ts, tsReply, fragmentPayload);
-            channel.send(serverAddress, packet);
-            lastSentClientState = newClientState;
-            if (DEBUG) {
-                LOG.log(Level.INFO, "MoshClientSession tx userinput datagramSeq={0} old={1} new={2} ack={3} throwaway={4} ts={5} tsReply={6} bytes={7}",
-                        new Object[]{seq, oldClientState, newClientState, lastReceivedServerSeq, clientThrowaway, ts, tsReply, userMsgBytes.length});
-            }
-        } catch (RuntimeException e) {
-            // Transient UDP send failures can happen while network is interrupted.
-            // Keep session alive so roaming/recovery can continue.
-            LOG.log(Level.FINE, "Ignoring transient send failure in userinput", e);
+    private void sendInstruction(OutgoingInstruction inst) {
+        long now = System.nanoTime();
+        int ts = RttEstimator.timestamp16(now);
+        int tsReply = rtt.timestampReply(now);
+        long seq = instructionSender.send(channel, serverAddress, inst, ts, tsReply);
+        if (DEBUG) {
+            LOG.log(Level.INFO, "MoshClientSession tx datagramSeq={0} old={1} new={2} ack={3} throwaway={4} ts={5} tsReply={6} diff={7}",
+                    new Object[]{seq, inst.getOldNum(), inst.getNewNum(), inst.getAckNum(), inst.getThrowawayNum(),
+                            ts, tsReply, inst.getDiffLength()});
         }
     }
 
+    private long millisUntilNextSend() {
+        return inputSender.millisUntilNextAction(rtt.getSendIntervalMs(), rtt.getRtoMs());
+    }
+
     /**
      * Receive one datagram, decrypt, reassemble fragments, decode protobuf,
      * and update the framebuffer. Call in a loop or from a thread.
      */
     public boolean receiveOnce() {
-        DatagramChannel.ReceiveResult result;
+        PooledDatagram datagram;
         try {
-            result = channel.receive();
+            datagram = channel.receivePooled();
         } catch (RuntimeException e) {
             // Transient receive failures (e.g. network down) should not terminate the loop.
             LOG.log(Level.FINE, "Ignoring transient receive failure", e);
             return false;
         }
-        if (result == null || !running) return false;
+        instructionSender.getPathMtu().onTick(System.nanoTime(), Math.max(1000, 2L * rtt.getRtoMs()) * 1_000_000L);
+        if (datagram == null) return false;
+        if (!running) {
+            datagram.release();
+            return false;
+        }
         try {
-            DatagramPayload payload = codec.decode(result.packet());
+            DatagramPayload payload = codec.decode(datagram.buffer());
+            if (payload == null) {
+                // Replayed or duplicated datagram, rejected by the replay window.
+                return true;
+            }
             if (payload.isServerToClient()) {
-                lastTimestampReceived = payload.getTimestamp();
-                byte[] fragmentData = payload.getPayload();
-                if (fragmentData != null && fragmentData.length > 0) {
-                    byte[] protobufBytes = fragmentDecoder.decode(fragmentData);
+                rtt.onDatagramReceived(payload.getSeq(), payload.getTimestamp(), payload.getTimestampReply(),
+                        System.nanoTime());
+                if (payload.getPayloadLength() > 0) {
+                    ByteBuffer protobufBytes = fragmentDecoder.decode(payload.getPayloadBuffer());
                     if (protobufBytes != null) {
-                        Transportinstruction.Instruction inst = TransportInstruction.parse(protobufBytes);
+                        InstructionView inst = receivedInstruction.wrap(protobufBytes);
                         if (!TransportInstruction.isProtocolVersionValid(inst)) {
                             LOG.log(Level.FINE, "Ignoring instruction with invalid protocol_version");
                             return true;
                         }
+                        long previous = outputReceiver.getLatestStateNum();
                         long ack = outputReceiver.receive(inst);
-                        lastReceivedServerSeq = ack;
+                        long delay;
+                        synchronized (inputSender) {
+                            if (ack > previous) {
+                                inputSender.setAckNum(ack);
+                                inputSender.remoteHeard();
+                            }
+                            if (inst.hasAckNum()) {
+                                inputSender.setKnownReceiverState(inst.getAckNum());
+                            }
+                            delay = millisUntilNextSend();
+                        }
                         if (inst.hasAckNum()) {
-                            lastAckedClientSeq = inst.getAckNum();
+                            userStream.acknowledged(inst.getAckNum());
+                            instructionSender.getPathMtu().onAcked(inst.getAckNum());
                         }
+                        sendTimer.arm(delay);
                         if (DEBUG) {
                             LOG.log(Level.INFO, "MoshClientSession rx server datagramSeq={0} old={1} new={2} ack={3} throwaway={4} diff={5} acceptedServerState={6}",
                                     new Object[]{
@@ -236,16 +354,17 @@ public class MoshClientSession {
                                             inst.hasNewNum() ? inst.getNewNum() : -1,
                                             inst.hasAckNum() ? inst.getAckNum() : -1,
                                             inst.hasThrowawayNum() ? inst.getThrowawayNum() : -1,
-                                            inst.hasDiff() ? inst.getDiff().size() : 0,
+                                            inst.getDiffLength(),
                                             ack
                                     });
                         }
-                        sendAckOnly();
                     }
                 }
             }
         } catch (Exception e) {
             LOG.log(Level.FINE, "Decode or process failed for datagram (auth failure or bad packet)", e);
+        } finally {
+            datagram.release();
         }
         return true;
     }
@@ -254,6 +373,26 @@ public class MoshClientSession {
         return framebuffer;
     }
 
+    /**
+     * Keep the rows the server screen scrolls off in {@code scrollback}, or drop them if
+     * {@code null} (the default).
+     */
+    public void setScrollback(Scrollback scrollback) {
+        this.scrollback = scrollback;
+    }
+
+    /**
+     * The latest complete server screen with the local predictions to be shown on top.
+     */
+    public FramebufferSnapshot getDisplayFrame() {
+        FramebufferSnapshot frame = predictions.overlay();
+        return frame != null ? frame : displayedFrame;
+    }
+
+    public PredictionEngine getPredictionEngine() {
+        return predictions;
+    }
+
     /**
      * Returns next raw host byte chunk if available, otherwise null.
      */
@@ -272,15 +411,30 @@ public class MoshClientSession {
     }
 
     /**
-     * Send a protocol-level heartbeat/ack packet without injecting user input bytes.
-     * This keeps the session active during idle periods and network recovery.
+     * Send a protocol-level heartbeat/ack packet now, without injecting user input bytes.
+     * Not needed to keep the session alive, which the send timer does by itself; useful to
+     * announce a new local address right after the network changed.
      */
     public void sendHeartbeat() {
-        sendAckOnly();
+        try {
+            synchronized (inputSender) {
+                sendInstruction(inputSender.createTrialInstruction());
+            }
+        } catch (RuntimeException e) {
+            LOG.log(Level.FINE, "Failed to send heartbeat", e);
+        }
+    }
+
+    /**
+     * Round-trip, jitter and loss estimates for the server path.
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
     }
 
     public void close() {
         running = false;
+        sendTimer.cancel();
         channel.close();
     }
 
@@ -288,8 +442,8 @@ public class MoshClientSession {
         return running;
     }
 
-    private static int currentTimestamp() {
-        return (int) (System.currentTimeMillis() & 0xFFFF);
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     private void enqueueHostBytes(byte[] bytes) {
@@ -302,27 +456,4 @@ public class MoshClientSession {
             hostBytesQueue.offer(copy);
         }
     }
-
-    private void sendAckOnly() {
-        try {
-            long seq = sendSeq.getAndIncrement();
-            int ts = currentTimestamp();
-            int tsReply = lastTimestampReceived;
-            long state = Math.max(lastSentClientState, lastAckedClientSeq);
-            long clientThrowaway = Math.max(0, lastAckedClientSeq);
-            Transportinstruction.Instruction ackOnly = TransportInstruction.createAckOnly(
-                    state, state, lastReceivedServerSeq, clientThrowaway);
-            byte[] protobuf = TransportInstruction.toBytes(ackOnly);
-            long fragId = instructionId.getAndIncrement();
-            byte[] fragmentPayload = FragmentCodec.encodeSingle(fragId, protobuf);
-            byte[] packet = codec.encode(false, seq, ts, tsReply, fragmentPayload);
-            channel.send(serverAddress, packet);
-            if (DEBUG) {
-                LOG.log(Level.INFO, "MoshClientSession tx ack-only datagramSeq={0} old={1} new={2} ack={3} throwaway={4} ts={5} tsReply={6}",
-                        new Object[]{seq, state, state, lastReceivedServerSeq, clientThrowaway, ts, tsReply});
-            }
-        } catch (Exception e) {
-            LOG.log(Level.FINE, "Failed to send ack-only packet", e);
-        }
-    }
 }
@@ -0,0 +1,438 @@
+package org.mosh4j.core;
+
+import org.mosh4j.core.datagram.BufferPool;
+import org.mosh4j.core.datagram.NioDatagramChannel;
+import org.mosh4j.core.datagram.PooledDatagram;
+import org.mosh4j.crypto.MoshKey;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hosts many {@link MoshServerSession}s on a few threads.
+ * <p>
+ * Each session gets its own UDP port from a configured range, as with native mosh-server.
+ * The session channels are non-blocking and spread over a small number of selector threads,
+ * which drain ready sockets into pooled buffers and hand the datagrams to a shared worker
+ * pool. Session send ticks run on an engine-wide {@link SendScheduler} with one timer
+ * thread per selector thread. Datagrams of one session are processed one at a time and in
+ * arrival order; different sessions are processed in parallel. A session whose backlog exceeds
+ * {@value #MAX_QUEUED_PER_SESSION} datagrams drops further ones until it catches up, like a
+ * full socket buffer would.
+ * <p>
+ * Sessions opened here must not be driven with {@link MoshServerSession#receiveOnce()}.
+ * Close them with {@link #closeSession(MoshServerSession)} to return the port; sessions
+ * closed directly are reclaimed when the port range runs out.
+ */
+public final class MoshServerEngine implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(MoshServerEngine.class.getName());
+
+    /** Receive buffer size; client datagrams are bounded by the fragment MTU. */
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    static final int MAX_QUEUED_PER_SESSION = 256;
+    /** Datagrams read from one socket per selector wakeup, so a busy session cannot starve the others. */
+    private static final int READ_BUDGET = 32;
+    /** Datagrams processed per worker task before the session yields its worker. */
+    private static final int PROCESS_BATCH = 64;
+
+    private final InetAddress bindAddress;
+    private final int portMin;
+    private final int portMax;
+    private final BitSet portsInUse;
+    private int nextPort;
+    private final BufferPool bufferPool = new BufferPool(RECEIVE_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ExecutorService workers;
+    private final SendScheduler sendScheduler;
+    private final Map<MoshServerSession, SessionSlot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    /**
+     * Engine with one selector thread per four cores (at least one) and one worker per core.
+     */
+    public MoshServerEngine(int portMin, int portMax) throws IOException {
+        this(null, portMin, portMax,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param bindAddress     local address to bind session ports to, or null for the wildcard address
+     * @param portMin         first port of the session port range (inclusive)
+     * @param portMax         last port of the session port range (inclusive)
+     * @param selectorThreads number of selector threads receiving datagrams
+     * @param workerThreads   number of threads processing datagrams
+     */
+    public MoshServerEngine(InetAddress bindAddress, int portMin, int portMax,
+                            int selectorThreads, int workerThreads) throws IOException {
+        if (portMin <= 0 || portMax > 65535 || portMin > portMax) {
+            throw new IllegalArgumentException("Invalid port range " + portMin + "-" + portMax);
+        }
+        if (selectorThreads <= 0 || workerThreads <= 0) {
+            throw new IllegalArgumentException("Thread counts must be positive");
+        }
+        this.bindAddress = bindAddress;
+        this.portMin = portMin;
+        this.portMax = portMax;
+        this.portsInUse = new BitSet(portMax - portMin + 1);
+        this.nextPort = portMin;
+
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "mosh4j-engine-worker-" + workerIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.sendScheduler = new SendScheduler(selectorThreads, "mosh4j-engine-timer-");
+        this.loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                loops[i] = new SelectorLoop(i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Open a session on the next free port of the range.
+     *
+     * @throws IOException if no port in the range can be bound
+     */
+    public MoshServerSession openSession(MoshKey key, int width, int height) throws IOException {
+        if (!open.get()) {
+            throw new IllegalStateException("Engine is closed");
+        }
+        NioDatagramChannel channel = bindNextPort();
+        int port = channel.getLocalAddress().getPort();
+        MoshServerSession session;
+        try {
+            session = new MoshServerSession(channel, key, width, height, sendScheduler);
+        } catch (RuntimeException e) {
+            channel.close();
+            releasePort(port);
+            throw e;
+        }
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        SessionSlot slot = new SessionSlot(session, channel, port, loop);
+        slots.put(session, slot);
+        loop.register(slot);
+        return session;
+    }
+
+    /**
+     * Close a session opened by this engine and release its port. Waits briefly for the
+     * selector thread to drop the channel, since NIO only frees the socket then.
+     */
+    public void closeSession(MoshServerSession session) {
+        closeSession(session, true);
+    }
+
+    private void closeSession(MoshServerSession session, boolean flush) {
+        SessionSlot slot = slots.remove(session);
+        session.close();
+        if (slot != null) {
+            slot.discardQueued();
+            if (flush) {
+                slot.loop.flushClosed();
+            }
+            releasePort(slot.port);
+        }
+    }
+
+    public int getSessionCount() {
+        return slots.size();
+    }
+
+    /**
+     * Datagrams dropped because a session's backlog was full.
+     */
+    public long getDroppedDatagramCount() {
+        return droppedDatagrams.get();
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) return;
+        for (MoshServerSession session : new ArrayList<>(slots.keySet())) {
+            // Closing the selectors below releases the sockets.
+            closeSession(session, false);
+        }
+        for (SelectorLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        workers.shutdown();
+        sendScheduler.close();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private NioDatagramChannel bindNextPort() throws IOException {
+        IOException lastFailure = null;
+        for (int pass = 0; pass < 2; pass++) {
+            int rangeSize = portMax - portMin + 1;
+            for (int i = 0; i < rangeSize; i++) {
+                int port = reservePort();
+                if (port < 0) break;
+                try {
+                    return NioDatagramChannel.open(new InetSocketAddress(bindAddress, port), bufferPool);
+                } catch (RuntimeException e) {
+                    // Taken by another process; keep it reserved so it is not retried right away.
+                    lastFailure = e.getCause() instanceof IOException io ? io : new IOException(e);
+                }
+            }
+            if (!reclaimClosedSessions()) break;
+        }
+        IOException e = new IOException("No free port in range " + portMin + "-" + portMax);
+        if (lastFailure != null) e.addSuppressed(lastFailure);
+        throw e;
+    }
+
+    /**
+     * Reserve the next unused port after the last one handed out, or -1 if all are reserved.
+     */
+    private synchronized int reservePort() {
+        int rangeSize = portMax - portMin + 1;
+        int idx = portsInUse.nextClearBit(nextPort - portMin);
+        if (idx >= rangeSize) {
+            idx = portsInUse.nextClearBit(0);
+            if (idx >= rangeSize) return -1;
+        }
+        portsInUse.set(idx);
+        nextPort = portMin + (idx + 1) % rangeSize;
+        return portMin + idx;
+    }
+
+    private synchronized void releasePort(int port) {
+        portsInUse.clear(port - portMin);
+    }
+
+    /**
+     * Release the ports of sessions that were closed directly, and of ports that failed to
+     * bind earlier (they may be free by now).
+     *
+     * @return true if anything was released
+     */
+    private boolean reclaimClosedSessions() {
+        boolean released = false;
+        for (MoshServerSession session : new ArrayList<>(slots.keySet())) {
+            if (!session.isRunning()) {
+                closeSession(session);
+                released = true;
+            }
+        }
+        synchronized (this) {
+            BitSet live = new BitSet(portMax - portMin + 1);
+            for (SessionSlot slot : slots.values()) {
+                live.set(slot.port - portMin);
+            }
+            released |= !live.equals(portsInUse);
+            portsInUse.and(live);
+        }
+        return released;
+    }
+
+    /**
+     * One selector thread: registers new session channels and drains readable ones.
+     */
+    private final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        SelectorLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "mosh4j-engine-selector-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void register(SessionSlot slot) {
+            tasks.add(() -> {
+                try {
+                    slot.channel.getNioChannel().register(selector, SelectionKey.OP_READ, slot);
+                } catch (IOException e) {
+                    // Closed before it was registered.
+                    LOG.log(Level.FINE, "Could not register session channel", e);
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Wait until this loop has completed a select after the caller closed a channel:
+         * a registered channel keeps its socket until the selector drops the cancelled key.
+         */
+        void flushClosed() {
+            if (Thread.currentThread() == thread || !thread.isAlive()) return;
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            tasks.add(() -> {
+                try {
+                    selector.selectNow(); // drops cancelled keys, closing their sockets
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "selectNow failed", e);
+                }
+                done.complete(null);
+            });
+            selector.wakeup();
+            try {
+                done.get(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (TimeoutException | ExecutionException e) {
+                LOG.log(Level.FINE, "Selector did not acknowledge channel close", e);
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid() && key.isReadable()) {
+                            ((SessionSlot) key.attachment()).drainSocket();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (Throwable t) {
+                if (running) LOG.log(Level.SEVERE, "Selector loop failed", t);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Per-session inbox. Serializes processing: at most one worker task per session is
+     * scheduled at any time.
+     */
+    private final class SessionSlot implements Runnable {
+        final MoshServerSession session;
+        final NioDatagramChannel channel;
+        final int port;
+        final SelectorLoop loop;
+        private final ConcurrentLinkedQueue<PooledDatagram> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        SessionSlot(MoshServerSession session, NioDatagramChannel channel, int port, SelectorLoop loop) {
+            this.session = session;
+            this.channel = channel;
+            this.port = port;
+            this.loop = loop;
+        }
+
+        /** Called on the selector thread. */
+        void drainSocket() {
+            for (int i = 0; i < READ_BUDGET; i++) {
+                PooledDatagram d;
+                try {
+                    d = channel.tryReceive();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.FINE, "Receive failed on port " + port, e);
+                    break;
+                }
+                if (d == null) break;
+                if (queued.incrementAndGet() > MAX_QUEUED_PER_SESSION) {
+                    queued.decrementAndGet();
+                    droppedDatagrams.incrementAndGet();
+                    d.release();
+                    continue;
+                }
+                inbox.add(d);
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!inbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    discardQueued();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                PooledDatagram d;
+                for (int i = 0; i < PROCESS_BATCH && (d = inbox.poll()) != null; i++) {
+                    queued.decrementAndGet();
+                    try {
+                        session.processDatagram(d);
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.FINE, "Session failed to process datagram", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // Re-check after clearing the flag: the selector may have queued more meanwhile.
+            schedule();
+        }
+
+        void discardQueued() {
+            PooledDatagram d;
+            while ((d = inbox.poll()) != null) {
+                queued.decrementAndGet();
+                d.release();
+            }
+        }
+    }
+}
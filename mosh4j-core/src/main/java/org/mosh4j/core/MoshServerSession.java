@@ -4,16 +4,22 @@ import org.mosh4j.core.datagram.*;
 import org.mosh4j.crypto.MoshKey;
 import org.mosh4j.crypto.SspCipher;
 import org.mosh4j.terminal.Framebuffer;
+import org.mosh4j.terminal.FramebufferDiff;
+import org.mosh4j.terminal.FramebufferSnapshot;
+import org.mosh4j.terminal.FramebufferSnapshotStore;
 import org.mosh4j.terminal.SimpleFramebuffer;
+import org.mosh4j.protocol.HostMessageCodec;
+import org.mosh4j.protocol.InstructionView;
+import org.mosh4j.protocol.UserMessageCodec;
+import org.mosh4j.transport.OutgoingInstruction;
 import org.mosh4j.transport.TransportInstruction;
 import org.mosh4j.transport.TransportReceiver;
 import org.mosh4j.transport.TransportSender;
 
-import TransportBuffers.Transportinstruction;
-
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,99 +27,384 @@ import java.util.logging.Logger;
 /**
  * Mosh server session: accepts a client (roaming), receives user input, sends host output.
  * Updated to use the fragment layer and proper SSP timing.
+ * <p>
+ * Host output is sent as diffs: the session keeps a snapshot of the screen for every state
+ * it sends and encodes each new state as the ANSI transformation ({@link FramebufferDiff})
+ * from the state the client is assumed to have, wrapped in a {@code HostMessage}.
+ * <p>
+ * Sending is timer-driven, as in mosh: host output only updates the framebuffer, and a tick
+ * on the {@link SendScheduler} sends at most one new state per send interval (half the
+ * RTT, 20..250 ms, after {@link TransportSender#SEND_MINDELAY_MS} of quiet), retransmits
+ * an unacknowledged state after the RTO, sends delayed acks for client input and keeps the
+ * connection alive every {@link TransportSender#ACK_INTERVAL_MS}.
+ * <p>
+ * User input is handed to the {@link UserInputListener} once, in order, however the client
+ * split it into states. {@value #ECHO_TIMEOUT_MS} ms after a client input state was
+ * delivered, its number is sent back as {@code EchoAck}: by then the host has had the
+ * chance to echo it, and the client checks its local predictions against the screen.
  */
 public class MoshServerSession {
 
     private static final Logger LOG = Logger.getLogger(MoshServerSession.class.getName());
+    /** Sent screens kept as diff bases; beyond this the oldest are dropped (a full redraw then). */
+    private static final int MAX_SENT_FRAMES = 2 * TransportSender.MAX_PENDING_STATES;
+    /** Time the host gets to echo input before the client's predictions are checked (as mosh). */
+    static final long ECHO_TIMEOUT_MS = 50;
+    /** The sender's state is kept as {@link #sentFrames}; it only needs a non-null marker. */
+    private static final byte[] STATE_MARKER = new byte[0];
 
     private final DatagramChannel channel;
     private final SspDatagramCodec codec;
-    private final Framebuffer framebuffer;
+    private final SimpleFramebuffer framebuffer;
     private final TransportSender outputSender;
     private final TransportReceiver inputReceiver;
     private final FragmentCodec fragmentDecoder;
+    private final InstructionView receivedInstruction = new InstructionView();
+    private final FramebufferSnapshotStore sentFrames = new FramebufferSnapshotStore(MAX_SENT_FRAMES);
     private final AtomicReference<InetSocketAddress> clientAddress = new AtomicReference<>();
-    private final AtomicLong sendSeq = new AtomicLong(0);
-    private final AtomicLong instructionId = new AtomicLong(0);
+    private final InstructionSender instructionSender;
     private final RttEstimator rtt = new RttEstimator();
+    private final SendTimer sendTimer;
+    private final UserInputDelivery inputDelivery = new UserInputDelivery();
+    private volatile UserInputListener inputListener = new UserInputListener() {};
+    // Guarded by outputSender: delivered input states waiting for the echo timeout.
+    private final ArrayDeque<PendingEcho> pendingEchoes = new ArrayDeque<>();
+    private long echoAck;
     private volatile boolean running = true;
-    private volatile int lastTimestampReceived = 0;
+
+    /**
+     * Receives the user's input, in order and exactly once. Called on the receiving thread.
+     */
+    public interface UserInputListener {
+        default void keystrokes(byte[] keys) {}
+
+        default void resize(int width, int height) {}
+    }
+
+    private record PendingEcho(long stateNum, long dueNanos) {}
 
     public MoshServerSession(int port, MoshKey key, int width, int height) throws Exception {
-        DatagramSocket socket = new DatagramSocket(port);
-        this.channel = new UdpDatagramChannel(socket);
+        this(NioDatagramChannel.open(new InetSocketAddress(port)), key, width, height);
+    }
+
+    /**
+     * Create a session on an already bound channel, sending from the
+     * {@linkplain SendScheduler#shared() shared} scheduler.
+     */
+    public MoshServerSession(DatagramChannel channel, MoshKey key, int width, int height) {
+        this(channel, key, width, height, SendScheduler.shared());
+    }
+
+    /**
+     * Create a session on an already bound channel. Used by {@link MoshServerEngine}, which
+     * receives on the channel itself and hands datagrams to {@link #processDatagram}.
+     */
+    public MoshServerSession(DatagramChannel channel, MoshKey key, int width, int height, SendScheduler scheduler) {
+        this.channel = channel;
+        this.sendTimer = new SendTimer(scheduler, this::sendTick);
         SspCipher cipher = new SspCipher(key);
         this.codec = new SspDatagramCodec(cipher);
         this.framebuffer = new SimpleFramebuffer(width, height);
         this.fragmentDecoder = new FragmentCodec();
+        this.instructionSender = new InstructionSender(codec, true,
+                new PathMtuEstimator(TransportInstruction.getMaxFragmentSize()));
+        if (channel instanceof NioDatagramChannel nio) {
+            nio.setDontFragment(true);
+        }
+
+        this.inputReceiver = new TransportReceiver(inputDelivery::apply, inputDelivery::deliver);
 
-        this.inputReceiver = new TransportReceiver(
-                (base, diff) -> diff,
-                state -> {});
+        this.outputSender = new TransportSender(() -> STATE_MARKER, this::hostDiff);
+    }
 
-        this.outputSender = new TransportSender(
-                () -> ((SimpleFramebuffer) framebuffer).toStateBytes(),
-                () -> ((SimpleFramebuffer) framebuffer).toStateBytes());
+    public void setUserInputListener(UserInputListener listener) {
+        this.inputListener = listener != null ? listener : new UserInputListener() {};
     }
 
     /**
-     * Feed host output (terminal bytes from PTY) into the framebuffer and send an update to the client.
+     * Feed host output (terminal bytes from PTY) into the framebuffer. The update is sent to
+     * the client by the next send tick, together with any further output until then.
      */
     public void feedHostOutput(byte[] hostBytes) {
         if (hostBytes == null || hostBytes.length == 0) return;
         framebuffer.feedHostBytes(hostBytes);
+        long delay;
+        synchronized (outputSender) {
+            outputSender.markStateChanged();
+            delay = millisUntilNextSend();
+        }
+        sendTimer.arm(delay);
+    }
+
+    /**
+     * Send tick: send whatever {@link TransportSender#nextAction} says is due, then re-arm
+     * the timer for the next deadline.
+     */
+    private void sendTick() {
+        if (!running) return;
         InetSocketAddress client = clientAddress.get();
-        if (client == null) return;
-        long seq = sendSeq.getAndIncrement();
-        int ts = (int) (System.currentTimeMillis() & 0xFFFF);
-        Transportinstruction.Instruction inst = outputSender.nextInstruction(
-                outputSender.getAssumedReceiverState(rtt.getSrttMs()));
-        if (inst == null) return;
-        byte[] protobufBytes = TransportInstruction.toBytes(inst);
-        long fragId = instructionId.getAndIncrement();
-        byte[] fragmentPayload = FragmentCodec.encodeSingle(fragId, protobufBytes);
-        byte[] packet = codec.encode(true, seq, ts, lastTimestampReceived, fragmentPayload);
-        channel.send(client, packet);
+        if (client == null) return; // rescheduled when the client is first heard from
+        long delay;
+        synchronized (outputSender) {
+            try {
+                if (advanceEchoAck(System.nanoTime())) {
+                    outputSender.markStateChanged();
+                }
+                OutgoingInstruction inst = switch (outputSender.nextAction(rtt.getSendIntervalMs(), rtt.getRtoMs())) {
+                    case NEW_STATE -> outputSender.nextInstruction(
+                            outputSender.getAssumedReceiverState(rtt.getSrttMs()));
+                    case RETRANSMIT -> outputSender.retransmitInstruction();
+                    case ACK -> outputSender.createTrialInstruction();
+                    case NONE -> null;
+                };
+                if (inst != null) {
+                    sendInstruction(client, inst);
+                }
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Send tick failed", e);
+            }
+            delay = millisUntilNextSend();
+        }
+        sendTimer.arm(delay);
+    }
+
+    private void sendInstruction(InetSocketAddress client, OutgoingInstruction inst) {
+        long now = System.nanoTime();
+        instructionSender.send(channel, client, inst, RttEstimator.timestamp16(now), rtt.timestampReply(now));
+    }
+
+    private long millisUntilNextSend() {
+        long delay = outputSender.millisUntilNextAction(rtt.getSendIntervalMs(), rtt.getRtoMs());
+        PendingEcho next = pendingEchoes.peekFirst();
+        if (next != null) {
+            long untilEcho = TimeUnit.NANOSECONDS.toMillis(Math.max(0, next.dueNanos() - System.nanoTime()));
+            delay = Math.min(delay, untilEcho);
+        }
+        return delay;
+    }
+
+    /**
+     * Move {@link #echoAck} to the newest input state delivered at least
+     * {@link #ECHO_TIMEOUT_MS} ago. Caller holds the {@code outputSender} lock.
+     *
+     * @return whether it moved
+     */
+    private boolean advanceEchoAck(long nowNanos) {
+        boolean moved = false;
+        for (PendingEcho next; (next = pendingEchoes.peekFirst()) != null && next.dueNanos() - nowNanos <= 0; ) {
+            pendingEchoes.pollFirst();
+            echoAck = next.stateNum();
+            moved = true;
+        }
+        return moved;
     }
 
     /**
      * Receive one datagram. Updates client address (roaming) and processes user input.
      */
     public boolean receiveOnce() {
-        DatagramChannel.ReceiveResult result = channel.receive();
-        if (result == null || !running) return false;
+        PooledDatagram datagram = channel.receivePooled();
+        if (datagram == null) return false;
+        if (!running) {
+            datagram.release();
+            return false;
+        }
+        processDatagram(datagram);
+        return true;
+    }
+
+    /**
+     * Process one received datagram: updates the client address (roaming) and applies user
+     * input. The datagram is released when this returns. Must not be called concurrently
+     * for the same session.
+     */
+    public void processDatagram(PooledDatagram datagram) {
         try {
-            DatagramPayload payload = codec.decode(result.packet());
+            if (!running) return;
+            DatagramPayload payload = codec.decode(datagram.buffer());
+            if (payload == null) {
+                // Replayed or duplicated datagram, rejected by the replay window.
+                return;
+            }
             if (!payload.isServerToClient()) {
-                clientAddress.set(result.source());
-                int receivedTs = payload.getTimestamp();
-                lastTimestampReceived = receivedTs;
-
-                int echoedTs = payload.getTimestampReply();
-                if (echoedTs != 0) {
-                    int now = (int) (System.currentTimeMillis() & 0xFFFF);
-                    int rttSample = (now - echoedTs) & 0xFFFF;
-                    if (rttSample > 0 && rttSample <= 5000) {
-                        rtt.update(rttSample);
-                    }
-                }
+                clientAddress.set(datagram.source());
+                rtt.onDatagramReceived(payload.getSeq(), payload.getTimestamp(), payload.getTimestampReply(),
+                        System.nanoTime());
 
-                byte[] fragmentData = payload.getPayload();
-                if (fragmentData != null && fragmentData.length > 0) {
-                    byte[] protobufBytes = fragmentDecoder.decode(fragmentData);
+                if (payload.getPayloadLength() > 0) {
+                    ByteBuffer protobufBytes = fragmentDecoder.decode(payload.getPayloadBuffer());
                     if (protobufBytes != null) {
-                        Transportinstruction.Instruction inst = TransportInstruction.parse(protobufBytes);
-                        inputReceiver.receive(inst);
+                        InstructionView inst = receivedInstruction.wrap(protobufBytes);
+                        long previous = inputReceiver.getLatestStateNum();
+                        long latest = inputReceiver.receive(inst);
+                        synchronized (outputSender) {
+                            if (latest > previous) {
+                                outputSender.setAckNum(latest);
+                                outputSender.remoteHeard();
+                            }
+                            if (inst.hasAckNum()) {
+                                outputSender.setKnownReceiverState(inst.getAckNum());
+                            }
+                        }
                         if (inst.hasAckNum()) {
-                            outputSender.setKnownReceiverState(inst.getAckNum());
+                            sentFrames.releaseBelow(inst.getAckNum());
+                            instructionSender.getPathMtu().onAcked(inst.getAckNum());
                         }
                     }
                 }
+                instructionSender.getPathMtu().onTick(System.nanoTime(), probeTimeoutMillis() * 1_000_000L);
+                long delay;
+                synchronized (outputSender) {
+                    delay = millisUntilNextSend();
+                }
+                sendTimer.arm(delay);
             }
         } catch (Exception e) {
             LOG.log(Level.FINE, "Decode or process failed for datagram", e);
+        } finally {
+            datagram.release();
         }
-        return true;
+    }
+
+    /**
+     * Diff for {@link TransportSender}: snapshot the screen as state {@code newNum} (unless
+     * that state was sent before) and encode it relative to state {@code oldNum}.
+     */
+    private byte[] hostDiff(long oldNum, long newNum) {
+        FramebufferSnapshot current = sentFrames.get(newNum); // present when retransmitting
+        if (current == null) {
+            current = framebuffer.snapshot();
+            sentFrames.put(newNum, current);
+        }
+        return encodeHostMessage(sentFrames.get(oldNum), current, echoAck);
+    }
+
+    /**
+     * HostMessage turning {@code base} into {@code current}: a resize when there is no base
+     * or the size changed, then the ANSI bytes, then the echo ack if any input was echoed.
+     * Empty if there is nothing to say.
+     */
+    static byte[] encodeHostMessage(FramebufferSnapshot base, FramebufferSnapshot current, long echoAck) {
+        boolean resize = base == null || base.getWidth() != current.getWidth() || base.getHeight() != current.getHeight();
+        byte[] ansi = FramebufferDiff.newFrame(base, current);
+        int length = (resize ? HostMessageCodec.resizeLength(current.getWidth(), current.getHeight()) : 0)
+                + (ansi.length > 0 ? HostMessageCodec.hostBytesLength(ansi.length) : 0)
+                + (echoAck > 0 ? HostMessageCodec.echoAckLength(echoAck) : 0);
+        byte[] msg = new byte[length];
+        int pos = 0;
+        if (resize) {
+            pos = HostMessageCodec.writeResize(msg, pos, current.getWidth(), current.getHeight());
+        }
+        if (ansi.length > 0) {
+            pos = HostMessageCodec.writeHostBytes(msg, pos, ansi, 0, ansi.length);
+        }
+        if (echoAck > 0) {
+            HostMessageCodec.writeEchoAck(msg, pos, echoAck);
+        }
+        return msg;
+    }
+
+    /**
+     * The client's input as a stream of units (key bytes and resizes). A state is the number
+     * of units it holds, so a diff against any base can be trimmed to the units not yet
+     * delivered. Receiving thread only.
+     */
+    private final class UserInputDelivery implements UserMessageCodec.Handler {
+        private long delivered;
+        private byte[] appliedDiff;
+        private long appliedBase;
+        private long units;
+        private long skip;
+        private boolean deliver;
+
+        /** {@link TransportReceiver} diff function: the new state is the base's units plus the diff's. */
+        byte[] apply(byte[] base, byte[] diff) {
+            long baseUnits = base.length == Long.BYTES ? ByteBuffer.wrap(base).getLong() : 0;
+            units = 0;
+            deliver = false;
+            try {
+                UserMessageCodec.decode(ByteBuffer.wrap(diff), this);
+            } catch (IllegalArgumentException e) {
+                LOG.log(Level.FINE, "Ignoring malformed UserMessage", e);
+                return null;
+            }
+            appliedDiff = diff;
+            appliedBase = baseUnits;
+            return ByteBuffer.allocate(Long.BYTES).putLong(baseUnits + units).array();
+        }
+
+        /** The state just applied is the newest: deliver its units beyond those delivered. */
+        void deliver(byte[] state) {
+            long total = ByteBuffer.wrap(state).getLong();
+            if (total > delivered) {
+                skip = Math.max(0, delivered - appliedBase);
+                deliver = true;
+                UserMessageCodec.decode(ByteBuffer.wrap(appliedDiff), this);
+                delivered = total;
+            }
+            long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ECHO_TIMEOUT_MS);
+            long delay;
+            synchronized (outputSender) {
+                pendingEchoes.addLast(new PendingEcho(inputReceiver.getLatestStateNum(), dueNanos));
+                delay = millisUntilNextSend();
+            }
+            sendTimer.arm(delay);
+        }
+
+        @Override
+        public void keystroke(ByteBuffer src, int offset, int length) {
+            if (!deliver) {
+                units += length;
+                return;
+            }
+            int skipped = (int) Math.min(skip, length);
+            skip -= skipped;
+            if (skipped < length) {
+                byte[] keys = new byte[length - skipped];
+                src.get(offset + skipped, keys);
+                inputListener.keystrokes(keys);
+            }
+        }
+
+        @Override
+        public void resize(int width, int height) {
+            if (!deliver) {
+                units++;
+            } else if (skip > 0) {
+                skip--;
+            } else {
+                inputListener.resize(width, height);
+            }
+        }
+    }
+
+    /**
+     * Current path-MTU estimate for host output, in fragment payload bytes.
+     */
+    public int getPathMtu() {
+        return instructionSender.getPathMtu().getMtu();
+    }
+
+    /**
+     * Round-trip, jitter and loss estimates for the client path.
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * How long an MTU probe may stay unacknowledged: a few retransmission timeouts, so
+     * ordinary loss does not look like a black hole.
+     */
+    private long probeTimeoutMillis() {
+        return Math.max(1000, 2L * rtt.getRtoMs());
+    }
+
+    /**
+     * Local address the session's channel is bound to, or null if unknown.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return channel instanceof NioDatagramChannel nio ? nio.getLocalAddress() : null;
     }
 
     public Framebuffer getFramebuffer() {
@@ -122,6 +413,7 @@ public class MoshServerSession {
 
     public void close() {
         running = false;
+        sendTimer.cancel();
         channel.close();
     }
 
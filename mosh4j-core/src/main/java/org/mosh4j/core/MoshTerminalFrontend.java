@@ -1,5 +1,6 @@
 package org.mosh4j.core;
 
+import org.mosh4j.terminal.PredictionEngine;
 import org.mosh4j.terminal.StatefulAnsiRenderer;
 
 import java.io.Closeable;
@@ -15,6 +16,7 @@ import java.util.logging.Logger;
  * <p>
  * It combines receive/polling with a stateful ANSI renderer and provides a
  * queue of terminal-ready ANSI frames that can be consumed by external UIs.
+ * Frames show the session's local echo predictions; typing renders a frame right away.
  */
 public final class MoshTerminalFrontend implements Closeable {
     private static final Logger LOG = Logger.getLogger(MoshTerminalFrontend.class.getName());
@@ -23,6 +25,8 @@ public final class MoshTerminalFrontend implements Closeable {
     private final StatefulAnsiRenderer renderer;
     private final LinkedBlockingQueue<String> renderedOutputQueue;
     private final AtomicBoolean running = new AtomicBoolean(false);
+    /** Typing and the receive loop both render; frames are queued in the order they were rendered. */
+    private final Object renderLock = new Object();
 
     private volatile Thread receiveThread;
 
@@ -77,6 +81,16 @@ public final class MoshTerminalFrontend implements Closeable {
      */
     public void sendUserInput(byte[] bytes) {
         session.sendUserInput(bytes);
+        if (session.getPredictionEngine().hasPredictions()) {
+            enqueueRenderedFrame();
+        }
+    }
+
+    /**
+     * When typed keys are echoed locally before the server confirms them.
+     */
+    public void setPredictionDisplay(PredictionEngine.DisplayPreference preference) {
+        session.getPredictionEngine().setDisplayPreference(preference);
     }
 
     /**
@@ -87,7 +101,8 @@ public final class MoshTerminalFrontend implements Closeable {
     }
 
     /**
-     * Send a protocol heartbeat (ack-only) without user keystroke bytes.
+     * Send a protocol heartbeat (ack-only) now. The session sends heartbeats by itself; this
+     * is only useful right after a network change.
      */
     public void sendHeartbeat() {
         session.sendHeartbeat();
@@ -181,13 +196,15 @@ public final class MoshTerminalFrontend implements Closeable {
     }
 
     private void enqueueRenderedFrame() {
-        String frame = renderer.render(session.getFramebuffer());
-        if (frame == null || frame.isEmpty()) {
-            return;
-        }
-        if (!renderedOutputQueue.offer(frame)) {
-            renderedOutputQueue.poll();
-            renderedOutputQueue.offer(frame);
+        synchronized (renderLock) {
+            String frame = renderer.render(session.getDisplayFrame());
+            if (frame == null || frame.isEmpty()) {
+                return;
+            }
+            if (!renderedOutputQueue.offer(frame)) {
+                renderedOutputQueue.poll();
+                renderedOutputQueue.offer(frame);
+            }
         }
     }
 }
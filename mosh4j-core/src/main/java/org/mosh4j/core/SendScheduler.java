@@ -0,0 +1,70 @@
+package org.mosh4j.core;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer for the send ticks of many sessions.
+ * <p>
+ * Sessions do not send from the thread that produces output; they schedule a tick here for
+ * the moment their {@link org.mosh4j.transport.TransportSender} says the next datagram is
+ * due, and re-arm it after each send. A handful of daemon threads serve any number of
+ * sessions; cancelled ticks are removed from the queue right away.
+ */
+public final class SendScheduler implements AutoCloseable {
+
+    private static final Object SHARED_LOCK = new Object();
+    private static SendScheduler shared;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param threads    number of timer threads
+     * @param namePrefix thread name prefix
+     */
+    public SendScheduler(int threads, String namePrefix) {
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        AtomicInteger ids = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, namePrefix + ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Process-wide scheduler for sessions created without one; never closed.
+     */
+    public static SendScheduler shared() {
+        synchronized (SHARED_LOCK) {
+            if (shared == null) {
+                shared = new SendScheduler(Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                        "mosh4j-send-timer-");
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Run {@code task} once after {@code delayMillis}.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return executor.schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isOpen() {
+        return !executor.isShutdown();
+    }
+
+    /**
+     * Stop the timer threads; pending ticks are dropped.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,62 @@
+package org.mosh4j.core;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A session's send timer on a {@link SendScheduler}: at most one tick is pending, at the
+ * earliest time any caller asked for. The tick re-arms the timer itself for its next deadline.
+ */
+final class SendTimer {
+
+    private final SendScheduler scheduler;
+    private final Runnable tick;
+    private ScheduledFuture<?> pending;
+    private long pendingId;
+    private long dueNanos;
+    private boolean cancelled;
+
+    SendTimer(SendScheduler scheduler, Runnable tick) {
+        this.scheduler = scheduler;
+        this.tick = tick;
+    }
+
+    /**
+     * Make sure the tick runs within {@code delayMillis}; an earlier pending tick is kept.
+     */
+    synchronized void arm(long delayMillis) {
+        if (cancelled || !scheduler.isOpen()) return;
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        if (pending != null) {
+            if (dueNanos - due <= 0) return;
+            pending.cancel(false);
+        }
+        long id = ++pendingId;
+        dueNanos = due;
+        try {
+            pending = scheduler.schedule(() -> fire(id), delayMillis);
+        } catch (RejectedExecutionException e) {
+            pending = null; // scheduler closed concurrently
+        }
+    }
+
+    /**
+     * Drop the pending tick and ignore further {@link #arm} calls.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    private void fire(long id) {
+        synchronized (this) {
+            if (id != pendingId || cancelled) return;
+            pending = null;
+        }
+        tick.run();
+    }
+}
@@ -0,0 +1,115 @@
+package org.mosh4j.core;
+
+import org.mosh4j.protocol.UserMessageCodec;
+import org.mosh4j.transport.TransportSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The client's side of the user-input stream, as mosh's {@code UserStream}: the keystrokes
+ * and resizes entered so far. A state is a prefix of this event log, so the diff between two
+ * states is the run of events between them, sent as one {@code UserMessage} with adjacent
+ * keystrokes merged.
+ * <p>
+ * Events the server acknowledged are dropped ({@link #acknowledged}). Thread-safe.
+ */
+final class UserStream implements TransportSender.DiffSource {
+
+    /** A keystroke run ({@code keys != null}) or a resize. */
+    private record Event(byte[] keys, int width, int height) {}
+
+    private final List<Event> events = new ArrayList<>();
+    /** Absolute index of {@code events.get(0)}. */
+    private long eventsBase;
+    /** Event count making up each sent state. */
+    private final TreeMap<Long, Long> stateEnds = new TreeMap<>(Map.of(0L, 0L));
+
+    synchronized void pushKeystroke(byte[] keys) {
+        events.add(new Event(keys.clone(), 0, 0));
+    }
+
+    synchronized void pushResize(int width, int height) {
+        events.add(new Event(null, width, height));
+    }
+
+    /**
+     * Serialized {@code UserMessage} taking state {@code oldNum} to {@code newNum}. The first
+     * call for a state number fixes that state as all events pushed so far.
+     */
+    @Override
+    public synchronized byte[] diff(long oldNum, long newNum) {
+        long end = stateEnds.computeIfAbsent(newNum, n -> eventsBase + events.size());
+        long start = Math.max(eventsBase, stateEnds.getOrDefault(oldNum, eventsBase));
+        if (start >= end) return new byte[0];
+
+        byte[] out = new byte[messageLength(start, end)];
+        int pos = 0;
+        for (long i = start; i < end; ) {
+            Event event = event(i);
+            if (event.keys() == null) {
+                pos = UserMessageCodec.writeResize(out, pos, event.width(), event.height());
+                i++;
+                continue;
+            }
+            long runEnd = keystrokeRunEnd(i, end);
+            pos = UserMessageCodec.writeKeystrokeHeader(out, pos, keystrokeRunLength(i, runEnd));
+            for (; i < runEnd; i++) {
+                byte[] keys = event(i).keys();
+                System.arraycopy(keys, 0, out, pos, keys.length);
+                pos += keys.length;
+            }
+        }
+        return out;
+    }
+
+    private int messageLength(long start, long end) {
+        int length = 0;
+        for (long i = start; i < end; ) {
+            Event event = event(i);
+            if (event.keys() == null) {
+                length += UserMessageCodec.resizeLength(event.width(), event.height());
+                i++;
+            } else {
+                long runEnd = keystrokeRunEnd(i, end);
+                length += UserMessageCodec.keystrokeLength(keystrokeRunLength(i, runEnd));
+                i = runEnd;
+            }
+        }
+        return length;
+    }
+
+    private Event event(long index) {
+        return events.get((int) (index - eventsBase));
+    }
+
+    private long keystrokeRunEnd(long start, long end) {
+        long i = start;
+        while (i < end && event(i).keys() != null) i++;
+        return i;
+    }
+
+    private int keystrokeRunLength(long start, long end) {
+        int length = 0;
+        for (long i = start; i < end; i++) {
+            length += event(i).keys().length;
+        }
+        return length;
+    }
+
+    /**
+     * The server holds state {@code stateNum}: forget older states and the events they cover.
+     */
+    synchronized void acknowledged(long stateNum) {
+        Long end = stateEnds.get(stateNum);
+        if (end == null) return;
+        stateEnds.headMap(stateNum).clear();
+        int drop = (int) (end - eventsBase);
+        if (drop > 0) {
+            events.subList(0, drop).clear();
+            eventsBase = end;
+        }
+    }
+}
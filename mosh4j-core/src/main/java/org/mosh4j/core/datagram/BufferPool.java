@@ -0,0 +1,63 @@
+package org.mosh4j.core.datagram;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of equally sized direct {@link ByteBuffer}s for receiving datagrams.
+ * <p>
+ * {@link #acquire()} hands out a cleared buffer, allocating a new one only when the pool
+ * is empty; {@link #release(ByteBuffer)} returns it, dropping it if the pool is already
+ * full. Once warmed up, receiving does not allocate. Thread-safe.
+ */
+public final class BufferPool {
+
+    /** Largest UDP payload over IPv4. */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int DEFAULT_MAX_POOLED = 16;
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool() {
+        this(MAX_DATAGRAM_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param bufferSize capacity of each buffer; datagrams larger than this are truncated
+     * @param maxPooled  maximum number of idle buffers kept
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("bufferSize and maxPooled must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.capacity() == bufferSize && buf.isDirect()) {
+            free.offer(buf);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Number of idle buffers currently held.
+     */
+    public int available() {
+        return free.size();
+    }
+}
@@ -10,6 +10,16 @@ public interface DatagramChannel {
 
     void send(InetSocketAddress target, byte[] data);
 
+    /**
+     * Send the remaining bytes of {@code data}. Implementations backed by NIO send the
+     * buffer directly; the default copies it into an array.
+     */
+    default void send(InetSocketAddress target, ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        send(target, copy);
+    }
+
     /**
      * Receive one datagram; blocks until one is available or the channel is closed.
      *
@@ -17,6 +27,18 @@ public interface DatagramChannel {
      */
     ReceiveResult receive();
 
+    /**
+     * Receive one datagram into a pooled buffer, blocking like {@link #receive()}.
+     * The caller must {@link PooledDatagram#release() release} the result when done.
+     * The default wraps {@link #receive()}.
+     *
+     * @return the datagram, or null if closed or timed out
+     */
+    default PooledDatagram receivePooled() {
+        ReceiveResult result = receive();
+        return result == null ? null : PooledDatagram.wrap(result.source(), result.packet());
+    }
+
     void close();
 
     boolean isOpen();
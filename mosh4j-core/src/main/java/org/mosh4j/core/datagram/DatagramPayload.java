@@ -1,23 +1,34 @@
 package org.mosh4j.core.datagram;
 
-import java.util.Objects;
+import java.nio.ByteBuffer;
 
 /**
  * Decoded SSP datagram payload: sequence number, timestamps, and transport payload.
+ * <p>
+ * Payloads produced by {@link SspDatagramCodec} are views into the decrypted packet, not
+ * copies: {@link #getPayloadBuffer()} is only valid as long as the packet buffer is (for
+ * a pooled receive, until the datagram is released). {@link #getPayload()} returns a copy.
  */
 public final class DatagramPayload {
 
     private final long seq;
     private final int timestamp;
     private final int timestampReply;
-    private final byte[] payload;
+    private final ByteBuffer payload;
     private final boolean serverToClient;
 
     public DatagramPayload(long seq, int timestamp, int timestampReply, byte[] payload, boolean serverToClient) {
+        this(seq, timestamp, timestampReply, ByteBuffer.wrap(payload == null ? new byte[0] : payload), serverToClient);
+    }
+
+    /**
+     * @param payload the remaining bytes of this buffer are the payload; it is not copied
+     */
+    public DatagramPayload(long seq, int timestamp, int timestampReply, ByteBuffer payload, boolean serverToClient) {
         this.seq = seq;
         this.timestamp = timestamp;
         this.timestampReply = timestampReply;
-        this.payload = payload == null ? new byte[0] : payload;
+        this.payload = payload.slice().asReadOnlyBuffer();
         this.serverToClient = serverToClient;
     }
 
@@ -34,7 +45,21 @@ public final class DatagramPayload {
     }
 
     public byte[] getPayload() {
-        return payload.clone();
+        byte[] copy = new byte[payload.remaining()];
+        payload.get(0, copy);
+        return copy;
+    }
+
+    /**
+     * Read-only view of the payload (fragment header + chunk), positioned at its first byte.
+     * Each call returns an independent view.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payload.duplicate();
+    }
+
+    public int getPayloadLength() {
+        return payload.remaining();
     }
 
     public boolean isServerToClient() {
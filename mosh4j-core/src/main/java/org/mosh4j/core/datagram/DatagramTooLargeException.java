@@ -0,0 +1,40 @@
+package org.mosh4j.core.datagram;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link DatagramChannel#send} when a datagram cannot be sent because of its size:
+ * larger than a UDP datagram can be, or refused by the local stack as larger than the known
+ * path MTU ({@code EMSGSIZE}), typically after an ICMP "fragmentation needed" for a
+ * don't-fragment datagram.
+ */
+public class DatagramTooLargeException extends RuntimeException {
+
+    private static final String WINDOWS_EMSGSIZE = "A message sent on a datagram socket was larger";
+
+    private final int size;
+
+    public DatagramTooLargeException(int size, Throwable cause) {
+        super("Datagram of " + size + " bytes exceeds the path MTU", cause);
+        this.size = size;
+    }
+
+    /**
+     * Size of the rejected datagram in bytes.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Whether a failed send is {@code EMSGSIZE}. The JDK reports it as a plain
+     * {@link IOException} carrying the platform's error text, so this compares the whole
+     * message with the Linux/BSD and Windows texts rather than searching for a fragment of
+     * it. Oversized datagrams the channel can recognise itself never get here; on a platform
+     * with other wording the failure surfaces as an ordinary send error.
+     */
+    static boolean isMessageTooLong(IOException e) {
+        String msg = e.getMessage();
+        return msg != null && (msg.equals("Message too long") || msg.startsWith(WINDOWS_EMSGSIZE));
+    }
+}
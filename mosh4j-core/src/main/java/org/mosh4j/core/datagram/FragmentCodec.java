@@ -1,17 +1,10 @@
 package org.mosh4j.core.datagram;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Handles the mosh fragment layer that sits between the transport instruction
@@ -24,6 +17,17 @@ import java.util.zip.Inflater;
  *   [2B] fragment_num      bits 0-14: fragment index, bit 15: final flag
  *   [NB] chunk             portion of zlib-compressed protobuf
  * </pre>
+ *
+ * The {@link ByteBuffer} decode path works on slices of the received packet: a
+ * single-fragment instruction is inflated straight from the slice into a reused output
+ * buffer, so the decompression is the only copy on the way in. Only fragments of
+ * multi-fragment instructions are copied, since they must outlive their packet.
+ * zlib streams are pooled, see {@link ZlibCodec}.
+ *
+ * Several instructions can be reassembled at once, so reordering between two multi-fragment
+ * instructions does not lose either. Memory is bounded by the number of concurrent
+ * instructions, a byte budget and a maximum age; the oldest partial instruction is evicted
+ * first. Fragments of recently completed instructions are recognised as duplicates.
  */
 public final class FragmentCodec {
 
@@ -32,7 +36,43 @@ public final class FragmentCodec {
     private static final int MAX_FRAGMENT_COUNT = 0x8000;
     private static final int MAX_FRAGMENT_INDEX = 0x7FFF;
 
-    private final ConcurrentHashMap<Long, FragmentAssembly> assemblies = new ConcurrentHashMap<>();
+    /** Default number of instructions reassembled concurrently. */
+    public static final int DEFAULT_MAX_ASSEMBLIES = 8;
+    /** Default budget for fragment bytes held across all incomplete instructions. */
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 1 << 20;
+    /** Default lifetime of an incomplete instruction. */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10_000;
+    private static final int RECENTLY_COMPLETED = 16;
+
+    private final FragmentAssembly[] assemblies;
+    private final long maxBufferedBytes;
+    private final long maxAgeNanos;
+    private final long[] recentlyCompleted = new long[RECENTLY_COMPLETED];
+    private int completedNext;
+    private int completedCount;
+    private long bufferedBytes;
+    private long completedInstructions;
+    private long evictedAssemblies;
+    private long duplicateFragments;
+    private final ZlibCodec zlib = new ZlibCodec();
+
+    public FragmentCodec() {
+        this(DEFAULT_MAX_ASSEMBLIES, DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxAssemblies    instructions reassembled concurrently; the oldest is evicted for a new one
+     * @param maxBufferedBytes fragment bytes held across all incomplete instructions
+     * @param maxAgeMillis     time after which an incomplete instruction is dropped
+     */
+    public FragmentCodec(int maxAssemblies, long maxBufferedBytes, long maxAgeMillis) {
+        if (maxAssemblies <= 0 || maxBufferedBytes <= 0 || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Reassembly limits must be positive");
+        }
+        this.assemblies = new FragmentAssembly[maxAssemblies];
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+    }
 
     /**
      * Encode a serialized protobuf instruction into one or more fragment payloads.
@@ -46,14 +86,7 @@ public final class FragmentCodec {
     public static List<byte[]> encode(long instructionId, byte[] protobufBytes, int mtu) {
         byte[] compressed = zlibCompress(protobufBytes);
         int chunkSize = mtu - HEADER_SIZE;
-        if (chunkSize <= 0) {
-            throw new IllegalArgumentException("MTU too small for fragment header");
-        }
-        int totalFragments = (compressed.length + chunkSize - 1) / chunkSize;
-        if (totalFragments > MAX_FRAGMENT_COUNT) {
-            throw new IllegalArgumentException(
-                    "Payload requires " + totalFragments + " fragments, exceeding the maximum of " + MAX_FRAGMENT_COUNT);
-        }
+        int totalFragments = fragmentCount(compressed.length, mtu);
 
         List<byte[]> fragments = new ArrayList<>(totalFragments);
         int offset = 0;
@@ -63,11 +96,7 @@ public final class FragmentCodec {
             boolean isFinal = (i == totalFragments - 1);
 
             byte[] fragment = new byte[HEADER_SIZE + dataLen];
-            ByteBuffer buf = ByteBuffer.wrap(fragment).order(ByteOrder.BIG_ENDIAN);
-            buf.putLong(instructionId);
-            int fragField = i & MAX_FRAGMENT_INDEX;
-            if (isFinal) fragField |= FINAL_FLAG;
-            buf.putShort((short) fragField);
+            writeHeader(fragment, 0, instructionId, i, isFinal);
             if (dataLen > 0) {
                 System.arraycopy(compressed, offset, fragment, HEADER_SIZE, dataLen);
             }
@@ -83,138 +112,300 @@ public final class FragmentCodec {
     public static byte[] encodeSingle(long instructionId, byte[] protobufBytes) {
         byte[] compressed = zlibCompress(protobufBytes);
         byte[] fragment = new byte[HEADER_SIZE + compressed.length];
-        ByteBuffer buf = ByteBuffer.wrap(fragment).order(ByteOrder.BIG_ENDIAN);
-        buf.putLong(instructionId);
-        buf.putShort((short) (FINAL_FLAG)); // fragment 0, final
+        writeHeader(fragment, 0, instructionId, 0, true);
         System.arraycopy(compressed, 0, fragment, HEADER_SIZE, compressed.length);
         return fragment;
     }
 
+    /**
+     * zlib-compress a serialized instruction, as carried in the fragment chunks.
+     * Use with {@link SspDatagramCodec#encodeFragment} to build datagrams without
+     * intermediate fragment arrays.
+     */
+    public static byte[] compress(byte[] protobufBytes) {
+        return zlibCompress(protobufBytes);
+    }
+
+    /**
+     * Number of fragments needed for {@code compressedLength} bytes of compressed instruction
+     * with at most {@code mtu} bytes per fragment payload (header included). An empty
+     * instruction still takes one fragment.
+     *
+     * @throws IllegalArgumentException if the MTU cannot hold a header, or more than 32768
+     *                                  fragments would be needed
+     */
+    public static int fragmentCount(int compressedLength, int mtu) {
+        int chunkSize = mtu - HEADER_SIZE;
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("MTU too small for fragment header");
+        }
+        int totalFragments = Math.max(1, (compressedLength + chunkSize - 1) / chunkSize);
+        if (totalFragments > MAX_FRAGMENT_COUNT) {
+            throw new IllegalArgumentException(
+                    "Payload requires " + totalFragments + " fragments, exceeding the maximum of " + MAX_FRAGMENT_COUNT);
+        }
+        return totalFragments;
+    }
+
+    /**
+     * Size of the fragment header (instruction id + fragment number).
+     */
+    public static int headerSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Write a fragment header at {@code dst[off]}.
+     */
+    static void writeHeader(byte[] dst, int off, long instructionId, int fragmentNum, boolean isFinal) {
+        if (fragmentNum < 0 || fragmentNum > MAX_FRAGMENT_INDEX) {
+            throw new IllegalArgumentException("Fragment number out of range: " + fragmentNum);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(dst, off, HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        buf.putLong(instructionId);
+        buf.putShort((short) (isFinal ? fragmentNum | FINAL_FLAG : fragmentNum));
+    }
+
     /**
      * Decode a fragment payload. Returns the reassembled protobuf bytes when all
      * fragments for an instruction have arrived, or null if still waiting.
      */
-    public byte[] decode(byte[] fragmentPayload) {
-        if (fragmentPayload == null || fragmentPayload.length < HEADER_SIZE) {
+    public synchronized byte[] decode(byte[] fragmentPayload) {
+        if (fragmentPayload == null) {
             return null;
         }
-        ByteBuffer buf = ByteBuffer.wrap(fragmentPayload).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer out = decode(ByteBuffer.wrap(fragmentPayload));
+        if (out == null) {
+            return null;
+        }
+        byte[] result = new byte[out.remaining()];
+        out.get(result);
+        return result;
+    }
+
+    /**
+     * Decode the remaining bytes of {@code fragmentPayload} (fragment header + chunk),
+     * typically {@link DatagramPayload#getPayloadBuffer()}. The buffer's position is not
+     * changed and it is not referenced after this call returns.
+     *
+     * @return the reassembled protobuf bytes, or null if still waiting for fragments. The
+     * returned buffer is backed by an array owned by this codec and is only valid until
+     * the next call to a {@code decode} method.
+     */
+    public synchronized ByteBuffer decode(ByteBuffer fragmentPayload) {
+        if (fragmentPayload == null || fragmentPayload.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buf = fragmentPayload.duplicate().order(ByteOrder.BIG_ENDIAN);
         long id = buf.getLong();
         int fragField = buf.getShort() & 0xFFFF;
         int fragNum = fragField & MAX_FRAGMENT_INDEX;
         boolean isFinal = (fragField & FINAL_FLAG) != 0;
 
-        byte[] data = new byte[fragmentPayload.length - HEADER_SIZE];
-        if (data.length > 0) {
-            System.arraycopy(fragmentPayload, HEADER_SIZE, data, 0, data.length);
+        if (fragNum == 0 && isFinal) {
+            // Whole instruction in one datagram: inflate from the packet slice.
+            completedInstructions++;
+            return zlib.decompress(buf);
         }
 
-        FragmentAssembly assembly = assemblies.get(id);
-        boolean isNew = false;
-        if (assembly == null) {
-            FragmentAssembly newAssembly = new FragmentAssembly(id);
-            assembly = assemblies.putIfAbsent(id, newAssembly);
-            if (assembly == null) {
-                assembly = newAssembly;
-                isNew = true;
-            }
+        long now = System.nanoTime();
+        evictExpired(now);
+        if (isRecentlyCompleted(id)) {
+            // Retransmitted fragment of an instruction that was already delivered.
+            duplicateFragments++;
+            return null;
+        }
+        int slot = findAssembly(id);
+        if (slot < 0) {
+            slot = freeSlot();
+            assemblies[slot] = new FragmentAssembly(id, now);
         }
+        FragmentAssembly assembly = assemblies[slot];
 
-        final long currentId = id;
-        synchronized (assembly) {
-            if (isNew) {
-                assemblies.keySet().removeIf(k -> k != currentId);
-            }
-            assembly.addFragment(fragNum, data, isFinal);
+        int dataLen = buf.remaining();
+        if (assembly.has(fragNum)) {
+            duplicateFragments++;
+            return null;
+        }
+        if (!assembly.accepts(fragNum, isFinal)) {
+            // Fragment number contradicts the final fragment seen so far: corrupt sender state.
+            removeAssembly(slot);
+            evictedAssemblies++;
+            return null;
+        }
+        byte[] data = new byte[dataLen];
+        buf.get(data);
+        assembly.add(fragNum, data, isFinal);
+        bufferedBytes += dataLen;
 
-            if (assembly.isComplete()) {
-                byte[] compressed = assembly.assemble();
-                assemblies.remove(currentId, assembly);
-                return zlibDecompress(compressed);
-            }
+        if (assembly.isComplete()) {
+            removeAssembly(slot);
+            rememberCompleted(id);
+            completedInstructions++;
+            return zlib.decompress(assembly.fragments, assembly.totalFragments);
         }
+        enforceByteBudget(slot);
         return null;
     }
 
-    private static byte[] zlibCompress(byte[] input) {
-        Deflater deflater = new Deflater();
-        try {
-            deflater.setInput(input);
-            deflater.finish();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(input.length);
-            byte[] tmp = new byte[1024];
-            while (!deflater.finished()) {
-                int n = deflater.deflate(tmp);
-                baos.write(tmp, 0, n);
+    /**
+     * Instructions delivered, whether they arrived in one fragment or several.
+     */
+    public synchronized long getCompletedCount() {
+        return completedInstructions;
+    }
+
+    /**
+     * Partial instructions dropped because they expired, were displaced or exceeded the byte budget.
+     */
+    public synchronized long getEvictedCount() {
+        return evictedAssemblies;
+    }
+
+    /**
+     * Fragments ignored because they had already been received.
+     */
+    public synchronized long getDuplicateFragmentCount() {
+        return duplicateFragments;
+    }
+
+    /**
+     * Fragment bytes currently held for incomplete instructions.
+     */
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Number of instructions currently being reassembled.
+     */
+    public synchronized int getPendingCount() {
+        int n = 0;
+        for (FragmentAssembly a : assemblies) {
+            if (a != null) n++;
+        }
+        return n;
+    }
+
+    private int findAssembly(long id) {
+        for (int i = 0; i < assemblies.length; i++) {
+            FragmentAssembly a = assemblies[i];
+            if (a != null && a.id == id) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * An empty slot, evicting the oldest assembly if all are in use.
+     */
+    private int freeSlot() {
+        int oldest = -1;
+        for (int i = 0; i < assemblies.length; i++) {
+            FragmentAssembly a = assemblies[i];
+            if (a == null) return i;
+            if (oldest < 0 || a.createdNanos < assemblies[oldest].createdNanos) oldest = i;
+        }
+        removeAssembly(oldest);
+        evictedAssemblies++;
+        return oldest;
+    }
+
+    private void evictExpired(long now) {
+        for (int i = 0; i < assemblies.length; i++) {
+            FragmentAssembly a = assemblies[i];
+            if (a != null && now - a.createdNanos > maxAgeNanos) {
+                removeAssembly(i);
+                evictedAssemblies++;
             }
-            return baos.toByteArray();
-        } finally {
-            deflater.end();
-        }
-    }
-
-    private static byte[] zlibDecompress(byte[] input) {
-        Inflater inflater = new Inflater();
-        try {
-            inflater.setInput(input);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(input.length * 2);
-            byte[] tmp = new byte[1024];
-            while (!inflater.finished()) {
-                int n = inflater.inflate(tmp);
-                if (n == 0) {
-                    if (inflater.needsDictionary()) {
-                        throw new DataFormatException(
-                                "Decompression requires a preset dictionary that was not provided");
-                    } else if (inflater.needsInput()) {
-                        throw new IOException("Compressed input is truncated or incomplete");
-                    } else {
-                        break;
-                    }
+        }
+    }
+
+    /**
+     * Evict the oldest other assemblies, then the current one, until within the byte budget.
+     */
+    private void enforceByteBudget(int current) {
+        while (bufferedBytes > maxBufferedBytes) {
+            int oldest = -1;
+            for (int i = 0; i < assemblies.length; i++) {
+                FragmentAssembly a = assemblies[i];
+                if (a != null && i != current && (oldest < 0 || a.createdNanos < assemblies[oldest].createdNanos)) {
+                    oldest = i;
                 }
-                baos.write(tmp, 0, n);
             }
-            return baos.toByteArray();
-        } catch (DataFormatException | IOException e) {
-            throw new IllegalArgumentException("zlib decompression failed", e);
-        } finally {
-            inflater.end();
+            if (oldest < 0) oldest = current;
+            removeAssembly(oldest);
+            evictedAssemblies++;
+            if (oldest == current) return;
         }
     }
 
-    private static class FragmentAssembly {
+    private void removeAssembly(int slot) {
+        bufferedBytes -= assemblies[slot].bytes;
+        assemblies[slot] = null;
+    }
+
+    private boolean isRecentlyCompleted(long id) {
+        for (int i = 0; i < completedCount; i++) {
+            if (recentlyCompleted[i] == id) return true;
+        }
+        return false;
+    }
+
+    private void rememberCompleted(long id) {
+        recentlyCompleted[completedNext] = id;
+        completedNext = (completedNext + 1) % recentlyCompleted.length;
+        completedCount = Math.min(completedCount + 1, recentlyCompleted.length);
+    }
+
+    private static byte[] zlibCompress(byte[] input) {
+        return ZlibCodec.compressToArray(input);
+    }
+
+    /**
+     * Fragments of one instruction, addressed by fragment number.
+     */
+    private static final class FragmentAssembly {
         final long id;
-        final Map<Integer, byte[]> fragments = new HashMap<>();
+        final long createdNanos;
+        byte[][] fragments = new byte[4][];
+        int received;
         int totalFragments = -1;
+        int highestIndex = -1;
+        long bytes;
 
-        FragmentAssembly(long id) {
+        FragmentAssembly(long id, long createdNanos) {
             this.id = id;
+            this.createdNanos = createdNanos;
+        }
+
+        boolean has(int num) {
+            return num < fragments.length && fragments[num] != null;
         }
 
-        void addFragment(int num, byte[] data, boolean isFinal) {
-            fragments.put(num, data);
+        /**
+         * False if {@code num} lies beyond the final fragment, or a final flag contradicts
+         * fragments already received.
+         */
+        boolean accepts(int num, boolean isFinal) {
+            if (totalFragments >= 0 && num >= totalFragments) return false;
+            return !isFinal || (highestIndex < num + 1 && totalFragments < 0);
+        }
+
+        void add(int num, byte[] data, boolean isFinal) {
+            if (num >= fragments.length) {
+                fragments = Arrays.copyOf(fragments, Math.min(MAX_FRAGMENT_COUNT, Math.max(num + 1, fragments.length * 2)));
+            }
+            fragments[num] = data;
+            received++;
+            bytes += data.length;
+            highestIndex = Math.max(highestIndex, num);
             if (isFinal) {
                 totalFragments = num + 1;
             }
         }
 
         boolean isComplete() {
-            if (totalFragments <= 0) return false;
-            if (fragments.size() != totalFragments) return false;
-            for (int i = 0; i < totalFragments; i++) {
-                if (!fragments.containsKey(i)) return false;
-            }
-            return true;
-        }
-
-        byte[] assemble() {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            for (int i = 0; i < totalFragments; i++) {
-                byte[] part = fragments.get(i);
-                if (part != null) {
-                    baos.write(part, 0, part.length);
-                }
-            }
-            return baos.toByteArray();
+            return totalFragments > 0 && received == totalFragments;
         }
     }
 }
@@ -0,0 +1,125 @@
+package org.mosh4j.core.datagram;
+
+import org.mosh4j.transport.OutgoingInstruction;
+import org.mosh4j.transport.TransportInstruction;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Send path for serialized transport instructions of one session direction: compresses
+ * with a reused {@link ZlibCodec}, splits the result into fragments of at most
+ * {@link PathMtuEstimator#getMtu()} bytes and seals each fragment as its own datagram with
+ * its own sequence number. If the local stack rejects a datagram as too large, the
+ * estimate is lowered and the instruction is re-fragmented under a new instruction id.
+ * <p>
+ * {@link OutgoingInstruction}s are encoded into a reused buffer, with chaff drawn from this
+ * sender's own DRBG instance so sessions do not contend on a shared {@link SecureRandom}.
+ * <p>
+ * Thread-safe; instructions are sent one at a time.
+ */
+public final class InstructionSender {
+
+    private static final int MAX_RESIZE_ATTEMPTS = 8;
+
+    private final SspDatagramCodec codec;
+    private final boolean serverToClient;
+    private final PathMtuEstimator pathMtu;
+    private final ZlibCodec zlib = new ZlibCodec();
+    private final SecureRandom chaffRandom = newChaffRandom();
+    private final byte[] chaff = new byte[TransportInstruction.MAX_CHAFF_BYTES];
+    private byte[] encoded = new byte[256];
+    private long nextSeq;
+    private long nextInstructionId;
+
+    public InstructionSender(SspDatagramCodec codec, boolean serverToClient, PathMtuEstimator pathMtu) {
+        this.codec = codec;
+        this.serverToClient = serverToClient;
+        this.pathMtu = pathMtu;
+    }
+
+    /**
+     * Encode {@code instruction} with random chaff and send it to {@code target}. Instructions
+     * carrying a new state are used as MTU probes.
+     *
+     * @return the datagram sequence number of the first fragment sent
+     * @throws RuntimeException if the channel fails for another reason than the datagram size
+     */
+    public synchronized long send(DatagramChannel channel, InetSocketAddress target, OutgoingInstruction instruction,
+                                  int timestamp, int timestampReply) {
+        int chaffLength = chaffRandom.nextInt(chaff.length + 1);
+        if (chaffLength > 0) {
+            chaffRandom.nextBytes(chaff);
+        }
+        int length = instruction.encodedLength(chaffLength);
+        if (encoded.length < length) {
+            encoded = Arrays.copyOf(encoded, Math.max(length, encoded.length * 2));
+        }
+        instruction.encode(encoded, 0, chaff, chaffLength);
+        long stateNum = instruction.carriesNewState() ? instruction.getNewNum() : -1;
+        return sendCompressed(channel, target, stateNum, zlib.compress(encoded, 0, length), timestamp, timestampReply);
+    }
+
+    /**
+     * Send {@code instruction} to {@code target}.
+     *
+     * @param stateNum new state number carried by the instruction, for MTU probing; negative
+     *                 if it carries no new state (pure acks never confirm a size)
+     * @return the datagram sequence number of the first fragment sent
+     * @throws RuntimeException if the channel fails for another reason than the datagram size
+     */
+    public synchronized long send(DatagramChannel channel, InetSocketAddress target, long stateNum,
+                                  byte[] instruction, int timestamp, int timestampReply) {
+        return sendCompressed(channel, target, stateNum, zlib.compress(instruction), timestamp, timestampReply);
+    }
+
+    private long sendCompressed(DatagramChannel channel, InetSocketAddress target, long stateNum,
+                                ByteBuffer compressed, int timestamp, int timestampReply) {
+        byte[] chunk = compressed.array();
+        int len = compressed.remaining();
+        for (int attempt = 0; ; attempt++) {
+            int mtu = pathMtu.getMtu();
+            int chunkSize = mtu - FragmentCodec.headerSize();
+            int count = FragmentCodec.fragmentCount(len, mtu);
+            long id = nextInstructionId++;
+            long firstSeq = nextSeq;
+            int sent = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    int off = i * chunkSize;
+                    int n = Math.min(chunkSize, len - off);
+                    byte[] packet = codec.encodeFragment(serverToClient, nextSeq++, timestamp, timestampReply,
+                            id, i, i == count - 1, chunk, off, n);
+                    channel.send(target, packet);
+                    sent++;
+                }
+            } catch (DatagramTooLargeException e) {
+                int fragmentSize = FragmentCodec.headerSize() + Math.min(chunkSize, len - sent * chunkSize);
+                pathMtu.onTooLarge(fragmentSize, System.nanoTime());
+                if (attempt + 1 < MAX_RESIZE_ATTEMPTS && pathMtu.getMtu() < mtu) {
+                    continue;
+                }
+                throw e;
+            }
+            if (stateNum >= 0) {
+                pathMtu.onSent(stateNum, FragmentCodec.headerSize() + Math.min(chunkSize, len), System.nanoTime());
+            }
+            return firstSeq;
+        }
+    }
+
+    public PathMtuEstimator getPathMtu() {
+        return pathMtu;
+    }
+
+    private static SecureRandom newChaffRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.mosh4j.core.datagram;
+
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking NIO implementation of DatagramChannel.
+ * <p>
+ * Datagrams are received into direct buffers from a {@link BufferPool}, so the steady-state
+ * receive path does not allocate. Blocking receives wait on a private {@link Selector};
+ * {@link #close()} wakes a waiting receiver immediately, so no receive timeout is needed to
+ * notice shutdown. {@link #tryReceive()} never blocks and is meant for callers that run
+ * their own selector loop.
+ */
+public final class NioDatagramChannel implements DatagramChannel {
+
+    private final java.nio.channels.DatagramChannel channel;
+    private final BufferPool pool;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private final Object selectorLock = new Object();
+    private volatile Selector selector;
+    private volatile long receiveTimeoutMillis;
+
+    public NioDatagramChannel(java.nio.channels.DatagramChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to configure non-blocking mode", e);
+        }
+    }
+
+    /**
+     * Open a channel bound to {@code bindAddress} (null for an ephemeral port) with its own buffer pool.
+     */
+    public static NioDatagramChannel open(InetSocketAddress bindAddress) {
+        return open(bindAddress, new BufferPool());
+    }
+
+    public static NioDatagramChannel open(InetSocketAddress bindAddress, BufferPool pool) {
+        try {
+            java.nio.channels.DatagramChannel ch = java.nio.channels.DatagramChannel.open();
+            try {
+                ch.bind(bindAddress);
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+            return new NioDatagramChannel(ch, pool);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open datagram channel on " + bindAddress, e);
+        }
+    }
+
+    /**
+     * Configure the receive timeout in milliseconds for the blocking receive methods;
+     * 0 (the default) waits until a datagram arrives or the channel is closed.
+     */
+    public void setReceiveTimeoutMillis(int timeoutMillis) {
+        this.receiveTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Set the don't-fragment bit on outgoing IPv4 datagrams, so oversized datagrams fail
+     * with {@link DatagramTooLargeException} instead of being fragmented by the IP layer.
+     *
+     * @return whether the platform supports the option
+     */
+    public boolean setDontFragment(boolean dontFragment) {
+        if (!channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+            return false;
+        }
+        try {
+            channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, dontFragment);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        try {
+            SocketAddress sa = channel.getLocalAddress();
+            return sa instanceof InetSocketAddress ? (InetSocketAddress) sa : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * The underlying non-blocking NIO channel, for registration with an external selector.
+     */
+    public java.nio.channels.DatagramChannel getNioChannel() {
+        return channel;
+    }
+
+    @Override
+    public void send(InetSocketAddress target, byte[] data) {
+        if (data == null) return;
+        send(target, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send without copying. If the socket send buffer is full the datagram is dropped,
+     * as it would be anywhere else on the path.
+     *
+     * @throws DatagramTooLargeException if the datagram is larger than UDP allows or exceeds
+     *                                   the path MTU known to the stack
+     */
+    @Override
+    public void send(InetSocketAddress target, ByteBuffer data) {
+        if (!open.get() || data == null) return;
+        int size = data.remaining();
+        if (size > BufferPool.MAX_DATAGRAM_SIZE) throw new DatagramTooLargeException(size, null);
+        try {
+            channel.send(data, target);
+        } catch (IOException e) {
+            if (!open.get()) return;
+            if (DatagramTooLargeException.isMessageTooLong(e)) throw new DatagramTooLargeException(size, e);
+            throw new RuntimeException("Send failed", e);
+        }
+    }
+
+    @Override
+    public ReceiveResult receive() {
+        PooledDatagram d = receivePooled();
+        if (d == null) return null;
+        try {
+            ByteBuffer buf = d.buffer();
+            byte[] packet = new byte[buf.remaining()];
+            buf.get(packet);
+            return new ReceiveResult(d.source(), packet);
+        } finally {
+            d.release();
+        }
+    }
+
+    @Override
+    public PooledDatagram receivePooled() {
+        long timeout = receiveTimeoutMillis;
+        long deadline = timeout > 0 ? System.nanoTime() + timeout * 1_000_000L : 0;
+        while (open.get()) {
+            PooledDatagram d = tryReceive();
+            if (d != null) return d;
+            long wait = 0;
+            if (timeout > 0) {
+                wait = (deadline - System.nanoTime()) / 1_000_000L;
+                if (wait <= 0) return null;
+            }
+            if (!awaitReadable(wait)) return null;
+        }
+        return null;
+    }
+
+    /**
+     * Receive one datagram if one is queued, without blocking.
+     *
+     * @return the datagram (caller must release it), or null if none is pending or the channel is closed
+     */
+    public PooledDatagram tryReceive() {
+        if (!open.get()) return null;
+        ByteBuffer buf = pool.acquire();
+        try {
+            SocketAddress sa = channel.receive(buf);
+            if (sa instanceof InetSocketAddress source) {
+                buf.flip();
+                return new PooledDatagram(source, buf, pool);
+            }
+        } catch (IOException e) {
+            if (open.get()) {
+                pool.release(buf);
+                throw new RuntimeException("Receive failed", e);
+            }
+        }
+        pool.release(buf);
+        return null;
+    }
+
+    /**
+     * Wait until the channel is readable, the timeout elapses or the channel is closed.
+     *
+     * @return false if the channel was closed
+     */
+    private boolean awaitReadable(long timeoutMillis) {
+        synchronized (selectorLock) {
+            if (!open.get()) return false;
+            try {
+                if (selector == null) {
+                    selector = Selector.open();
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                if (timeoutMillis > 0) {
+                    selector.select(timeoutMillis);
+                } else {
+                    selector.select();
+                }
+                selector.selectedKeys().clear();
+                return true;
+            } catch (IOException e) {
+                if (open.get()) throw new RuntimeException("Select failed", e);
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (open.compareAndSet(true, false)) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            synchronized (selectorLock) {
+                if (selector != null) {
+                    try {
+                        selector.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get() && channel.isOpen();
+    }
+}
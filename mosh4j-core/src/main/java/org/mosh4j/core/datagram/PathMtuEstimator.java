@@ -0,0 +1,160 @@
+package org.mosh4j.core.datagram;
+
+/**
+ * Lightweight path-MTU discovery for the fragment layer. Tracks the largest fragment
+ * payload (fragment header + chunk, excluding timestamps, nonce and tag) a session sends.
+ * <p>
+ * Two signals lower it: a send rejected as too large by the local stack (definite, with
+ * don't-fragment set), and instructions carrying fragments larger than any confirmed size
+ * that repeatedly go unacknowledged while smaller ones sent after them are acknowledged (an
+ * MTU black hole where ICMP is filtered). Instructions no larger than the minimum are never
+ * probes, so a lossy path cannot talk the estimate below what always gets through. Each
+ * step goes down by an eighth of the current estimate. After {@value #PROBE_INTERVAL_MS} ms
+ * without a reduction the estimate is raised by a step again, towards the configured
+ * maximum, so a path that got better is picked up.
+ * <p>
+ * Acknowledgements name the newest state the peer holds, so an ack is matched against the
+ * last few instructions sent to learn which size actually arrived. Times are
+ * {@link System#nanoTime()} values.
+ * <p>
+ * Thread-safe.
+ */
+public final class PathMtuEstimator {
+
+    public static final int DEFAULT_MIN_MTU = 500;
+    static final long PROBE_INTERVAL_MS = 60_000;
+    private static final long PROBE_INTERVAL_NANOS = PROBE_INTERVAL_MS * 1_000_000L;
+    /** Consecutive unacknowledged probes before the estimate is lowered. */
+    private static final int FAILURES_BEFORE_REDUCE = 2;
+    private static final int RECENTLY_SENT = 16;
+
+    private final int minMtu;
+    private final int maxMtu;
+    private int mtu;
+    private int confirmed;
+    private long lastChangeNanos;
+    private boolean probing;
+    private long probeState;
+    private int probeSize;
+    private long probeSentNanos;
+    /** Whether an instruction smaller than the probe, sent after it, has been acknowledged. */
+    private boolean smallerAcked;
+    private int failures;
+    private final long[] sentStates = new long[RECENTLY_SENT];
+    private final int[] sentSizes = new int[RECENTLY_SENT];
+    private int sentNext;
+    private int sentCount;
+
+    /**
+     * @param initialMtu starting estimate, also the maximum probed for
+     */
+    public PathMtuEstimator(int initialMtu) {
+        this(initialMtu, Math.min(DEFAULT_MIN_MTU, initialMtu), initialMtu);
+    }
+
+    public PathMtuEstimator(int initialMtu, int minMtu, int maxMtu) {
+        if (minMtu <= FragmentCodec.headerSize() || minMtu > initialMtu || initialMtu > maxMtu) {
+            throw new IllegalArgumentException("Require headerSize < min <= initial <= max, got "
+                    + minMtu + "/" + initialMtu + "/" + maxMtu);
+        }
+        this.minMtu = minMtu;
+        this.maxMtu = maxMtu;
+        this.mtu = initialMtu;
+        this.lastChangeNanos = System.nanoTime();
+    }
+
+    /**
+     * Current maximum fragment payload size.
+     */
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Largest fragment payload known to have reached the peer since the last reduction.
+     */
+    public synchronized int getConfirmedMtu() {
+        return confirmed;
+    }
+
+    /**
+     * Record an instruction sent as state {@code stateNum} whose largest fragment payload was
+     * {@code largestFragment} bytes. Fragments no larger than the confirmed size or the
+     * minimum carry no information; otherwise the instruction becomes the probe if none is
+     * outstanding.
+     */
+    public synchronized void onSent(long stateNum, int largestFragment, long nowNanos) {
+        sentStates[sentNext] = stateNum;
+        sentSizes[sentNext] = largestFragment;
+        sentNext = (sentNext + 1) % RECENTLY_SENT;
+        sentCount = Math.min(sentCount + 1, RECENTLY_SENT);
+        if (!probing && largestFragment > confirmed && largestFragment > minMtu) {
+            probing = true;
+            probeState = stateNum;
+            probeSize = largestFragment;
+            probeSentNanos = nowNanos;
+            smallerAcked = false;
+        }
+    }
+
+    /**
+     * The peer acknowledged state {@code ackNum}.
+     */
+    public synchronized void onAcked(long ackNum) {
+        int size = sentSize(ackNum);
+        if (size < 0) return;
+        confirmed = Math.max(confirmed, size);
+        if (!probing) return;
+        if (confirmed >= probeSize) {
+            probing = false;
+            failures = 0;
+        } else if (ackNum > probeState) {
+            smallerAcked = true;
+        }
+    }
+
+    /**
+     * The local stack rejected a datagram carrying a fragment payload of {@code fragmentSize} bytes.
+     */
+    public synchronized void onTooLarge(int fragmentSize, long nowNanos) {
+        reduceBelow(Math.min(mtu, fragmentSize), nowNanos);
+    }
+
+    /**
+     * Periodic check: expires the outstanding probe after {@code timeoutNanos} and raises the
+     * estimate again after a quiet period. An expired probe only counts against the estimate
+     * if smaller instructions got through meanwhile; otherwise the whole path was down.
+     */
+    public synchronized void onTick(long nowNanos, long timeoutNanos) {
+        if (probing && nowNanos - probeSentNanos > timeoutNanos) {
+            probing = false;
+            if (smallerAcked && ++failures >= FAILURES_BEFORE_REDUCE) {
+                reduceBelow(mtu, nowNanos);
+            }
+        } else if (!probing && mtu < maxMtu && nowNanos - lastChangeNanos >= PROBE_INTERVAL_NANOS) {
+            mtu = Math.min(maxMtu, mtu + Math.max(1, mtu / 8));
+            lastChangeNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Largest fragment of the recently sent instruction for {@code stateNum}, or -1 if it is
+     * not among them.
+     */
+    private int sentSize(long stateNum) {
+        for (int i = 0; i < sentCount; i++) {
+            if (sentStates[i] == stateNum) return sentSizes[i];
+        }
+        return -1;
+    }
+
+    private void reduceBelow(int size, long nowNanos) {
+        mtu = Math.max(minMtu, size - Math.max(1, size / 8));
+        confirmed = 0;
+        probing = false;
+        failures = 0;
+        lastChangeNanos = nowNanos;
+        sentCount = 0;
+        sentNext = 0;
+    }
+}
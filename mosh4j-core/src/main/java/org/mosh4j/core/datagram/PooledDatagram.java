@@ -0,0 +1,50 @@
+package org.mosh4j.core.datagram;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A received datagram held in a pooled buffer. {@link #buffer()} is positioned at the
+ * packet ({@code position = 0, limit = length}) and stays valid until {@link #release()},
+ * which must be called once the packet has been processed.
+ */
+public final class PooledDatagram {
+
+    private final InetSocketAddress source;
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private boolean released;
+
+    PooledDatagram(InetSocketAddress source, ByteBuffer buffer, BufferPool pool) {
+        this.source = source;
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Wrap an unpooled packet (e.g. from {@link DatagramChannel#receive()}); release is a no-op.
+     */
+    public static PooledDatagram wrap(InetSocketAddress source, byte[] packet) {
+        return new PooledDatagram(source, ByteBuffer.wrap(packet), null);
+    }
+
+    public InetSocketAddress source() {
+        return source;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Hand the buffer back to its pool. Idempotent.
+     */
+    public void release() {
+        if (!released) {
+            released = true;
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.mosh4j.core.datagram;
+
+import java.util.Arrays;
+
+/**
+ * Sliding-window anti-replay filter over the 63-bit datagram sequence numbers of one
+ * direction (IPsec/DTLS style). Remembers which of the last {@code size} sequence
+ * numbers below the highest one seen have been accepted, in a bitmap of longs.
+ * <p>
+ * Use {@link #mightAccept(long)} before decryption as a cheap read-only filter and
+ * {@link #accept(long)} only after the datagram authenticated, so forged packets can
+ * never move the window.
+ */
+public final class ReplayWindow {
+
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final int size;
+    private final long[] bitmap;
+    private long highest = -1;
+    private long accepted;
+    private long duplicates;
+    private long stale;
+
+    public ReplayWindow() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size window size in sequence numbers; a power of two, at least 64
+     */
+    public ReplayWindow(int size) {
+        if (size < 64 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Window size must be a power of two >= 64, got " + size);
+        }
+        this.size = size;
+        this.bitmap = new long[size / 64];
+    }
+
+    /**
+     * Returns false if {@code seq} is certainly a duplicate or too old. Does not change state.
+     */
+    public synchronized boolean mightAccept(long seq) {
+        if (seq > highest) return true;
+        if (highest - seq >= size) return false;
+        return !isSet(seq);
+    }
+
+    /**
+     * Record an authenticated sequence number.
+     *
+     * @return true if {@code seq} is new and the datagram should be processed; false if it
+     * was already seen or fell behind the window
+     */
+    public synchronized boolean accept(long seq) {
+        if (seq > highest) {
+            advanceTo(seq);
+            set(seq);
+            accepted++;
+            return true;
+        }
+        if (highest - seq >= size) {
+            stale++;
+            return false;
+        }
+        if (isSet(seq)) {
+            duplicates++;
+            return false;
+        }
+        set(seq);
+        accepted++;
+        return true;
+    }
+
+    /**
+     * Count a datagram rejected by {@link #mightAccept(long)} before authentication.
+     */
+    synchronized void recordEarlyReject(long seq) {
+        if (seq <= highest && highest - seq >= size) {
+            stale++;
+        } else {
+            duplicates++;
+        }
+    }
+
+    public synchronized long getHighestSequence() {
+        return highest;
+    }
+
+    public synchronized long getAcceptedCount() {
+        return accepted;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public synchronized long getStaleCount() {
+        return stale;
+    }
+
+    /**
+     * Clear the bits for {@code (highest, seq]} so they can be reused for the new sequence numbers.
+     */
+    private void advanceTo(long seq) {
+        long gap = seq - highest;
+        if (highest < 0 || gap >= size) {
+            Arrays.fill(bitmap, 0L);
+        } else {
+            for (long s = highest + 1; s <= seq; ) {
+                int bit = (int) (s & (size - 1));
+                int word = bit >>> 6;
+                int offset = bit & 63;
+                if (offset == 0 && seq - s >= 63) {
+                    bitmap[word] = 0L;
+                    s += 64;
+                } else {
+                    bitmap[word] &= ~(1L << offset);
+                    s++;
+                }
+            }
+        }
+        highest = seq;
+    }
+
+    private boolean isSet(long seq) {
+        int bit = (int) (seq & (size - 1));
+        return (bitmap[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    private void set(long seq) {
+        int bit = (int) (seq & (size - 1));
+        bitmap[bit >>> 6] |= 1L << (bit & 63);
+    }
+}
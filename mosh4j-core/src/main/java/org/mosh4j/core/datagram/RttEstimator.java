@@ -1,37 +1,224 @@
 package org.mosh4j.core.datagram;
 
+import java.util.concurrent.TimeUnit;
+
 /**
- * Smoothed RTT and RTT variance (TCP-style), used for retransmission timeout.
+ * Round-trip time, jitter and loss estimates for one session, driven by the SSP datagram
+ * timestamps.
+ * <p>
+ * Every datagram carries a 16-bit millisecond timestamp and echoes the last timestamp
+ * received from the peer, corrected for how long it was held ({@link #timestampReply}).
+ * Both are taken from {@link System#nanoTime()}, so wall-clock steps do not produce bogus
+ * samples, and all differences are taken modulo 2<sup>16</sup>: a sample stays valid across
+ * the wrap as long as it is shorter than {@value #MAX_SAMPLE_MS} ms, well under half the
+ * timestamp range. {@link #NO_TIMESTAMP} (0xFFFF) means "nothing to echo", as in mosh.
+ * <p>
+ * Smoothed RTT and variance follow RFC 6298 (initial values as mosh: 1000 ms / 500 ms).
+ * Jitter is the RFC 3550 mean deviation between consecutive samples. Minimum RTT is kept
+ * over a sliding window of {@value #MIN_RTT_WINDOW_MS} ms. Loss is estimated from gaps in
+ * the peer's datagram sequence numbers, per interval of {@value #LOSS_INTERVAL} expected
+ * datagrams, and smoothed across intervals.
+ * <p>
+ * Thread-safe.
  */
 public final class RttEstimator {
 
+    /** Timestamp value meaning "no timestamp to echo". */
+    public static final int NO_TIMESTAMP = 0xFFFF;
+
+    static final long MAX_SAMPLE_MS = 30_000;
+    static final long MIN_RTT_WINDOW_MS = 300_000;
+    static final int LOSS_INTERVAL = 64;
+
+    private static final long INITIAL_SRTT_MS = 1000;
+    private static final long INITIAL_RTTVAR_MS = 500;
     private static final long RTO_MIN_MS = 50;
     private static final long RTO_MAX_MS = 10_000;
+    private static final long SEND_INTERVAL_MIN_MS = 20;
+    private static final long SEND_INTERVAL_MAX_MS = 250;
+    /** A timestamp held longer than this is not echoed; the sample would mostly measure the hold. */
+    private static final long MAX_ECHO_HOLD_MS = 1000;
+
+    private double srttMs = INITIAL_SRTT_MS;
+    private double rttvarMs = INITIAL_RTTVAR_MS;
+    private double jitterMs;
+    private long lastSampleMs = -1;
+    private boolean initialized;
+
+    private long minRttMs = Long.MAX_VALUE;
+    private long previousMinRttMs = Long.MAX_VALUE;
+    private long minRttWindowStartNanos;
+
+    private int savedTimestamp = NO_TIMESTAMP;
+    private long savedAtNanos;
+
+    private long highestSeq = -1;
+    private long intervalStartSeq;
+    private long intervalReceived;
+    private long lostCount;
+    private double lossRate;
+
+    /**
+     * Current 16-bit wire timestamp.
+     */
+    public static int timestamp16() {
+        return timestamp16(System.nanoTime());
+    }
+
+    /**
+     * 16-bit wire timestamp for a {@link System#nanoTime()} value; never {@link #NO_TIMESTAMP}.
+     */
+    public static int timestamp16(long nanos) {
+        int ts = (int) (TimeUnit.NANOSECONDS.toMillis(nanos) & 0xFFFF);
+        return ts == NO_TIMESTAMP ? 0 : ts;
+    }
+
+    /**
+     * Account for an authenticated datagram from the peer: remember its timestamp for echoing,
+     * take an RTT sample from its echo of ours, and update the loss estimate.
+     */
+    public synchronized void onDatagramReceived(long seq, int timestamp, int timestampReply, long nowNanos) {
+        if (timestamp != NO_TIMESTAMP) {
+            savedTimestamp = timestamp & 0xFFFF;
+            savedAtNanos = nowNanos;
+        }
+        if (timestampReply != NO_TIMESTAMP) {
+            long sample = (timestamp16(nowNanos) - timestampReply) & 0xFFFF;
+            if (sample <= MAX_SAMPLE_MS) {
+                sample(sample, nowNanos);
+            }
+        }
+        recordSequence(seq);
+    }
 
-    private long srttMs = 0;
-    private long rttvarMs = 0;
-    private boolean initialized = false;
+    /**
+     * Timestamp to echo in the next outgoing datagram: the peer's last timestamp advanced by
+     * the time it was held here, so the peer measures network delay only. Each timestamp is
+     * echoed once.
+     *
+     * @return the echo, or {@link #NO_TIMESTAMP}
+     */
+    public synchronized int timestampReply(long nowNanos) {
+        if (savedTimestamp == NO_TIMESTAMP) return NO_TIMESTAMP;
+        long heldMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - savedAtNanos);
+        int saved = savedTimestamp;
+        savedTimestamp = NO_TIMESTAMP;
+        if (heldMs > MAX_ECHO_HOLD_MS) return NO_TIMESTAMP;
+        int reply = (int) ((saved + heldMs) & 0xFFFF);
+        return reply == NO_TIMESTAMP ? 0 : reply;
+    }
+
+    /**
+     * Feed one RTT sample in milliseconds directly.
+     */
+    public synchronized void update(long rttMs) {
+        if (rttMs < 0) return;
+        sample(rttMs, System.nanoTime());
+    }
 
-    public void update(long rttMs) {
-        if (rttMs <= 0) return;
+    private void sample(long rttMs, long nowNanos) {
         if (!initialized) {
             srttMs = rttMs;
-            rttvarMs = rttMs / 2;
+            rttvarMs = rttMs / 2.0;
             initialized = true;
+        } else {
+            rttvarMs = 0.75 * rttvarMs + 0.25 * Math.abs(srttMs - rttMs);
+            srttMs = 0.875 * srttMs + 0.125 * rttMs;
+            jitterMs += (Math.abs(rttMs - lastSampleMs) - jitterMs) / 16.0;
+        }
+        lastSampleMs = rttMs;
+
+        if (nowNanos - minRttWindowStartNanos >= TimeUnit.MILLISECONDS.toNanos(MIN_RTT_WINDOW_MS / 2)
+                || minRttMs == Long.MAX_VALUE) {
+            previousMinRttMs = minRttMs;
+            minRttMs = Long.MAX_VALUE;
+            minRttWindowStartNanos = nowNanos;
+        }
+        minRttMs = Math.min(minRttMs, rttMs);
+    }
+
+    private void recordSequence(long seq) {
+        if (highestSeq < 0) {
+            highestSeq = seq;
+            intervalStartSeq = seq;
+            intervalReceived = 1;
             return;
         }
-        long delta = Math.abs(rttMs - srttMs);
-        rttvarMs = (3 * rttvarMs + delta) / 4;
-        srttMs = (7 * srttMs + rttMs) / 8;
+        if (seq > highestSeq) {
+            lostCount += seq - highestSeq - 1;
+            highestSeq = seq;
+        } else if (lostCount > 0) {
+            lostCount--; // reordered: a gap counted earlier was filled
+        }
+        if (seq >= intervalStartSeq) {
+            intervalReceived++;
+        }
+        long expected = highestSeq - intervalStartSeq + 1;
+        if (expected >= LOSS_INTERVAL) {
+            double fraction = Math.max(0, expected - intervalReceived) / (double) expected;
+            lossRate = 0.75 * lossRate + 0.25 * fraction;
+            intervalStartSeq = highestSeq + 1;
+            intervalReceived = 0;
+        }
+    }
+
+    /**
+     * Whether at least one RTT sample was taken; before that the getters return mosh's
+     * conservative initial values.
+     */
+    public synchronized boolean hasSample() {
+        return initialized;
+    }
+
+    public synchronized long getSrttMs() {
+        return (long) Math.ceil(srttMs);
     }
 
-    public long getSrttMs() {
-        return srttMs;
+    public synchronized long getRttVarMs() {
+        return (long) Math.ceil(rttvarMs);
     }
 
-    public long getRtoMs() {
+    public synchronized long getRtoMs() {
         if (!initialized) return 1000;
-        long rto = srttMs + 4 * rttvarMs;
+        long rto = (long) Math.ceil(srttMs + 4 * rttvarMs);
         return Math.max(RTO_MIN_MS, Math.min(RTO_MAX_MS, rto));
     }
+
+    /**
+     * Smallest RTT sample of the last few minutes, or the smoothed RTT if there is none.
+     */
+    public synchronized long getMinRttMs() {
+        long min = Math.min(minRttMs, previousMinRttMs);
+        return min == Long.MAX_VALUE ? getSrttMs() : min;
+    }
+
+    /**
+     * Mean deviation between consecutive RTT samples.
+     */
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    /**
+     * Smoothed fraction (0..1) of the peer's datagrams that did not arrive.
+     */
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Peer datagrams missing from the sequence so far (reordered arrivals are not counted).
+     */
+    public synchronized long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * Minimum spacing between state updates, as mosh: half the smoothed RTT, kept within
+     * 20..250 ms.
+     */
+    public synchronized long getSendIntervalMs() {
+        long interval = (long) Math.ceil(srttMs / 2);
+        return Math.max(SEND_INTERVAL_MIN_MS, Math.min(SEND_INTERVAL_MAX_MS, interval));
+    }
 }
@@ -5,7 +5,6 @@ import org.mosh4j.crypto.SspCipher;
 
 import javax.crypto.AEADBadTagException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * Encode/decode SSP datagrams: 8-byte nonce (clear) + OCB ciphertext
@@ -13,12 +12,21 @@ import java.nio.ByteOrder;
  *
  * The payload on the wire contains a fragment header (10 bytes) followed by a
  * zlib-compressed protobuf chunk, matching the native C++ mosh wire format.
+ *
+ * Thread-safe: {@link SspCipher} hands out independent cipher contexts, so the
+ * send path and the receive/ack path may encode concurrently.
+ *
+ * Received datagrams pass a per-direction {@link ReplayWindow}: duplicates and
+ * datagrams that fell behind the window are dropped before the fragment,
+ * zlib and protobuf layers ever see them.
  */
 public final class SspDatagramCodec {
 
     private static final int HEADER_PLAINTEXT_BYTES = 4; // timestamp + timestamp_reply
 
     private final SspCipher cipher;
+    private final ReplayWindow clientToServerWindow = new ReplayWindow();
+    private final ReplayWindow serverToClientWindow = new ReplayWindow();
 
     public SspDatagramCodec(SspCipher cipher) {
         this.cipher = cipher;
@@ -33,44 +41,143 @@ public final class SspDatagramCodec {
      * fragment header produced by {@link FragmentCodec}.
      */
     public byte[] encode(boolean serverToClient, long seq, int timestamp, int timestampReply, byte[] fragmentPayload) {
-        byte[] nonce = Nonce.create(serverToClient, seq);
         int plen = fragmentPayload != null ? fragmentPayload.length : 0;
-        byte[] plain = new byte[HEADER_PLAINTEXT_BYTES + plen];
-        ByteBuffer buf = ByteBuffer.wrap(plain).order(ByteOrder.BIG_ENDIAN);
-        buf.putShort((short) (timestamp & 0xFFFF));
-        buf.putShort((short) (timestampReply & 0xFFFF));
-        if (plen > 0) buf.put(fragmentPayload);
-        byte[] ciphertext = cipher.encrypt(serverToClient, seq, plain);
-        byte[] out = new byte[Nonce.length() + ciphertext.length];
-        System.arraycopy(nonce, 0, out, 0, nonce.length);
-        System.arraycopy(ciphertext, 0, out, nonce.length, ciphertext.length);
-        return out;
+        byte[] packet = allocatePacket(plen, timestamp, timestampReply);
+        if (plen > 0) {
+            System.arraycopy(fragmentPayload, 0, packet, Nonce.length() + HEADER_PLAINTEXT_BYTES, plen);
+        }
+        return seal(serverToClient, seq, packet);
+    }
+
+    /**
+     * Encode one fragment of a compressed instruction straight into a datagram: the
+     * timestamps, fragment header and chunk are laid out in the packet array and encrypted
+     * in place, so no intermediate fragment array is built.
+     *
+     * @param chunk    zlib-compressed instruction (see {@link FragmentCodec#compress})
+     * @param chunkOff offset of this fragment's portion of {@code chunk}
+     * @param chunkLen length of this fragment's portion
+     */
+    public byte[] encodeFragment(boolean serverToClient, long seq, int timestamp, int timestampReply,
+                                 long instructionId, int fragmentNum, boolean isFinal,
+                                 byte[] chunk, int chunkOff, int chunkLen) {
+        byte[] packet = allocatePacket(FragmentCodec.headerSize() + chunkLen, timestamp, timestampReply);
+        int off = Nonce.length() + HEADER_PLAINTEXT_BYTES;
+        FragmentCodec.writeHeader(packet, off, instructionId, fragmentNum, isFinal);
+        System.arraycopy(chunk, chunkOff, packet, off + FragmentCodec.headerSize(), chunkLen);
+        return seal(serverToClient, seq, packet);
+    }
+
+    private static byte[] allocatePacket(int payloadLen, int timestamp, int timestampReply) {
+        byte[] packet = new byte[Nonce.length() + HEADER_PLAINTEXT_BYTES + payloadLen + SspCipher.tagLength()];
+        int off = Nonce.length();
+        packet[off] = (byte) (timestamp >> 8);
+        packet[off + 1] = (byte) timestamp;
+        packet[off + 2] = (byte) (timestampReply >> 8);
+        packet[off + 3] = (byte) timestampReply;
+        return packet;
+    }
+
+    private byte[] seal(boolean serverToClient, long seq, byte[] packet) {
+        int plainLen = packet.length - Nonce.length() - SspCipher.tagLength();
+        // Plaintext is laid out right after the nonce, so the cipher encrypts it in place.
+        cipher.encrypt(serverToClient, seq, packet, Nonce.length(), plainLen, packet, 0);
+        return packet;
     }
 
     /**
      * Decode a received datagram. The returned payload contains the raw fragment
      * data (fragment header + zlib chunk); use {@link FragmentCodec#decode} to
      * reassemble and decompress.
+     *
+     * <p>The packet is decrypted in place: after this call {@code packet} no longer
+     * holds the ciphertext, and the returned payload is a view into it.
+     *
+     * @return the payload, or null if the datagram is a replay or duplicate, or older
+     * than the replay window
      */
     public DatagramPayload decode(byte[] packet) throws AEADBadTagException {
         if (packet == null || packet.length <= Nonce.length()) {
             throw new IllegalArgumentException("Packet too short");
         }
-        byte[] nonce = new byte[Nonce.length()];
-        System.arraycopy(packet, 0, nonce, 0, nonce.length);
-        byte[] ciphertext = new byte[packet.length - nonce.length];
-        System.arraycopy(packet, nonce.length, ciphertext, 0, ciphertext.length);
-        byte[] plain = cipher.decrypt(nonce, ciphertext);
-        if (plain.length < HEADER_PLAINTEXT_BYTES) {
+        return decode(packet, 0, packet.length);
+    }
+
+    /**
+     * Decode the datagram in {@code packet[off..off+len)}, decrypting it in place.
+     *
+     * @return the payload, or null if the datagram was rejected by the replay window
+     */
+    public DatagramPayload decode(byte[] packet, int off, int len) throws AEADBadTagException {
+        if (packet == null || len <= Nonce.length()) {
+            throw new IllegalArgumentException("Packet too short");
+        }
+        boolean serverToClient = Nonce.directionServerToClient(packet, off);
+        long seq = Nonce.getSequence(packet, off);
+        ReplayWindow window = getReplayWindow(serverToClient);
+        if (!window.mightAccept(seq)) {
+            // Known duplicate or too old: skip even the decryption.
+            window.recordEarlyReject(seq);
+            return null;
+        }
+        int plainOff = off + Nonce.length();
+        int plainLen = cipher.decrypt(packet, off, len, packet, plainOff);
+        if (!window.accept(seq)) {
+            return null;
+        }
+        if (plainLen < HEADER_PLAINTEXT_BYTES) {
+            throw new IllegalArgumentException("Decrypted payload too short");
+        }
+        int timestamp = (packet[plainOff] & 0xFF) << 8 | (packet[plainOff + 1] & 0xFF);
+        int timestampReply = (packet[plainOff + 2] & 0xFF) << 8 | (packet[plainOff + 3] & 0xFF);
+        ByteBuffer payload = ByteBuffer.wrap(packet, plainOff + HEADER_PLAINTEXT_BYTES, plainLen - HEADER_PLAINTEXT_BYTES);
+        return new DatagramPayload(seq, timestamp, timestampReply, payload, serverToClient);
+    }
+
+    /**
+     * Decode the remaining bytes of {@code packet} (e.g. a pooled receive buffer),
+     * decrypting in place. Heap buffers are decoded directly from their backing array.
+     * The buffer's position is not changed; the returned payload is a view into it, so it
+     * must be consumed before the buffer is released or reused.
+     *
+     * @return the payload, or null if the datagram was rejected by the replay window
+     */
+    public DatagramPayload decode(ByteBuffer packet) throws AEADBadTagException {
+        int pos = packet.position();
+        int len = packet.remaining();
+        if (packet.hasArray()) {
+            return decode(packet.array(), packet.arrayOffset() + pos, len);
+        }
+        if (len <= Nonce.length()) {
+            throw new IllegalArgumentException("Packet too short");
+        }
+        ByteBuffer buf = packet.duplicate(); // big-endian, whatever the caller's order
+        long wireNonce = buf.getLong(pos);
+        boolean serverToClient = wireNonce < 0;
+        long seq = wireNonce & Long.MAX_VALUE;
+        ReplayWindow window = getReplayWindow(serverToClient);
+        if (!window.mightAccept(seq)) {
+            window.recordEarlyReject(seq);
+            return null;
+        }
+        int plainOff = pos + Nonce.length();
+        int plainLen = cipher.decrypt(packet.duplicate(), packet.duplicate().position(plainOff));
+        if (!window.accept(seq)) {
+            return null;
+        }
+        if (plainLen < HEADER_PLAINTEXT_BYTES) {
             throw new IllegalArgumentException("Decrypted payload too short");
         }
-        ByteBuffer buf = ByteBuffer.wrap(plain).order(ByteOrder.BIG_ENDIAN);
-        int timestamp = buf.getShort() & 0xFFFF;
-        int timestampReply = buf.getShort() & 0xFFFF;
-        byte[] payload = new byte[plain.length - HEADER_PLAINTEXT_BYTES];
-        if (payload.length > 0) buf.get(payload);
-        boolean serverToClient = Nonce.directionServerToClient(nonce);
-        long seq = Nonce.getSequence(nonce);
+        int timestamp = buf.getShort(plainOff) & 0xFFFF;
+        int timestampReply = buf.getShort(plainOff + 2) & 0xFFFF;
+        ByteBuffer payload = buf.limit(plainOff + plainLen).position(plainOff + HEADER_PLAINTEXT_BYTES);
         return new DatagramPayload(seq, timestamp, timestampReply, payload, serverToClient);
     }
+
+    /**
+     * Replay window (and its counters) for datagrams received in the given direction.
+     */
+    public ReplayWindow getReplayWindow(boolean serverToClient) {
+        return serverToClient ? serverToClientWindow : clientToServerWindow;
+    }
 }
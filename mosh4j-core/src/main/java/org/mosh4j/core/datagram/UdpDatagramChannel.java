@@ -1,5 +1,6 @@
 package org.mosh4j.core.datagram;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
@@ -34,9 +35,13 @@ public final class UdpDatagramChannel implements DatagramChannel {
     @Override
     public void send(InetSocketAddress target, byte[] data) {
         if (!open.get() || data == null) return;
+        if (data.length > BufferPool.MAX_DATAGRAM_SIZE) throw new DatagramTooLargeException(data.length, null);
         try {
             DatagramPacket p = new DatagramPacket(data, data.length, target.getAddress(), target.getPort());
             socket.send(p);
+        } catch (IOException e) {
+            if (DatagramTooLargeException.isMessageTooLong(e)) throw new DatagramTooLargeException(data.length, e);
+            throw new RuntimeException("Send failed", e);
         } catch (Exception e) {
             throw new RuntimeException("Send failed", e);
         }
@@ -45,7 +50,7 @@ public final class UdpDatagramChannel implements DatagramChannel {
     @Override
     public ReceiveResult receive() {
         if (!open.get()) return null;
-        byte[] buf = new byte[65507];
+        byte[] buf = new byte[BufferPool.MAX_DATAGRAM_SIZE];
         DatagramPacket p = new DatagramPacket(buf, buf.length);
         try {
             socket.receive(p);
@@ -0,0 +1,224 @@
+package org.mosh4j.core.datagram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression for the fragment layer, with reusable output buffers.
+ * <p>
+ * The native {@link Deflater}/{@link Inflater} streams are borrowed per call from a small
+ * process-wide pool and reset instead of being created and ended each time, so sessions do
+ * not hold native zlib state while idle. The output buffers belong to this instance and
+ * grow as needed; the returned {@link ByteBuffer}s are views of them and stay valid until
+ * the next call of the same kind ({@code compress} or {@code decompress}).
+ * <p>
+ * The compression level follows the payload size (see {@link #levelFor(int)}): small
+ * interactive payloads get the best ratio, bulk output the fastest level. Payloads that do
+ * not shrink are re-emitted as stored (level 0) blocks, which any zlib peer accepts; the
+ * stored stream is written directly rather than by a second deflate pass.
+ * <p>
+ * Not thread-safe: use one instance per session (or per thread).
+ */
+public final class ZlibCodec {
+
+    /** Payloads up to this size are compressed with {@link Deflater#BEST_COMPRESSION}. */
+    public static final int SMALL_PAYLOAD = 512;
+    /** Payloads from this size on are compressed with {@link Deflater#BEST_SPEED}. */
+    public static final int LARGE_PAYLOAD = 16 * 1024;
+
+    private static final int INITIAL_BUFFER = 4096;
+    private static final int MAX_STORED_BLOCK = 65535;
+    private static final int MAX_POOLED = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /** Idle deflaters by level (index = level + 1), so a borrowed one never needs {@code setLevel}. */
+    @SuppressWarnings("unchecked")
+    private static final ArrayBlockingQueue<Deflater>[] DEFLATERS = new ArrayBlockingQueue[Deflater.BEST_COMPRESSION + 2];
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    static {
+        for (int i = 0; i < DEFLATERS.length; i++) {
+            DEFLATERS[i] = new ArrayBlockingQueue<>(MAX_POOLED);
+        }
+    }
+
+    private byte[] deflateBuffer = new byte[0];
+    private byte[] inflateBuffer = new byte[0];
+    private final Adler32 adler = new Adler32();
+
+    /**
+     * Compression level used for a payload of {@code length} bytes.
+     */
+    public static int levelFor(int length) {
+        if (length <= SMALL_PAYLOAD) return Deflater.BEST_COMPRESSION;
+        if (length >= LARGE_PAYLOAD) return Deflater.BEST_SPEED;
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * Compress into a new array. For callers without a codec instance; still uses the
+     * pooled native streams.
+     */
+    public static byte[] compressToArray(byte[] input) {
+        ByteBuffer out = new ZlibCodec().compress(input, 0, input.length);
+        return Arrays.copyOf(out.array(), out.remaining());
+    }
+
+    public ByteBuffer compress(byte[] input) {
+        return compress(input, 0, input.length);
+    }
+
+    /**
+     * Compress {@code input[off..off+len)} into a zlib stream.
+     *
+     * @return view of the compressed bytes, valid until the next {@code compress} call
+     */
+    public ByteBuffer compress(byte[] input, int off, int len) {
+        int level = levelFor(len);
+        ArrayBlockingQueue<Deflater> pool = DEFLATERS[level + 1];
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            int n = deflate(deflater, input, off, len);
+            if (n > storedSize(len)) {
+                n = writeStored(input, off, len);
+            }
+            return ByteBuffer.wrap(deflateBuffer, 0, n);
+        } finally {
+            deflater.reset();
+            if (!pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompress the remaining bytes of {@code input}, which may be a direct or read-only
+     * buffer (e.g. a slice of a received packet). The buffer's position is advanced.
+     *
+     * @return view of the decompressed bytes, valid until the next {@code decompress} call
+     * @throws IllegalArgumentException if the input is not a complete zlib stream
+     */
+    public ByteBuffer decompress(ByteBuffer input) {
+        return decompress(input, null, 0);
+    }
+
+    /**
+     * Decompress a zlib stream split over {@code parts[0..count)}, without concatenating them.
+     */
+    public ByteBuffer decompress(byte[][] parts, int count) {
+        if (count == 0) {
+            throw new IllegalArgumentException("zlib decompression failed: no input");
+        }
+        return decompress(ByteBuffer.wrap(parts[0]), parts, count);
+    }
+
+    private ByteBuffer decompress(ByteBuffer first, byte[][] more, int count) {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(first);
+            int next = 1;
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == inflateBuffer.length) {
+                    inflateBuffer = Arrays.copyOf(inflateBuffer, Math.max(INITIAL_BUFFER, inflateBuffer.length * 2));
+                }
+                int r = inflater.inflate(inflateBuffer, n, inflateBuffer.length - n);
+                if (r == 0 && !inflater.finished()) {
+                    if (inflater.needsDictionary()) {
+                        throw new DataFormatException(
+                                "Decompression requires a preset dictionary that was not provided");
+                    } else if (inflater.needsInput()) {
+                        if (more != null && next < count) {
+                            inflater.setInput(more[next++]);
+                            continue;
+                        }
+                        throw new DataFormatException("Compressed input is truncated or incomplete");
+                    } else {
+                        break;
+                    }
+                }
+                n += r;
+            }
+            return ByteBuffer.wrap(inflateBuffer, 0, n);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("zlib decompression failed", e);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    private int deflate(Deflater deflater, byte[] input, int off, int len) {
+        deflater.setInput(input, off, len);
+        deflater.finish();
+        if (deflateBuffer.length < deflateBound(len)) {
+            deflateBuffer = new byte[deflateBound(len)];
+        }
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == deflateBuffer.length) {
+                deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+            }
+            n += deflater.deflate(deflateBuffer, n, deflateBuffer.length - n);
+        }
+        return n;
+    }
+
+    /**
+     * Write {@code input} as a zlib stream of stored (uncompressed) deflate blocks, the same
+     * format {@code Deflater.NO_COMPRESSION} produces.
+     */
+    private int writeStored(byte[] input, int off, int len) {
+        byte[] out = deflateBuffer; // at least deflateBound(len) >= storedSize(len)
+        int n = 0;
+        out[n++] = 0x78; // CMF: deflate, 32K window
+        out[n++] = 0x01; // FLG: fastest, check bits
+        int pos = 0;
+        do {
+            int blockLen = Math.min(MAX_STORED_BLOCK, len - pos);
+            boolean last = pos + blockLen == len;
+            out[n++] = (byte) (last ? 1 : 0); // BFINAL, BTYPE=00
+            out[n++] = (byte) blockLen;
+            out[n++] = (byte) (blockLen >>> 8);
+            out[n++] = (byte) ~blockLen;
+            out[n++] = (byte) (~blockLen >>> 8);
+            System.arraycopy(input, off + pos, out, n, blockLen);
+            n += blockLen;
+            pos += blockLen;
+        } while (pos < len);
+        adler.reset();
+        adler.update(input, off, len);
+        int sum = (int) adler.getValue();
+        out[n++] = (byte) (sum >>> 24);
+        out[n++] = (byte) (sum >>> 16);
+        out[n++] = (byte) (sum >>> 8);
+        out[n++] = (byte) sum;
+        return n;
+    }
+
+    /**
+     * Size of {@code len} bytes as a zlib stream of stored blocks: 2-byte header,
+     * 5 bytes per 64 KiB block, 4-byte Adler-32 trailer.
+     */
+    private static int storedSize(int len) {
+        return len + 5 * Math.max(1, (len + MAX_STORED_BLOCK - 1) / MAX_STORED_BLOCK) + 6;
+    }
+
+    /**
+     * Upper bound of the deflate output for {@code len} input bytes (as zlib's deflateBound).
+     */
+    private static int deflateBound(int len) {
+        return len + (len >>> 12) + (len >>> 14) + (len >>> 25) + 13 + 5 * Math.max(1, (len + MAX_STORED_BLOCK - 1) / MAX_STORED_BLOCK);
+    }
+}
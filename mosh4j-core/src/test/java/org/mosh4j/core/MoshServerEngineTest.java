@@ -0,0 +1,222 @@
+package org.mosh4j.core;
+
+import org.junit.jupiter.api.Test;
+import org.mosh4j.core.datagram.InstructionSender;
+import org.mosh4j.core.datagram.NioDatagramChannel;
+import org.mosh4j.core.datagram.PathMtuEstimator;
+import org.mosh4j.core.datagram.RttEstimator;
+import org.mosh4j.core.datagram.SspDatagramCodec;
+import org.mosh4j.crypto.MoshKey;
+import org.mosh4j.crypto.SspCipher;
+import org.mosh4j.transport.TransportInstruction;
+import org.mosh4j.transport.TransportSender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoshServerEngineTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final MoshKey KEY = MoshKey.fromBytes(new byte[16]);
+
+    /**
+     * A client sending each keystroke as its own state, diffed only against the state before,
+     * so a server that applied them out of order would lose keys.
+     */
+    private static final class Client implements AutoCloseable {
+        private final NioDatagramChannel channel = NioDatagramChannel.open(new InetSocketAddress(LOOPBACK, 0));
+        private final InstructionSender instructionSender = new InstructionSender(new SspDatagramCodec(new SspCipher(KEY)),
+                false, new PathMtuEstimator(TransportInstruction.getMaxFragmentSize()));
+        private final UserStream stream = new UserStream();
+        private final TransportSender sender = new TransportSender(() -> new byte[0], stream);
+        private final InetSocketAddress server;
+
+        Client(MoshServerSession session) {
+            this.server = new InetSocketAddress(LOOPBACK, session.getLocalAddress().getPort());
+        }
+
+        void type(int key) {
+            long last = sender.getLastSentStateNum();
+            sender.setKnownReceiverState(last);
+            stream.acknowledged(last);
+            stream.pushKeystroke(new byte[]{(byte) key});
+            instructionSender.send(channel, server, sender.nextInstruction(last),
+                    RttEstimator.NO_TIMESTAMP, RttEstimator.NO_TIMESTAMP);
+        }
+
+        @Override
+        public void close() {
+            channel.close();
+        }
+    }
+
+    /** Received keys of one session, in delivery order. */
+    private static final class Keys implements MoshServerSession.UserInputListener {
+        private final List<Integer> keys = new ArrayList<>();
+
+        @Override
+        public synchronized void keystrokes(byte[] bytes) {
+            for (byte b : bytes) {
+                keys.add(b & 0xFF);
+            }
+            notifyAll();
+        }
+
+        synchronized List<Integer> await(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (keys.size() < count && System.nanoTime() < deadline) {
+                wait(100);
+            }
+            return new ArrayList<>(keys);
+        }
+    }
+
+    /** Give the selector a chance to drain, so the socket buffer does not overflow on a slow machine. */
+    private static void pace(int sent) throws InterruptedException {
+        if (sent % 32 == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /** First port of {@code size} consecutive loopback UDP ports that are free right now. */
+    private static int freePortRange(int size) {
+        Random random = new Random();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int first = 20_000 + random.nextInt(30_000);
+            List<NioDatagramChannel> probes = new ArrayList<>();
+            try {
+                for (int port = first; port < first + size; port++) {
+                    probes.add(NioDatagramChannel.open(new InetSocketAddress(LOOPBACK, port)));
+                }
+                return first;
+            } catch (RuntimeException taken) {
+                // try another range
+            } finally {
+                probes.forEach(NioDatagramChannel::close);
+            }
+        }
+        throw new IllegalStateException("no free port range");
+    }
+
+    @Test
+    void datagramsOfOneSessionProcessedInOrderAcrossWorkers() throws Exception {
+        int first = freePortRange(3);
+        int count = 200;
+        try (MoshServerEngine engine = new MoshServerEngine(LOOPBACK, first, first + 2, 1, 4)) {
+            List<Client> clients = new ArrayList<>();
+            List<Keys> received = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                MoshServerSession session = engine.openSession(KEY, 80, 24);
+                Keys keys = new Keys();
+                session.setUserInputListener(keys);
+                received.add(keys);
+                clients.add(new Client(session));
+            }
+            for (int i = 0; i < count; i++) {
+                for (Client client : clients) {
+                    client.type(i);
+                }
+                pace(i);
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                expected.add(i);
+            }
+            for (Keys keys : received) {
+                assertEquals(expected, keys.await(count));
+            }
+            assertEquals(0, engine.getDroppedDatagramCount());
+            clients.forEach(Client::close);
+        }
+    }
+
+    @Test
+    void sessionBacklogOverLimitIsDropped() throws Exception {
+        int first = freePortRange(1);
+        int extra = MoshServerEngine.MAX_QUEUED_PER_SESSION + 200;
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (MoshServerEngine engine = new MoshServerEngine(LOOPBACK, first, first, 1, 1)) {
+            MoshServerSession session = engine.openSession(KEY, 80, 24);
+            session.setUserInputListener(new MoshServerSession.UserInputListener() {
+                @Override
+                public void keystrokes(byte[] keys) {
+                    blocked.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            try (Client client = new Client(session)) {
+                client.type(0);
+                assertTrue(blocked.await(5, TimeUnit.SECONDS), "the only worker is busy");
+                for (int i = 1; i <= extra; i++) {
+                    client.type(i);
+                    pace(i);
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (engine.getDroppedDatagramCount() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                long dropped = engine.getDroppedDatagramCount();
+                assertTrue(dropped > 0, "backlog over the limit is dropped");
+                assertTrue(dropped <= extra - MoshServerEngine.MAX_QUEUED_PER_SESSION, "dropped " + dropped);
+            } finally {
+                release.countDown();
+            }
+            assertTrue(session.isRunning());
+            assertEquals(1, engine.getSessionCount());
+        }
+    }
+
+    @Test
+    void portsAllocatedFromRangeAndReclaimed() throws Exception {
+        int first = freePortRange(3);
+        try (MoshServerEngine engine = new MoshServerEngine(LOOPBACK, first, first + 2, 1, 1)) {
+            List<MoshServerSession> sessions = new ArrayList<>();
+            List<Integer> ports = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                MoshServerSession session = engine.openSession(KEY, 80, 24);
+                sessions.add(session);
+                ports.add(session.getLocalAddress().getPort());
+            }
+            assertEquals(List.of(first, first + 1, first + 2), ports);
+            assertEquals(3, engine.getSessionCount());
+            assertThrows(IOException.class, () -> engine.openSession(KEY, 80, 24));
+
+            engine.closeSession(sessions.get(1));
+            assertEquals(2, engine.getSessionCount());
+            assertEquals(first + 1, engine.openSession(KEY, 80, 24).getLocalAddress().getPort());
+
+            sessions.get(0).close(); // closed directly: reclaimed once the range runs out
+            assertEquals(3, engine.getSessionCount());
+            assertEquals(first, engine.openSession(KEY, 80, 24).getLocalAddress().getPort());
+            assertEquals(3, engine.getSessionCount());
+            assertThrows(IOException.class, () -> engine.openSession(KEY, 80, 24));
+        }
+    }
+
+    @Test
+    void closedEngineRejectsSessions() throws Exception {
+        int first = freePortRange(1);
+        MoshServerEngine engine = new MoshServerEngine(LOOPBACK, first, first, 1, 1);
+        MoshServerSession session = engine.openSession(KEY, 80, 24);
+        engine.close();
+        assertFalse(engine.isOpen());
+        assertFalse(session.isRunning());
+        assertEquals(0, engine.getSessionCount());
+        assertThrows(IllegalStateException.class, () -> engine.openSession(KEY, 80, 24));
+        assertThrows(IllegalArgumentException.class, () -> new MoshServerEngine(LOOPBACK, 10, 9, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new MoshServerEngine(LOOPBACK, 10, 20, 0, 1));
+    }
+}
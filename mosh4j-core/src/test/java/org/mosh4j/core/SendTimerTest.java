@@ -0,0 +1,88 @@
+package org.mosh4j.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SendTimerTest {
+
+    private final SendScheduler scheduler = new SendScheduler(2, "send-timer-test-");
+
+    @AfterEach
+    void closeScheduler() {
+        scheduler.close();
+    }
+
+    @Test
+    void arm_runsTickOnce() throws InterruptedException {
+        CountDownLatch ticked = new CountDownLatch(1);
+        AtomicInteger ticks = new AtomicInteger();
+        SendTimer timer = new SendTimer(scheduler, () -> {
+            ticks.incrementAndGet();
+            ticked.countDown();
+        });
+        timer.arm(10);
+        timer.arm(10);
+        timer.arm(20);
+        assertTrue(ticked.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, ticks.get(), "one pending tick at a time");
+    }
+
+    @Test
+    void arm_earlierDeadlineReplacesLaterOne() throws InterruptedException {
+        CountDownLatch ticked = new CountDownLatch(1);
+        AtomicInteger ticks = new AtomicInteger();
+        SendTimer timer = new SendTimer(scheduler, () -> {
+            ticks.incrementAndGet();
+            ticked.countDown();
+        });
+        long start = System.nanoTime();
+        timer.arm(60_000);
+        timer.arm(10);
+        assertTrue(ticked.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Thread.sleep(100);
+        assertEquals(1, ticks.get(), "the later tick was dropped");
+    }
+
+    @Test
+    void tick_canRearmItself() throws InterruptedException {
+        CountDownLatch ticked = new CountDownLatch(3);
+        SendTimer[] timer = new SendTimer[1];
+        timer[0] = new SendTimer(scheduler, () -> {
+            ticked.countDown();
+            timer[0].arm(5);
+        });
+        timer[0].arm(0);
+        assertTrue(ticked.await(5, TimeUnit.SECONDS));
+        timer[0].cancel();
+    }
+
+    @Test
+    void cancel_dropsPendingTickAndLaterArms() throws InterruptedException {
+        AtomicInteger ticks = new AtomicInteger();
+        SendTimer timer = new SendTimer(scheduler, ticks::incrementAndGet);
+        timer.arm(20);
+        timer.cancel();
+        timer.arm(0);
+        Thread.sleep(100);
+        assertEquals(0, ticks.get());
+    }
+
+    @Test
+    void arm_ignoredOnceSchedulerIsClosed() throws InterruptedException {
+        AtomicInteger ticks = new AtomicInteger();
+        SendTimer timer = new SendTimer(scheduler, ticks::incrementAndGet);
+        scheduler.close();
+        assertFalse(scheduler.isOpen());
+        timer.arm(0);
+        Thread.sleep(50);
+        assertEquals(0, ticks.get());
+    }
+}
@@ -0,0 +1,140 @@
+package org.mosh4j.core;
+
+import org.junit.jupiter.api.Test;
+import org.mosh4j.protocol.UserMessageCodec;
+import org.mosh4j.transport.OutgoingInstruction;
+import org.mosh4j.transport.TransportSender;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserStreamTest {
+
+    private static byte[] keys(String keys) {
+        return keys.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** The instructions of a {@code UserMessage}, as "keys" or "WxH" strings. */
+    private static List<String> decode(byte[] message) {
+        List<String> out = new ArrayList<>();
+        UserMessageCodec.decode(ByteBuffer.wrap(message), new UserMessageCodec.Handler() {
+            @Override
+            public void keystroke(ByteBuffer src, int offset, int length) {
+                byte[] bytes = new byte[length];
+                src.get(offset, bytes);
+                out.add(new String(bytes, StandardCharsets.US_ASCII));
+            }
+
+            @Override
+            public void resize(int width, int height) {
+                out.add(width + "x" + height);
+            }
+        });
+        return out;
+    }
+
+    private static List<String> diff(OutgoingInstruction inst) {
+        return decode(inst.toInstruction().getDiff().toByteArray());
+    }
+
+    @Test
+    void diff_mergesAdjacentKeystrokes() {
+        UserStream stream = new UserStream();
+        stream.pushKeystroke(keys("a"));
+        stream.pushKeystroke(keys("bc"));
+        stream.pushResize(80, 24);
+        stream.pushKeystroke(keys("d"));
+        stream.pushResize(100, 30);
+        stream.pushResize(120, 40);
+        assertEquals(List.of("abc", "80x24", "d", "100x30", "120x40"), decode(stream.diff(0, 1)));
+    }
+
+    @Test
+    void diff_firstCallFixesTheState() {
+        UserStream stream = new UserStream();
+        byte[] keys = keys("ab");
+        stream.pushKeystroke(keys);
+        keys[0] = 'x';
+        byte[] first = stream.diff(0, 1);
+        stream.pushKeystroke(keys("c"));
+        assertArrayEquals(first, stream.diff(0, 1));
+        assertEquals(List.of("ab"), decode(first));
+
+        assertEquals(List.of("c"), decode(stream.diff(1, 2)));
+        assertEquals(List.of("abc"), decode(stream.diff(0, 2)));
+        assertEquals(0, stream.diff(2, 3).length, "nothing new");
+    }
+
+    @Test
+    void acknowledged_dropsCoveredEvents() {
+        UserStream stream = new UserStream();
+        stream.pushKeystroke(keys("ab"));
+        stream.diff(0, 1);
+        stream.pushKeystroke(keys("c"));
+        stream.diff(1, 2);
+
+        stream.acknowledged(7);
+        assertEquals(List.of("abc"), decode(stream.diff(0, 2)), "unknown state: nothing dropped");
+
+        stream.acknowledged(1);
+        assertEquals(List.of("c"), decode(stream.diff(0, 2)), "older base: diff from what the server has");
+        assertEquals(List.of("c"), decode(stream.diff(1, 2)));
+
+        stream.acknowledged(2);
+        assertEquals(0, stream.diff(2, 3).length);
+        stream.pushKeystroke(keys("d"));
+        assertEquals(List.of("d"), decode(stream.diff(2, 4)));
+    }
+
+    @Test
+    void sender_sendsAccumulatedInputAsOneState() {
+        UserStream stream = new UserStream();
+        TransportSender sender = new TransportSender(() -> new byte[0], stream);
+        stream.pushKeystroke(keys("l"));
+        stream.pushKeystroke(keys("s"));
+        stream.pushResize(80, 24);
+        sender.markStateChanged();
+
+        OutgoingInstruction first = sender.nextInstruction(0);
+        assertEquals(0, first.getOldNum());
+        assertEquals(1, first.getNewNum());
+        assertEquals(List.of("ls", "80x24"), diff(first));
+
+        stream.pushKeystroke(keys("\r"));
+        sender.markStateChanged();
+        OutgoingInstruction second = sender.nextInstruction(1);
+        assertEquals(1, second.getOldNum());
+        assertEquals(2, second.getNewNum());
+        assertEquals(List.of("\r"), diff(second));
+    }
+
+    @Test
+    void sender_retransmitsFromTheLastAcknowledgedState() {
+        UserStream stream = new UserStream();
+        TransportSender sender = new TransportSender(() -> new byte[0], stream);
+        stream.pushKeystroke(keys("ab"));
+        sender.nextInstruction(0);
+        stream.pushKeystroke(keys("c"));
+        sender.nextInstruction(1);
+
+        OutgoingInstruction retransmit = sender.retransmitInstruction();
+        assertEquals(0, retransmit.getOldNum());
+        assertEquals(2, retransmit.getNewNum());
+        assertEquals(List.of("abc"), diff(retransmit));
+
+        sender.setKnownReceiverState(1);
+        stream.acknowledged(1);
+        retransmit = sender.retransmitInstruction();
+        assertEquals(1, retransmit.getOldNum());
+        assertEquals(2, retransmit.getNewNum());
+        assertEquals(List.of("c"), diff(retransmit));
+
+        sender.setKnownReceiverState(2);
+        stream.acknowledged(2);
+        assertNull(sender.retransmitInstruction());
+    }
+}
@@ -0,0 +1,61 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatagramTooLargeExceptionTest {
+
+    @Test
+    void isMessageTooLong_matchesOnlyEmsgsize() {
+        assertTrue(DatagramTooLargeException.isMessageTooLong(new IOException("Message too long")));
+        assertTrue(DatagramTooLargeException.isMessageTooLong(new SocketException("Message too long")));
+        assertTrue(DatagramTooLargeException.isMessageTooLong(new IOException(
+                "A message sent on a datagram socket was larger than the internal message buffer")));
+
+        assertFalse(DatagramTooLargeException.isMessageTooLong(new IOException("File name too long")));
+        assertFalse(DatagramTooLargeException.isMessageTooLong(new IOException("Argument list too long")));
+        assertFalse(DatagramTooLargeException.isMessageTooLong(new IOException("Connection refused")));
+        assertFalse(DatagramTooLargeException.isMessageTooLong(new IOException((String) null)));
+    }
+
+    @Test
+    void nioChannel_rejectsOversizedDatagramBeforeSending() {
+        NioDatagramChannel channel = NioDatagramChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            InetSocketAddress target = channel.getLocalAddress();
+            ByteBuffer data = ByteBuffer.allocate(BufferPool.MAX_DATAGRAM_SIZE + 1);
+            DatagramTooLargeException e = assertThrows(DatagramTooLargeException.class,
+                    () -> channel.send(target, data));
+            assertEquals(BufferPool.MAX_DATAGRAM_SIZE + 1, e.getSize());
+            assertEquals(0, data.position());
+
+            channel.send(target, new byte[1000]);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    void udpChannel_rejectsOversizedDatagramBeforeSending() throws IOException {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        UdpDatagramChannel channel = new UdpDatagramChannel(socket);
+        try {
+            InetSocketAddress target = (InetSocketAddress) socket.getLocalSocketAddress();
+            DatagramTooLargeException e = assertThrows(DatagramTooLargeException.class,
+                    () -> channel.send(target, new byte[BufferPool.MAX_DATAGRAM_SIZE + 1]));
+            assertEquals(BufferPool.MAX_DATAGRAM_SIZE + 1, e.getSize());
+
+            channel.send(target, new byte[1000]);
+        } finally {
+            channel.close();
+        }
+    }
+}
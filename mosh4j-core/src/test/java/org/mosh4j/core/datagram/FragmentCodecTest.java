@@ -0,0 +1,171 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentCodecTest {
+
+    /** Random bytes do not compress, so the fragment count follows from the length. */
+    private static byte[] payload(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void decode_singleFragmentFastPath() {
+        byte[] instruction = payload(300, 1);
+        byte[] fragment = FragmentCodec.encodeSingle(7, instruction);
+        FragmentCodec codec = new FragmentCodec();
+
+        ByteBuffer in = ByteBuffer.wrap(fragment);
+        ByteBuffer out = codec.decode(in);
+        byte[] decoded = new byte[out.remaining()];
+        out.get(decoded);
+
+        assertArrayEquals(instruction, decoded);
+        assertEquals(0, in.position());
+        assertEquals(1, codec.getCompletedCount());
+        assertEquals(0, codec.getPendingCount());
+        assertEquals(0, codec.getBufferedBytes());
+    }
+
+    @Test
+    void decode_interleavedInstructions() {
+        byte[] a = payload(2000, 2);
+        byte[] b = payload(2000, 3);
+        List<byte[]> fa = FragmentCodec.encode(1, a, 500);
+        List<byte[]> fb = FragmentCodec.encode(2, b, 500);
+        assertTrue(fa.size() > 2);
+        FragmentCodec codec = new FragmentCodec();
+
+        for (int i = 0; i < fa.size() - 1; i++) {
+            assertNull(codec.decode(fa.get(i)));
+            assertNull(codec.decode(fb.get(i)));
+        }
+        assertEquals(2, codec.getPendingCount());
+        assertArrayEquals(b, codec.decode(fb.get(fb.size() - 1)));
+        assertArrayEquals(a, codec.decode(fa.get(fa.size() - 1)));
+        assertEquals(0, codec.getPendingCount());
+        assertEquals(0, codec.getBufferedBytes());
+    }
+
+    @Test
+    void decode_outOfOrderFragments() {
+        byte[] instruction = payload(3000, 4);
+        List<byte[]> fragments = FragmentCodec.encode(5, instruction, 600);
+        FragmentCodec codec = new FragmentCodec();
+
+        for (int i = fragments.size() - 1; i > 0; i--) {
+            assertNull(codec.decode(fragments.get(i)));
+        }
+        assertArrayEquals(instruction, codec.decode(fragments.get(0)));
+    }
+
+    @Test
+    void decode_ignoresDuplicateFragments() {
+        byte[] instruction = payload(1500, 5);
+        List<byte[]> fragments = FragmentCodec.encode(9, instruction, 600);
+        FragmentCodec codec = new FragmentCodec();
+
+        assertNull(codec.decode(fragments.get(0)));
+        assertNull(codec.decode(fragments.get(0)));
+        assertEquals(1, codec.getDuplicateFragmentCount());
+        for (int i = 1; i < fragments.size() - 1; i++) {
+            assertNull(codec.decode(fragments.get(i)));
+        }
+        assertArrayEquals(instruction, codec.decode(fragments.get(fragments.size() - 1)));
+
+        // A retransmission of a delivered instruction must not start a new assembly.
+        assertNull(codec.decode(fragments.get(1)));
+        assertEquals(2, codec.getDuplicateFragmentCount());
+        assertEquals(0, codec.getPendingCount());
+        assertEquals(1, codec.getCompletedCount());
+    }
+
+    @Test
+    void decode_dropsFinalFragmentBelowHighestIndex() {
+        List<byte[]> fragments = FragmentCodec.encode(11, payload(3000, 6), 600);
+        FragmentCodec codec = new FragmentCodec();
+        assertNull(codec.decode(fragments.get(3)));
+
+        byte[] forged = new byte[20];
+        FragmentCodec.writeHeader(forged, 0, 11, 2, true);
+        assertNull(codec.decode(forged));
+
+        assertEquals(1, codec.getEvictedCount());
+        assertEquals(0, codec.getPendingCount());
+        assertEquals(0, codec.getBufferedBytes());
+    }
+
+    @Test
+    void decode_dropsFragmentBeyondFinal() {
+        List<byte[]> fragments = FragmentCodec.encode(12, payload(3000, 7), 600);
+        FragmentCodec codec = new FragmentCodec();
+        assertNull(codec.decode(fragments.get(2)));
+
+        byte[] forgedFinal = new byte[20];
+        FragmentCodec.writeHeader(forgedFinal, 0, 12, 3, true);
+        assertNull(codec.decode(forgedFinal));
+        assertNull(codec.decode(fragments.get(4)));
+
+        assertEquals(1, codec.getEvictedCount());
+    }
+
+    @Test
+    void decode_evictsOldestWhenAssemblyCapExceeded() {
+        FragmentCodec codec = new FragmentCodec(2, FragmentCodec.DEFAULT_MAX_BUFFERED_BYTES,
+                FragmentCodec.DEFAULT_MAX_AGE_MILLIS);
+        List<byte[]> f1 = FragmentCodec.encode(1, payload(1000, 8), 600);
+        List<byte[]> f2 = FragmentCodec.encode(2, payload(1000, 9), 600);
+        List<byte[]> f3 = FragmentCodec.encode(3, payload(1000, 10), 600);
+        assertEquals(2, f1.size());
+
+        assertNull(codec.decode(f1.get(0)));
+        assertNull(codec.decode(f2.get(0)));
+        assertNull(codec.decode(f3.get(0)));
+        assertEquals(1, codec.getEvictedCount());
+        assertEquals(2, codec.getPendingCount());
+
+        // Instruction 1 lost its first fragment and starts over.
+        assertNull(codec.decode(f1.get(1)));
+        assertNotNull(codec.decode(f3.get(1)));
+    }
+
+    @Test
+    void decode_evictsWhenByteBudgetExceeded() {
+        FragmentCodec codec = new FragmentCodec();
+        List<byte[]> big = FragmentCodec.encode(1, payload(1_200_000, 11), 1400);
+        for (int i = 0; i < big.size() - 1; i++) {
+            assertNull(codec.decode(big.get(i)));
+            assertTrue(codec.getBufferedBytes() <= FragmentCodec.DEFAULT_MAX_BUFFERED_BYTES);
+        }
+        assertTrue(codec.getEvictedCount() >= 1);
+        assertNull(codec.decode(big.get(big.size() - 1)));
+        assertEquals(0, codec.getCompletedCount());
+    }
+
+    @Test
+    void decode_byteBudgetEvictsOlderInstructionFirst() {
+        FragmentCodec codec = new FragmentCodec(8, 2000, FragmentCodec.DEFAULT_MAX_AGE_MILLIS);
+        byte[] second = payload(1800, 13);
+        List<byte[]> f1 = FragmentCodec.encode(1, payload(1800, 12), 610);
+        List<byte[]> f2 = FragmentCodec.encode(2, second, 610);
+
+        assertNull(codec.decode(f1.get(0)));
+        assertNull(codec.decode(f1.get(1)));
+        assertNull(codec.decode(f2.get(0)));
+        assertNull(codec.decode(f2.get(1)));
+        assertEquals(1, codec.getEvictedCount());
+        assertEquals(1, codec.getPendingCount());
+        for (int i = 2; i < f2.size() - 1; i++) {
+            assertNull(codec.decode(f2.get(i)));
+        }
+        assertArrayEquals(second, codec.decode(f2.get(f2.size() - 1)));
+    }
+}
@@ -0,0 +1,145 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioDatagramChannelTest {
+
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private final BufferPool pool = new BufferPool(2048, 2);
+    private final NioDatagramChannel receiver = NioDatagramChannel.open(LOOPBACK, pool);
+    private final NioDatagramChannel sender = NioDatagramChannel.open(LOOPBACK);
+
+    @AfterEach
+    void close() {
+        receiver.close();
+        sender.close();
+    }
+
+    private void send(byte[] data) {
+        sender.send(receiver.getLocalAddress(), data);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    void bufferPool_reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(100, 2);
+        ByteBuffer a = pool.acquire();
+        assertTrue(a.isDirect());
+        assertEquals(100, a.capacity());
+        a.put((byte) 1).flip();
+        pool.release(a);
+        assertEquals(1, pool.available());
+        ByteBuffer again = pool.acquire();
+        assertSame(a, again);
+        assertEquals(0, again.position());
+        assertEquals(100, again.limit());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    void bufferPool_keepsAtMostMaxPooled() {
+        BufferPool pool = new BufferPool(100, 2);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.available());
+
+        pool.acquire();
+        pool.release(null);
+        pool.release(ByteBuffer.allocateDirect(50));
+        pool.release(ByteBuffer.allocate(100));
+        assertEquals(1, pool.available(), "foreign buffers are not pooled");
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new BufferPool(1, 0));
+    }
+
+    @Test
+    void pooledDatagram_releaseIsIdempotent() {
+        BufferPool pool = new BufferPool(100, 4);
+        PooledDatagram d = new PooledDatagram(LOOPBACK, pool.acquire(), pool);
+        d.release();
+        d.release();
+        assertEquals(1, pool.available());
+
+        PooledDatagram wrapped = PooledDatagram.wrap(LOOPBACK, new byte[]{1, 2});
+        assertArrayEquals(new byte[]{1, 2}, toArray(wrapped.buffer()));
+        wrapped.release();
+        assertSame(LOOPBACK, wrapped.source());
+    }
+
+    @Test
+    void receivePooled_returnsBufferToPoolForReuse() {
+        assertFalse(receiver.getNioChannel().isBlocking());
+        receiver.setReceiveTimeoutMillis(5000);
+        send(new byte[]{1, 2, 3});
+        PooledDatagram first = receiver.receivePooled();
+        assertNotNull(first);
+        assertEquals(0, first.buffer().position());
+        assertArrayEquals(new byte[]{1, 2, 3}, toArray(first.buffer()));
+        assertEquals(sender.getLocalAddress().getPort(), first.source().getPort());
+        ByteBuffer buffer = first.buffer();
+        first.release();
+        assertEquals(1, pool.available());
+
+        send(new byte[]{4, 5});
+        PooledDatagram second = receiver.receivePooled();
+        assertSame(buffer, second.buffer(), "no allocation once warmed up");
+        assertArrayEquals(new byte[]{4, 5}, toArray(second.buffer()));
+        second.release();
+    }
+
+    @Test
+    void receive_copiesAndReleases() {
+        receiver.setReceiveTimeoutMillis(5000);
+        send(new byte[]{7, 8, 9});
+        DatagramChannel.ReceiveResult result = receiver.receive();
+        assertArrayEquals(new byte[]{7, 8, 9}, result.packet());
+        assertEquals(1, pool.available());
+    }
+
+    @Test
+    void tryReceive_doesNotBlock() {
+        long start = System.nanoTime();
+        assertNull(receiver.tryReceive());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, pool.available(), "the buffer went back");
+    }
+
+    @Test
+    void receivePooled_timesOut() {
+        receiver.setReceiveTimeoutMillis(100);
+        long start = System.nanoTime();
+        assertNull(receiver.receivePooled());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMs >= 90 && elapsedMs < 5000, "waited " + elapsedMs + " ms");
+    }
+
+    @Test
+    void close_wakesBlockedReceiver() throws Exception {
+        CompletableFuture<PooledDatagram> received = CompletableFuture.supplyAsync(receiver::receivePooled);
+        Thread.sleep(100);
+        assertFalse(received.isDone());
+        receiver.close();
+        assertNull(received.get(5, TimeUnit.SECONDS));
+        assertFalse(receiver.isOpen());
+        assertNull(receiver.tryReceive());
+    }
+}
@@ -0,0 +1,110 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathMtuEstimatorTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long TIMEOUT = 1000 * MS;
+
+    @Test
+    void probe_confirmedByItsOwnAck() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        pmtu.onSent(1, 1400, 0);
+        pmtu.onAcked(1);
+        assertEquals(1400, pmtu.getConfirmedMtu());
+        pmtu.onTick(2 * TIMEOUT, TIMEOUT);
+        assertEquals(1400, pmtu.getMtu());
+    }
+
+    @Test
+    void probe_notConfirmedByAckOfLaterSmallerInstruction() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        pmtu.onSent(1, 1400, 0);
+        pmtu.onSent(2, 100, 0);
+        pmtu.onAcked(2);
+        assertEquals(100, pmtu.getConfirmedMtu());
+    }
+
+    @Test
+    void lostProbes_reduceOnlyWhenSmallerInstructionsGetThrough() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            // Everything lost: an outage, not a black hole.
+            pmtu.onSent(i, 1400, now);
+            now += 2 * TIMEOUT;
+            pmtu.onTick(now, TIMEOUT);
+        }
+        assertEquals(1400, pmtu.getMtu());
+
+        long state = 10;
+        for (int i = 0; i < 2; i++) {
+            pmtu.onSent(state, 1400, now);
+            pmtu.onSent(state + 1, 200, now);
+            pmtu.onAcked(state + 1);
+            now += 2 * TIMEOUT;
+            pmtu.onTick(now, TIMEOUT);
+            state += 2;
+        }
+        assertEquals(1400 - 1400 / 8, pmtu.getMtu());
+        assertEquals(0, pmtu.getConfirmedMtu());
+    }
+
+    @Test
+    void reduction_stepsFromEstimateNotFromProbe() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        long now = 0;
+        long state = 0;
+        for (int i = 0; i < 2; i++) {
+            pmtu.onSent(state, 600, now);
+            pmtu.onSent(state + 1, 100, now);
+            pmtu.onAcked(state + 1);
+            now += 2 * TIMEOUT;
+            pmtu.onTick(now, TIMEOUT);
+            state += 2;
+        }
+        assertEquals(1400 - 1400 / 8, pmtu.getMtu());
+    }
+
+    @Test
+    void sendsAtOrBelowMinimum_areNeverProbes() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        pmtu.onTooLarge(1400, 0);
+        assertEquals(0, pmtu.getConfirmedMtu());
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            pmtu.onSent(2 * i, 500, now);
+            pmtu.onSent(2 * i + 1, 100, now);
+            pmtu.onAcked(2 * i + 1);
+            now += 2 * TIMEOUT;
+            pmtu.onTick(now, TIMEOUT);
+        }
+        assertEquals(1400 - 1400 / 8, pmtu.getMtu());
+    }
+
+    @Test
+    void tooLarge_isDefiniteAndStopsAtMinimum() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        pmtu.onTooLarge(1400, 0);
+        assertEquals(1400 - 1400 / 8, pmtu.getMtu());
+        for (int i = 0; i < 20; i++) {
+            pmtu.onTooLarge(pmtu.getMtu(), 0);
+        }
+        assertEquals(500, pmtu.getMtu());
+    }
+
+    @Test
+    void estimate_raisedAgainAfterQuietInterval() {
+        PathMtuEstimator pmtu = new PathMtuEstimator(1400, 500, 1400);
+        long now = 0;
+        pmtu.onTooLarge(1400, now);
+        int reduced = pmtu.getMtu();
+        pmtu.onTick(now + PathMtuEstimator.PROBE_INTERVAL_MS * MS - 1, TIMEOUT);
+        assertEquals(reduced, pmtu.getMtu());
+        pmtu.onTick(now + PathMtuEstimator.PROBE_INTERVAL_MS * MS, TIMEOUT);
+        assertEquals(Math.min(1400, reduced + reduced / 8), pmtu.getMtu());
+    }
+}
@@ -0,0 +1,112 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayWindowTest {
+
+    @Test
+    void accept_rejectsDuplicates() {
+        ReplayWindow w = new ReplayWindow(64);
+        assertTrue(w.accept(5));
+        assertTrue(w.accept(3));
+        assertFalse(w.accept(5));
+        assertFalse(w.accept(3));
+        assertTrue(w.accept(4));
+        assertEquals(3, w.getAcceptedCount());
+        assertEquals(2, w.getDuplicateCount());
+    }
+
+    @Test
+    void accept_rejectsExactlyWindowSizeBehind() {
+        ReplayWindow w = new ReplayWindow(64);
+        assertTrue(w.accept(100));
+        assertFalse(w.mightAccept(100 - 64));
+        assertFalse(w.accept(100 - 64));
+        assertEquals(1, w.getStaleCount());
+        assertTrue(w.mightAccept(100 - 63));
+        assertTrue(w.accept(100 - 63));
+    }
+
+    @Test
+    void accept_jumpLargerThanWindowForgetsEverything() {
+        ReplayWindow w = new ReplayWindow(128);
+        for (long s = 0; s < 128; s++) {
+            assertTrue(w.accept(s));
+        }
+        assertTrue(w.accept(127 + 1000));
+        assertEquals(1127, w.getHighestSequence());
+        // Everything within the window below the jump is unseen, even where old bits lived.
+        for (long s = 1127 - 127; s < 1127; s++) {
+            assertTrue(w.mightAccept(s), "seq " + s);
+        }
+        assertFalse(w.mightAccept(127));
+        assertFalse(w.accept(1127));
+    }
+
+    @Test
+    void accept_partialAdvancesAcrossWordBoundaries() {
+        ReplayWindow w = new ReplayWindow(256);
+        for (long s = 0; s < 256; s++) {
+            w.accept(s);
+        }
+        // Advance by 63, 64, 65 and 130: whole words cleared and partial words at both ends.
+        long highest = 255;
+        for (int step : new int[]{63, 64, 65, 130}) {
+            long next = highest + step;
+            assertTrue(w.accept(next));
+            for (long s = highest + 1; s < next; s++) {
+                assertTrue(w.mightAccept(s), "step " + step + " seq " + s);
+            }
+            for (long s = next - 255; s <= highest; s++) {
+                if (s >= 0 && s <= 255 || s == highest) {
+                    assertFalse(w.mightAccept(s), "step " + step + " seq " + s);
+                }
+            }
+            highest = next;
+        }
+    }
+
+    @Test
+    void accept_matchesModelOnRandomSequences() {
+        Random random = new Random(42);
+        ReplayWindow w = new ReplayWindow(128);
+        Set<Long> seen = new HashSet<>();
+        long highest = -1;
+        for (int i = 0; i < 20000; i++) {
+            long seq = Math.max(0, highest + random.nextInt(300) - 200);
+            boolean expected = !seen.contains(seq) && (seq > highest || highest - seq < 128);
+            assertEquals(expected, w.mightAccept(seq), "seq " + seq);
+            assertEquals(expected, w.accept(seq), "seq " + seq);
+            if (expected) {
+                seen.add(seq);
+                highest = Math.max(highest, seq);
+            }
+        }
+    }
+
+    @Test
+    void mightAccept_doesNotMoveWindow() {
+        ReplayWindow w = new ReplayWindow(64);
+        w.accept(10);
+        assertTrue(w.mightAccept(1_000_000));
+        assertEquals(10, w.getHighestSequence());
+        // A forged far-ahead sequence number must not make old ones stale.
+        assertTrue(w.accept(9));
+        assertTrue(w.mightAccept(11));
+        w.recordEarlyReject(10);
+        assertEquals(1, w.getDuplicateCount());
+        assertEquals(2, w.getAcceptedCount());
+    }
+
+    @Test
+    void constructor_rejectsBadSizes() {
+        assertThrows(IllegalArgumentException.class, () -> new ReplayWindow(32));
+        assertThrows(IllegalArgumentException.class, () -> new ReplayWindow(100));
+    }
+}
@@ -0,0 +1,151 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mosh4j.core.datagram.RttEstimator.NO_TIMESTAMP;
+
+class RttEstimatorTest {
+
+    /** A nanoTime value whose 16-bit millisecond timestamp is 65530: six ms before the wrap. */
+    private static final long BEFORE_WRAP = ms(3 * 65_536 + 65_530);
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** Our datagram sent at {@code sentNanos} echoed back at {@code nowNanos}. */
+    private static void echo(RttEstimator rtt, long seq, long sentNanos, long nowNanos) {
+        rtt.onDatagramReceived(seq, NO_TIMESTAMP, RttEstimator.timestamp16(sentNanos), nowNanos);
+    }
+
+    @Test
+    void timestamp16_wrapsAndSkipsNoTimestamp() {
+        assertEquals(65_530, RttEstimator.timestamp16(BEFORE_WRAP));
+        assertEquals(4, RttEstimator.timestamp16(BEFORE_WRAP + ms(10)));
+        assertEquals(0, RttEstimator.timestamp16(BEFORE_WRAP + ms(5)), "0xFFFF is reserved");
+    }
+
+    @Test
+    void sample_acrossTimestampWrap() {
+        RttEstimator rtt = new RttEstimator();
+        assertFalse(rtt.hasSample());
+        echo(rtt, 0, BEFORE_WRAP, BEFORE_WRAP + ms(40));
+        assertTrue(rtt.hasSample());
+        assertEquals(40, rtt.getSrttMs());
+        assertEquals(20, rtt.getRttVarMs());
+    }
+
+    @Test
+    void sample_implausiblyLongIgnored() {
+        RttEstimator rtt = new RttEstimator();
+        echo(rtt, 0, BEFORE_WRAP + ms(100), BEFORE_WRAP);
+        echo(rtt, 1, BEFORE_WRAP, BEFORE_WRAP + ms(RttEstimator.MAX_SAMPLE_MS + 1));
+        assertFalse(rtt.hasSample());
+        assertEquals(1000, rtt.getSrttMs());
+        assertEquals(1000, rtt.getRtoMs());
+
+        echo(rtt, 2, BEFORE_WRAP, BEFORE_WRAP + ms(RttEstimator.MAX_SAMPLE_MS));
+        assertTrue(rtt.hasSample());
+    }
+
+    @Test
+    void smoothing_followsRfc6298() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.update(100);
+        assertEquals(100, rtt.getSrttMs());
+        assertEquals(50, rtt.getRttVarMs());
+        assertEquals(300, rtt.getRtoMs());
+        assertEquals(50, rtt.getSendIntervalMs());
+
+        rtt.update(200);
+        assertEquals(113, rtt.getSrttMs());
+        assertEquals(63, rtt.getRttVarMs());
+        assertEquals(100.0 / 16, rtt.getJitterMs(), 1e-9);
+
+        RttEstimator fast = new RttEstimator();
+        fast.update(1);
+        assertEquals(50, fast.getRtoMs(), "RTO floor");
+        assertEquals(20, fast.getSendIntervalMs(), "send interval floor");
+        assertEquals(250, new RttEstimator().getSendIntervalMs(), "send interval ceiling");
+    }
+
+    @Test
+    void timestampReply_correctedForHoldAndEchoedOnce() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(NO_TIMESTAMP, rtt.timestampReply(0));
+
+        rtt.onDatagramReceived(0, 1000, NO_TIMESTAMP, ms(5));
+        assertEquals(1030, rtt.timestampReply(ms(35)));
+        assertEquals(NO_TIMESTAMP, rtt.timestampReply(ms(40)), "echoed once");
+
+        rtt.onDatagramReceived(1, 65_530, NO_TIMESTAMP, ms(100));
+        assertEquals(4, rtt.timestampReply(ms(110)), "wraps");
+        rtt.onDatagramReceived(2, 65_530, NO_TIMESTAMP, ms(200));
+        assertEquals(0, rtt.timestampReply(ms(205)), "never 0xFFFF");
+    }
+
+    @Test
+    void timestampReply_notEchoedWhenHeldTooLong() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onDatagramReceived(0, 1000, NO_TIMESTAMP, ms(5));
+        assertEquals(NO_TIMESTAMP, rtt.timestampReply(ms(5 + 1001)));
+
+        rtt.onDatagramReceived(1, 1000, NO_TIMESTAMP, ms(5));
+        assertEquals(2000, rtt.timestampReply(ms(5 + 1000)));
+
+        rtt.onDatagramReceived(2, 1000, NO_TIMESTAMP, ms(5));
+        rtt.onDatagramReceived(3, NO_TIMESTAMP, NO_TIMESTAMP, ms(6));
+        assertEquals(1001, rtt.timestampReply(ms(6)), "a datagram without timestamp keeps the saved one");
+    }
+
+    @Test
+    void minRtt_forgetsSamplesOlderThanTheWindow() {
+        long half = ms(RttEstimator.MIN_RTT_WINDOW_MS / 2);
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(1000, rtt.getMinRttMs(), "no sample: the smoothed RTT");
+
+        echo(rtt, 0, 0, ms(50));
+        echo(rtt, 1, half - ms(80), half);
+        assertEquals(50, rtt.getMinRttMs());
+
+        echo(rtt, 2, half + ms(1000), half + ms(1090));
+        assertEquals(50, rtt.getMinRttMs(), "the previous half window still counts");
+
+        echo(rtt, 3, 2 * half + ms(2000), 2 * half + ms(2100));
+        assertEquals(90, rtt.getMinRttMs());
+    }
+
+    @Test
+    void loss_fromSequenceGaps() {
+        RttEstimator rtt = new RttEstimator();
+        for (long seq = 0; seq < RttEstimator.LOSS_INTERVAL; seq++) {
+            if (seq != 10 && seq != 20) {
+                rtt.onDatagramReceived(seq, NO_TIMESTAMP, NO_TIMESTAMP, ms(seq));
+            }
+        }
+        assertEquals(2, rtt.getLostCount());
+        assertEquals(0.25 * 2 / RttEstimator.LOSS_INTERVAL, rtt.getLossRate(), 1e-9);
+
+        for (long seq = RttEstimator.LOSS_INTERVAL; seq < 2 * RttEstimator.LOSS_INTERVAL; seq++) {
+            rtt.onDatagramReceived(seq, NO_TIMESTAMP, NO_TIMESTAMP, ms(seq));
+        }
+        assertEquals(0.75 * 0.25 * 2 / RttEstimator.LOSS_INTERVAL, rtt.getLossRate(), 1e-9, "decays");
+    }
+
+    @Test
+    void loss_reorderingIsNotLoss() {
+        RttEstimator rtt = new RttEstimator();
+        for (long seq = 0; seq < RttEstimator.LOSS_INTERVAL; seq++) {
+            long arriving = seq == 10 ? 11 : seq == 11 ? 10 : seq;
+            rtt.onDatagramReceived(arriving, NO_TIMESTAMP, NO_TIMESTAMP, ms(seq));
+            if (seq == 10) {
+                assertEquals(1, rtt.getLostCount(), "a gap until the late datagram arrives");
+            }
+        }
+        assertEquals(0, rtt.getLostCount());
+        assertEquals(0, rtt.getLossRate());
+    }
+}
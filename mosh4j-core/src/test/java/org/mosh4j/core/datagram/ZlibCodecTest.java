@@ -0,0 +1,163 @@
+package org.mosh4j.core.datagram;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZlibCodecTest {
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "drwxr-xr-x  2 user user 4096 Jan  1 00:00 directory\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = line[i % line.length];
+        }
+        return bytes;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Inflate with a fresh JDK inflater, independent of the codec's own decoder. */
+    private static byte[] inflate(byte[] stream, int expectedLength) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stream);
+            byte[] out = new byte[expectedLength + 1];
+            int n = inflater.inflate(out);
+            assertTrue(inflater.finished());
+            assertEquals(0, inflater.getRemaining());
+            return Arrays.copyOf(out, n);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Test
+    void levelFor_followsPayloadSize() {
+        assertEquals(Deflater.BEST_COMPRESSION, ZlibCodec.levelFor(0));
+        assertEquals(Deflater.BEST_COMPRESSION, ZlibCodec.levelFor(ZlibCodec.SMALL_PAYLOAD));
+        assertEquals(Deflater.DEFAULT_COMPRESSION, ZlibCodec.levelFor(ZlibCodec.SMALL_PAYLOAD + 1));
+        assertEquals(Deflater.DEFAULT_COMPRESSION, ZlibCodec.levelFor(ZlibCodec.LARGE_PAYLOAD - 1));
+        assertEquals(Deflater.BEST_SPEED, ZlibCodec.levelFor(ZlibCodec.LARGE_PAYLOAD));
+    }
+
+    @Test
+    void compress_roundTripsAtEveryLevel() throws DataFormatException {
+        ZlibCodec codec = new ZlibCodec();
+        for (int length : new int[]{0, 1, 100, ZlibCodec.SMALL_PAYLOAD, ZlibCodec.SMALL_PAYLOAD + 1,
+                ZlibCodec.LARGE_PAYLOAD, 300_000}) {
+            byte[] input = text(length);
+            byte[] compressed = toArray(codec.compress(input));
+            if (length > 1000) {
+                assertTrue(compressed.length < length / 10, "compressible at " + length);
+            }
+            assertArrayEquals(input, inflate(compressed, length));
+            assertArrayEquals(input, toArray(codec.decompress(ByteBuffer.wrap(compressed))));
+        }
+    }
+
+    @Test
+    void compress_usesOffsetAndLength() {
+        ZlibCodec codec = new ZlibCodec();
+        byte[] input = text(1000);
+        byte[] compressed = ZlibCodec.compressToArray(Arrays.copyOfRange(input, 100, 700));
+        assertArrayEquals(compressed, toArray(codec.compress(input, 100, 600)));
+        assertArrayEquals(Arrays.copyOfRange(input, 100, 700), toArray(codec.decompress(ByteBuffer.wrap(compressed))));
+    }
+
+    @Test
+    void compress_incompressibleInputFallsBackToStoredBlocks() throws DataFormatException {
+        ZlibCodec codec = new ZlibCodec();
+        for (int length : new int[]{0, 1, 100, ZlibCodec.LARGE_PAYLOAD, 65_535, 65_536, 200_000}) {
+            byte[] input = random(length, length);
+            byte[] compressed = toArray(codec.compress(input));
+            int blocks = Math.max(1, (length + 65_534) / 65_535);
+            assertTrue(compressed.length <= length + 5 * blocks + 6, "no larger than stored at " + length);
+            assertEquals(0, ((compressed[0] & 0xFF) << 8 | (compressed[1] & 0xFF)) % 31, "header check bits");
+            assertArrayEquals(input, inflate(compressed, length));
+            assertArrayEquals(input, toArray(codec.decompress(ByteBuffer.wrap(compressed))));
+        }
+    }
+
+    @Test
+    void compress_storedStreamOverOneBlock() throws DataFormatException {
+        // BEST_SPEED deflate of random bytes ends a block every 16K symbols, so the stored
+        // stream with 64 KiB blocks is smaller and replaces it
+        byte[] input = random(200_000, 1);
+        byte[] compressed = toArray(new ZlibCodec().compress(input));
+        assertEquals(200_000 + 5 * 4 + 6, compressed.length);
+        assertEquals(0x78, compressed[0] & 0xFF);
+        assertEquals(0x01, compressed[1] & 0xFF);
+        assertEquals(0, compressed[2], "first block not final, stored");
+        assertEquals(65_535, (compressed[3] & 0xFF) | (compressed[4] & 0xFF) << 8);
+        assertArrayEquals(input, inflate(compressed, input.length));
+    }
+
+    @Test
+    void decompress_streamSplitOverParts() {
+        ZlibCodec codec = new ZlibCodec();
+        byte[] input = text(50_000);
+        byte[] compressed = ZlibCodec.compressToArray(input);
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            byte[][] parts = new byte[8][];
+            int count = 1 + random.nextInt(6);
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int end = i == count - 1 ? compressed.length : pos + random.nextInt(compressed.length - pos + 1);
+                parts[i] = Arrays.copyOfRange(compressed, pos, end);
+                pos = end;
+            }
+            parts[count] = new byte[]{1, 2, 3}; // beyond count: ignored
+            assertArrayEquals(input, toArray(codec.decompress(parts, count)), "round " + round);
+        }
+    }
+
+    @Test
+    void decompress_rejectsTruncatedOrCorruptInput() {
+        ZlibCodec codec = new ZlibCodec();
+        byte[] compressed = ZlibCodec.compressToArray(text(5000));
+        byte[][] parts = {Arrays.copyOf(compressed, 10), Arrays.copyOfRange(compressed, 10, compressed.length - 1)};
+        assertThrows(IllegalArgumentException.class, () -> codec.decompress(parts, 2));
+        assertThrows(IllegalArgumentException.class, () -> codec.decompress(parts, 0));
+
+        byte[] corrupt = compressed.clone();
+        corrupt[compressed.length - 1] ^= 1;
+        assertThrows(IllegalArgumentException.class, () -> codec.decompress(ByteBuffer.wrap(corrupt)));
+        assertThrows(IllegalArgumentException.class, () -> codec.decompress(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+
+        byte[] input = text(100);
+        assertArrayEquals(input, toArray(codec.decompress(ByteBuffer.wrap(ZlibCodec.compressToArray(input)))),
+                "usable after a failure");
+    }
+
+    @Test
+    void decompress_directReadOnlyBuffer() {
+        ZlibCodec codec = new ZlibCodec();
+        byte[] input = text(3000);
+        byte[] compressed = ZlibCodec.compressToArray(input);
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length + 4);
+        direct.put(new byte[]{9, 9}).put(compressed).put(new byte[]{9, 9}).flip();
+        ByteBuffer slice = direct.position(2).limit(2 + compressed.length).slice().asReadOnlyBuffer();
+        assertArrayEquals(input, toArray(codec.decompress(slice)));
+        assertFalse(slice.hasRemaining(), "input consumed");
+    }
+}
@@ -0,0 +1,95 @@
+package org.mosh4j.crypto;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.OCBBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * {@link OcbEngine} backed by BouncyCastle's {@link OCBBlockCipher} with its software AES.
+ * Each direction is keyed once; per message only the nonce is re-initialised.
+ */
+final class BouncyCastleOcbEngine implements OcbEngine {
+
+    static final OcbEngineProvider PROVIDER = new OcbEngineProvider() {
+        @Override
+        public String getName() {
+            return "bouncycastle";
+        }
+
+        @Override
+        public OcbEngine newEngine(byte[] key) {
+            return new BouncyCastleOcbEngine(key);
+        }
+    };
+
+    private static final int TAG_BITS = 128;
+
+    private final KeyParameter keyParam;
+    private final OCBBlockCipher encryptCipher;
+    private final OCBBlockCipher decryptCipher;
+    private ParametersWithIV ivParams;
+
+    BouncyCastleOcbEngine(byte[] key) {
+        this(new KeyParameter(key));
+    }
+
+    private BouncyCastleOcbEngine(KeyParameter keyParam) {
+        this.keyParam = keyParam;
+        this.encryptCipher = new OCBBlockCipher(new AESEngine(), new AESEngine());
+        this.decryptCipher = new OCBBlockCipher(new AESEngine(), new AESEngine());
+        byte[] initNonce = new byte[12];
+        encryptCipher.init(true, new AEADParameters(keyParam, TAG_BITS, initNonce));
+        decryptCipher.init(false, new AEADParameters(keyParam, TAG_BITS, initNonce));
+        this.ivParams = new ParametersWithIV(null, initNonce);
+    }
+
+    @Override
+    public int encrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        encryptCipher.init(true, nonceParams(nonce));
+        int len = encryptCipher.processBytes(in, inOff, inLen, out, outOff);
+        try {
+            return len + encryptCipher.doFinal(out, outOff + len);
+        } catch (InvalidCipherTextException e) {
+            throw new IllegalStateException("Encryption failed", e);
+        }
+    }
+
+    @Override
+    public int decrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws AEADBadTagException {
+        decryptCipher.init(false, nonceParams(nonce));
+        int len = decryptCipher.processBytes(in, inOff, inLen, out, outOff);
+        try {
+            return len + decryptCipher.doFinal(out, outOff + len);
+        } catch (InvalidCipherTextException e) {
+            throw new AEADBadTagException("OCB authentication failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * BouncyCastle's AES engines keep their round keys privately, so a fork expands the
+     * key again for its own two ciphers.
+     */
+    @Override
+    public OcbEngine fork() {
+        return new BouncyCastleOcbEngine(keyParam);
+    }
+
+    /**
+     * Without a key in the parameters OCBBlockCipher keeps its AES key schedule.
+     * ParametersWithIV hands out its internal IV array, which is reused as the nonce buffer.
+     */
+    private ParametersWithIV nonceParams(byte[] nonce) {
+        byte[] iv = ivParams.getIV();
+        if (iv.length != nonce.length) {
+            ivParams = new ParametersWithIV(null, nonce);
+        } else {
+            System.arraycopy(nonce, 0, iv, 0, nonce.length);
+        }
+        return ivParams;
+    }
+}
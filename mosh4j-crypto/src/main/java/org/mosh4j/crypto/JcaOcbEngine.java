@@ -0,0 +1,352 @@
+package org.mosh4j.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+/**
+ * {@link OcbEngine} on top of the JDK's {@code AES/ECB/NoPadding}, which HotSpot compiles
+ * to AES-NI (or the platform equivalent). The OCB layer (RFC 7253) is done here: offsets,
+ * checksum and the L table are kept as pairs of big-endian longs, and all full blocks of
+ * a message go through a single ECB call so the AES intrinsic can pipeline them.
+ * <p>
+ * Per message the engine makes one ECB call for the full blocks plus one (encrypt) or
+ * two (decrypt) single-block calls; the nonce-dependent {@code Ktop} is cached and only
+ * recomputed every 64 sequence numbers. Nothing is allocated per message.
+ */
+final class JcaOcbEngine implements OcbEngine {
+
+    static final OcbEngineProvider PROVIDER = new OcbEngineProvider() {
+        @Override
+        public String getName() {
+            return "jca";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                Cipher.getInstance(TRANSFORMATION);
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public OcbEngine newEngine(byte[] key) {
+            return new JcaOcbEngine(key);
+        }
+    };
+
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+    private static final int BLOCK = 16;
+    private static final int TAG_BYTES = 16;
+    /** Enough L_i for any message that fits in a Java array. */
+    private static final int L_TABLE_SIZE = 32;
+    private static final long DOUBLING_POLY = 0x87L;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final SecretKeySpec keySpec;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+
+    // Key-dependent values: L_*, L_$ and L_0..L_31 as (hi, lo) pairs; shared by forks.
+    private final long lStarHi;
+    private final long lStarLo;
+    private final long lDollarHi;
+    private final long lDollarLo;
+    private final long[] lTable;
+
+    // Nonce-dependent cache: Ktop input (top 122 bits of the nonce block) and Stretch.
+    private final byte[] ktopInput = new byte[BLOCK];
+    private boolean ktopValid;
+    private long stretch0;
+    private long stretch1;
+    private long stretch2;
+
+    // Per-message state.
+    private final byte[] block = new byte[2 * BLOCK];
+    private long offsetHi;
+    private long offsetLo;
+
+    JcaOcbEngine(byte[] key) {
+        this.keySpec = new SecretKeySpec(key, "AES");
+        this.encryptCipher = newCipher(Cipher.ENCRYPT_MODE, keySpec);
+        this.decryptCipher = newCipher(Cipher.DECRYPT_MODE, keySpec);
+        encryptBlocks(block, 0, BLOCK); // L_* = E(0^128)
+        lStarHi = getLong(block, 0);
+        lStarLo = getLong(block, 8);
+        lDollarHi = doubleHi(lStarHi, lStarLo);
+        lDollarLo = doubleLo(lStarHi, lStarLo);
+        lTable = new long[2 * L_TABLE_SIZE];
+        long hi = doubleHi(lDollarHi, lDollarLo);
+        long lo = doubleLo(lDollarHi, lDollarLo);
+        for (int i = 0; i < L_TABLE_SIZE; i++) {
+            lTable[2 * i] = hi;
+            lTable[2 * i + 1] = lo;
+            long nextHi = doubleHi(hi, lo);
+            lo = doubleLo(hi, lo);
+            hi = nextHi;
+        }
+    }
+
+    private JcaOcbEngine(JcaOcbEngine source) {
+        this.keySpec = source.keySpec;
+        this.encryptCipher = newCipher(Cipher.ENCRYPT_MODE, keySpec);
+        this.decryptCipher = newCipher(Cipher.DECRYPT_MODE, keySpec);
+        this.lStarHi = source.lStarHi;
+        this.lStarLo = source.lStarLo;
+        this.lDollarHi = source.lDollarHi;
+        this.lDollarLo = source.lDollarLo;
+        this.lTable = source.lTable;
+    }
+
+    /**
+     * The OCB tables are shared; JCA ciphers cannot share their AES round keys, so the
+     * fork initialises its own pair of ECB ciphers once.
+     */
+    @Override
+    public OcbEngine fork() {
+        return new JcaOcbEngine(this);
+    }
+
+    private static Cipher newCipher(int mode, SecretKeySpec keySpec) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, keySpec);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/ECB/NoPadding is not available", e);
+        }
+    }
+
+    @Override
+    public int encrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        initOffset(nonce);
+        long startHi = offsetHi;
+        long startLo = offsetLo;
+        int blocks = inLen / BLOCK;
+        int partial = inLen % BLOCK;
+
+        // Pass 1: checksum over plaintext, out_i = P_i xor Offset_i.
+        long sumHi = 0;
+        long sumLo = 0;
+        long oHi = startHi;
+        long oLo = startLo;
+        for (int i = 1; i <= blocks; i++) {
+            int p = inOff + (i - 1) * BLOCK;
+            int q = outOff + (i - 1) * BLOCK;
+            long hi = getLong(in, p);
+            long lo = getLong(in, p + 8);
+            int z = Long.numberOfTrailingZeros(i);
+            oHi ^= lTable[2 * z];
+            oLo ^= lTable[2 * z + 1];
+            sumHi ^= hi;
+            sumLo ^= lo;
+            setLong(out, q, hi ^ oHi);
+            setLong(out, q + 8, lo ^ oLo);
+        }
+        if (blocks > 0) {
+            encryptBlocks(out, outOff, blocks * BLOCK);
+            xorOffsets(out, outOff, blocks, startHi, startLo);
+        }
+
+        int tagBlock;
+        if (partial > 0) {
+            int p = inOff + blocks * BLOCK;
+            oHi ^= lStarHi;
+            oLo ^= lStarLo;
+            // Checksum gets P_* || 1 || 0^(127 - bitlen(P_*)); read before any in-place write.
+            padPartial(in, p, partial);
+            sumHi ^= getLong(block, BLOCK);
+            sumLo ^= getLong(block, BLOCK + 8);
+            setLong(block, 0, oHi);
+            setLong(block, 8, oLo);
+            setLong(block, BLOCK, sumHi ^ oHi ^ lDollarHi);
+            setLong(block, BLOCK + 8, sumLo ^ oLo ^ lDollarLo);
+            encryptBlocks(block, 0, 2 * BLOCK); // Pad and Tag in one call
+            int q = outOff + blocks * BLOCK;
+            for (int j = 0; j < partial; j++) {
+                out[q + j] = (byte) (in[p + j] ^ block[j]);
+            }
+            tagBlock = BLOCK;
+        } else {
+            setLong(block, 0, sumHi ^ oHi ^ lDollarHi);
+            setLong(block, 8, sumLo ^ oLo ^ lDollarLo);
+            encryptBlocks(block, 0, BLOCK);
+            tagBlock = 0;
+        }
+        System.arraycopy(block, tagBlock, out, outOff + inLen, TAG_BYTES);
+        return inLen + TAG_BYTES;
+    }
+
+    @Override
+    public int decrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws AEADBadTagException {
+        if (inLen < TAG_BYTES) {
+            throw new AEADBadTagException("Ciphertext shorter than tag");
+        }
+        int ctLen = inLen - TAG_BYTES;
+        int tagOff = inOff + ctLen;
+        initOffset(nonce);
+        long startHi = offsetHi;
+        long startLo = offsetLo;
+        int blocks = ctLen / BLOCK;
+        int partial = ctLen % BLOCK;
+
+        // Pass 1: out_i = C_i xor Offset_i, then one ECB decrypt over all full blocks.
+        long oHi = startHi;
+        long oLo = startLo;
+        for (int i = 1; i <= blocks; i++) {
+            int p = inOff + (i - 1) * BLOCK;
+            int q = outOff + (i - 1) * BLOCK;
+            long hi = getLong(in, p);
+            long lo = getLong(in, p + 8);
+            int z = Long.numberOfTrailingZeros(i);
+            oHi ^= lTable[2 * z];
+            oLo ^= lTable[2 * z + 1];
+            setLong(out, q, hi ^ oHi);
+            setLong(out, q + 8, lo ^ oLo);
+        }
+        long sumHi = 0;
+        long sumLo = 0;
+        if (blocks > 0) {
+            decryptBlocks(out, outOff, blocks * BLOCK);
+            // Pass 2: P_i = out_i xor Offset_i, checksum over plaintext.
+            long hHi = startHi;
+            long hLo = startLo;
+            for (int i = 1; i <= blocks; i++) {
+                int q = outOff + (i - 1) * BLOCK;
+                int z = Long.numberOfTrailingZeros(i);
+                hHi ^= lTable[2 * z];
+                hLo ^= lTable[2 * z + 1];
+                long hi = getLong(out, q) ^ hHi;
+                long lo = getLong(out, q + 8) ^ hLo;
+                setLong(out, q, hi);
+                setLong(out, q + 8, lo);
+                sumHi ^= hi;
+                sumLo ^= lo;
+            }
+        }
+        if (partial > 0) {
+            oHi ^= lStarHi;
+            oLo ^= lStarLo;
+            setLong(block, 0, oHi);
+            setLong(block, 8, oLo);
+            encryptBlocks(block, 0, BLOCK); // Pad
+            int p = inOff + blocks * BLOCK;
+            int q = outOff + blocks * BLOCK;
+            for (int j = 0; j < partial; j++) {
+                out[q + j] = (byte) (in[p + j] ^ block[j]);
+            }
+            padPartial(out, q, partial);
+            sumHi ^= getLong(block, BLOCK);
+            sumLo ^= getLong(block, BLOCK + 8);
+        }
+        setLong(block, 0, sumHi ^ oHi ^ lDollarHi);
+        setLong(block, 8, sumLo ^ oLo ^ lDollarLo);
+        encryptBlocks(block, 0, BLOCK);
+        long diff = (getLong(block, 0) ^ getLong(in, tagOff)) | (getLong(block, 8) ^ getLong(in, tagOff + 8));
+        if (diff != 0) {
+            throw new AEADBadTagException("OCB authentication failed: mac check in OCB failed");
+        }
+        return ctLen;
+    }
+
+    /**
+     * Compute Offset_0 for the nonce into {@link #offsetHi}/{@link #offsetLo}.
+     * Nonce block = num2str(TAGLEN mod 128, 7) || 0* || 1 || N; TAGLEN is 128 so the
+     * leading bits are zero.
+     */
+    private void initOffset(byte[] nonce) {
+        if (nonce.length == 0 || nonce.length > 15) {
+            throw new IllegalArgumentException("OCB nonce must be 1 to 15 bytes, got " + nonce.length);
+        }
+        byte[] nb = block;
+        for (int i = 0; i < BLOCK - nonce.length; i++) {
+            nb[i] = 0;
+        }
+        System.arraycopy(nonce, 0, nb, BLOCK - nonce.length, nonce.length);
+        nb[BLOCK - 1 - nonce.length] |= 1;
+        int bottom = nb[BLOCK - 1] & 0x3F;
+        nb[BLOCK - 1] &= (byte) 0xC0;
+
+        boolean same = ktopValid;
+        for (int i = 0; same && i < BLOCK; i++) {
+            same = nb[i] == ktopInput[i];
+        }
+        if (!same) {
+            System.arraycopy(nb, 0, ktopInput, 0, BLOCK);
+            encryptBlocks(nb, 0, BLOCK);
+            long kHi = getLong(nb, 0);
+            long kLo = getLong(nb, 8);
+            stretch0 = kHi;
+            stretch1 = kLo;
+            stretch2 = kHi ^ (kHi << 8 | kLo >>> 56);
+            ktopValid = true;
+        }
+        if (bottom == 0) {
+            offsetHi = stretch0;
+            offsetLo = stretch1;
+        } else {
+            offsetHi = stretch0 << bottom | stretch1 >>> (64 - bottom);
+            offsetLo = stretch1 << bottom | stretch2 >>> (64 - bottom);
+        }
+    }
+
+    /** Second pass of encryption: out_i ^= Offset_i for every full block. */
+    private void xorOffsets(byte[] out, int outOff, int blocks, long oHi, long oLo) {
+        for (int i = 1; i <= blocks; i++) {
+            int q = outOff + (i - 1) * BLOCK;
+            int z = Long.numberOfTrailingZeros(i);
+            oHi ^= lTable[2 * z];
+            oLo ^= lTable[2 * z + 1];
+            setLong(out, q, getLong(out, q) ^ oHi);
+            setLong(out, q + 8, getLong(out, q + 8) ^ oLo);
+        }
+    }
+
+    /** Write {@code src[off..off+len) || 0x80 || 0...} into the second half of {@link #block}. */
+    private void padPartial(byte[] src, int off, int len) {
+        System.arraycopy(src, off, block, BLOCK, len);
+        block[BLOCK + len] = (byte) 0x80;
+        for (int j = len + 1; j < BLOCK; j++) {
+            block[BLOCK + j] = 0;
+        }
+    }
+
+    private void encryptBlocks(byte[] buf, int off, int len) {
+        try {
+            encryptCipher.doFinal(buf, off, len, buf, off);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES block encryption failed", e);
+        }
+    }
+
+    private void decryptBlocks(byte[] buf, int off, int len) {
+        try {
+            decryptCipher.doFinal(buf, off, len, buf, off);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES block decryption failed", e);
+        }
+    }
+
+    private static long doubleHi(long hi, long lo) {
+        return hi << 1 | lo >>> 63;
+    }
+
+    private static long doubleLo(long hi, long lo) {
+        return lo << 1 ^ (hi >> 63 & DOUBLING_POLY);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (long) LONGS.get(b, off);
+    }
+
+    private static void setLong(byte[] b, int off, long v) {
+        LONGS.set(b, off, v);
+    }
+}
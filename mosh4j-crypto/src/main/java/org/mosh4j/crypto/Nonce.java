@@ -27,19 +27,31 @@ public final class Nonce {
      * @return 8-byte nonce (new array)
      */
     public static byte[] create(boolean serverToClient, long seq) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        write(serverToClient, seq, nonce, 0);
+        return nonce;
+    }
+
+    /**
+     * Write nonce bytes for direction and sequence number into an existing array.
+     *
+     * @param serverToClient true for server→client, false for client→server
+     * @param seq            63-bit sequence number (must be in range 0 .. 2^63-1)
+     * @param dst            destination array
+     * @param off            offset of the first nonce byte in {@code dst}
+     */
+    public static void write(boolean serverToClient, long seq, byte[] dst, int off) {
         if (seq < 0 || seq > 0x7FFF_FFFF_FFFF_FFFFL) {
             throw new IllegalArgumentException("Sequence must be 63-bit non-negative, got " + seq);
         }
-        byte[] nonce = new byte[NONCE_BYTES];
-        nonce[0] = (byte) ((serverToClient ? 0x80 : 0) | (int) ((seq >> 56) & 0x7F));
-        nonce[1] = (byte) (seq >> 48);
-        nonce[2] = (byte) (seq >> 40);
-        nonce[3] = (byte) (seq >> 32);
-        nonce[4] = (byte) (seq >> 24);
-        nonce[5] = (byte) (seq >> 16);
-        nonce[6] = (byte) (seq >> 8);
-        nonce[7] = (byte) seq;
-        return nonce;
+        dst[off] = (byte) ((serverToClient ? 0x80 : 0) | (int) ((seq >> 56) & 0x7F));
+        dst[off + 1] = (byte) (seq >> 48);
+        dst[off + 2] = (byte) (seq >> 40);
+        dst[off + 3] = (byte) (seq >> 32);
+        dst[off + 4] = (byte) (seq >> 24);
+        dst[off + 5] = (byte) (seq >> 16);
+        dst[off + 6] = (byte) (seq >> 8);
+        dst[off + 7] = (byte) seq;
     }
 
     /**
@@ -49,15 +61,29 @@ public final class Nonce {
         if (nonce == null || nonce.length < NONCE_BYTES) {
             throw new IllegalArgumentException("Nonce must be at least " + NONCE_BYTES + " bytes");
         }
-        long seq = (nonce[0] & 0x7FL) << 56L
-            | (nonce[1] & 0xFFL) << 48L
-            | (nonce[2] & 0xFFL) << 40L
-            | (nonce[3] & 0xFFL) << 32L
-            | (nonce[4] & 0xFFL) << 24L
-            | (nonce[5] & 0xFFL) << 16L
-            | (nonce[6] & 0xFFL) << 8L
-            | (nonce[7] & 0xFFL);
-        return seq;
+        return getSequence(nonce, 0);
+    }
+
+    /**
+     * Extract 63-bit sequence number from nonce bytes starting at {@code off}
+     * (e.g. the first bytes of a received packet).
+     */
+    public static long getSequence(byte[] nonce, int off) {
+        return (nonce[off] & 0x7FL) << 56L
+            | (nonce[off + 1] & 0xFFL) << 48L
+            | (nonce[off + 2] & 0xFFL) << 40L
+            | (nonce[off + 3] & 0xFFL) << 32L
+            | (nonce[off + 4] & 0xFFL) << 24L
+            | (nonce[off + 5] & 0xFFL) << 16L
+            | (nonce[off + 6] & 0xFFL) << 8L
+            | (nonce[off + 7] & 0xFFL);
+    }
+
+    /**
+     * Direction flag of the nonce starting at {@code off}; see {@link #directionServerToClient(byte[])}.
+     */
+    public static boolean directionServerToClient(byte[] nonce, int off) {
+        return (nonce[off] & 0x80) != 0;
     }
 
     /**
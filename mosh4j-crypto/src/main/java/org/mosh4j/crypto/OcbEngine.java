@@ -0,0 +1,41 @@
+package org.mosh4j.crypto;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * AES-128-OCB (RFC 7253, 128-bit tag, no associated data) bound to one key.
+ * <p>
+ * Instances keep per-message scratch state and are not thread-safe; use {@link #fork()}
+ * to get another engine for a different thread. Output may overlap input as long as it
+ * does not start after it (in-place is supported).
+ *
+ * @see OcbEngineProvider
+ */
+public interface OcbEngine {
+
+    /**
+     * Encrypt {@code in[inOff..inOff+inLen)} and write ciphertext followed by the
+     * 16-byte tag to {@code out[outOff]}.
+     *
+     * @param nonce OCB nonce (1 to 15 bytes; mosh uses 12)
+     * @return number of bytes written ({@code inLen + 16})
+     */
+    int encrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff);
+
+    /**
+     * Authenticate and decrypt {@code in[inOff..inOff+inLen)} (ciphertext followed by
+     * the 16-byte tag) and write the plaintext to {@code out[outOff]}.
+     *
+     * @param nonce OCB nonce (1 to 15 bytes; mosh uses 12)
+     * @return plaintext length ({@code inLen - 16})
+     * @throws AEADBadTagException if the tag does not match
+     */
+    int decrypt(byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws AEADBadTagException;
+
+    /**
+     * Create an independent engine for the same key, for use on another thread.
+     * Key-dependent state that can be shared (e.g. the OCB L table) is shared with this
+     * engine and not recomputed; only per-message state is new.
+     */
+    OcbEngine fork();
+}
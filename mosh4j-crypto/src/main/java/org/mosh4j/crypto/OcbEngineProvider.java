@@ -0,0 +1,27 @@
+package org.mosh4j.crypto;
+
+/**
+ * Service-provider interface for AES-128-OCB implementations used by {@link SspCipher}.
+ * <p>
+ * Built-in providers are available from {@link OcbEngines}; additional providers can be
+ * registered via {@link java.util.ServiceLoader} and selected by name.
+ */
+public interface OcbEngineProvider {
+
+    /**
+     * Short provider name used for selection (e.g. {@code "jca"}, {@code "bouncycastle"}).
+     */
+    String getName();
+
+    /**
+     * Returns true if this provider can create engines in the current runtime.
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Create a new engine keyed with the given 16-byte AES key.
+     */
+    OcbEngine newEngine(byte[] key);
+}
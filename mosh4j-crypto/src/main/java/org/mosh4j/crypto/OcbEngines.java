@@ -0,0 +1,73 @@
+package org.mosh4j.crypto;
+
+import java.util.Locale;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of {@link OcbEngineProvider}s.
+ * <p>
+ * Built-in providers are {@code "jca"} (JDK AES, hardware accelerated where available) and
+ * {@code "bouncycastle"} (portable software AES). The default is {@code "jca"} when the
+ * runtime offers {@code AES/ECB/NoPadding}; it can be overridden with the system property
+ * {@value #PROVIDER_PROPERTY}. Other names are looked up through {@link ServiceLoader}.
+ */
+public final class OcbEngines {
+
+    /**
+     * System property selecting the default provider by name.
+     */
+    public static final String PROVIDER_PROPERTY = "mosh4j.crypto.ocb";
+
+    private OcbEngines() {
+    }
+
+    /**
+     * Provider backed by the JDK's {@code AES/ECB/NoPadding} cipher.
+     */
+    public static OcbEngineProvider jca() {
+        return JcaOcbEngine.PROVIDER;
+    }
+
+    /**
+     * Provider backed by BouncyCastle's {@code OCBBlockCipher}.
+     */
+    public static OcbEngineProvider bouncyCastle() {
+        return BouncyCastleOcbEngine.PROVIDER;
+    }
+
+    /**
+     * Look up a provider by name (case-insensitive).
+     *
+     * @throws IllegalArgumentException if no available provider has that name
+     */
+    public static OcbEngineProvider byName(String name) {
+        String n = name.trim().toLowerCase(Locale.ROOT);
+        if (n.equals(jca().getName())) return jca();
+        if (n.equals(bouncyCastle().getName()) || n.equals("bc")) return bouncyCastle();
+        for (OcbEngineProvider p : ServiceLoader.load(OcbEngineProvider.class)) {
+            if (p.getName().equalsIgnoreCase(n) && p.isAvailable()) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("Unknown OCB engine provider: " + name);
+    }
+
+    /**
+     * The provider used by {@link SspCipher#SspCipher(MoshKey)}.
+     */
+    public static OcbEngineProvider defaultProvider() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    private static final class DefaultHolder {
+        static final OcbEngineProvider DEFAULT = resolveDefault();
+
+        private static OcbEngineProvider resolveDefault() {
+            String configured = System.getProperty(PROVIDER_PROPERTY);
+            if (configured != null && !configured.isBlank()) {
+                return byName(configured);
+            }
+            return jca().isAvailable() ? jca() : bouncyCastle();
+        }
+    }
+}
@@ -1,76 +1,258 @@
 package org.mosh4j.crypto;
 
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.modes.OCBBlockCipher;
-import org.bouncycastle.crypto.params.AEADParameters;
-import org.bouncycastle.crypto.params.KeyParameter;
-
 import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * AES-128-OCB encrypt/decrypt for Mosh SSP datagrams.
  * The native C++ mosh uses a 12-byte OCB nonce: 4 zero bytes followed by
  * 8 bytes of direction|sequence. Only the 8 significant bytes are sent on
  * the wire; the 4-byte zero prefix is prepended locally before OCB init.
+ * <p>
+ * Besides the {@code byte[]} convenience methods there is an offset/length and a
+ * {@link ByteBuffer} API that works on whole packets ({@code nonce | ciphertext | tag})
+ * and supports in-place operation. The OCB contexts are keyed once and re-initialised
+ * per packet with a reused nonce buffer, so the packet API does not allocate.
+ * <p>
+ * The AES-OCB implementation is pluggable via {@link OcbEngineProvider}; by default
+ * {@link OcbEngines#defaultProvider()} is used.
+ * <p>
+ * Instances are thread-safe. Each call borrows a cipher context from a small striped
+ * pool (lock-free, indexed by thread id), so encrypting on one thread and decrypting
+ * or encrypting on another never blocks. Additional contexts are forked from the first
+ * one and share its key-dependent tables; they are only created when threads actually
+ * overlap and are kept for reuse afterwards.
  */
 public final class SspCipher {
 
-    private static final int TAG_BITS = 128;
+    private static final int TAG_BYTES = 16;
     private static final int OCB_NONCE_LEN = 12;
+    private static final int OCB_NONCE_PREFIX = OCB_NONCE_LEN - 8;
+    private static final int CONTEXT_STRIPES = 4;
 
-    private final OCBBlockCipher encryptCipher;
-    private final OCBBlockCipher decryptCipher;
-    private final KeyParameter keyParam;
+    private final OcbEngine prototype;
+    private final AtomicReferenceArray<OcbContext> contexts = new AtomicReferenceArray<>(CONTEXT_STRIPES);
 
     public SspCipher(MoshKey key) {
-        byte[] keyBytes = key.getKeyBytes();
-        this.keyParam = new KeyParameter(keyBytes);
-        this.encryptCipher = new OCBBlockCipher(new AESEngine(), new AESEngine());
-        this.decryptCipher = new OCBBlockCipher(new AESEngine(), new AESEngine());
+        this(key, OcbEngines.defaultProvider());
+    }
+
+    public SspCipher(MoshKey key, OcbEngineProvider provider) {
+        this.prototype = provider.newEngine(key.getKeyBytes());
+        contexts.set(0, new OcbContext(prototype));
     }
 
     /**
-     * Pad a wire-format 8-byte nonce to the 12-byte OCB nonce used by native mosh:
-     * {@code [0x00 0x00 0x00 0x00] + [8 bytes direction|seq]}.
+     * Length of the OCB authentication tag appended to each ciphertext.
      */
-    private static byte[] toOcbNonce(byte[] wireNonce) {
-        byte[] full = new byte[OCB_NONCE_LEN];
-        System.arraycopy(wireNonce, 0, full, 4, wireNonce.length);
-        return full;
+    public static int tagLength() {
+        return TAG_BYTES;
     }
 
     public byte[] encrypt(boolean serverToClient, long seq, byte[] plaintext) {
-        byte[] wireNonce = Nonce.create(serverToClient, seq);
-        byte[] ocbNonce = toOcbNonce(wireNonce);
-        AEADParameters params = new AEADParameters(keyParam, TAG_BITS, ocbNonce);
-        encryptCipher.init(true, params);
-        int outLen = encryptCipher.getOutputSize(plaintext.length);
-        byte[] out = new byte[outLen];
-        int len = encryptCipher.processBytes(plaintext, 0, plaintext.length, out, 0);
-        try {
-            len += encryptCipher.doFinal(out, len);
-        } catch (org.bouncycastle.crypto.InvalidCipherTextException e) {
-            throw new IllegalStateException("Encryption failed", e);
-        }
-        return len == out.length ? out : java.util.Arrays.copyOf(out, len);
+        byte[] packet = new byte[Nonce.length() + plaintext.length + TAG_BYTES];
+        encrypt(serverToClient, seq, plaintext, 0, plaintext.length, packet, 0);
+        return Arrays.copyOfRange(packet, Nonce.length(), packet.length);
     }
 
     public byte[] decrypt(byte[] wireNonce, byte[] ciphertext) throws AEADBadTagException {
         if (wireNonce == null || wireNonce.length < Nonce.length()) {
             throw new IllegalArgumentException("Nonce must be at least " + Nonce.length() + " bytes");
         }
-        byte[] n = wireNonce.length == Nonce.length() ? wireNonce : java.util.Arrays.copyOf(wireNonce, Nonce.length());
-        byte[] ocbNonce = toOcbNonce(n);
-        AEADParameters params = new AEADParameters(keyParam, TAG_BITS, ocbNonce);
-        decryptCipher.init(false, params);
-        int outLen = decryptCipher.getOutputSize(ciphertext.length);
-        byte[] out = new byte[outLen];
-        int len = decryptCipher.processBytes(ciphertext, 0, ciphertext.length, out, 0);
+        byte[] packet = new byte[Nonce.length() + ciphertext.length];
+        System.arraycopy(wireNonce, 0, packet, 0, Nonce.length());
+        System.arraycopy(ciphertext, 0, packet, Nonce.length(), ciphertext.length);
+        int len = decrypt(packet, 0, packet.length, packet, 0);
+        return Arrays.copyOf(packet, len);
+    }
+
+    /**
+     * Encrypt into a packet: the 8-byte wire nonce is written at {@code out[outOff]},
+     * followed by ciphertext and tag. The plaintext may already sit in {@code out} right
+     * after the nonce ({@code in == out && inOff == outOff + 8}), in which case it is
+     * encrypted in place.
+     *
+     * @return number of bytes written: {@code 8 + inLen + tagLength()}
+     */
+    public int encrypt(boolean serverToClient, long seq, byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        checkBounds(in, inOff, inLen);
+        checkBounds(out, outOff, Nonce.length() + inLen + TAG_BYTES);
+        OcbContext ctx = acquire();
         try {
-            len += decryptCipher.doFinal(out, len);
-        } catch (org.bouncycastle.crypto.InvalidCipherTextException e) {
-            throw new AEADBadTagException("OCB authentication failed: " + e.getMessage());
+            return ctx.encrypt(serverToClient, seq, in, inOff, inLen, out, outOff);
+        } finally {
+            release(ctx);
+        }
+    }
+
+    /**
+     * Decrypt a packet slice ({@code nonce | ciphertext | tag}) and write the plaintext to
+     * {@code out[outOff]}. Decryption in place is supported as long as the output does not
+     * start after the ciphertext, e.g. {@code out == packet && outOff == off + 8}.
+     *
+     * @return plaintext length
+     * @throws AEADBadTagException if authentication fails
+     */
+    public int decrypt(byte[] packet, int off, int len, byte[] out, int outOff) throws AEADBadTagException {
+        checkBounds(packet, off, len);
+        if (len < Nonce.length() + TAG_BYTES) {
+            throw new AEADBadTagException("Packet too short for nonce and tag");
+        }
+        checkBounds(out, outOff, len - Nonce.length() - TAG_BYTES);
+        OcbContext ctx = acquire();
+        try {
+            return ctx.decrypt(packet, off, len, out, outOff);
+        } finally {
+            release(ctx);
+        }
+    }
+
+    /**
+     * Encrypt the remaining bytes of {@code plaintext} into {@code packet} (nonce, ciphertext, tag).
+     * Both buffers' positions are advanced. Direct buffers are staged through a reused
+     * per-context array.
+     *
+     * @return number of bytes written to {@code packet}
+     */
+    public int encrypt(boolean serverToClient, long seq, ByteBuffer plaintext, ByteBuffer packet) {
+        int inLen = plaintext.remaining();
+        int outLen = Nonce.length() + inLen + TAG_BYTES;
+        if (packet.remaining() < outLen) {
+            throw new IllegalArgumentException("Output buffer too small: need " + outLen + ", have " + packet.remaining());
+        }
+        if (plaintext.hasArray() && packet.hasArray()) {
+            encrypt(serverToClient, seq,
+                    plaintext.array(), plaintext.arrayOffset() + plaintext.position(), inLen,
+                    packet.array(), packet.arrayOffset() + packet.position());
+        } else {
+            OcbContext ctx = acquire();
+            try {
+                byte[] scratch = ctx.scratch(outLen);
+                plaintext.duplicate().get(scratch, Nonce.length(), inLen);
+                ctx.encrypt(serverToClient, seq, scratch, Nonce.length(), inLen, scratch, 0);
+                packet.duplicate().put(scratch, 0, outLen);
+            } finally {
+                release(ctx);
+            }
+        }
+        plaintext.position(plaintext.limit());
+        packet.position(packet.position() + outLen);
+        return outLen;
+    }
+
+    /**
+     * Decrypt the remaining bytes of {@code packet} (nonce, ciphertext, tag) into
+     * {@code plaintext}. Both buffers' positions are advanced. {@code plaintext} may be a
+     * view of the same memory positioned at the start of the ciphertext (in-place decrypt).
+     *
+     * @return plaintext length
+     * @throws AEADBadTagException if authentication fails
+     */
+    public int decrypt(ByteBuffer packet, ByteBuffer plaintext) throws AEADBadTagException {
+        int len = packet.remaining();
+        if (len < Nonce.length() + TAG_BYTES) {
+            throw new AEADBadTagException("Packet too short for nonce and tag");
+        }
+        int outLen = len - Nonce.length() - TAG_BYTES;
+        if (plaintext.remaining() < outLen) {
+            throw new IllegalArgumentException("Output buffer too small: need " + outLen + ", have " + plaintext.remaining());
+        }
+        if (packet.hasArray() && plaintext.hasArray()) {
+            decrypt(packet.array(), packet.arrayOffset() + packet.position(), len,
+                    plaintext.array(), plaintext.arrayOffset() + plaintext.position());
+        } else {
+            OcbContext ctx = acquire();
+            try {
+                byte[] scratch = ctx.scratch(len);
+                packet.duplicate().get(scratch, 0, len);
+                ctx.decrypt(scratch, 0, len, scratch, Nonce.length());
+                plaintext.duplicate().put(scratch, Nonce.length(), outLen);
+            } finally {
+                release(ctx);
+            }
+        }
+        packet.position(packet.limit());
+        plaintext.position(plaintext.position() + outLen);
+        return outLen;
+    }
+
+    /**
+     * Take a context from the pool, starting at the calling thread's stripe. If every
+     * pooled context is in use, fork a new one from the prototype engine.
+     */
+    private OcbContext acquire() {
+        int start = stripe();
+        for (int i = 0; i < CONTEXT_STRIPES; i++) {
+            int idx = (start + i) & (CONTEXT_STRIPES - 1);
+            OcbContext ctx = contexts.get(idx);
+            if (ctx != null && contexts.compareAndSet(idx, ctx, null)) {
+                return ctx;
+            }
+        }
+        return new OcbContext(prototype.fork());
+    }
+
+    private void release(OcbContext ctx) {
+        int start = stripe();
+        for (int i = 0; i < CONTEXT_STRIPES; i++) {
+            int idx = (start + i) & (CONTEXT_STRIPES - 1);
+            if (contexts.get(idx) == null && contexts.compareAndSet(idx, null, ctx)) {
+                return;
+            }
+        }
+        // More threads overlapped than there are stripes; let the extra context go.
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().threadId() & (CONTEXT_STRIPES - 1);
+    }
+
+    private static void checkBounds(byte[] buf, int off, int len) {
+        if (buf == null || off < 0 || len < 0 || off > buf.length - len) {
+            throw new IllegalArgumentException("Buffer range out of bounds: off=" + off + " len=" + len);
+        }
+    }
+
+    /**
+     * One borrowed cipher context: an engine plus a reused 12-byte nonce buffer and a
+     * staging array for direct buffers. Used by one thread at a time.
+     */
+    private static final class OcbContext {
+        private final OcbEngine engine;
+        private final byte[] ocbNonce = new byte[OCB_NONCE_LEN];
+        private byte[] scratch = new byte[0];
+
+        OcbContext(OcbEngine engine) {
+            this.engine = engine;
+        }
+
+        int encrypt(boolean serverToClient, long seq, byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+            Nonce.write(serverToClient, seq, ocbNonce, OCB_NONCE_PREFIX);
+            int len = engine.encrypt(ocbNonce, in, inOff, inLen, out, outOff + Nonce.length());
+            System.arraycopy(ocbNonce, OCB_NONCE_PREFIX, out, outOff, Nonce.length());
+            return Nonce.length() + len;
+        }
+
+        int decrypt(byte[] packet, int off, int len, byte[] out, int outOff) throws AEADBadTagException {
+            // Copy the wire nonce first: in-place output may overwrite it.
+            System.arraycopy(packet, off, ocbNonce, OCB_NONCE_PREFIX, Nonce.length());
+            int ctLen = len - Nonce.length();
+            try {
+                return engine.decrypt(ocbNonce, packet, off + Nonce.length(), ctLen, out, outOff);
+            } catch (AEADBadTagException e) {
+                // Do not leave unauthenticated plaintext behind in the caller's buffer.
+                Arrays.fill(out, outOff, outOff + ctLen - TAG_BYTES, (byte) 0);
+                throw e;
+            }
+        }
+
+        byte[] scratch(int len) {
+            if (scratch.length < len) {
+                scratch = new byte[len];
+            }
+            return scratch;
         }
-        return len == out.length ? out : java.util.Arrays.copyOf(out, len);
     }
 }
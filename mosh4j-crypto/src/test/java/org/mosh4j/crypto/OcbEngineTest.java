@@ -0,0 +1,91 @@
+package org.mosh4j.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.AEADBadTagException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OcbEngineTest {
+
+    private static final byte[] RFC_KEY = HexFormat.of().parseHex("000102030405060708090A0B0C0D0E0F");
+
+    @ParameterizedTest
+    @ValueSource(strings = {"jca", "bouncycastle"})
+    void rfc7253_vectorsWithoutAssociatedData(String provider) throws AEADBadTagException {
+        OcbEngine engine = OcbEngines.byName(provider).newEngine(RFC_KEY);
+        assertVector(engine, "BBAA99887766554433221100", "",
+                "785407BFFFC8AD9EDCC5520AC9111EE6");
+        assertVector(engine, "BBAA99887766554433221103", "0001020304050607",
+                "45DD69F8F5AAE72414054CD1F35D82760B2CD00D2F99BFA9");
+    }
+
+    @Test
+    void jcaMatchesBouncyCastle_forAllLengths() throws AEADBadTagException {
+        Random random = new Random(7253);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        OcbEngine jca = OcbEngines.jca().newEngine(key);
+        OcbEngine bc = OcbEngines.bouncyCastle().newEngine(key);
+        byte[] nonce = new byte[12];
+        for (int len = 0; len <= 300; len++) {
+            assertSameOutput(jca, bc, random, nonce, len);
+        }
+        for (int len : new int[] {1400, 4096, 65_000}) {
+            assertSameOutput(jca, bc, random, nonce, len);
+        }
+    }
+
+    @Test
+    void jca_inPlaceAndTamperDetection() throws AEADBadTagException {
+        OcbEngine engine = OcbEngines.jca().newEngine(RFC_KEY);
+        byte[] nonce = HexFormat.of().parseHex("000000000000000000000001");
+        byte[] plain = new byte[77];
+        new Random(1).nextBytes(plain);
+        byte[] buf = Arrays.copyOf(plain, plain.length + 16);
+        assertEquals(buf.length, engine.encrypt(nonce, buf, 0, plain.length, buf, 0));
+        byte[] ct = buf.clone();
+        assertEquals(plain.length, engine.decrypt(nonce, buf, 0, buf.length, buf, 0));
+        assertArrayEquals(plain, Arrays.copyOf(buf, plain.length));
+
+        for (int i = 0; i < ct.length; i++) {
+            byte[] tampered = ct.clone();
+            tampered[i] ^= 0x40;
+            assertThrows(AEADBadTagException.class,
+                    () -> engine.decrypt(nonce, tampered, 0, tampered.length, new byte[tampered.length], 0));
+        }
+    }
+
+    private static void assertVector(OcbEngine engine, String nonceHex, String plainHex, String expectedHex)
+            throws AEADBadTagException {
+        HexFormat hex = HexFormat.of();
+        byte[] nonce = hex.parseHex(nonceHex);
+        byte[] plain = hex.parseHex(plainHex);
+        byte[] out = new byte[plain.length + 16];
+        engine.encrypt(nonce, plain, 0, plain.length, out, 0);
+        assertEquals(expectedHex, hex.withUpperCase().formatHex(out));
+        byte[] dec = new byte[plain.length];
+        assertEquals(plain.length, engine.decrypt(nonce, out, 0, out.length, dec, 0));
+        assertArrayEquals(plain, dec);
+    }
+
+    private static void assertSameOutput(OcbEngine jca, OcbEngine bc, Random random, byte[] nonce, int len)
+            throws AEADBadTagException {
+        random.nextBytes(nonce);
+        byte[] plain = new byte[len];
+        random.nextBytes(plain);
+        byte[] a = new byte[len + 16];
+        byte[] b = new byte[len + 16];
+        jca.encrypt(nonce, plain, 0, len, a, 0);
+        bc.encrypt(nonce, plain, 0, len, b, 0);
+        assertArrayEquals(b, a, "ciphertext mismatch for length " + len);
+        byte[] dec = new byte[len];
+        assertEquals(len, jca.decrypt(nonce, b, 0, b.length, dec, 0));
+        assertArrayEquals(plain, dec, "plaintext mismatch for length " + len);
+    }
+}
@@ -1,6 +1,8 @@
 package org.mosh4j.crypto;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import javax.crypto.AEADBadTagException;
 
@@ -52,4 +54,108 @@ class SspCipherTest {
         byte[] ct1 = cipher.encrypt(false, 1, plain);
         assertFalse(java.util.Arrays.equals(ct0, ct1));
     }
+
+    @Test
+    void encryptInPlace_matchesArrayApi() throws AEADBadTagException {
+        SspCipher cipher = new SspCipher(MoshKey.fromBytes(new byte[16]));
+        byte[] plain = "in place packet payload".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] expected = cipher.encrypt(true, 42, plain);
+
+        byte[] packet = new byte[Nonce.length() + plain.length + SspCipher.tagLength()];
+        System.arraycopy(plain, 0, packet, Nonce.length(), plain.length);
+        int len = cipher.encrypt(true, 42, packet, Nonce.length(), plain.length, packet, 0);
+        assertEquals(packet.length, len);
+        assertArrayEquals(Nonce.create(true, 42), java.util.Arrays.copyOf(packet, Nonce.length()));
+        assertArrayEquals(expected, java.util.Arrays.copyOfRange(packet, Nonce.length(), packet.length));
+
+        int plainLen = cipher.decrypt(packet, 0, len, packet, Nonce.length());
+        assertEquals(plain.length, plainLen);
+        assertArrayEquals(plain, java.util.Arrays.copyOfRange(packet, Nonce.length(), Nonce.length() + plainLen));
+    }
+
+    @Test
+    void byteBufferApi_roundtripWithDirectBuffers() throws AEADBadTagException {
+        SspCipher cipher = new SspCipher(MoshKey.fromBytes(new byte[16]));
+        byte[] plain = new byte[100];
+        for (int i = 0; i < plain.length; i++) plain[i] = (byte) i;
+
+        java.nio.ByteBuffer packet = java.nio.ByteBuffer.allocateDirect(256);
+        int len = cipher.encrypt(false, 7, java.nio.ByteBuffer.wrap(plain), packet);
+        assertEquals(Nonce.length() + plain.length + SspCipher.tagLength(), len);
+        packet.flip();
+
+        byte[] onWire = new byte[len];
+        packet.duplicate().get(onWire);
+        assertArrayEquals(plain, cipher.decrypt(Nonce.create(false, 7),
+                java.util.Arrays.copyOfRange(onWire, Nonce.length(), len)));
+
+        java.nio.ByteBuffer out = java.nio.ByteBuffer.allocateDirect(256);
+        assertEquals(plain.length, cipher.decrypt(packet, out));
+        out.flip();
+        byte[] dec = new byte[out.remaining()];
+        out.get(dec);
+        assertArrayEquals(plain, dec);
+    }
+
+    @Test
+    void decryptInPlace_tamperedPacket_failsAndClearsOutput() {
+        SspCipher cipher = new SspCipher(MoshKey.fromBytes(new byte[16]));
+        byte[] plain = new byte[40];
+        java.util.Arrays.fill(plain, (byte) 'x');
+        byte[] packet = new byte[Nonce.length() + plain.length + SspCipher.tagLength()];
+        System.arraycopy(plain, 0, packet, Nonce.length(), plain.length);
+        int len = cipher.encrypt(false, 3, packet, Nonce.length(), plain.length, packet, 0);
+        packet[len - 1] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> cipher.decrypt(packet, 0, len, packet, Nonce.length()));
+        for (int i = Nonce.length(); i < Nonce.length() + plain.length; i++) {
+            assertEquals(0, packet[i]);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"jca", "bouncycastle"})
+    void knownAnswer_isIdenticalForEveryProvider(String provider) throws AEADBadTagException {
+        byte[] keyBytes = new byte[16];
+        for (int i = 0; i < keyBytes.length; i++) keyBytes[i] = (byte) i;
+        SspCipher cipher = new SspCipher(MoshKey.fromBytes(keyBytes), OcbEngines.byName(provider));
+        byte[] plain = "mosh4j known-answer vector: 37 bytes".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] expected = java.util.HexFormat.of().parseHex(
+                "9bfa331139f1590bb1f99293844982860eaf2880aac0be4b90c362142631b9bd628cdea3ad0ae85ff7f51073bfcfeb7e50c3c048");
+
+        assertArrayEquals(expected, cipher.encrypt(true, 0x0123456789L, plain));
+        assertArrayEquals(plain, cipher.decrypt(Nonce.create(true, 0x0123456789L), expected));
+        assertArrayEquals(java.util.HexFormat.of().parseHex("a5a7ac886f721925ed1b023829a078f9"),
+                cipher.encrypt(false, 0, new byte[0]));
+    }
+
+    @Test
+    void concurrentEncryptAndDecrypt_matchSingleThreadedResults() throws Exception {
+        SspCipher cipher = new SspCipher(MoshKey.fromBytes(new byte[16]));
+        SspCipher reference = new SspCipher(MoshKey.fromBytes(new byte[16]));
+        int threads = 8;
+        int perThread = 500;
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        try {
+            java.util.List<java.util.concurrent.Future<?>> futures = new java.util.ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final boolean serverToClient = (t & 1) == 1;
+                final int base = t * perThread;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        long seq = base + i;
+                        byte[] plain = ("packet " + seq).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                        byte[] ct = cipher.encrypt(serverToClient, seq, plain);
+                        assertArrayEquals(reference.encrypt(serverToClient, seq, plain), ct);
+                        assertArrayEquals(plain, cipher.decrypt(Nonce.create(serverToClient, seq), ct));
+                    }
+                    return null;
+                }));
+            }
+            for (java.util.concurrent.Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 }
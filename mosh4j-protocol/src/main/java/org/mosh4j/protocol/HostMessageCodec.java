@@ -0,0 +1,137 @@
+package org.mosh4j.protocol;
+
+import java.nio.ByteBuffer;
+
+import static org.mosh4j.protocol.ProtoWire.*;
+
+/**
+ * Encoder and decoder for {@code HostBuffers.HostMessage} ({@code hostinput.proto})
+ * working on plain arrays and buffers, without builders or an extension registry. A
+ * message is a sequence of instructions, each written by one of the {@code write...}
+ * methods after sizing the output with the matching {@code ...Length} method. The encoding
+ * is the one the generated classes produce.
+ */
+public final class HostMessageCodec {
+
+    static final int TAG_HOSTBYTES = tag(2, LENGTH_DELIMITED);
+    static final int TAG_HOSTSTRING = tag(4, LENGTH_DELIMITED);
+    static final int TAG_ECHOACK = tag(7, LENGTH_DELIMITED);
+    static final int TAG_ECHO_ACK_NUM = tag(8, VARINT);
+
+    /**
+     * Receives the instructions of a decoded message, in order. Byte ranges refer to the
+     * decoded buffer and are only valid during the call.
+     */
+    public interface Handler {
+        default void hostBytes(ByteBuffer src, int offset, int length) {}
+
+        default void resize(int width, int height) {}
+
+        default void echoAck(long echoAckNum) {}
+    }
+
+    private HostMessageCodec() {}
+
+    /**
+     * Size of a host-bytes instruction carrying {@code length} bytes of terminal output.
+     */
+    public static int hostBytesLength(int length) {
+        return instructionLength(lengthDelimitedLength(length));
+    }
+
+    /**
+     * Write a host-bytes instruction.
+     *
+     * @return the offset after it
+     */
+    public static int writeHostBytes(byte[] out, int pos, byte[] bytes, int off, int len) {
+        pos = writeInstructionHeader(out, pos, TAG_HOSTBYTES, lengthDelimitedLength(len));
+        return writeBytes(out, pos, TAG_HOSTSTRING, bytes, off, len);
+    }
+
+    /**
+     * Size of a resize instruction.
+     */
+    public static int resizeLength(int width, int height) {
+        return instructionLength(resizeBodyLength(width, height));
+    }
+
+    /**
+     * Write a resize instruction.
+     *
+     * @return the offset after it
+     */
+    public static int writeResize(byte[] out, int pos, int width, int height) {
+        return ProtoWire.writeResize(out, pos, width, height);
+    }
+
+    /**
+     * Size of an echo-ack instruction.
+     */
+    public static int echoAckLength(long echoAckNum) {
+        return instructionLength(1 + varintLength(echoAckNum));
+    }
+
+    /**
+     * Write an echo-ack instruction.
+     *
+     * @return the offset after it
+     */
+    public static int writeEchoAck(byte[] out, int pos, long echoAckNum) {
+        pos = writeInstructionHeader(out, pos, TAG_ECHOACK, 1 + varintLength(echoAckNum));
+        out[pos++] = (byte) TAG_ECHO_ACK_NUM;
+        return writeVarint(out, pos, echoAckNum);
+    }
+
+    /**
+     * Decode the message from {@code message}'s position to its limit, which it consumes.
+     *
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static void decode(ByteBuffer message, Handler handler) {
+        while (message.hasRemaining()) {
+            int tag = readTag(message);
+            if (tag != TAG_INSTRUCTION) {
+                skipField(message, tag);
+                continue;
+            }
+            int messageLimit = enter(message);
+            while (message.hasRemaining()) {
+                int field = readTag(message);
+                if (field == TAG_HOSTBYTES) {
+                    int instructionLimit = enter(message);
+                    while (message.hasRemaining()) {
+                        int bytesField = readTag(message);
+                        if (bytesField == TAG_HOSTSTRING) {
+                            int length = readLength(message);
+                            handler.hostBytes(message, message.position(), length);
+                            message.position(message.position() + length);
+                        } else {
+                            skipField(message, bytesField);
+                        }
+                    }
+                    exit(message, instructionLimit);
+                } else if (field == TAG_RESIZE) {
+                    int instructionLimit = enter(message);
+                    long size = readResize(message);
+                    exit(message, instructionLimit);
+                    if (size >= 0) handler.resize((int) (size >>> 32), (int) size);
+                } else if (field == TAG_ECHOACK) {
+                    int instructionLimit = enter(message);
+                    while (message.hasRemaining()) {
+                        int ackField = readTag(message);
+                        if (ackField == TAG_ECHO_ACK_NUM) {
+                            handler.echoAck(readVarint(message));
+                        } else {
+                            skipField(message, ackField);
+                        }
+                    }
+                    exit(message, instructionLimit);
+                } else {
+                    skipField(message, field);
+                }
+            }
+            exit(message, messageLimit);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.mosh4j.protocol;
+
+import java.nio.ByteBuffer;
+
+import static org.mosh4j.protocol.ProtoWire.*;
+import static org.mosh4j.protocol.TransportInstructionCodec.*;
+
+/**
+ * Reusable, allocation-free view of an encoded {@code TransportBuffers.Instruction}.
+ * {@link #wrap} reads the number fields and only records where {@code diff} lies; the
+ * diff is copied out when a caller asks for it ({@link #copyDiff}), so duplicates and
+ * pure acks never materialize it. Unknown fields are skipped, as protobuf does.
+ * <p>
+ * The view refers to the wrapped buffer and is valid until that buffer is reused or the
+ * view wraps another one. Not thread-safe: use one per receive path.
+ */
+public final class InstructionView {
+
+    private static final int HAS_PROTOCOL_VERSION = 1;
+    private static final int HAS_OLD_NUM = 1 << 1;
+    private static final int HAS_NEW_NUM = 1 << 2;
+    private static final int HAS_ACK_NUM = 1 << 3;
+    private static final int HAS_THROWAWAY_NUM = 1 << 4;
+    private static final int HAS_DIFF = 1 << 5;
+
+    private ByteBuffer buffer;
+    private int present;
+    private int protocolVersion;
+    private long oldNum;
+    private long newNum;
+    private long ackNum;
+    private long throwawayNum;
+    private int diffOffset;
+    private int diffLength;
+
+    /**
+     * Decode the instruction in {@code bytes} from its position to its limit. The buffer's
+     * position is left unchanged.
+     *
+     * @return this view
+     * @throws IllegalArgumentException if the bytes are not a valid instruction
+     */
+    public InstructionView wrap(ByteBuffer bytes) {
+        buffer = null;
+        present = 0;
+        protocolVersion = 0;
+        oldNum = newNum = ackNum = throwawayNum = 0;
+        diffOffset = diffLength = 0;
+        int start = bytes.position();
+        try {
+            while (bytes.hasRemaining()) {
+                int tag = readTag(bytes);
+                if (tag == TAG_PROTOCOL_VERSION) {
+                    protocolVersion = (int) readVarint(bytes);
+                    present |= HAS_PROTOCOL_VERSION;
+                } else if (tag == TAG_OLD_NUM) {
+                    oldNum = readVarint(bytes);
+                    present |= HAS_OLD_NUM;
+                } else if (tag == TAG_NEW_NUM) {
+                    newNum = readVarint(bytes);
+                    present |= HAS_NEW_NUM;
+                } else if (tag == TAG_ACK_NUM) {
+                    ackNum = readVarint(bytes);
+                    present |= HAS_ACK_NUM;
+                } else if (tag == TAG_THROWAWAY_NUM) {
+                    throwawayNum = readVarint(bytes);
+                    present |= HAS_THROWAWAY_NUM;
+                } else if (tag == TAG_DIFF) {
+                    diffLength = readLength(bytes);
+                    diffOffset = bytes.position();
+                    bytes.position(diffOffset + diffLength);
+                    present |= HAS_DIFF;
+                } else {
+                    skipField(bytes, tag); // chaff and unknown fields
+                }
+            }
+        } finally {
+            bytes.position(start);
+        }
+        buffer = bytes;
+        return this;
+    }
+
+    public boolean hasProtocolVersion() {
+        return (present & HAS_PROTOCOL_VERSION) != 0;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean hasOldNum() {
+        return (present & HAS_OLD_NUM) != 0;
+    }
+
+    /** The field's value, 0 if absent. */
+    public long getOldNum() {
+        return oldNum;
+    }
+
+    public boolean hasNewNum() {
+        return (present & HAS_NEW_NUM) != 0;
+    }
+
+    /** The field's value, 0 if absent. */
+    public long getNewNum() {
+        return newNum;
+    }
+
+    public boolean hasAckNum() {
+        return (present & HAS_ACK_NUM) != 0;
+    }
+
+    /** The field's value, 0 if absent. */
+    public long getAckNum() {
+        return ackNum;
+    }
+
+    public boolean hasThrowawayNum() {
+        return (present & HAS_THROWAWAY_NUM) != 0;
+    }
+
+    /** The field's value, 0 if absent. */
+    public long getThrowawayNum() {
+        return throwawayNum;
+    }
+
+    public boolean hasDiff() {
+        return (present & HAS_DIFF) != 0;
+    }
+
+    /**
+     * Length of the diff, 0 if absent.
+     */
+    public int getDiffLength() {
+        return diffLength;
+    }
+
+    /**
+     * The diff as a slice of the wrapped buffer, without copying; empty if absent.
+     */
+    public ByteBuffer diff() {
+        return buffer.slice(diffOffset, diffLength);
+    }
+
+    /**
+     * The diff copied into a new array; empty if absent.
+     */
+    public byte[] copyDiff() {
+        byte[] diff = new byte[diffLength];
+        buffer.get(diffOffset, diff);
+        return diff;
+    }
+}
@@ -0,0 +1,181 @@
+package org.mosh4j.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Protobuf wire-format primitives for the hand-written codecs: varints, tags and skipping
+ * of unknown fields. Writers fill {@code byte[]}s at an offset and return the offset after
+ * what they wrote; readers consume from a {@link ByteBuffer}'s position up to its limit.
+ */
+final class ProtoWire {
+
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private ProtoWire() {}
+
+    static int tag(int field, int wireType) {
+        return field << 3 | wireType;
+    }
+
+    /**
+     * Encoded size of {@code value} as an unsigned varint (negative int32s take 10 bytes,
+     * as protobuf sign-extends them).
+     */
+    static int varintLength(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    /**
+     * Size of a length-delimited field with a one-byte tag and {@code length} payload bytes.
+     */
+    static int lengthDelimitedLength(int length) {
+        return 1 + varintLength(length) + length;
+    }
+
+    static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int writeBytes(byte[] out, int pos, int tag, byte[] bytes, int off, int len) {
+        out[pos++] = (byte) tag;
+        pos = writeVarint(out, pos, len);
+        System.arraycopy(bytes, off, out, pos, len);
+        return pos + len;
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) throw malformed("truncated varint");
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        throw malformed("varint longer than 10 bytes");
+    }
+
+    static int readTag(ByteBuffer in) {
+        long tag = readVarint(in);
+        if (tag >>> 3 == 0 || tag > Integer.MAX_VALUE) throw malformed("invalid tag " + tag);
+        return (int) tag;
+    }
+
+    /**
+     * Read the length prefix of a length-delimited field and check it against the input.
+     */
+    static int readLength(ByteBuffer in) {
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) throw malformed("length " + length + " exceeds input");
+        return (int) length;
+    }
+
+    static void skipField(ByteBuffer in, int tag) {
+        int skip = switch (tag & 7) {
+            case VARINT -> {
+                readVarint(in);
+                yield 0;
+            }
+            case FIXED64 -> 8;
+            case LENGTH_DELIMITED -> readLength(in);
+            case FIXED32 -> 4;
+            default -> throw malformed("unsupported wire type in tag " + tag);
+        };
+        if (skip > in.remaining()) throw malformed("truncated field");
+        in.position(in.position() + skip);
+    }
+
+    /**
+     * Restrict {@code in} to the length-delimited field at its position.
+     *
+     * @return the previous limit, to pass to {@link #exit}
+     */
+    static int enter(ByteBuffer in) {
+        int length = readLength(in);
+        int outerLimit = in.limit();
+        in.limit(in.position() + length);
+        return outerLimit;
+    }
+
+    /**
+     * Skip the rest of the field entered with {@link #enter} and restore the outer limit.
+     */
+    static void exit(ByteBuffer in, int outerLimit) {
+        in.position(in.limit());
+        in.limit(outerLimit);
+    }
+
+    // UserMessage and HostMessage share their layout: repeated Instruction (field 1), each
+    // holding extension messages; ResizeMessage is width (5) and height (6) in both.
+
+    static final int TAG_INSTRUCTION = tag(1, LENGTH_DELIMITED);
+    static final int TAG_RESIZE = tag(3, LENGTH_DELIMITED);
+    static final int TAG_WIDTH = tag(5, VARINT);
+    static final int TAG_HEIGHT = tag(6, VARINT);
+
+    /**
+     * Size of an {@code instruction} entry holding one extension message of
+     * {@code bodyLength} bytes.
+     */
+    static int instructionLength(int bodyLength) {
+        return lengthDelimitedLength(lengthDelimitedLength(bodyLength));
+    }
+
+    /**
+     * Write the headers of an {@code instruction} entry holding one extension message; the
+     * caller writes the {@code bodyLength} bytes of the message next.
+     */
+    static int writeInstructionHeader(byte[] out, int pos, int extensionTag, int bodyLength) {
+        out[pos++] = (byte) TAG_INSTRUCTION;
+        pos = writeVarint(out, pos, lengthDelimitedLength(bodyLength));
+        out[pos++] = (byte) extensionTag;
+        return writeVarint(out, pos, bodyLength);
+    }
+
+    static int resizeBodyLength(int width, int height) {
+        return 2 + varintLength(width) + varintLength(height);
+    }
+
+    static int writeResize(byte[] out, int pos, int width, int height) {
+        pos = writeInstructionHeader(out, pos, TAG_RESIZE, resizeBodyLength(width, height));
+        out[pos++] = (byte) TAG_WIDTH;
+        pos = writeVarint(out, pos, width);
+        out[pos++] = (byte) TAG_HEIGHT;
+        return writeVarint(out, pos, height);
+    }
+
+    /**
+     * Read a ResizeMessage body (after {@link #enter}); returns width in the high and height
+     * in the low 32 bits, or -1 unless both are present and not negative.
+     */
+    static long readResize(ByteBuffer in) {
+        int width = 0;
+        int height = 0;
+        boolean hasWidth = false;
+        boolean hasHeight = false;
+        while (in.hasRemaining()) {
+            int tag = readTag(in);
+            if (tag == TAG_WIDTH) {
+                width = (int) readVarint(in);
+                hasWidth = true;
+            } else if (tag == TAG_HEIGHT) {
+                height = (int) readVarint(in);
+                hasHeight = true;
+            } else {
+                skipField(in, tag);
+            }
+        }
+        return hasWidth && hasHeight && width >= 0 && height >= 0 ? (long) width << 32 | height : -1;
+    }
+
+    static IllegalArgumentException malformed(String detail) {
+        return new IllegalArgumentException("Malformed protobuf message: " + detail);
+    }
+}
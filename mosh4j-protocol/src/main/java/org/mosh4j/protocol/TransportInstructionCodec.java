@@ -0,0 +1,65 @@
+package org.mosh4j.protocol;
+
+import static org.mosh4j.protocol.ProtoWire.*;
+
+/**
+ * Encoder for {@code TransportBuffers.Instruction} ({@code transportinstruction.proto})
+ * that writes straight into a caller-owned array. The output is byte-for-byte what the
+ * generated class serializes for the same fields; decoding is done by
+ * {@link InstructionView}.
+ */
+public final class TransportInstructionCodec {
+
+    /** The {@code protocol_version} written into every instruction, as native mosh. */
+    public static final int PROTOCOL_VERSION = 2;
+
+    static final int TAG_PROTOCOL_VERSION = tag(1, VARINT);
+    static final int TAG_OLD_NUM = tag(2, VARINT);
+    static final int TAG_NEW_NUM = tag(3, VARINT);
+    static final int TAG_ACK_NUM = tag(4, VARINT);
+    static final int TAG_THROWAWAY_NUM = tag(5, VARINT);
+    static final int TAG_DIFF = tag(6, LENGTH_DELIMITED);
+    static final int TAG_CHAFF = tag(7, LENGTH_DELIMITED);
+
+    private TransportInstructionCodec() {}
+
+    /**
+     * Size of the instruction {@link #encode} writes for these values.
+     */
+    public static int encodedLength(long oldNum, long newNum, long ackNum, long throwawayNum,
+                                    int diffLength, int chaffLength) {
+        int n = 5 + varintLength(PROTOCOL_VERSION) + varintLength(oldNum) + varintLength(newNum)
+                + varintLength(ackNum) + varintLength(throwawayNum);
+        if (diffLength > 0) n += lengthDelimitedLength(diffLength);
+        if (chaffLength > 0) n += lengthDelimitedLength(chaffLength);
+        return n;
+    }
+
+    /**
+     * Write an instruction with all number fields set; {@code diff} and {@code chaff} are
+     * omitted when empty.
+     *
+     * @return the offset after the instruction
+     */
+    public static int encode(byte[] out, int pos, long oldNum, long newNum, long ackNum, long throwawayNum,
+                             byte[] diff, int diffOff, int diffLength,
+                             byte[] chaff, int chaffOff, int chaffLength) {
+        out[pos++] = (byte) TAG_PROTOCOL_VERSION;
+        pos = writeVarint(out, pos, PROTOCOL_VERSION);
+        out[pos++] = (byte) TAG_OLD_NUM;
+        pos = writeVarint(out, pos, oldNum);
+        out[pos++] = (byte) TAG_NEW_NUM;
+        pos = writeVarint(out, pos, newNum);
+        out[pos++] = (byte) TAG_ACK_NUM;
+        pos = writeVarint(out, pos, ackNum);
+        out[pos++] = (byte) TAG_THROWAWAY_NUM;
+        pos = writeVarint(out, pos, throwawayNum);
+        if (diffLength > 0) {
+            pos = writeBytes(out, pos, TAG_DIFF, diff, diffOff, diffLength);
+        }
+        if (chaffLength > 0) {
+            pos = writeBytes(out, pos, TAG_CHAFF, chaff, chaffOff, chaffLength);
+        }
+        return pos;
+    }
+}
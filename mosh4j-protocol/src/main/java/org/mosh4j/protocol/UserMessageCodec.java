@@ -0,0 +1,115 @@
+package org.mosh4j.protocol;
+
+import java.nio.ByteBuffer;
+
+import static org.mosh4j.protocol.ProtoWire.*;
+
+/**
+ * Encoder and decoder for {@code ClientBuffers.UserMessage} ({@code userinput.proto})
+ * working on plain arrays and buffers, without builders or an extension registry. A
+ * message is a sequence of instructions, each written by {@link #writeKeystroke} or
+ * {@link #writeResize} after sizing the output with the matching {@code ...Length} method.
+ * The encoding is the one the generated classes produce.
+ */
+public final class UserMessageCodec {
+
+    static final int TAG_KEYSTROKE = tag(2, LENGTH_DELIMITED);
+    static final int TAG_KEYS = tag(4, LENGTH_DELIMITED);
+
+    /**
+     * Receives the instructions of a decoded message, in order. Byte ranges refer to the
+     * decoded buffer and are only valid during the call.
+     */
+    public interface Handler {
+        default void keystroke(ByteBuffer src, int offset, int length) {}
+
+        default void resize(int width, int height) {}
+    }
+
+    private UserMessageCodec() {}
+
+    /**
+     * Size of a keystroke instruction carrying {@code keysLength} bytes.
+     */
+    public static int keystrokeLength(int keysLength) {
+        return instructionLength(lengthDelimitedLength(keysLength));
+    }
+
+    /**
+     * Write the headers of a keystroke instruction; the caller writes the
+     * {@code keysLength} key bytes at the returned offset.
+     */
+    public static int writeKeystrokeHeader(byte[] out, int pos, int keysLength) {
+        pos = writeInstructionHeader(out, pos, TAG_KEYSTROKE, lengthDelimitedLength(keysLength));
+        out[pos++] = (byte) TAG_KEYS;
+        return writeVarint(out, pos, keysLength);
+    }
+
+    /**
+     * Write a keystroke instruction.
+     *
+     * @return the offset after it
+     */
+    public static int writeKeystroke(byte[] out, int pos, byte[] keys, int off, int len) {
+        pos = writeKeystrokeHeader(out, pos, len);
+        System.arraycopy(keys, off, out, pos, len);
+        return pos + len;
+    }
+
+    /**
+     * Size of a resize instruction.
+     */
+    public static int resizeLength(int width, int height) {
+        return instructionLength(resizeBodyLength(width, height));
+    }
+
+    /**
+     * Write a resize instruction.
+     *
+     * @return the offset after it
+     */
+    public static int writeResize(byte[] out, int pos, int width, int height) {
+        return ProtoWire.writeResize(out, pos, width, height);
+    }
+
+    /**
+     * Decode the message from {@code message}'s position to its limit, which it consumes.
+     *
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static void decode(ByteBuffer message, Handler handler) {
+        while (message.hasRemaining()) {
+            int tag = readTag(message);
+            if (tag != TAG_INSTRUCTION) {
+                skipField(message, tag);
+                continue;
+            }
+            int messageLimit = enter(message);
+            while (message.hasRemaining()) {
+                int field = readTag(message);
+                if (field == TAG_KEYSTROKE) {
+                    int instructionLimit = enter(message);
+                    while (message.hasRemaining()) {
+                        int keyField = readTag(message);
+                        if (keyField == TAG_KEYS) {
+                            int length = readLength(message);
+                            handler.keystroke(message, message.position(), length);
+                            message.position(message.position() + length);
+                        } else {
+                            skipField(message, keyField);
+                        }
+                    }
+                    exit(message, instructionLimit);
+                } else if (field == TAG_RESIZE) {
+                    int instructionLimit = enter(message);
+                    long size = readResize(message);
+                    exit(message, instructionLimit);
+                    if (size >= 0) handler.resize((int) (size >>> 32), (int) size);
+                } else {
+                    skipField(message, field);
+                }
+            }
+            exit(message, messageLimit);
+        }
+    }
+}
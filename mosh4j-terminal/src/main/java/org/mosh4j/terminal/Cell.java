@@ -4,9 +4,15 @@ import java.util.Arrays;
 
 /**
  * A single cell in the terminal framebuffer: character data and display attributes.
+ * <p>
+ * Framebuffers store cells in packed rows and hand out {@code Cell}s as views on demand;
+ * a printable ASCII character in the default style is always the same shared instance.
  */
 public final class Cell {
 
+    /** Rendition bit for underlined text (bit positions as mosh's {@code Renditions}). */
+    public static final int UNDERLINED = 1 << 3;
+
     private final int[] codePoints;
     private final int width;
     private final int foreground;
@@ -21,14 +27,65 @@ public final class Cell {
         this.renditions = renditions;
     }
 
+    private Cell(int[] codePoints, int width, long style) {
+        this.codePoints = codePoints;
+        this.width = width;
+        this.foreground = Style.foreground(style);
+        this.background = Style.background(style);
+        this.renditions = Style.renditions(style);
+    }
+
+    private static final Cell[] ASCII = new Cell[0x7F - ' '];
+
+    static {
+        for (int c = ' '; c < 0x7F; c++) {
+            ASCII[c - ' '] = new Cell(new int[] { c }, 1, Style.DEFAULT);
+        }
+    }
+
+    private static final Cell BLANK = ASCII[0];
+
+    /**
+     * The blank cell. Cells are immutable, so a single shared instance is returned.
+     */
     public static Cell blank() {
-        return new Cell(new int[] { ' ' }, 1, 0, 0, 0);
+        return BLANK;
+    }
+
+    /**
+     * Cell of one code point in {@link Style} {@code style}; shared for printable ASCII in
+     * the default style.
+     */
+    static Cell of(int codePoint, int width, long style) {
+        if (style == Style.DEFAULT && width == 1 && codePoint >= ' ' && codePoint < 0x7F) {
+            return ASCII[codePoint - ' '];
+        }
+        return adopt(new int[] { codePoint }, width, style);
+    }
+
+    /**
+     * Cell taking {@code codePoints} over without copying; the caller must not modify the
+     * array afterwards.
+     */
+    static Cell adopt(int[] codePoints, int width, long style) {
+        return new Cell(codePoints, width, style);
     }
 
     public int[] getCodePoints() {
         return codePoints.clone();
     }
 
+    /**
+     * Number of code points, i.e. {@code getCodePoints().length} without the copy.
+     */
+    public int getCodePointCount() {
+        return codePoints.length;
+    }
+
+    public int getCodePoint(int index) {
+        return codePoints[index];
+    }
+
     public int getWidth() {
         return width;
     }
@@ -48,4 +105,33 @@ public final class Cell {
     public boolean isBlank() {
         return codePoints.length == 1 && codePoints[0] == ' ' && width == 1;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Cell other)) return false;
+        return width == other.width
+                && foreground == other.foreground
+                && background == other.background
+                && renditions == other.renditions
+                && Arrays.equals(codePoints, other.codePoints);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Arrays.hashCode(codePoints);
+        h = 31 * h + width;
+        h = 31 * h + foreground;
+        h = 31 * h + background;
+        return 31 * h + renditions;
+    }
+
+    /**
+     * Append this cell's code points to {@code out} without copying them.
+     */
+    void appendTo(StringBuilder out) {
+        for (int cp : codePoints) {
+            if (cp > 0) out.appendCodePoint(cp);
+        }
+    }
 }
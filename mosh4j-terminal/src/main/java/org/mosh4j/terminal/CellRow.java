@@ -0,0 +1,268 @@
+package org.mosh4j.terminal;
+
+import java.util.Arrays;
+
+/**
+ * One framebuffer row in packed form: per cell a code point, a {@link Style} word and a
+ * width, in three parallel primitive arrays. A cell holding more than one code point (a
+ * base character with combining marks) stores {@code ~index} into a per-row side table of
+ * clusters instead of a code point. The cell after a double-width character is a
+ * continuation cell: code point 0, width 0.
+ * <p>
+ * Rows are mutable; a framebuffer shares a row with its snapshots and copies it before the
+ * next write, so a row reachable from a snapshot is never modified again.
+ */
+final class CellRow {
+
+    private static final int[][] NO_CLUSTERS = new int[0][];
+
+    private final int[] chars;
+    private final long[] styles;
+    private final byte[] widths;
+    private int[][] clusters = NO_CLUSTERS;
+    private int clusterCount;
+
+    /**
+     * Blank row of {@code width} cells.
+     */
+    CellRow(int width) {
+        this.chars = new int[width];
+        this.styles = new long[width];
+        this.widths = new byte[width];
+        Arrays.fill(chars, ' ');
+        Arrays.fill(widths, (byte) 1);
+    }
+
+    private CellRow(CellRow other, int width) {
+        int n = Math.min(width, other.chars.length);
+        this.chars = Arrays.copyOf(other.chars, width);
+        this.styles = Arrays.copyOf(other.styles, width);
+        this.widths = Arrays.copyOf(other.widths, width);
+        if (width > n) {
+            Arrays.fill(chars, n, width, ' ');
+            Arrays.fill(widths, n, width, (byte) 1);
+        }
+        if (other.clusterCount > 0) {
+            this.clusters = Arrays.copyOf(other.clusters, other.clusters.length);
+            this.clusterCount = other.clusterCount;
+        }
+    }
+
+    /**
+     * Independent copy of this row.
+     */
+    CellRow copy() {
+        return new CellRow(this, chars.length);
+    }
+
+    /**
+     * Copy of this row cut or padded with blanks to {@code width} cells.
+     */
+    CellRow resized(int width) {
+        return new CellRow(this, width);
+    }
+
+    int width() {
+        return chars.length;
+    }
+
+    Cell cell(int col) {
+        int ch = chars[col];
+        return ch >= 0 ? Cell.of(ch, widths[col], styles[col]) : Cell.adopt(clusters[~ch].clone(), widths[col], styles[col]);
+    }
+
+    int codePointCount(int col) {
+        int ch = chars[col];
+        return ch >= 0 ? 1 : clusters[~ch].length;
+    }
+
+    int codePointAt(int col, int index) {
+        int ch = chars[col];
+        return ch >= 0 ? ch : clusters[~ch][index];
+    }
+
+    long style(int col) {
+        return styles[col];
+    }
+
+    int cellWidth(int col) {
+        return widths[col];
+    }
+
+    boolean isBlank(int col) {
+        return chars[col] == ' ' && widths[col] == 1;
+    }
+
+    /**
+     * Whether {@code [from, to)} holds only blanks in the default style.
+     */
+    boolean isBlank(int from, int to) {
+        for (int c = from; c < to; c++) {
+            if (chars[c] != ' ' || styles[c] != Style.DEFAULT || widths[c] != 1) return false;
+        }
+        return true;
+    }
+
+    boolean cellEquals(int col, CellRow other, int otherCol) {
+        if (styles[col] != other.styles[otherCol] || widths[col] != other.widths[otherCol]) return false;
+        int a = chars[col];
+        int b = other.chars[otherCol];
+        if (a >= 0 || b >= 0) return a == b;
+        return Arrays.equals(clusters[~a], other.clusters[~b]);
+    }
+
+    boolean cellEquals(int col, Cell cell) {
+        if (widths[col] != cell.getWidth()
+                || styles[col] != Style.of(cell.getForeground(), cell.getBackground(), cell.getRenditions())) {
+            return false;
+        }
+        int ch = chars[col];
+        if (ch >= 0) return cell.getCodePointCount() == 1 && cell.getCodePoint(0) == ch;
+        int[] cluster = clusters[~ch];
+        if (cluster.length != cell.getCodePointCount()) return false;
+        for (int i = 0; i < cluster.length; i++) {
+            if (cluster[i] != cell.getCodePoint(i)) return false;
+        }
+        return true;
+    }
+
+    boolean cellEquals(int col, int codePoint, int width, long style) {
+        return chars[col] == codePoint && widths[col] == width && styles[col] == style;
+    }
+
+    boolean contentEquals(CellRow other) {
+        if (other == this) return true;
+        if (other.chars.length != chars.length) return false;
+        if (clusterCount == 0 && other.clusterCount == 0) {
+            return Arrays.equals(chars, other.chars) && Arrays.equals(styles, other.styles)
+                    && Arrays.equals(widths, other.widths);
+        }
+        for (int c = 0; c < chars.length; c++) {
+            if (!cellEquals(c, other, c)) return false;
+        }
+        return true;
+    }
+
+    void set(int col, int codePoint, int width, long style) {
+        chars[col] = codePoint;
+        widths[col] = (byte) width;
+        styles[col] = style;
+    }
+
+    void set(int col, Cell cell) {
+        int n = cell.getCodePointCount();
+        int ch;
+        if (n == 1 && cell.getCodePoint(0) >= 0) {
+            ch = cell.getCodePoint(0);
+        } else {
+            ch = n == 0 ? ' ' : ~addCluster(cell.getCodePoints());
+        }
+        set(col, ch, cell.getWidth(), Style.of(cell.getForeground(), cell.getBackground(), cell.getRenditions()));
+    }
+
+    /**
+     * Put the cell of several code points {@code codePoints}, taken over, at {@code col}.
+     */
+    void setCluster(int col, int[] codePoints, int width, long style) {
+        set(col, ~addCluster(codePoints), width, style);
+    }
+
+    /**
+     * Add combining mark {@code codePoint} to the cell at {@code col}.
+     */
+    void combine(int col, int codePoint) {
+        int ch = chars[col];
+        int[] cluster;
+        if (ch >= 0) {
+            cluster = new int[] { ch, codePoint };
+        } else {
+            int[] old = clusters[~ch];
+            cluster = Arrays.copyOf(old, old.length + 1);
+            cluster[old.length] = codePoint;
+        }
+        chars[col] = ~addCluster(cluster);
+    }
+
+    /**
+     * Put {@code count} single-width code points from {@code codePoints[off]} at {@code col}.
+     */
+    void setRun(int col, int[] codePoints, int off, int count, long style) {
+        System.arraycopy(codePoints, off, chars, col, count);
+        Arrays.fill(widths, col, col + count, (byte) 1);
+        Arrays.fill(styles, col, col + count, style);
+    }
+
+    boolean runEquals(int col, int[] codePoints, int off, int count, long style) {
+        for (int i = 0; i < count; i++) {
+            if (chars[col + i] != codePoints[off + i] || widths[col + i] != 1 || styles[col + i] != style) return false;
+        }
+        return true;
+    }
+
+    void fill(int from, int to, int codePoint, int width, long style) {
+        Arrays.fill(chars, from, to, codePoint);
+        Arrays.fill(widths, from, to, (byte) width);
+        Arrays.fill(styles, from, to, style);
+    }
+
+    /**
+     * Move {@code count} cells from {@code src} to {@code dst} within this row; the ranges may
+     * overlap.
+     */
+    void copyCells(int src, int dst, int count) {
+        System.arraycopy(chars, src, chars, dst, count);
+        System.arraycopy(styles, src, styles, dst, count);
+        System.arraycopy(widths, src, widths, dst, count);
+    }
+
+    /**
+     * Add renditions to every cell of {@code [from, to)}.
+     */
+    void addRenditions(int from, int to, int renditions) {
+        for (int c = from; c < to; c++) {
+            styles[c] = Style.withRenditions(styles[c], renditions);
+        }
+    }
+
+    /**
+     * Append the code points of cell {@code col} (those above zero) to {@code out}.
+     */
+    void appendTo(int col, StringBuilder out) {
+        int ch = chars[col];
+        if (ch > 0) {
+            out.appendCodePoint(ch);
+        } else if (ch < 0) {
+            for (int cp : clusters[~ch]) {
+                if (cp > 0) out.appendCodePoint(cp);
+            }
+        }
+    }
+
+    private int addCluster(int[] cluster) {
+        if (clusterCount == clusters.length) {
+            compactClusters();
+            if (clusterCount == clusters.length) {
+                clusters = Arrays.copyOf(clusters, Math.max(4, clusters.length * 2));
+            }
+        }
+        clusters[clusterCount] = cluster;
+        return clusterCount++;
+    }
+
+    /**
+     * Drop clusters no longer referenced by a cell. The cluster arrays themselves are never
+     * modified, so a copied row may keep sharing them.
+     */
+    private void compactClusters() {
+        int[][] live = new int[clusters.length][];
+        int n = 0;
+        for (int c = 0; c < chars.length; c++) {
+            if (chars[c] < 0) {
+                live[n] = clusters[~chars[c]];
+                chars[c] = ~n++;
+            }
+        }
+        clusters = live;
+        clusterCount = n;
+    }
+}
@@ -1,5 +1,7 @@
 package org.mosh4j.terminal;
 
+import java.util.Arrays;
+
 /**
  * Terminal framebuffer: width x height grid of cells, cursor position, and optional title.
  */
@@ -25,6 +27,13 @@ public interface Framebuffer {
      */
     void feedHostBytes(byte[] bytes);
 
+    /**
+     * Apply {@code bytes[off..off+len)} as host output.
+     */
+    default void feedHostBytes(byte[] bytes, int off, int len) {
+        feedHostBytes(Arrays.copyOfRange(bytes, off, off + len));
+    }
+
     /**
      * Serialize current framebuffer state to bytes (for diff/state sync). Minimal implementation
      * may return a simple encoding (e.g. row-by-row cell data).
@@ -0,0 +1,201 @@
+package org.mosh4j.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Computes the host bytes (ANSI) that turn one framebuffer snapshot into another, after
+ * mosh's {@code Display::new_frame}.
+ * <p>
+ * Unchanged rows cost nothing. A changed row is redrawn from its first to its last changed
+ * cell, and a blank tail is cleared with erase-in-line instead of spaces. When the new
+ * screen is the old one moved up by some lines (output scrolling off the top), a single
+ * scroll-up ({@code CSI n S}) is emitted and only the rows that still differ afterwards
+ * are drawn. The cursor is placed last. Without a previous snapshot, or after a size
+ * change, the screen is cleared and redrawn in full.
+ * <p>
+ * Colors and renditions are set with SGR as cells are drawn; every frame leaves the
+ * receiver's pen at the default, which is also what each frame assumes at its start.
+ * <p>
+ * Window titles are not part of the output.
+ */
+public final class FramebufferDiff {
+
+    private static final String CSI = "\u001B[";
+    /** SGR parameter of each rendition bit, lowest bit first (bold, faint, italic, ...). */
+    private static final int[] RENDITION_SGR = { 1, 2, 3, 4, 5, 7, 8 };
+
+    private final StringBuilder out = new StringBuilder();
+    private int cursorRow;
+    private int cursorCol;
+    private long pen = Style.DEFAULT;
+
+    private FramebufferDiff() {
+    }
+
+    /**
+     * Host bytes transforming {@code last} into {@code next}; empty if they look the same.
+     *
+     * @param last previous frame as the receiver has it, or null for a full redraw
+     */
+    public static byte[] newFrame(FramebufferSnapshot last, FramebufferSnapshot next) {
+        return new FramebufferDiff().diff(last, next).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String diff(FramebufferSnapshot last, FramebufferSnapshot next) {
+        int width = next.getWidth();
+        int height = next.getHeight();
+        boolean incremental = last != null && last.getWidth() == width && last.getHeight() == height;
+        CellRow[] old = new CellRow[height];
+        if (incremental) {
+            for (int r = 0; r < height; r++) {
+                old[r] = last.row(r);
+            }
+            cursorRow = last.getCursorRow();
+            cursorCol = last.getCursorCol();
+            scroll(old, next);
+        } else {
+            Arrays.fill(old, new CellRow(width));
+            out.append(CSI).append("0m").append(CSI).append('H').append(CSI).append("2J");
+            cursorRow = 0;
+            cursorCol = 0;
+        }
+
+        for (int r = 0; r < height; r++) {
+            drawRow(r, old[r], next.row(r), width);
+        }
+
+        setPen(Style.DEFAULT);
+        moveTo(next.getCursorRow(), next.getCursorCol());
+        if (!incremental || last.isCursorVisible() != next.isCursorVisible()) {
+            out.append(CSI).append(next.isCursorVisible() ? "?25h" : "?25l");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Detect the new screen being the old one moved up; if so, emit the scroll and shift
+     * {@code old} to match what the receiver shows afterwards.
+     */
+    private void scroll(CellRow[] old, FramebufferSnapshot next) {
+        int height = old.length;
+        int lines = scrolledLines(old, next);
+        if (lines == 0) return;
+        out.append(CSI).append(lines).append('S');
+        System.arraycopy(old, lines, old, 0, height - lines);
+        Arrays.fill(old, height - lines, height, new CellRow(old[0].width()));
+    }
+
+    /**
+     * Number of lines {@code next} shows the screen {@code old} moved up by, or 0 if it does
+     * not look like a scroll: the top row must have changed, and everything below the old
+     * row now at the top must have moved up with it. {@code old} must be as high as
+     * {@code next}.
+     */
+    static int scrolledLines(CellRow[] old, FramebufferSnapshot next) {
+        int height = old.length;
+        if (height == 0 || next.row(0).contentEquals(old[0])) {
+            return 0;
+        }
+        for (int lines = 1; lines < height; lines++) {
+            int region = 0;
+            while (lines + region < height && next.row(region).contentEquals(old[lines + region])) {
+                region++;
+            }
+            // blank rows match anywhere; that is not a scroll
+            if (lines + region == height && hasContent(old, lines, height)) {
+                return lines;
+            }
+        }
+        return 0;
+    }
+
+    private void drawRow(int row, CellRow from, CellRow to, int width) {
+        if (from == to) return;
+        int first = 0;
+        while (first < width && to.cellEquals(first, from, first)) first++;
+        if (first == width) return;
+        int last = width - 1;
+        while (to.cellEquals(last, from, last)) last--;
+        int blankFrom = width;
+        while (blankFrom > 0 && to.isBlank(blankFrom - 1, blankFrom)) blankFrom--;
+
+        int end = Math.min(last + 1, blankFrom);
+        // draw whole double-width characters: start on the first half, end after the second
+        while (first > 0 && to.cellWidth(first) == 0) first--;
+        while (end < width && to.cellWidth(end) == 0) end++;
+        if (first < end) {
+            moveTo(row, first);
+            for (int c = first; c < end; c++) {
+                if (to.cellWidth(c) == 0 && c > first) continue; // covered by the character before
+                setPen(to.style(c));
+                int before = out.length();
+                to.appendTo(c, out);
+                if (out.length() == before) out.append(' ');
+            }
+            cursorCol = end;
+            if (end == width) {
+                cursorRow = -1; // pending wrap at the right margin: position is terminal-specific
+            }
+        }
+        if (blankFrom <= last) {
+            moveTo(row, Math.max(first, blankFrom));
+            setPen(Style.DEFAULT);
+            out.append(CSI).append('K');
+        }
+    }
+
+    /**
+     * Select {@code style} with a full SGR (reset first), if it is not the current pen.
+     */
+    private void setPen(long style) {
+        if (style == pen) return;
+        out.append(CSI).append('0');
+        int renditions = Style.renditions(style);
+        for (int bit = 0; bit < RENDITION_SGR.length; bit++) {
+            if ((renditions & (1 << bit)) != 0) out.append(';').append(RENDITION_SGR[bit]);
+        }
+        appendColor(Style.foreground(style), 30);
+        appendColor(Style.background(style), 40);
+        out.append('m');
+        pen = style;
+    }
+
+    /**
+     * Append a color stored as {@code base + index} for the 256-color palette or
+     * {@code 0x1000000 | rgb} for direct color; 0 (the default color) appends nothing.
+     */
+    private void appendColor(int color, int base) {
+        if (color == 0) return;
+        if (color >= 0x1000000) {
+            out.append(';').append(base + 8).append(";2;").append((color >> 16) & 0xFF)
+                    .append(';').append((color >> 8) & 0xFF).append(';').append(color & 0xFF);
+        } else if (color < base + 8) {
+            out.append(';').append(color);
+        } else {
+            out.append(';').append(base + 8).append(";5;").append(color - base);
+        }
+    }
+
+    private void moveTo(int row, int col) {
+        if (row == cursorRow && col == cursorCol) return;
+        if (row == cursorRow && col == 0) {
+            out.append('\r');
+        } else if (col == 0) {
+            out.append(CSI).append(row + 1).append('H');
+        } else {
+            out.append(CSI).append(row + 1).append(';').append(col + 1).append('H');
+        }
+        cursorRow = row;
+        cursorCol = col;
+    }
+
+    private static boolean hasContent(CellRow[] rows, int from, int to) {
+        for (int r = from; r < to; r++) {
+            for (int c = 0; c < rows[r].width(); c++) {
+                if (!rows[r].isBlank(c)) return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+package org.mosh4j.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of a framebuffer at one point in time: cells, cursor and title.
+ * <p>
+ * Used as the "last frame" when computing a {@link FramebufferDiff}: a sender keeps one
+ * snapshot per state it sent and diffs the current screen against the one the receiver
+ * is assumed to have.
+ */
+public final class FramebufferSnapshot {
+
+    private final int width;
+    private final int height;
+    private final CellRow[] rows;
+    /** Index in {@link #rows} of screen row 0; the array is a ring as in {@link SimpleFramebuffer}. */
+    private final int base;
+    private final int cursorRow;
+    private final int cursorCol;
+    private final boolean cursorVisible;
+    private final String title;
+
+    /**
+     * @param rows {@code height} rows of {@code width} cells each; the rows are taken over,
+     *             the caller must not modify them afterwards
+     */
+    FramebufferSnapshot(int width, int height, CellRow[] rows, int cursorRow, int cursorCol,
+                        boolean cursorVisible, String title) {
+        this(width, height, rows, 0, cursorRow, cursorCol, cursorVisible, title);
+    }
+
+    /**
+     * @param base index in {@code rows} of the top screen row; row {@code r} is
+     *             {@code rows[(base + r) % height]}
+     */
+    FramebufferSnapshot(int width, int height, CellRow[] rows, int base, int cursorRow, int cursorCol,
+                        boolean cursorVisible, String title) {
+        this.width = width;
+        this.height = height;
+        this.rows = rows;
+        this.base = base;
+        this.cursorRow = cursorRow;
+        this.cursorCol = cursorCol;
+        this.cursorVisible = cursorVisible;
+        this.title = title;
+    }
+
+    /**
+     * Snapshot of a blank screen of the given size, cursor at home.
+     */
+    public static FramebufferSnapshot blank(int width, int height) {
+        CellRow[] rows = new CellRow[height];
+        Arrays.fill(rows, new CellRow(width));
+        return new FramebufferSnapshot(width, height, rows, 0, 0, true, "");
+    }
+
+    /**
+     * Snapshot of any framebuffer; O(1) for a {@link SimpleFramebuffer}, a cell-by-cell copy
+     * otherwise.
+     */
+    public static FramebufferSnapshot of(Framebuffer framebuffer) {
+        if (framebuffer instanceof SimpleFramebuffer simple) {
+            return simple.snapshot();
+        }
+        int width = framebuffer.getWidth();
+        int height = framebuffer.getHeight();
+        CellRow[] rows = new CellRow[height];
+        for (int r = 0; r < height; r++) {
+            rows[r] = new CellRow(width);
+            for (int c = 0; c < width; c++) {
+                Cell cell = framebuffer.getCell(r, c);
+                if (cell != null) rows[r].set(c, cell);
+            }
+        }
+        return new FramebufferSnapshot(width, height, rows, framebuffer.getCursorRow(), framebuffer.getCursorCol(),
+                framebuffer.isCursorVisible(), framebuffer.getTitle());
+    }
+
+    /**
+     * The row ring, shared; see {@link #base()}.
+     */
+    CellRow[] rows() {
+        return rows;
+    }
+
+    int base() {
+        return base;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Cell getCell(int row, int col) {
+        return row(row).cell(col);
+    }
+
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCursorCol() {
+        return cursorCol;
+    }
+
+    public boolean isCursorVisible() {
+        return cursorVisible;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    CellRow row(int row) {
+        int i = base + row;
+        return rows[i < height ? i : i - height];
+    }
+}
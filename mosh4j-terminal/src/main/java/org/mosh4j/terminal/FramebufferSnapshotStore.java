@@ -0,0 +1,101 @@
+package org.mosh4j.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Framebuffer snapshots indexed by SSP state number, for a sender that diffs against
+ * whichever state the receiver may hold.
+ * <p>
+ * State numbers are added in increasing order, as a sender assigns them, so the store is a
+ * ring of parallel arrays: {@link #put} appends, {@link #get} is a binary search and
+ * {@link #releaseBelow} drops acknowledged history in O(states released). Snapshots taken
+ * from the same {@link SimpleFramebuffer} share unchanged rows, so holding many of them
+ * costs roughly one screen plus the rows that changed. When {@code maxSnapshots} is
+ * exceeded the oldest snapshot is dropped.
+ * <p>
+ * Thread-safe.
+ */
+public final class FramebufferSnapshotStore {
+
+    private final int maxSnapshots;
+    private long[] stateNums;
+    private FramebufferSnapshot[] snapshots;
+    private int head;
+    private int size;
+
+    public FramebufferSnapshotStore(int maxSnapshots) {
+        if (maxSnapshots < 1) throw new IllegalArgumentException("maxSnapshots must be positive");
+        this.maxSnapshots = maxSnapshots;
+        int capacity = Integer.highestOneBit(Math.max(1, maxSnapshots - 1)) << 1;
+        this.stateNums = new long[capacity];
+        this.snapshots = new FramebufferSnapshot[capacity];
+    }
+
+    /**
+     * Store the snapshot for {@code stateNum}, which must be greater than any stored so far.
+     *
+     * @throws IllegalArgumentException if {@code stateNum} is not increasing
+     */
+    public synchronized void put(long stateNum, FramebufferSnapshot snapshot) {
+        if (size > 0 && stateNum <= stateNums[slot(size - 1)]) {
+            throw new IllegalArgumentException("State " + stateNum + " is not newer than " + stateNums[slot(size - 1)]);
+        }
+        if (size == maxSnapshots) {
+            removeFirst();
+        }
+        int s = slot(size);
+        stateNums[s] = stateNum;
+        snapshots[s] = snapshot;
+        size++;
+    }
+
+    /**
+     * Snapshot of {@code stateNum}, or null if it was never stored or already released.
+     */
+    public synchronized FramebufferSnapshot get(long stateNum) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = stateNums[slot(mid)];
+            if (v < stateNum) lo = mid + 1;
+            else if (v > stateNum) hi = mid - 1;
+            else return snapshots[slot(mid)];
+        }
+        return null;
+    }
+
+    /**
+     * Release all snapshots of states below {@code stateNum}, e.g. below the receiver's ack.
+     *
+     * @return number of snapshots released
+     */
+    public synchronized int releaseBelow(long stateNum) {
+        int released = 0;
+        while (size > 0 && stateNums[head] < stateNum) {
+            removeFirst();
+            released++;
+        }
+        return released;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(snapshots, null);
+        head = 0;
+        size = 0;
+    }
+
+    private void removeFirst() {
+        snapshots[head] = null;
+        head = (head + 1) & (stateNums.length - 1);
+        size--;
+    }
+
+    private int slot(int index) {
+        return (head + index) & (stateNums.length - 1);
+    }
+}
@@ -1,217 +1,434 @@
 package org.mosh4j.terminal;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * Minimal ANSI/ECMA-48 parser: CSI sequences for cursor movement, erase, and basic SGR (colors).
+ * Applies host output to a {@link SimpleFramebuffer}: a {@link VtParser} splits the bytes
+ * into characters, controls and escape sequences, and this class carries them out.
+ * <p>
+ * Supported: printing with autowrap, double-width characters and combining marks (widths
+ * per {@link CharWidth}), BS/HT/LF/VT/FF/CR, cursor movement (CUU/CUD/CUF/CUB,
+ * CNL/CPL, CHA/HPA, VPA, CUP/HVP), erase (ED, EL, ECH), insert/delete characters (ICH, DCH),
+ * scroll regions (DECSTBM) with scroll up/down (SU, SD), insert/delete lines (IL, DL) and
+ * reverse index (RI), SGR colors and renditions, save/restore cursor (DECSC/DECRC, CSI s/u),
+ * index/next line (IND, NEL), full reset (RIS), the cursor visibility and autowrap modes,
+ * and window titles (OSC 0 and 2). A line feed on the bottom margin scrolls the region. Other
+ * sequences are parsed and ignored.
  */
 public final class MinimalAnsiParser {
 
+    private static final int BOLD = 1;
+    private static final int FAINT = 1 << 1;
+    private static final int ITALIC = 1 << 2;
+    private static final int BLINK = 1 << 4;
+    private static final int INVERSE = 1 << 5;
+    private static final int INVISIBLE = 1 << 6;
+
     private final SimpleFramebuffer buffer;
-    private final StringBuilder plain = new StringBuilder();
-    private final List<Integer> csiParams = new ArrayList<>();
-    private int state = 0;
-    private static final int MAX_CSI_PARAMS = 32;
-    private static final int MAX_CSI_PARAM_VALUE = 65536;
-    private static final int PLAIN = 0;
-    private static final int ESC = 1;
-    private static final int CSI = 2;
-    private static final int CSI_PARAM = 3;
+    private final VtParser parser;
+    /** {@link Style} applied to printed characters. */
+    private long style = Style.DEFAULT;
+    private int foreground;
+    private int background;
+    private int renditions;
+    /** A character was printed in the last column; the next one goes to the next line. */
+    private boolean wrapPending;
+    private boolean autowrap = true;
+    /** Scroll region: rows {@code [scrollTop, scrollBottom)}; {@code scrollBottom} 0 means the last row. */
+    private int scrollTop;
+    private int scrollBottom;
+    private int savedRow;
+    private int savedCol;
+    private int savedForeground;
+    private int savedBackground;
+    private int savedRenditions;
 
     public MinimalAnsiParser(SimpleFramebuffer buffer) {
         this.buffer = buffer;
+        this.parser = new VtParser(new Actions());
     }
 
     public void feed(byte[] bytes) {
         if (bytes == null) return;
-        for (byte b : bytes) {
-            feedByte(b & 0xFF);
-        }
-    }
-
-    private void feedByte(int b) {
-        char c = (char) b;
-        switch (state) {
-            case PLAIN -> {
-                if (b == 0x1B) {
-                    state = ESC;
-                } else if (b == '\r') {
-                    buffer.setCursor(buffer.getCursorRow(), 0);
-                } else if (b == '\n') {
-                    int r = buffer.getCursorRow();
-                    buffer.setCursor(Math.min(r + 1, buffer.getHeight() - 1), buffer.getCursorCol());
-                } else if (b == '\t') {
-                    int col = buffer.getCursorCol();
-                    int next = (col + 8) & ~7;
-                    buffer.setCursor(buffer.getCursorRow(), Math.min(next, buffer.getWidth() - 1));
-                } else {
-                    putChar(c);
-                }
-            }
-            case ESC -> {
-                if (c == '[') {
-                    state = CSI;
-                    csiParams.clear();
-                } else {
-                    state = PLAIN;
-                }
-            }
-            case CSI, CSI_PARAM -> {
-                if (c >= '0' && c <= '9') {
-                    if (state == CSI) {
-                        if (csiParams.size() >= MAX_CSI_PARAMS) {
-                            state = PLAIN;
-                            break;
-                        }
-                        csiParams.add(0);
-                        state = CSI_PARAM;
-                    }
-                    int last = csiParams.size() - 1;
-                    int prev = csiParams.get(last);
-                    int next = prev * 10 + (c - '0');
-                    if (next > MAX_CSI_PARAM_VALUE) {
-                        state = PLAIN;
-                        break;
-                    }
-                    csiParams.set(last, next);
-                } else if (c == ';') {
-                    if (csiParams.size() >= MAX_CSI_PARAMS) {
-                        state = PLAIN;
-                        break;
-                    }
-                    csiParams.add(0);
-                } else if (c == 'm') {
-                    handleSgr();
-                    state = PLAIN;
-                } else if (c == 'H' || c == 'f') {
-                    handleCup();
-                    state = PLAIN;
-                } else if (c == 'J') {
-                    handleEd();
-                    state = PLAIN;
-                } else if (c == 'K') {
-                    handleEl();
-                    state = PLAIN;
-                } else if (c == 'A') {
-                    handleCuu();
-                    state = PLAIN;
-                } else if (c == 'B') {
-                    handleCud();
-                    state = PLAIN;
-                } else if (c == 'C') {
-                    handleCuf();
-                    state = PLAIN;
-                } else if (c == 'D') {
-                    handleCub();
-                    state = PLAIN;
-                } else {
-                    state = PLAIN;
-                }
+        feed(bytes, 0, bytes.length);
+    }
+
+    public void feed(byte[] bytes, int off, int len) {
+        parser.feed(bytes, off, len);
+    }
+
+    /**
+     * Forget any partial sequence and go back to the default pen, e.g. after the framebuffer
+     * was reset or replaced.
+     */
+    public void reset() {
+        parser.reset();
+        setPen(0, 0, 0);
+        wrapPending = false;
+        autowrap = true;
+        scrollTop = 0;
+        scrollBottom = 0;
+        savedRow = savedCol = 0;
+        savedForeground = savedBackground = savedRenditions = 0;
+    }
+
+    private void setPen(int fg, int bg, int rend) {
+        foreground = fg;
+        background = bg;
+        renditions = rend;
+        style = Style.of(fg, bg, rend);
+    }
+
+    private void moveTo(int row, int col) {
+        buffer.setCursor(row, col);
+        wrapPending = false;
+    }
+
+    /**
+     * Print a run of characters: single-width stretches are written into the row in one go,
+     * as far as they fit; anything else goes through {@link #print(int)}.
+     */
+    private void print(int[] codePoints, int off, int count) {
+        int i = off;
+        int end = off + count;
+        while (i < end) {
+            if (wrapPending || CharWidth.of(codePoints[i]) != 1) {
+                print(codePoints[i++]);
+                continue;
             }
-            default -> state = PLAIN;
+            int row = buffer.getCursorRow();
+            int col = buffer.getCursorCol();
+            int room = buffer.getWidth() - col;
+            int j = i + 1;
+            while (j < end && j - i < room && CharWidth.of(codePoints[j]) == 1) j++;
+            buffer.putCodePoints(row, col, codePoints, i, j - i, style);
+            advance(row, col, j - i);
+            i = j;
         }
     }
 
-    private void putChar(char c) {
+    private void print(int codePoint) {
+        int width = CharWidth.of(codePoint);
         int row = buffer.getCursorRow();
         int col = buffer.getCursorCol();
-        if (row < buffer.getHeight() && col < buffer.getWidth()) {
-            buffer.setCell(row, col, new Cell(new int[] { c }, 1, 0, 0, 0));
-            if (col + 1 < buffer.getWidth()) {
-                buffer.setCursor(row, col + 1);
-            } else {
-                buffer.setCursor(row, col);
-            }
+        if (width == 0) {
+            buffer.combine(row, wrapPending ? col : col - 1, codePoint);
+            return;
+        }
+        if (wrapPending && autowrap || width == 2 && col + 1 >= buffer.getWidth() && autowrap) {
+            lineFeed();
+            row = buffer.getCursorRow();
+            col = 0;
+        } else if (width == 2 && col + 1 >= buffer.getWidth()) {
+            col = Math.max(0, buffer.getWidth() - 2);
         }
+        if (width == 2) {
+            buffer.putWideCodePoint(row, col, codePoint, style);
+        } else {
+            buffer.putCodePoint(row, col, codePoint, 1, style);
+        }
+        advance(row, col, width);
     }
 
-    private int getParam(int index, int defaultVal) {
-        if (index >= csiParams.size()) return defaultVal;
-        int v = csiParams.get(index);
-        return v == 0 ? defaultVal : v;
+    /**
+     * Move the cursor past {@code columns} just printed at {@code row, col}; at the right
+     * margin it stays on the last column with a wrap pending.
+     */
+    private void advance(int row, int col, int columns) {
+        if (col + columns < buffer.getWidth()) {
+            buffer.setCursor(row, col + columns);
+            wrapPending = false;
+        } else {
+            buffer.setCursor(row, buffer.getWidth() - 1);
+            wrapPending = true;
+        }
     }
 
-    private void handleCup() {
-        int row = getParam(0, 1) - 1;
-        int col = getParam(1, 1) - 1;
-        buffer.setCursor(Math.max(0, row), Math.max(0, col));
+    private int scrollBottom() {
+        int height = buffer.getHeight();
+        return scrollBottom == 0 || scrollBottom > height ? height : scrollBottom;
     }
 
-    private void handleEd() {
-        int mode = getParam(0, 0);
-        if (mode == 0) {
-            for (int r = buffer.getCursorRow(); r < buffer.getHeight(); r++) {
-                for (int c = 0; c < buffer.getWidth(); c++) {
-                    if (r == buffer.getCursorRow() && c < buffer.getCursorCol()) continue;
-                    buffer.setCell(r, c, Cell.blank());
-                }
+    private void lineFeed() {
+        int r = buffer.getCursorRow();
+        int bottom = scrollBottom();
+        if (r == bottom - 1) {
+            buffer.scrollUp(scrollTop, bottom, 1);
+        } else {
+            buffer.setCursor(r + 1, buffer.getCursorCol());
+        }
+        wrapPending = false;
+    }
+
+    private void reverseIndex() {
+        int r = buffer.getCursorRow();
+        if (r == scrollTop) {
+            buffer.scrollDown(scrollTop, scrollBottom(), 1);
+        } else {
+            buffer.setCursor(r - 1, buffer.getCursorCol());
+        }
+        wrapPending = false;
+    }
+
+    /**
+     * DECSTBM: set the scroll region to rows {@code top..bottom} (1-based, inclusive) and home
+     * the cursor; an empty or inverted region is ignored.
+     */
+    private void setScrollRegion(int top, int bottom) {
+        int height = buffer.getHeight();
+        bottom = Math.min(bottom, height);
+        if (top >= bottom) return;
+        scrollTop = top - 1;
+        scrollBottom = bottom == height ? 0 : bottom;
+        moveTo(0, 0);
+    }
+
+    private void execute(int control) {
+        switch (control) {
+            case '\r' -> moveTo(buffer.getCursorRow(), 0);
+            case '\n', 0x0B, 0x0C -> lineFeed();
+            case '\b' -> moveTo(buffer.getCursorRow(), buffer.getCursorCol() - 1);
+            case '\t' -> moveTo(buffer.getCursorRow(), (buffer.getCursorCol() + 8) & ~7);
+            default -> {
             }
-        } else if (mode == 1) {
-            for (int r = 0; r <= buffer.getCursorRow(); r++) {
-                for (int c = 0; c < buffer.getWidth(); c++) {
-                    if (r == buffer.getCursorRow() && c > buffer.getCursorCol()) continue;
-                    buffer.setCell(r, c, Cell.blank());
+        }
+    }
+
+    private void escDispatch(int finalByte, int intermediates) {
+        if (intermediates != 0) return;
+        switch (finalByte) {
+            case '7' -> saveCursor();
+            case '8' -> restoreCursor();
+            case 'D' -> lineFeed();
+            case 'M' -> reverseIndex();
+            case 'E' -> {
+                lineFeed();
+                moveTo(buffer.getCursorRow(), 0);
+            }
+            case 'c' -> {
+                buffer.reset(buffer.getWidth(), buffer.getHeight());
+                reset();
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void csiDispatch(int finalByte, int intermediates, int[] params, int count) {
+        if (intermediates == '?') {
+            if (finalByte == 'h' || finalByte == 'l') {
+                setPrivateModes(finalByte == 'h', params, count);
+            }
+            return;
+        }
+        if (intermediates != 0) return;
+        int row = buffer.getCursorRow();
+        int col = buffer.getCursorCol();
+        int n = param(params, count, 0, 1);
+        switch (finalByte) {
+            case 'A' -> moveTo(row - n, col);
+            case 'B', 'e' -> moveTo(row + n, col);
+            case 'C', 'a' -> moveTo(row, col + n);
+            case 'D' -> moveTo(row, col - n);
+            case 'E' -> moveTo(row + n, 0);
+            case 'F' -> moveTo(row - n, 0);
+            case 'G', '`' -> moveTo(row, n - 1);
+            case 'd' -> moveTo(n - 1, col);
+            case 'H', 'f' -> moveTo(n - 1, param(params, count, 1, 1) - 1);
+            case 'J' -> eraseInDisplay(param(params, count, 0, 0));
+            case 'K' -> eraseInLine(param(params, count, 0, 0));
+            case 'X' -> {
+                buffer.clearRegion(row, col, row + 1, col + n);
+                wrapPending = false;
+            }
+            case '@' -> {
+                buffer.insertBlanks(row, col, n);
+                wrapPending = false;
+            }
+            case 'P' -> {
+                buffer.deleteCells(row, col, n);
+                wrapPending = false;
+            }
+            case 'S' -> buffer.scrollUp(scrollTop, scrollBottom(), n);
+            case 'T' -> {
+                if (count <= 1) buffer.scrollDown(scrollTop, scrollBottom(), n);
+            }
+            case 'L' -> {
+                if (row >= scrollTop && row < scrollBottom()) {
+                    buffer.scrollDown(row, scrollBottom(), n);
+                    moveTo(row, 0);
                 }
             }
-        } else if (mode == 2) {
-            for (int r = 0; r < buffer.getHeight(); r++) {
-                for (int c = 0; c < buffer.getWidth(); c++) {
-                    buffer.setCell(r, c, Cell.blank());
+            case 'M' -> {
+                if (row >= scrollTop && row < scrollBottom()) {
+                    buffer.scrollUp(row, scrollBottom(), n);
+                    moveTo(row, 0);
                 }
             }
+            case 'r' -> setScrollRegion(param(params, count, 0, 1), param(params, count, 1, buffer.getHeight()));
+            case 'm' -> selectGraphicRendition(params, count);
+            case 's' -> saveCursor();
+            case 'u' -> restoreCursor();
+            default -> {
+            }
         }
     }
 
-    private void handleEl() {
-        int mode = getParam(0, 0);
+    private static int param(int[] params, int count, int index, int defaultVal) {
+        if (index >= count) return defaultVal;
+        int v = params[index];
+        return v == 0 ? defaultVal : v;
+    }
+
+    private void eraseInDisplay(int mode) {
         int row = buffer.getCursorRow();
+        int width = buffer.getWidth();
         if (mode == 0) {
-            for (int c = buffer.getCursorCol(); c < buffer.getWidth(); c++) {
-                buffer.setCell(row, c, Cell.blank());
-            }
+            buffer.clearRegion(row, buffer.getCursorCol(), row + 1, width);
+            buffer.clearRegion(row + 1, 0, buffer.getHeight(), width);
         } else if (mode == 1) {
-            for (int c = 0; c <= buffer.getCursorCol(); c++) {
-                buffer.setCell(row, c, Cell.blank());
-            }
+            buffer.clearRegion(0, 0, row, width);
+            buffer.clearRegion(row, 0, row + 1, buffer.getCursorCol() + 1);
         } else if (mode == 2) {
-            for (int c = 0; c < buffer.getWidth(); c++) {
-                buffer.setCell(row, c, Cell.blank());
-            }
+            buffer.clearRegion(0, 0, buffer.getHeight(), width);
         }
+        wrapPending = false;
     }
 
-    private void handleCuu() {
-        int n = getParam(0, 1);
-        buffer.setCursor(buffer.getCursorRow() - n, buffer.getCursorCol());
+    private void eraseInLine(int mode) {
+        int row = buffer.getCursorRow();
+        if (mode == 0) {
+            buffer.clearRegion(row, buffer.getCursorCol(), row + 1, buffer.getWidth());
+        } else if (mode == 1) {
+            buffer.clearRegion(row, 0, row + 1, buffer.getCursorCol() + 1);
+        } else if (mode == 2) {
+            buffer.clearRegion(row, 0, row + 1, buffer.getWidth());
+        }
+        wrapPending = false;
     }
 
-    private void handleCud() {
-        int n = getParam(0, 1);
-        buffer.setCursor(buffer.getCursorRow() + n, buffer.getCursorCol());
+    private void setPrivateModes(boolean set, int[] params, int count) {
+        for (int i = 0; i < count; i++) {
+            switch (params[i]) {
+                case 7 -> autowrap = set;
+                case 25 -> buffer.setCursorVisible(set);
+                default -> {
+                }
+            }
+        }
     }
 
-    private void handleCuf() {
-        int n = getParam(0, 1);
-        buffer.setCursor(buffer.getCursorRow(), buffer.getCursorCol() + n);
+    private void saveCursor() {
+        savedRow = buffer.getCursorRow();
+        savedCol = buffer.getCursorCol();
+        savedForeground = foreground;
+        savedBackground = background;
+        savedRenditions = renditions;
     }
 
-    private void handleCub() {
-        int n = getParam(0, 1);
-        buffer.setCursor(buffer.getCursorRow(), buffer.getCursorCol() - n);
+    private void restoreCursor() {
+        moveTo(savedRow, savedCol);
+        setPen(savedForeground, savedBackground, savedRenditions);
     }
 
-    private void handleSgr() {
-        for (int i = 0; i < csiParams.size(); i++) {
-            int p = csiParams.get(i);
-            if (p == 0) {
-                // reset - no-op for minimal
-            } else if (p >= 30 && p <= 37) {
-                // foreground - no-op for minimal
-            } else if (p >= 40 && p <= 47) {
-                // background - no-op for minimal
+    /**
+     * SGR, with colors stored as mosh does: {@code 30 + index} / {@code 40 + index} for the
+     * 256-color palette (0 is the default color) and {@code 0x1000000 | rgb} for direct color.
+     */
+    private void selectGraphicRendition(int[] params, int count) {
+        int fg = foreground;
+        int bg = background;
+        int rend = renditions;
+        if (count == 0) {
+            fg = bg = rend = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int p = params[i];
+            switch (p) {
+                case 0 -> fg = bg = rend = 0;
+                case 1 -> rend |= BOLD;
+                case 2 -> rend |= FAINT;
+                case 3 -> rend |= ITALIC;
+                case 4 -> rend |= Cell.UNDERLINED;
+                case 5 -> rend |= BLINK;
+                case 7 -> rend |= INVERSE;
+                case 8 -> rend |= INVISIBLE;
+                case 22 -> rend &= ~(BOLD | FAINT);
+                case 23 -> rend &= ~ITALIC;
+                case 24 -> rend &= ~Cell.UNDERLINED;
+                case 25 -> rend &= ~BLINK;
+                case 27 -> rend &= ~INVERSE;
+                case 28 -> rend &= ~INVISIBLE;
+                case 39 -> fg = 0;
+                case 49 -> bg = 0;
+                case 38, 48 -> {
+                    int color = 0;
+                    if (i + 2 < count && params[i + 1] == 5) {
+                        color = 30 + Math.min(255, params[i + 2]);
+                        i += 2;
+                    } else if (i + 4 < count && params[i + 1] == 2) {
+                        color = 0x1000000 | (Math.min(255, params[i + 2]) << 16)
+                                | (Math.min(255, params[i + 3]) << 8) | Math.min(255, params[i + 4]);
+                        i += 4;
+                    } else {
+                        i = count; // malformed extended color: ignore the rest
+                    }
+                    if (color != 0 && p == 38) fg = color;
+                    if (color != 0 && p == 48) bg = color < 0x1000000 ? color + 10 : color;
+                }
+                default -> {
+                    if (p >= 30 && p <= 37) fg = p;
+                    else if (p >= 40 && p <= 47) bg = p;
+                    else if (p >= 90 && p <= 97) fg = p - 90 + 38;
+                    else if (p >= 100 && p <= 107) bg = p - 100 + 48;
+                }
             }
         }
+        if (fg != foreground || bg != background || rend != renditions) {
+            setPen(fg, bg, rend);
+        }
+    }
+
+    private void oscDispatch(byte[] data, int length) {
+        int sep = 0;
+        while (sep < 4 && sep < length && data[sep] >= '0' && data[sep] <= '9') sep++;
+        if (sep == 0 || sep >= length || data[sep] != ';') return;
+        int command = Integer.parseInt(new String(data, 0, sep, StandardCharsets.US_ASCII));
+        if (command == 0 || command == 2) {
+            buffer.setTitle(new String(data, sep + 1, length - sep - 1, StandardCharsets.UTF_8));
+        }
+    }
+
+    private final class Actions implements VtParser.Handler {
+
+        @Override
+        public void print(int codePoint) {
+            MinimalAnsiParser.this.print(codePoint);
+        }
+
+        @Override
+        public void print(int[] codePoints, int off, int count) {
+            MinimalAnsiParser.this.print(codePoints, off, count);
+        }
+
+        @Override
+        public void execute(int control) {
+            MinimalAnsiParser.this.execute(control);
+        }
+
+        @Override
+        public void csiDispatch(int finalByte, int intermediates, int[] params, int paramCount) {
+            MinimalAnsiParser.this.csiDispatch(finalByte, intermediates, params, paramCount);
+        }
+
+        @Override
+        public void escDispatch(int finalByte, int intermediates) {
+            MinimalAnsiParser.this.escDispatch(finalByte, intermediates);
+        }
+
+        @Override
+        public void oscDispatch(byte[] data, int length) {
+            MinimalAnsiParser.this.oscDispatch(data, length);
+        }
     }
 }
@@ -0,0 +1,350 @@
+package org.mosh4j.terminal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Speculative local echo, modeled on mosh's {@code PredictionEngine}: typed printable
+ * characters, backspace, left/right arrows and carriage return are predicted on top of the
+ * last screen received from the server ({@link #overlay()}), so they show up without waiting
+ * a round trip.
+ * <p>
+ * Each prediction remembers the user-input state number that carries its keystroke. Once
+ * the server's {@code EchoAck} reaches that number the host has had the input long enough
+ * to echo it, and the prediction is checked against the server's screen
+ * ({@link #serverState}): a match confirms it, a mismatch discards all predictions.
+ * <p>
+ * Predictions are grouped in epochs. Input that cannot be predicted (control keys, other
+ * escape sequences, non-ASCII text) starts a new epoch, whose predictions stay hidden until
+ * one of them is confirmed; this keeps e.g. password prompts from echoing locally.
+ * <p>
+ * In {@link DisplayPreference#ADAPTIVE} mode predictions are shown only when the smoothed
+ * RTT is above {@value #SRTT_TRIGGER_HIGH_MS} ms or confirmations are slow (a glitch), and
+ * underlined while unconfirmed when the RTT is above {@value #FLAG_TRIGGER_HIGH_MS} ms or
+ * a glitch persists. Thread-safe.
+ */
+public final class PredictionEngine {
+
+    /** When predictions are shown. */
+    public enum DisplayPreference {
+        /** Always show predictions. */
+        ALWAYS,
+        /** Never predict. */
+        NEVER,
+        /** Show predictions on slow or glitchy links only (mosh's default). */
+        ADAPTIVE
+    }
+
+    static final long SRTT_TRIGGER_LOW_MS = 20;
+    static final long SRTT_TRIGGER_HIGH_MS = 30;
+    static final long FLAG_TRIGGER_LOW_MS = 50;
+    static final long FLAG_TRIGGER_HIGH_MS = 80;
+    /** A prediction unconfirmed for this long is a glitch: predictions are shown and flagged. */
+    static final long GLITCH_THRESHOLD_MS = 250;
+    /** Quick confirmations needed to end a glitch. */
+    static final int GLITCH_REPAIR_COUNT = 10;
+    static final long GLITCH_REPAIR_MIN_INTERVAL_MS = 150;
+    /** A prediction unconfirmed for this long keeps predictions underlined until repaired. */
+    static final long GLITCH_FLAG_THRESHOLD_MS = 5000;
+
+    private static final int NORMAL = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int SS3 = 3;
+
+    private record CellPrediction(Cell cell, long frame, long epoch, long createdMs) {}
+
+    /** By {@code row * width + col}, oldest first; a newer prediction for a cell replaces the older. */
+    private final Map<Integer, CellPrediction> cells = new LinkedHashMap<>();
+    private boolean cursorPredicted;
+    private int cursorRow;
+    private int cursorCol;
+    private long cursorFrame;
+    private long cursorEpoch;
+
+    private DisplayPreference preference = DisplayPreference.ADAPTIVE;
+    private FramebufferSnapshot server;
+    private long predictionEpoch = 1;
+    private long confirmedEpoch;
+    private boolean srttTrigger;
+    private boolean flagging;
+    private int glitchTrigger;
+    private long lastQuickConfirmationMs;
+    private int inputState = NORMAL;
+
+    public synchronized void setDisplayPreference(DisplayPreference preference) {
+        this.preference = preference;
+        if (preference == DisplayPreference.NEVER) {
+            reset();
+        }
+    }
+
+    public synchronized DisplayPreference getDisplayPreference() {
+        return preference;
+    }
+
+    /**
+     * Predict the effect of keys the user typed.
+     *
+     * @param frame number of the user-input state that will carry these keys
+     */
+    public synchronized void newUserInput(byte[] keys, long frame, long nowMs) {
+        if (preference == DisplayPreference.NEVER || server == null) return;
+        for (byte key : keys) {
+            int b = key & 0xFF;
+            switch (inputState) {
+                case NORMAL -> {
+                    if (b == 0x1B) {
+                        inputState = ESCAPE;
+                    } else if (b >= 0x20 && b < 0x7F) {
+                        predictPrintable(b, frame, nowMs);
+                    } else if (b == 0x7F || b == 0x08) {
+                        predictBackspace(frame, nowMs);
+                    } else if (b == '\r') {
+                        becomeTentative();
+                        predictNewline(frame);
+                    } else {
+                        becomeTentative();
+                    }
+                }
+                case ESCAPE -> {
+                    if (b == '[') {
+                        inputState = CSI;
+                    } else if (b == 'O') {
+                        inputState = SS3;
+                    } else {
+                        becomeTentative();
+                        inputState = NORMAL;
+                    }
+                }
+                default -> {
+                    if (b == 'C' || b == 'D') {
+                        predictCursorMove(b == 'C' ? 1 : -1, frame);
+                        inputState = NORMAL;
+                    } else if (inputState == CSI && b >= 0x20 && b < 0x40) {
+                        becomeTentative(); // parameters: not a plain arrow key
+                    } else {
+                        becomeTentative();
+                        inputState = NORMAL;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A new server screen arrived: check predictions the server has had a chance to echo
+     * ({@code frame <= echoAck}) and update the display triggers.
+     */
+    public synchronized void serverState(FramebufferSnapshot screen, long echoAck, long srttMs, long nowMs) {
+        FramebufferSnapshot previous = server;
+        server = screen;
+        updateTriggers(srttMs);
+        if (preference == DisplayPreference.NEVER) return;
+        if (previous != null && (previous.getWidth() != screen.getWidth() || previous.getHeight() != screen.getHeight())) {
+            reset();
+            return;
+        }
+        int width = screen.getWidth();
+        for (Iterator<Map.Entry<Integer, CellPrediction>> it = cells.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, CellPrediction> entry = it.next();
+            CellPrediction p = entry.getValue();
+            long age = nowMs - p.createdMs();
+            if (p.frame() > echoAck) {
+                if (age >= GLITCH_FLAG_THRESHOLD_MS) {
+                    glitchTrigger = 2 * GLITCH_REPAIR_COUNT;
+                } else if (age >= GLITCH_THRESHOLD_MS && glitchTrigger < GLITCH_REPAIR_COUNT) {
+                    glitchTrigger = GLITCH_REPAIR_COUNT;
+                }
+                continue;
+            }
+            Cell actual = screen.getCell(entry.getKey() / width, entry.getKey() % width);
+            if (!sameText(actual, p.cell())) {
+                reset();
+                return;
+            }
+            confirm(p.epoch(), age, nowMs);
+            it.remove();
+        }
+        if (cursorPredicted && cursorFrame <= echoAck) {
+            if (screen.getCursorRow() != cursorRow || screen.getCursorCol() != cursorCol) {
+                reset();
+                return;
+            }
+            confirmedEpoch = Math.max(confirmedEpoch, cursorEpoch);
+            cursorPredicted = false;
+        }
+    }
+
+    /**
+     * The last server screen with the predictions that are to be shown applied; null before
+     * the first {@link #serverState}.
+     */
+    public synchronized FramebufferSnapshot overlay() {
+        FramebufferSnapshot screen = server;
+        if (screen == null || !isDisplayActive()) return screen;
+        boolean showCursor = cursorPredicted && cursorEpoch <= confirmedEpoch;
+        boolean any = showCursor;
+        for (CellPrediction p : cells.values()) {
+            any |= p.epoch() <= confirmedEpoch;
+        }
+        if (!any) return screen;
+
+        int width = screen.getWidth();
+        CellRow[] rows = new CellRow[screen.getHeight()];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = screen.row(r);
+        }
+        for (Map.Entry<Integer, CellPrediction> entry : cells.entrySet()) {
+            CellPrediction p = entry.getValue();
+            if (p.epoch() > confirmedEpoch) continue;
+            int r = entry.getKey() / width;
+            if (rows[r] == screen.row(r)) {
+                rows[r] = rows[r].copy();
+            }
+            int col = entry.getKey() % width;
+            rows[r].set(col, p.cell());
+            if (flagging) {
+                rows[r].addRenditions(col, col + 1, Cell.UNDERLINED);
+            }
+        }
+        return new FramebufferSnapshot(width, screen.getHeight(), rows,
+                showCursor ? cursorRow : screen.getCursorRow(), showCursor ? cursorCol : screen.getCursorCol(),
+                screen.isCursorVisible(), screen.getTitle());
+    }
+
+    /**
+     * Whether any prediction is outstanding.
+     */
+    public synchronized boolean hasPredictions() {
+        return !cells.isEmpty() || cursorPredicted;
+    }
+
+    /**
+     * Drop all predictions and start a new, tentative epoch.
+     */
+    public synchronized void reset() {
+        cells.clear();
+        cursorPredicted = false;
+        becomeTentative();
+    }
+
+    private boolean isDisplayActive() {
+        return preference == DisplayPreference.ALWAYS
+                || (preference == DisplayPreference.ADAPTIVE && (srttTrigger || glitchTrigger > 0));
+    }
+
+    private void updateTriggers(long srttMs) {
+        if (srttMs > SRTT_TRIGGER_HIGH_MS) {
+            srttTrigger = true;
+        } else if (srttMs <= SRTT_TRIGGER_LOW_MS && !hasPredictions()) {
+            srttTrigger = false; // only switch off between predictions, so none vanish mid-word
+        }
+        if (srttMs > FLAG_TRIGGER_HIGH_MS) {
+            flagging = true;
+        } else if (srttMs <= FLAG_TRIGGER_LOW_MS) {
+            flagging = false;
+        }
+        if (glitchTrigger > GLITCH_REPAIR_COUNT) {
+            flagging = true;
+        }
+    }
+
+    private void confirm(long epoch, long ageMs, long nowMs) {
+        confirmedEpoch = Math.max(confirmedEpoch, epoch);
+        if (ageMs < GLITCH_THRESHOLD_MS && glitchTrigger > 0
+                && nowMs - lastQuickConfirmationMs >= GLITCH_REPAIR_MIN_INTERVAL_MS) {
+            glitchTrigger--;
+            lastQuickConfirmationMs = nowMs;
+        }
+    }
+
+    private void becomeTentative() {
+        predictionEpoch++;
+    }
+
+    private void predictPrintable(int ch, long frame, long nowMs) {
+        int width = server.getWidth();
+        int row = cursorRow();
+        int col = cursorCol();
+        if (col >= width - 1) {
+            becomeTentative(); // wrapping is left to the server
+            return;
+        }
+        for (int c = width - 1; c > col; c--) {
+            predictCell(row, c, currentCell(row, c - 1), frame, nowMs);
+        }
+        predictCell(row, col, new Cell(new int[]{ch}, 1, 0, 0, 0), frame, nowMs);
+        predictCursor(row, col + 1, frame);
+    }
+
+    private void predictBackspace(long frame, long nowMs) {
+        int width = server.getWidth();
+        int row = cursorRow();
+        int col = cursorCol();
+        if (col == 0) {
+            becomeTentative();
+            return;
+        }
+        for (int c = col - 1; c < width - 1; c++) {
+            predictCell(row, c, currentCell(row, c + 1), frame, nowMs);
+        }
+        predictCell(row, width - 1, Cell.blank(), frame, nowMs);
+        predictCursor(row, col - 1, frame);
+    }
+
+    private void predictCursorMove(int delta, long frame) {
+        int col = cursorCol() + delta;
+        if (col < 0 || col >= server.getWidth()) {
+            becomeTentative();
+            return;
+        }
+        predictCursor(cursorRow(), col, frame);
+    }
+
+    private void predictNewline(long frame) {
+        int row = cursorRow();
+        if (row < server.getHeight() - 1) {
+            predictCursor(row + 1, 0, frame);
+        }
+    }
+
+    private void predictCell(int row, int col, Cell cell, long frame, long nowMs) {
+        if (sameText(currentCell(row, col), cell)) return;
+        Integer index = row * server.getWidth() + col;
+        cells.remove(index); // re-insert as the newest
+        cells.put(index, new CellPrediction(cell, frame, predictionEpoch, nowMs));
+    }
+
+    private void predictCursor(int row, int col, long frame) {
+        cursorPredicted = true;
+        cursorRow = row;
+        cursorCol = col;
+        cursorFrame = frame;
+        cursorEpoch = predictionEpoch;
+    }
+
+    private Cell currentCell(int row, int col) {
+        CellPrediction p = cells.get(row * server.getWidth() + col);
+        return p != null ? p.cell() : server.getCell(row, col);
+    }
+
+    private int cursorRow() {
+        return cursorPredicted ? cursorRow : Math.min(server.getCursorRow(), server.getHeight() - 1);
+    }
+
+    private int cursorCol() {
+        return cursorPredicted ? cursorCol : Math.min(server.getCursorCol(), server.getWidth() - 1);
+    }
+
+    private static boolean sameText(Cell a, Cell b) {
+        if (a == b) return true;
+        if (a == null || b == null) return a == null ? b.isBlank() : a.isBlank();
+        if (a.getWidth() != b.getWidth() || a.getCodePointCount() != b.getCodePointCount()) return false;
+        for (int i = 0; i < a.getCodePointCount(); i++) {
+            if (a.getCodePoint(i) != b.getCodePoint(i)) return false;
+        }
+        return true;
+    }
+}
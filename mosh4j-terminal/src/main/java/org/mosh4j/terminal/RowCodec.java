@@ -0,0 +1,348 @@
+package org.mosh4j.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable byte buffer with the binary encoding of {@link CellRow}s, shared by the framebuffer
+ * state and the {@link Scrollback}. A printable single-width character is written as its
+ * UTF-8 bytes; everything else is an opcode below 0x08 followed by varints:
+ * <ul>
+ *   <li>{@code 0x00}: end of row, the remaining cells are default blanks</li>
+ *   <li>{@code 0x01 n}: n default blanks</li>
+ *   <li>{@code 0x02 s}: style of the following cells</li>
+ *   <li>{@code 0x03 cp}: double-width character</li>
+ *   <li>{@code 0x04}: continuation cell, the right half of a double-width character</li>
+ *   <li>{@code 0x05 width n cp...}: any other cell</li>
+ * </ul>
+ * How a {@link Style} is written after {@code 0x02} is up to a {@link StyleCoder}: in full,
+ * or as an index into a style table of the caller's own.
+ * <p>
+ * Reading throws {@link ArrayIndexOutOfBoundsException} on truncated input and
+ * {@link IllegalArgumentException} on anything else malformed. Not thread-safe.
+ */
+final class RowCodec {
+
+    private static final int END = 0x00;
+    private static final int BLANKS = 0x01;
+    private static final int STYLE = 0x02;
+    private static final int WIDE = 0x03;
+    private static final int CONTINUATION = 0x04;
+    private static final int CLUSTER = 0x05;
+    private static final int FIRST_PRINTABLE = 0x08;
+
+    /**
+     * Writes and reads the style operand of a style change.
+     */
+    interface StyleCoder {
+
+        void put(RowCodec out, long style);
+
+        long get(RowCodec in);
+    }
+
+    /** Each style written in full, as a varint of its {@link Style} word. */
+    static final StyleCoder INLINE = new StyleCoder() {
+        @Override
+        public void put(RowCodec out, long style) {
+            out.putVarlong(style);
+        }
+
+        @Override
+        public long get(RowCodec in) {
+            return in.getVarlong();
+        }
+    };
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    RowCodec(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Start writing at the beginning of the buffer.
+     */
+    void clear() {
+        pos = 0;
+        limit = buf.length;
+    }
+
+    /**
+     * Read {@code bytes[off, off + len)}; the array is used in place until the next call.
+     */
+    void wrap(byte[] bytes, int off, int len) {
+        buf = bytes;
+        pos = off;
+        limit = off + len;
+    }
+
+    boolean hasRemaining() {
+        return pos < limit;
+    }
+
+    void putByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    void putVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    void putVarlong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    void putBytes(byte[] bytes) {
+        putVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    int getByte() {
+        if (pos >= limit) throw new ArrayIndexOutOfBoundsException(pos);
+        return buf[pos++] & 0xFF;
+    }
+
+    int getVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = getByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    long getVarlong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = getByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /**
+     * Length-prefixed bytes as a string; {@code new String} copies them, so this is the one
+     * read that allocates.
+     */
+    String getString() {
+        int len = getVarint();
+        if (len > limit - pos) throw new ArrayIndexOutOfBoundsException(pos + len);
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    /**
+     * Write {@code row}, its styles through {@code styles}.
+     */
+    void putRow(CellRow row, StyleCoder styles) {
+        int used = row.width();
+        while (used > 0 && row.isBlank(used - 1, used)) used--;
+        long style = Style.DEFAULT;
+        for (int c = 0; c < used; c++) {
+            int width = row.cellWidth(c);
+            long s = row.style(c);
+            if (s != style) {
+                putByte(STYLE);
+                styles.put(this, s);
+                style = s;
+            }
+            ensure(16);
+            int n = row.codePointCount(c);
+            if (n == 1) {
+                int cp = row.codePointAt(c, 0);
+                if (width == 1 && cp == ' ' && s == Style.DEFAULT) {
+                    int end = c + 1;
+                    while (end < used && row.isBlank(end, end + 1)) end++;
+                    if (end - c > 1) {
+                        buf[pos++] = BLANKS;
+                        putVarint(end - c);
+                        c = end - 1;
+                        continue;
+                    }
+                }
+                if (width == 1 && cp >= FIRST_PRINTABLE && isScalarValue(cp)) {
+                    putUtf8(cp);
+                    continue;
+                }
+                if (width == 2) {
+                    buf[pos++] = WIDE;
+                    putVarint(cp);
+                    continue;
+                }
+                if (width == 0 && cp == 0) {
+                    buf[pos++] = CONTINUATION;
+                    continue;
+                }
+            }
+            buf[pos++] = CLUSTER;
+            putVarint(width);
+            putVarint(n);
+            for (int i = 0; i < n; i++) {
+                putVarint(row.codePointAt(c, i));
+            }
+        }
+        putByte(END);
+    }
+
+    /**
+     * Write a row of default blanks.
+     */
+    void putEmptyRow() {
+        putByte(END);
+    }
+
+    /**
+     * Read a row into {@code row}, overwriting every cell, its styles through
+     * {@code styles}. Cells beyond the row's width are dropped.
+     */
+    void getRow(CellRow row, StyleCoder styles) {
+        int width = row.width();
+        long style = Style.DEFAULT;
+        int c = 0;
+        while (true) {
+            int b = getByte();
+            if (b >= FIRST_PRINTABLE) {
+                int cp = getUtf8(b);
+                if (c < width) row.set(c++, cp, 1, style);
+                continue;
+            }
+            switch (b) {
+                case END -> {
+                    if (c < width) row.fill(c, width, ' ', 1, Style.DEFAULT);
+                    return;
+                }
+                case BLANKS -> {
+                    int end = (int) Math.min(width, (long) c + getVarint());
+                    row.fill(c, end, ' ', 1, Style.DEFAULT);
+                    c = Math.max(c, end);
+                }
+                case STYLE -> style = styles.get(this);
+                case WIDE -> {
+                    int cp = getCodePoint();
+                    if (c < width) row.set(c++, cp, 2, style);
+                }
+                case CONTINUATION -> {
+                    if (c < width) row.set(c++, 0, 0, style);
+                }
+                case CLUSTER -> {
+                    int cellWidth = getVarint();
+                    int n = getVarint();
+                    if (cellWidth > 2 || n == 0 || n > limit - pos) {
+                        throw new IllegalArgumentException("bad cell");
+                    }
+                    if (n == 1) {
+                        int cp = getCodePoint();
+                        if (c < width) row.set(c++, cp, cellWidth, style);
+                    } else {
+                        int[] codePoints = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            codePoints[i] = getCodePoint();
+                        }
+                        if (c < width) row.setCluster(c++, codePoints, cellWidth, style);
+                    }
+                }
+                default -> throw new IllegalArgumentException("bad row opcode " + b);
+            }
+        }
+    }
+
+    private void putUtf8(int cp) {
+        if (cp < 0x80) {
+            buf[pos++] = (byte) cp;
+        } else if (cp < 0x800) {
+            buf[pos++] = (byte) (0xC0 | cp >> 6);
+            buf[pos++] = (byte) (0x80 | cp & 0x3F);
+        } else if (cp < 0x10000) {
+            buf[pos++] = (byte) (0xE0 | cp >> 12);
+            buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            buf[pos++] = (byte) (0x80 | cp & 0x3F);
+        } else {
+            buf[pos++] = (byte) (0xF0 | cp >> 18);
+            buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+            buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            buf[pos++] = (byte) (0x80 | cp & 0x3F);
+        }
+    }
+
+    /**
+     * Strict UTF-8: stray continuation bytes, overlong forms, surrogates and anything beyond
+     * U+10FFFF are rejected rather than decoded to something the writer never wrote.
+     */
+    private int getUtf8(int lead) {
+        if (lead < 0x80) return lead;
+        int extra;
+        int min;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            extra = 1;
+            min = 0x80;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            extra = 2;
+            min = 0x800;
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            extra = 3;
+            min = 0x10000;
+        } else {
+            throw new IllegalArgumentException("bad UTF-8 lead byte " + lead);
+        }
+        int cp = lead & (0x3F >> extra);
+        for (int i = 0; i < extra; i++) {
+            int b = getByte();
+            if ((b & 0xC0) != 0x80) throw new IllegalArgumentException("bad UTF-8 continuation byte " + b);
+            cp = cp << 6 | b & 0x3F;
+        }
+        if (cp < min || cp > Character.MAX_CODE_POINT || cp >= 0xD800 && cp <= 0xDFFF) {
+            throw new IllegalArgumentException("bad UTF-8 sequence for U+" + Integer.toHexString(cp));
+        }
+        return cp;
+    }
+
+    /**
+     * Whether {@code cp} has a UTF-8 form; other code points are written as varints.
+     */
+    private static boolean isScalarValue(int cp) {
+        return cp <= Character.MAX_CODE_POINT && (cp < 0xD800 || cp > 0xDFFF);
+    }
+
+    private int getCodePoint() {
+        return checkCodePoint(getVarint());
+    }
+
+    private static int checkCodePoint(int cp) {
+        if (cp < 0 || cp > Character.MAX_CODE_POINT) throw new IllegalArgumentException("bad code point");
+        return cp;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            limit = buf.length;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.mosh4j.terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * History of rows scrolled off the top of a framebuffer, kept off-heap in segments of a
+ * {@link ScrollbackPool}. Lines are numbered from 0 in the order they were appended; a store
+ * holds lines {@link #getFirstLine()} up to {@link #getEndLine()} and drops its oldest
+ * segment when it runs over its own budget or the pool reclaims it for another store.
+ * <p>
+ * Lines are stored in the {@link RowCodec} encoding, prefixed by their width, with each
+ * {@link Style} written out in full.
+ */
+public final class Scrollback {
+
+    private final ScrollbackPool pool;
+    private final int maxSegments;
+    /** Guarded by the pool. */
+    private final ArrayDeque<ScrollbackPool.Segment> segments = new ArrayDeque<>();
+    private long firstLine;
+    private long endLine;
+    /** Guarded by this store. */
+    private final RowCodec encoder = new RowCodec(256);
+
+    /**
+     * Store in the {@linkplain ScrollbackPool#shared() shared pool}.
+     */
+    public Scrollback(long maxBytes) {
+        this(ScrollbackPool.shared(), maxBytes);
+    }
+
+    /**
+     * @param pool     off-heap segments to store lines in
+     * @param maxBytes budget of this store, rounded down to whole segments (at least one)
+     */
+    public Scrollback(ScrollbackPool pool, long maxBytes) {
+        this.pool = pool;
+        this.maxSegments = (int) Math.clamp(maxBytes / pool.getSegmentBytes(), 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Number of the oldest line still held.
+     */
+    public long getFirstLine() {
+        synchronized (pool) {
+            return firstLine;
+        }
+    }
+
+    /**
+     * Number the next appended line will get.
+     */
+    public long getEndLine() {
+        synchronized (pool) {
+            return endLine;
+        }
+    }
+
+    /**
+     * Off-heap bytes held by this store.
+     */
+    public long getUsedBytes() {
+        synchronized (pool) {
+            return (long) segments.size() * pool.getSegmentBytes();
+        }
+    }
+
+    /**
+     * Cells of line {@code line}, as wide as the framebuffer was when it scrolled off, or
+     * {@code null} if the line has been evicted or not yet appended.
+     */
+    public Cell[] getLine(long line) {
+        byte[] bytes = lineBytes(line);
+        return bytes == null ? null : decode(bytes);
+    }
+
+    /**
+     * Text of line {@code line} without trailing blanks, or {@code null} if the line is not
+     * held.
+     */
+    public String getLineText(long line) {
+        Cell[] cells = getLine(line);
+        if (cells == null) return null;
+        StringBuilder sb = new StringBuilder(cells.length);
+        for (Cell cell : cells) {
+            for (int i = 0; i < cell.getCodePointCount(); i++) {
+                int cp = cell.getCodePoint(i);
+                if (cp > 0) sb.appendCodePoint(cp);
+            }
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    /**
+     * Drop every line and give the segments back to the pool. Line numbers keep counting.
+     */
+    public void clear() {
+        synchronized (pool) {
+            pool.releaseAll(this);
+            segments.clear();
+            firstLine = endLine;
+        }
+    }
+
+    /**
+     * Append {@code row} as the next line.
+     */
+    synchronized void append(CellRow row) {
+        encoder.clear();
+        encoder.putVarint(row.width());
+        encoder.putRow(row, RowCodec.INLINE);
+        if (encoder.position() > pool.getSegmentBytes() - 4) {
+            // a few thousand columns of combined characters: keep the line, but blank
+            encoder.clear();
+            encoder.putVarint(row.width());
+            encoder.putEmptyRow();
+        }
+        int len = encoder.position();
+        synchronized (pool) {
+            ScrollbackPool.Segment tail = segments.peekLast();
+            if (tail == null || tail.freeBytes() < len + 4) {
+                if (segments.size() >= maxSegments) {
+                    tail = pool.reuse(dropOldest());
+                } else {
+                    tail = pool.acquire(this);
+                }
+                tail.firstLine = endLine;
+                segments.addLast(tail);
+            }
+            tail.append(encoder.buffer(), len);
+            endLine++;
+        }
+    }
+
+    /**
+     * Append the rows of {@code last} that {@code next} shows scrolled off the top, for a
+     * screen that changed to {@code next} without being scrolled line by line (a redraw
+     * computed from two states). Only a scroll that leaves part of {@code last} on screen is
+     * recognised; nothing is appended if the size changed.
+     */
+    public void appendScrolledOff(FramebufferSnapshot last, FramebufferSnapshot next) {
+        if (last.getWidth() != next.getWidth() || last.getHeight() != next.getHeight()) return;
+        CellRow[] old = new CellRow[last.getHeight()];
+        for (int r = 0; r < old.length; r++) {
+            old[r] = last.row(r);
+        }
+        int lines = FramebufferDiff.scrolledLines(old, next);
+        for (int r = 0; r < lines; r++) {
+            append(old[r]);
+        }
+    }
+
+    /**
+     * The pool took {@code segment}, the oldest of this store, for another owner.
+     */
+    void evicted(ScrollbackPool.Segment segment) {
+        ScrollbackPool.Segment oldest = dropOldest();
+        assert oldest == segment;
+    }
+
+    private ScrollbackPool.Segment dropOldest() {
+        ScrollbackPool.Segment oldest = segments.pollFirst();
+        ScrollbackPool.Segment next = segments.peekFirst();
+        firstLine = next != null ? next.firstLine : endLine;
+        return oldest;
+    }
+
+    private byte[] lineBytes(long line) {
+        synchronized (pool) {
+            if (line < firstLine || line >= endLine) return null;
+            for (ScrollbackPool.Segment segment : segments) {
+                long index = line - segment.firstLine;
+                if (index < segment.lineCount) {
+                    int start = segment.lineStart((int) index);
+                    byte[] bytes = new byte[segment.lineEnd((int) index) - start];
+                    segment.buffer.get(start, bytes);
+                    return bytes;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static Cell[] decode(byte[] bytes) {
+        RowCodec in = new RowCodec(0);
+        in.wrap(bytes, 0, bytes.length);
+        CellRow row = new CellRow(in.getVarint());
+        in.getRow(row, RowCodec.INLINE);
+        Cell[] cells = new Cell[row.width()];
+        for (int c = 0; c < cells.length; c++) {
+            cells[c] = row.cell(c);
+        }
+        return cells;
+    }
+}
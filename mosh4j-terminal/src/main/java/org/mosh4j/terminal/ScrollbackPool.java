@@ -0,0 +1,155 @@
+package org.mosh4j.terminal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Off-heap memory shared by a set of {@link Scrollback} stores, in fixed-size segments of
+ * direct buffers. The pool never holds more than its byte budget: once it is spent, a store
+ * that needs a segment takes the oldest one in use, whichever store owns it. Segments are
+ * reused rather than freed, so the heap holds only one small object per segment.
+ * <p>
+ * All stores of a pool synchronize on it; an append holds the lock only while copying one
+ * encoded line.
+ */
+public final class ScrollbackPool {
+
+    /** Default segment size; a row of a few hundred columns takes well under a kilobyte. */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+
+    private static final Object SHARED_LOCK = new Object();
+    private static ScrollbackPool shared;
+
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private int allocated;
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+    /** Segments owned by a store, oldest first. */
+    private final ArrayDeque<Segment> inUse = new ArrayDeque<>();
+
+    /**
+     * @param maxBytes     budget for all stores together; at least one segment is allowed
+     * @param segmentBytes segment size, the unit of allocation and eviction
+     */
+    public ScrollbackPool(long maxBytes, int segmentBytes) {
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1024");
+        }
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.clamp(maxBytes / segmentBytes, 1, Integer.MAX_VALUE);
+        this.maxBytes = (long) maxSegments * segmentBytes;
+    }
+
+    /**
+     * Process-wide pool of 64 MiB for stores created without one; never shrinks.
+     */
+    public static ScrollbackPool shared() {
+        synchronized (SHARED_LOCK) {
+            if (shared == null) {
+                shared = new ScrollbackPool(64L * 1024 * 1024, DEFAULT_SEGMENT_BYTES);
+            }
+            return shared;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Bytes of segments currently owned by stores.
+     */
+    public synchronized long getUsedBytes() {
+        return (long) inUse.size() * segmentBytes;
+    }
+
+    /**
+     * Empty segment for {@code owner}: a free one, a new one within the budget, or the
+     * oldest segment in use, which its store loses. The caller holds this pool's lock, as
+     * for the other segment operations.
+     */
+    Segment acquire(Scrollback owner) {
+        Segment segment = free.pollFirst();
+        if (segment == null && allocated < maxSegments) {
+            segment = new Segment(ByteBuffer.allocateDirect(segmentBytes));
+            allocated++;
+        }
+        if (segment == null) {
+            segment = inUse.pollFirst();
+            segment.owner.evicted(segment);
+        }
+        segment.reset(owner);
+        inUse.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Take {@code segment}, the oldest of its store, back from its owner and hand it to the
+     * same store as its newest.
+     */
+    Segment reuse(Segment segment) {
+        inUse.remove(segment);
+        segment.reset(segment.owner);
+        inUse.addLast(segment);
+        return segment;
+    }
+
+    void releaseAll(Scrollback owner) {
+        for (Iterator<Segment> it = inUse.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment.owner == owner) {
+                it.remove();
+                segment.owner = null;
+                free.addFirst(segment);
+            }
+        }
+    }
+
+    /**
+     * Slotted page of encoded lines: line bytes grow from the front, the end offset of each
+     * line is stored as an int growing down from the back.
+     */
+    static final class Segment {
+
+        final ByteBuffer buffer;
+        Scrollback owner;
+        long firstLine;
+        int lineCount;
+        int dataEnd;
+
+        private Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void reset(Scrollback owner) {
+            this.owner = owner;
+            this.lineCount = 0;
+            this.dataEnd = 0;
+        }
+
+        int freeBytes() {
+            return buffer.capacity() - dataEnd - 4 * lineCount;
+        }
+
+        void append(byte[] line, int len) {
+            buffer.put(dataEnd, line, 0, len);
+            dataEnd += len;
+            lineCount++;
+            buffer.putInt(buffer.capacity() - 4 * lineCount, dataEnd);
+        }
+
+        int lineStart(int index) {
+            return index == 0 ? 0 : lineEnd(index - 1);
+        }
+
+        int lineEnd(int index) {
+            return buffer.getInt(buffer.capacity() - 4 * (index + 1));
+        }
+    }
+}
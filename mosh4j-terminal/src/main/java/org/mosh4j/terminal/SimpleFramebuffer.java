@@ -1,30 +1,79 @@
 package org.mosh4j.terminal;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- * Minimal framebuffer: fixed size grid, simple ANSI handling (cursor move, clear, basic SGR).
+ * Minimal framebuffer: fixed size grid, updated from host output by a {@link MinimalAnsiParser}.
+ * <p>
+ * Each row is stored packed, as parallel primitive arrays of code points, style words and
+ * widths; {@link #getCell} returns a {@link Cell} view, shared for plain ASCII. Printing,
+ * {@link #fill}, {@link #clearRegion} and {@link #copyRows} write the arrays directly and
+ * allocate nothing per cell.
+ * <p>
+ * Rows are copy-on-write: {@link #snapshot()} shares the current rows with the snapshot in
+ * O(1), and a row is copied only when it is next written. Successive snapshots therefore
+ * share every row that did not change between them.
+ * <p>
+ * The row array is a ring: screen row {@code r} is slot {@code (base + r) % height}. A
+ * whole-screen scroll moves {@code base} and reuses the rows that scrolled off as the new
+ * blank ones, so a line feed on the bottom row costs O(1) row operations; scrolling part of
+ * the screen (a scroll region, inserted or deleted lines) rotates only the rows of that
+ * region. No cells are copied either way.
  */
 public class SimpleFramebuffer implements Framebuffer {
 
     private int width;
     private int height;
-    private Cell[][] cells;
+    /** Ring of rows; screen row 0 is slot {@link #base}. */
+    private CellRow[] rows;
+    private int base;
+    /** Whether {@link #rows} itself is referenced by a snapshot. */
+    private boolean rowsShared;
+    /**
+     * Generation in which each slot's row was copied; rows of older generations belong to
+     * snapshots.
+     */
+    private int[] rowGeneration;
+    private int generation;
     private int cursorRow;
     private int cursorCol;
     private boolean cursorVisible = true;
     private String title = "";
     private final MinimalAnsiParser ansiParser;
+    private Scrollback scrollback;
+
+    private static final int STATE_VERSION = 1;
+    private static final byte[] EMPTY_STATE = new byte[0];
+    /** Buffer the state is encoded into, created on first use and kept for the next call. */
+    private RowCodec stateWriter;
+    /** Reads the caller's array in place; holds no buffer of its own. */
+    private RowCodec stateReader;
+    /** Styles of the state being encoded, numbered in order of first use. */
+    private final StyleIndex stateStyleIndex = new StyleIndex();
+    /** Styles of the state being decoded, 1-based (0 unused). */
+    private long[] stateStyles = new long[16];
+    private int stateStyleCount;
+    /** Styles in the state as indexes into its style list, 0 being the default style. */
+    private final RowCodec.StyleCoder stateStyleCoder = new RowCodec.StyleCoder() {
+        @Override
+        public void put(RowCodec out, long style) {
+            out.putVarint(style == Style.DEFAULT ? 0 : stateStyleIndex.add(style));
+        }
+
+        @Override
+        public long get(RowCodec in) {
+            int index = in.getVarint();
+            if (index < 0 || index > stateStyleCount) throw new IllegalArgumentException("bad style index " + index);
+            return index == 0 ? Style.DEFAULT : stateStyles[index];
+        }
+    };
 
     public SimpleFramebuffer(int width, int height) {
         this.width = Math.max(1, width);
         this.height = Math.max(1, height);
-        this.cells = new Cell[height][width];
-        for (int r = 0; r < height; r++) {
-            for (int c = 0; c < width; c++) {
-                cells[r][c] = Cell.blank();
-            }
-        }
+        this.rows = blankRows(this.width, this.height);
+        this.rowGeneration = new int[this.height];
         this.cursorRow = 0;
         this.cursorCol = 0;
         this.ansiParser = new MinimalAnsiParser(this);
@@ -43,17 +92,287 @@ public class SimpleFramebuffer implements Framebuffer {
     @Override
     public synchronized Cell getCell(int row, int col) {
         if (row >= 0 && row < height && col >= 0 && col < width) {
-            return cells[row][col];
+            return rows[slot(row)].cell(col);
         }
         return Cell.blank();
     }
 
     synchronized void setCell(int row, int col, Cell cell) {
         if (row >= 0 && row < height && col >= 0 && col < width) {
-            cells[row][col] = cell;
+            if (rows[slot(row)].cellEquals(col, cell)) return;
+            writableRow(row).set(col, cell);
+        }
+    }
+
+    /**
+     * Put one code point of the given width and {@link Style} at {@code row, col}.
+     */
+    synchronized void putCodePoint(int row, int col, int codePoint, int cellWidth, long style) {
+        if (row >= 0 && row < height && col >= 0 && col < width) {
+            if (rows[slot(row)].cellEquals(col, codePoint, cellWidth, style)) return;
+            CellRow target = writableRow(row);
+            splitWideChars(target, col, col + 1);
+            target.set(col, codePoint, cellWidth, style);
         }
     }
 
+    /**
+     * Put single-width code points {@code codePoints[off..off+count)} at {@code row, col}; the
+     * run must fit in the row.
+     */
+    synchronized void putCodePoints(int row, int col, int[] codePoints, int off, int count, long style) {
+        if (row < 0 || row >= height || col < 0 || count <= 0 || col + count > width) return;
+        if (rows[slot(row)].runEquals(col, codePoints, off, count, style)) return;
+        CellRow target = writableRow(row);
+        splitWideChars(target, col, col + count);
+        target.setRun(col, codePoints, off, count, style);
+    }
+
+    /**
+     * Put a double-width code point at {@code row, col} and its continuation cell after it.
+     */
+    synchronized void putWideCodePoint(int row, int col, int codePoint, long style) {
+        if (row < 0 || row >= height || col < 0 || col + 1 >= width) return;
+        CellRow current = rows[slot(row)];
+        if (current.cellEquals(col, codePoint, 2, style) && current.cellEquals(col + 1, 0, 0, style)) return;
+        CellRow target = writableRow(row);
+        splitWideChars(target, col, col + 2);
+        target.set(col, codePoint, 2, style);
+        target.set(col + 1, 0, 0, style);
+    }
+
+    /**
+     * Add a zero-width code point (a combining mark) to the cell at {@code row, col}, or to
+     * the double-width character it continues.
+     */
+    synchronized void combine(int row, int col, int codePoint) {
+        if (row < 0 || row >= height || col < 0 || col >= width) return;
+        if (col > 0 && rows[slot(row)].cellWidth(col) == 0) col--;
+        writableRow(row).combine(col, codePoint);
+    }
+
+    /**
+     * Before {@code [from, to)} of {@code row} is overwritten: blank the halves of double-width
+     * characters that stick out of it, so no half character is left behind.
+     */
+    private void splitWideChars(CellRow row, int from, int to) {
+        if (from > 0 && row.cellWidth(from) == 0) {
+            row.set(from - 1, ' ', 1, row.style(from - 1));
+        }
+        if (to < width && row.cellWidth(to) == 0) {
+            row.set(to, ' ', 1, row.style(to));
+        }
+    }
+
+    /**
+     * Set cells {@code [fromCol, toCol)} of {@code row} to {@code cell}.
+     */
+    public synchronized void fill(int row, int fromCol, int toCol, Cell cell) {
+        if (row < 0 || row >= height) return;
+        fromCol = clamp(fromCol, 0, width);
+        toCol = clamp(toCol, 0, width);
+        for (int c = fromCol; c < toCol; c++) {
+            if (!rows[slot(row)].cellEquals(c, cell)) {
+                CellRow target = writableRow(row);
+                if (cell.getCodePointCount() == 1 && cell.getCodePoint(0) >= 0) {
+                    target.fill(c, toCol, cell.getCodePoint(0), cell.getWidth(),
+                            Style.of(cell.getForeground(), cell.getBackground(), cell.getRenditions()));
+                } else {
+                    for (; c < toCol; c++) target.set(c, cell);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blank the rectangle of rows {@code [fromRow, toRow)} and columns {@code [fromCol, toCol)},
+     * and the halves of double-width characters sticking out of it. Rows that are blank there
+     * already are not touched (nor copied away from a snapshot).
+     */
+    public synchronized void clearRegion(int fromRow, int fromCol, int toRow, int toCol) {
+        fromRow = clamp(fromRow, 0, height);
+        toRow = clamp(toRow, 0, height);
+        fromCol = clamp(fromCol, 0, width);
+        toCol = clamp(toCol, 0, width);
+        for (int r = fromRow; r < toRow; r++) {
+            if (!rows[slot(r)].isBlank(fromCol, toCol)) {
+                CellRow target = writableRow(r);
+                splitWideChars(target, fromCol, toCol);
+                target.fill(fromCol, toCol, ' ', 1, Style.DEFAULT);
+            }
+        }
+    }
+
+    /**
+     * Insert {@code n} blanks at {@code row, col}, shifting the rest of the row right; cells
+     * pushed past the right margin are lost. A double-width character split by the insertion
+     * point or by the margin is blanked.
+     */
+    synchronized void insertBlanks(int row, int col, int n) {
+        if (row < 0 || row >= height || col < 0 || col >= width || n <= 0) return;
+        n = Math.min(n, width - col);
+        CellRow target = writableRow(row);
+        splitWideChars(target, col, col);
+        splitWideChars(target, width - n, width - n);
+        target.copyCells(col, col + n, width - col - n);
+        target.fill(col, col + n, ' ', 1, Style.DEFAULT);
+    }
+
+    /**
+     * Delete {@code n} cells at {@code row, col}, shifting the rest of the row left and
+     * blanking the freed cells at the right margin. A double-width character only partly
+     * deleted is blanked.
+     */
+    synchronized void deleteCells(int row, int col, int n) {
+        if (row < 0 || row >= height || col < 0 || col >= width || n <= 0) return;
+        n = Math.min(n, width - col);
+        CellRow target = writableRow(row);
+        splitWideChars(target, col, col + n);
+        target.copyCells(col + n, col, width - col - n);
+        target.fill(width - n, width, ' ', 1, Style.DEFAULT);
+    }
+
+    /**
+     * Copy {@code count} whole rows from {@code src} to {@code dst}, as {@link System#arraycopy}
+     * would (the ranges may overlap). The rows are shared, not copied, until either copy is
+     * written.
+     */
+    public synchronized void copyRows(int src, int dst, int count) {
+        if (count <= 0 || src == dst || src < 0 || dst < 0 || src + count > height || dst + count > height) return;
+        CellRow[] target = writableRows();
+        int step = src < dst ? -1 : 1;
+        for (int i = src < dst ? count - 1 : 0; i >= 0 && i < count; i += step) {
+            int from = slot(src + i);
+            int to = slot(dst + i);
+            target[to] = target[from];
+            rowGeneration[from] = generation - 1;
+            rowGeneration[to] = generation - 1;
+        }
+    }
+
+    /**
+     * Keep rows scrolled off the top of the screen in {@code scrollback}, or drop them if
+     * {@code null} (the default).
+     */
+    public synchronized void setScrollback(Scrollback scrollback) {
+        this.scrollback = scrollback;
+    }
+
+    public synchronized Scrollback getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Move rows {@code [top, bottom)} up by {@code lines}; the rows at the bottom of that
+     * region become blank. Scrolling the whole screen only moves the ring's base.
+     * Rows leaving the top of the screen go to the scrollback, if there is one.
+     */
+    synchronized void scrollUp(int top, int bottom, int lines) {
+        top = clamp(top, 0, height);
+        bottom = clamp(bottom, top, height);
+        int n = clamp(lines, 0, bottom - top);
+        if (n == 0) return;
+        if (top == 0 && bottom == height) {
+            base = (base + n) % height;
+        } else {
+            rotate(top, bottom, n);
+        }
+        for (int r = bottom - n; r < bottom; r++) {
+            if (top == 0 && scrollback != null) scrollback.append(rows[slot(r)]);
+            recycle(r);
+        }
+    }
+
+    /**
+     * Move rows {@code [top, bottom)} down by {@code lines}; the rows at the top of that
+     * region become blank.
+     */
+    synchronized void scrollDown(int top, int bottom, int lines) {
+        top = clamp(top, 0, height);
+        bottom = clamp(bottom, top, height);
+        int n = clamp(lines, 0, bottom - top);
+        if (n == 0) return;
+        if (top == 0 && bottom == height) {
+            base = (base + height - n) % height;
+        } else {
+            rotate(top, bottom, bottom - top - n);
+        }
+        for (int r = top; r < top + n; r++) {
+            recycle(r);
+        }
+    }
+
+    /**
+     * Rotate rows {@code [top, bottom)} up by {@code n} by three reversals, swapping row
+     * references only.
+     */
+    private void rotate(int top, int bottom, int n) {
+        writableRows();
+        reverse(top, top + n);
+        reverse(top + n, bottom);
+        reverse(top, bottom);
+    }
+
+    private void reverse(int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int a = slot(i);
+            int b = slot(j);
+            CellRow row = rows[a];
+            rows[a] = rows[b];
+            rows[b] = row;
+            int gen = rowGeneration[a];
+            rowGeneration[a] = rowGeneration[b];
+            rowGeneration[b] = gen;
+        }
+    }
+
+    /**
+     * Make row {@code row} blank, clearing it in place if no snapshot shares it.
+     */
+    private void recycle(int row) {
+        int i = slot(row);
+        if (rowGeneration[i] == generation) {
+            rows[i].fill(0, width, ' ', 1, Style.DEFAULT);
+        } else {
+            writableRows()[i] = new CellRow(width);
+            rowGeneration[i] = generation;
+        }
+    }
+
+    private int slot(int row) {
+        int i = base + row;
+        return i < height ? i : i - height;
+    }
+
+    /**
+     * Row {@code row}, copied first if a snapshot or another row position still references it.
+     */
+    private CellRow writableRow(int row) {
+        int i = slot(row);
+        if (rowGeneration[i] != generation) {
+            writableRows()[i] = rows[i].copy();
+            rowGeneration[i] = generation;
+        }
+        return rows[i];
+    }
+
+    private CellRow[] writableRows() {
+        if (rowsShared) {
+            rows = rows.clone();
+            rowsShared = false;
+        }
+        return rows;
+    }
+
+    private static CellRow[] blankRows(int width, int height) {
+        CellRow[] rows = new CellRow[height];
+        for (int r = 0; r < height; r++) {
+            rows[r] = new CellRow(width);
+        }
+        return rows;
+    }
+
     @Override
     public int getCursorRow() {
         return cursorRow;
@@ -95,97 +414,187 @@ public class SimpleFramebuffer implements Framebuffer {
         newWidth = Math.max(1, newWidth);
         newHeight = Math.max(1, newHeight);
         if (newWidth == width && newHeight == height) return;
-        Cell[][] newCells = new Cell[newHeight][newWidth];
-        for (int r = 0; r < newHeight; r++) {
-            for (int c = 0; c < newWidth; c++) {
-                if (r < height && c < width) {
-                    newCells[r][c] = cells[r][c];
-                } else {
-                    newCells[r][c] = Cell.blank();
-                }
-            }
+        CellRow[] newRows = blankRows(newWidth, newHeight);
+        for (int r = 0; r < Math.min(height, newHeight); r++) {
+            newRows[r] = rows[slot(r)].resized(newWidth);
         }
-        this.cells = newCells;
+        this.rows = newRows;
+        this.base = 0;
+        this.rowsShared = false;
+        this.rowGeneration = new int[newHeight];
+        Arrays.fill(rowGeneration, generation);
         this.width = newWidth;
         this.height = newHeight;
         this.cursorRow = clamp(cursorRow, 0, newHeight - 1);
         this.cursorCol = clamp(cursorCol, 0, newWidth - 1);
     }
 
+    /**
+     * Move the screen contents up by {@code lines}; the bottom rows become blank.
+     */
+    synchronized void scrollUp(int lines) {
+        scrollUp(0, height, lines);
+    }
+
+    /**
+     * Clear to a blank screen of {@code newWidth} x {@code newHeight} with the cursor at home.
+     */
+    public synchronized void reset(int newWidth, int newHeight) {
+        this.width = Math.max(1, newWidth);
+        this.height = Math.max(1, newHeight);
+        this.rows = blankRows(width, height);
+        this.base = 0;
+        this.rowsShared = false;
+        this.rowGeneration = new int[height];
+        Arrays.fill(rowGeneration, generation);
+        this.cursorRow = 0;
+        this.cursorCol = 0;
+        this.cursorVisible = true;
+        this.title = "";
+        ansiParser.reset();
+    }
+
+    /**
+     * Immutable copy of the current screen, e.g. as the base for a later {@link FramebufferDiff}.
+     * Takes O(1): rows are shared with the framebuffer until it writes to them.
+     */
+    public synchronized FramebufferSnapshot snapshot() {
+        rowsShared = true;
+        generation++;
+        return new FramebufferSnapshot(width, height, rows, base, cursorRow, cursorCol, cursorVisible, title);
+    }
+
     @Override
     public synchronized void feedHostBytes(byte[] bytes) {
         if (bytes == null || bytes.length == 0) return;
         ansiParser.feed(bytes);
     }
 
+    @Override
+    public synchronized void feedHostBytes(byte[] bytes, int off, int len) {
+        ansiParser.feed(bytes, off, len);
+    }
+
+    /**
+     * Make this framebuffer hold {@code snapshot}'s screen, cursor and title again, as
+     * {@link #fromStateBytes} would with the same state. Takes O(height): the snapshot's rows
+     * are shared until written. The parser starts over in its initial state.
+     */
+    public synchronized void restore(FramebufferSnapshot snapshot) {
+        this.width = snapshot.getWidth();
+        this.height = snapshot.getHeight();
+        this.rows = snapshot.rows();
+        this.base = snapshot.base();
+        this.rowsShared = true;
+        if (rowGeneration.length != height) rowGeneration = new int[height];
+        Arrays.fill(rowGeneration, generation - 1);
+        this.cursorRow = snapshot.getCursorRow();
+        this.cursorCol = snapshot.getCursorCol();
+        this.cursorVisible = snapshot.isCursorVisible();
+        this.title = snapshot.getTitle();
+        ansiParser.reset();
+    }
+
+    /**
+     * The state in binary form: a version byte, varints for the size, cursor and flags, the
+     * title, the styles used as (foreground, background, renditions) triples, then every row
+     * in the {@link RowCodec} encoding with styles as indexes into that list (0 being the
+     * default style). Blank runs and blank row tails take a byte or two. The encoding is
+     * built in a buffer kept for the next call; only the returned copy is allocated.
+     */
     @Override
     public synchronized byte[] toStateBytes() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("W").append(width).append("H").append(height).append("R").append(cursorRow).append("C").append(cursorCol).append("\n");
+        if (stateWriter == null) stateWriter = new RowCodec(256);
+        RowCodec out = stateWriter;
+        out.clear();
+        out.putByte(STATE_VERSION);
+        out.putVarint(width);
+        out.putVarint(height);
+        out.putVarint(cursorRow);
+        out.putVarint(cursorCol);
+        out.putVarint(cursorVisible ? 1 : 0);
+        out.putBytes(title.getBytes(StandardCharsets.UTF_8));
+        StyleIndex styles = stateStyleIndex;
+        styles.clear();
         for (int r = 0; r < height; r++) {
+            CellRow row = rows[slot(r)];
+            long last = Style.DEFAULT;
             for (int c = 0; c < width; c++) {
-                Cell cell = cells[r][c];
-                int[] cp = cell.getCodePoints();
-                for (int ch : cp) sb.appendCodePoint(ch);
+                long style = row.style(c);
+                if (style != last) {
+                    if (style != Style.DEFAULT) styles.add(style);
+                    last = style;
+                }
             }
-            sb.append("\n");
         }
-        return sb.toString().getBytes(StandardCharsets.UTF_8);
+        out.putVarint(styles.size());
+        for (int i = 1; i <= styles.size(); i++) {
+            long style = styles.style(i);
+            out.putVarint(Style.foreground(style));
+            out.putVarint(Style.background(style));
+            out.putVarint(Style.renditions(style));
+        }
+        for (int r = 0; r < height; r++) {
+            out.putRow(rows[slot(r)], stateStyleCoder);
+        }
+        return Arrays.copyOf(out.buffer(), out.position());
     }
 
+    /**
+     * Replace the state with one from {@link #toStateBytes()}. Rows not shared with a
+     * snapshot are overwritten in place, so nothing is allocated per cell or per row unless
+     * the size changes. The parser starts over in its initial state.
+     *
+     * @throws IllegalArgumentException if {@code bytes} is not a valid state; the screen
+     *                                  contents are undefined afterwards
+     */
     @Override
     public synchronized void fromStateBytes(byte[] bytes) {
         if (bytes == null || bytes.length == 0) return;
-        String s = new String(bytes, StandardCharsets.UTF_8);
-        int i = 0;
-        if (s.startsWith("W") && s.contains("H")) {
-            int wEnd = s.indexOf('H');
-            int hEnd = s.indexOf('R');
-            if (wEnd > 0 && hEnd > wEnd) {
-                try {
-                    int w = Integer.parseInt(s.substring(1, wEnd));
-                    int h = Integer.parseInt(s.substring(wEnd + 1, hEnd));
-                    if (w != width || h != height || w <= 0 || h <= 0 || w > 10000 || h > 10000) {
-                        return;
-                    }
-                    int cEnd = s.indexOf('\n', hEnd);
-                    int cIdx = s.indexOf('C', hEnd);
-                    if (cEnd <= 0 || cIdx <= hEnd) {
-                        return;
-                    } else {
-                        try {
-                            cursorRow = Integer.parseInt(s.substring(hEnd + 1, cIdx));
-                            cursorCol = Integer.parseInt(s.substring(cIdx + 1, cEnd));
-                            cursorRow = Math.max(0, Math.min(cursorRow, height - 1));
-                            cursorCol = Math.max(0, Math.min(cursorCol, width - 1));
-                        } catch (NumberFormatException e) {
-                            cursorRow = 0;
-                            cursorCol = 0;
-                        }
-                        i = cEnd + 1;
-                    }
-                } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
-                    return;
-                }
+        if (stateReader == null) stateReader = new RowCodec(0);
+        RowCodec in = stateReader;
+        in.wrap(bytes, 0, bytes.length);
+        try {
+            if (in.getByte() != STATE_VERSION) {
+                throw new IllegalArgumentException("unknown framebuffer state version");
             }
-        }
-        int row = 0, col = 0;
-        while (i < s.length() && row < height) {
-            char ch = s.charAt(i);
-            if (ch == '\n') {
-                row++;
-                col = 0;
-                i++;
-                continue;
+            int w = in.getVarint();
+            int h = in.getVarint();
+            if (w <= 0 || h <= 0 || w > 10000 || h > 10000) {
+                throw new IllegalArgumentException("bad framebuffer size " + w + "x" + h);
+            }
+            int row = in.getVarint();
+            int col = in.getVarint();
+            int flags = in.getVarint();
+            String newTitle = in.getString();
+            int styleCount = in.getVarint();
+            if (styleCount < 0 || styleCount > w * h) {
+                throw new IllegalArgumentException("bad style count " + styleCount);
             }
-            if (col < width) {
-                int codePoint = Character.codePointAt(s, i);
-                setCell(row, col, new Cell(new int[] { codePoint }, 1, 0, 0, 0));
-                col++;
-                i += Character.charCount(codePoint);
-            } else {
-                i++;
+            if (stateStyles.length <= styleCount) stateStyles = new long[styleCount + 1];
+            for (int i = 1; i <= styleCount; i++) {
+                stateStyles[i] = Style.of(in.getVarint(), in.getVarint(), in.getVarint());
+            }
+            stateStyleCount = styleCount;
+
+            ansiParser.reset();
+            resize(w, h);
+            for (int r = 0; r < height; r++) {
+                int i = slot(r);
+                if (rowGeneration[i] != generation) {
+                    writableRows()[i] = new CellRow(width);
+                    rowGeneration[i] = generation;
+                }
+                in.getRow(rows[i], stateStyleCoder);
             }
+            this.cursorRow = clamp(row, 0, height - 1);
+            this.cursorCol = clamp(col, 0, width - 1);
+            this.cursorVisible = (flags & 1) != 0;
+            this.title = newTitle;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated framebuffer state", e);
+        } finally {
+            in.wrap(EMPTY_STATE, 0, 0); // do not hold on to the caller's array
         }
     }
 }
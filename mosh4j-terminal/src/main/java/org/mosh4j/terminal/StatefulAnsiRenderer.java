@@ -8,6 +8,9 @@ import java.util.Arrays;
  * It keeps a shadow copy of the last rendered frame and emits only changed lines
  * after the first full render. This provides a practical terminal frontend output
  * stream that can be consumed by terminal widgets or PTY-like bridges.
+ * <p>
+ * Cells with the {@link Cell#UNDERLINED} rendition are underlined (as used for unconfirmed
+ * {@linkplain PredictionEngine predictions}); other attributes are not rendered.
  */
 public final class StatefulAnsiRenderer {
 
@@ -17,6 +20,8 @@ public final class StatefulAnsiRenderer {
     private static final String CSI_ERASE_TO_END_OF_LINE = ESC + "K";
     private static final String CSI_SHOW_CURSOR = ESC + "?25h";
     private static final String CSI_HIDE_CURSOR = ESC + "?25l";
+    private static final String SGR_UNDERLINE = ESC + "4m";
+    private static final String SGR_NO_UNDERLINE = ESC + "24m";
 
     private int lastWidth = -1;
     private int lastHeight = -1;
@@ -27,7 +32,17 @@ public final class StatefulAnsiRenderer {
      * Render framebuffer to ANSI output. The first call emits a full screen redraw.
      * Later calls emit only changed rows (plus cursor state updates).
      */
-    public synchronized String render(Framebuffer framebuffer) {
+    public String render(Framebuffer framebuffer) {
+        if (framebuffer == null) {
+            return "";
+        }
+        return render(FramebufferSnapshot.of(framebuffer));
+    }
+
+    /**
+     * Render a snapshot, e.g. a framebuffer with a prediction overlay; see {@link #render(Framebuffer)}.
+     */
+    public synchronized String render(FramebufferSnapshot framebuffer) {
         if (framebuffer == null) {
             return "";
         }
@@ -77,49 +92,43 @@ public final class StatefulAnsiRenderer {
         initialized = false;
     }
 
-    private static String[] snapshotRows(Framebuffer framebuffer, int width, int height) {
+    private static String[] snapshotRows(FramebufferSnapshot framebuffer, int width, int height) {
         String[] rows = new String[height];
+        int cols = Math.min(width, framebuffer.getWidth());
         for (int row = 0; row < height; row++) {
             StringBuilder line = new StringBuilder(width);
             int usedColumns = 0;
-            for (int col = 0; col < width; col++) {
-                Cell cell = framebuffer.getCell(row, col);
-                int[] cps = cell != null ? cell.getCodePoints() : null;
-                if (cps == null || cps.length == 0) {
-                    line.append(' ');
-                    usedColumns++;
-                    continue;
+            boolean underlined = false;
+            CellRow cells = row < framebuffer.getHeight() ? framebuffer.row(row) : null;
+            for (int col = 0; cells != null && col < cols; col++) {
+                boolean underline = (Style.renditions(cells.style(col)) & Cell.UNDERLINED) != 0;
+                if (underline != underlined) {
+                    line.append(underline ? SGR_UNDERLINE : SGR_NO_UNDERLINE);
+                    underlined = underline;
                 }
-                int appended = appendCell(line, cps);
-                if (appended == 0) {
-                    line.append(' ');
-                    appended = 1;
+                int columns = cells.cellWidth(col);
+                if (columns == 0 && col > 0) {
+                    continue; // second half of a double-width character
                 }
-                usedColumns += appended;
-                if (usedColumns > width) {
+                columns = Math.max(1, columns);
+                if (usedColumns + columns > width) {
                     break;
                 }
+                int before = line.length();
+                cells.appendTo(col, line);
+                if (line.length() == before) {
+                    line.append(' ');
+                }
+                usedColumns += columns;
             }
-            if (line.length() > width) {
-                rows[row] = line.substring(0, width);
-            } else {
-                rows[row] = line.toString();
+            if (underlined) {
+                line.append(SGR_NO_UNDERLINE);
             }
+            rows[row] = line.toString();
         }
         return rows;
     }
 
-    private static int appendCell(StringBuilder line, int[] cps) {
-        int before = line.length();
-        for (int cp : cps) {
-            if (cp <= 0) {
-                continue;
-            }
-            line.appendCodePoint(cp);
-        }
-        return line.length() - before;
-    }
-
     @Override
     public synchronized String toString() {
         return "StatefulAnsiRenderer{" +
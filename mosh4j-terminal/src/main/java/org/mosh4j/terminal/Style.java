@@ -0,0 +1,56 @@
+package org.mosh4j.terminal;
+
+/**
+ * Cell style (foreground, background, renditions) packed into one {@code long}, so a
+ * framebuffer row stores one word per cell and compares styles with {@code ==}. The style is
+ * the value itself: there is no table to intern into, and rows of different framebuffers,
+ * snapshots and stored states compare and copy without any lookup.
+ * <p>
+ * Bits 0-13 hold the renditions, bits 14-38 the foreground and bits 39-63 the background.
+ * Colors are stored as mosh stores them: 0 for the default, {@code 30 + n} (foreground) or
+ * {@code 40 + n} (background) for palette color n, {@code 0x1000000 | rgb} for direct color.
+ * All of those fit in 25 bits; a color that does not is stored as the default.
+ */
+final class Style {
+
+    /** Default colors, no renditions. */
+    static final long DEFAULT = 0;
+
+    private static final int RENDITION_BITS = 14;
+    private static final int COLOR_BITS = 25;
+    private static final int COLOR_MASK = (1 << COLOR_BITS) - 1;
+    private static final int FOREGROUND_SHIFT = RENDITION_BITS;
+    private static final int BACKGROUND_SHIFT = RENDITION_BITS + COLOR_BITS;
+
+    private Style() {
+    }
+
+    static long of(int foreground, int background, int renditions) {
+        return (long) color(background) << BACKGROUND_SHIFT
+                | (long) color(foreground) << FOREGROUND_SHIFT
+                | renditions & ((1 << RENDITION_BITS) - 1);
+    }
+
+    static int foreground(long style) {
+        return (int) (style >>> FOREGROUND_SHIFT) & COLOR_MASK;
+    }
+
+    static int background(long style) {
+        return (int) (style >>> BACKGROUND_SHIFT) & COLOR_MASK;
+    }
+
+    static int renditions(long style) {
+        return (int) style & ((1 << RENDITION_BITS) - 1);
+    }
+
+    /**
+     * {@code style} with {@code renditions} added.
+     */
+    static long withRenditions(long style, int renditions) {
+        return style | renditions & ((1 << RENDITION_BITS) - 1);
+    }
+
+    private static int color(int color) {
+        return (color & ~COLOR_MASK) == 0 ? color : 0;
+    }
+}
@@ -0,0 +1,80 @@
+package org.mosh4j.terminal;
+
+import java.util.Arrays;
+
+/**
+ * {@link Style}s numbered from 1 in order of first use, as the framebuffer state lists them.
+ * Numbers are found through an open-addressing hash table with linear probing, so a lookup
+ * costs a probe or two however many styles the screen uses. {@link #clear()} touches only
+ * the slots in use, so the index can be kept and reused between encodings. Not thread-safe.
+ */
+final class StyleIndex {
+
+    private long[] styles = new long[16];
+    private int count;
+    /** Hash table of styles; a slot is empty where {@link #numbers} holds 0. */
+    private long[] keys = new long[32];
+    private int[] numbers = new int[32];
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Style numbered {@code number}, from 1 to {@link #size()}.
+     */
+    long style(int number) {
+        return styles[number - 1];
+    }
+
+    /**
+     * Number of {@code style}, added as the next number if it is new.
+     */
+    int add(long style) {
+        int slot = find(style);
+        if (numbers[slot] != 0) return numbers[slot];
+        if (2 * (count + 1) > keys.length) {
+            grow();
+            slot = find(style);
+        }
+        if (count == styles.length) styles = Arrays.copyOf(styles, count * 2);
+        styles[count++] = style;
+        keys[slot] = style;
+        numbers[slot] = count;
+        return count;
+    }
+
+    /**
+     * Forget all styles. Removing them newest first leaves every probe sequence still in the
+     * table intact, so each one is found where it was put.
+     */
+    void clear() {
+        while (count > 0) {
+            numbers[find(styles[--count])] = 0;
+        }
+    }
+
+    private int find(long style) {
+        int mask = keys.length - 1;
+        int slot = hash(style) & mask;
+        while (numbers[slot] != 0 && keys[slot] != style) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        keys = new long[keys.length * 2];
+        numbers = new int[numbers.length * 2];
+        for (int i = 0; i < count; i++) {
+            int slot = find(styles[i]);
+            keys[slot] = styles[i];
+            numbers[slot] = i + 1;
+        }
+    }
+
+    private static int hash(long style) {
+        long h = style * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+}
@@ -0,0 +1,439 @@
+package org.mosh4j.terminal;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Table-driven parser for DEC VT500-compatible input, after Paul Williams' state machine
+ * (the one mosh's {@code Parser} implements): ground, escape, CSI, DCS and OSC states with
+ * intermediates and parameters. What each sequence means is left to a {@link Handler}.
+ * <p>
+ * Each (state, byte) pair maps to one entry of a precomputed table holding the action and
+ * the next state. Parameters are kept in a reused {@code int[]}, so parsing allocates
+ * nothing. In the ground state, bytes from 0x80 up are decoded as UTF-8; the decoder keeps
+ * its state between calls, so a character may be split across two {@link #feed} calls.
+ * Malformed UTF-8 prints U+FFFD. 8-bit C1 controls are not recognized, as in any UTF-8
+ * terminal.
+ * <p>
+ * Printable text skips the table: in the ground state the parser looks for the next C0
+ * control, ESC or DEL eight bytes at a time (SWAR on a {@code long}), decodes everything up
+ * to it into a reused code point array and hands that over in one
+ * {@link Handler#print(int[], int, int)} call.
+ */
+public final class VtParser {
+
+    /**
+     * Receives parsed input. Parameters are passed as the parser's own array, valid only
+     * during the call; a parameter that was left out is 0.
+     */
+    public interface Handler {
+
+        /** A printable character. */
+        void print(int codePoint);
+
+        /**
+         * {@code count} printable characters in a row, from {@code codePoints[off]}; the array
+         * is the parser's own and only valid during the call.
+         */
+        default void print(int[] codePoints, int off, int count) {
+            for (int i = off, end = off + count; i < end; i++) {
+                print(codePoints[i]);
+            }
+        }
+
+        /** A C0 control such as CR, LF or BS. */
+        void execute(int control);
+
+        /**
+         * @param intermediates intermediate and private-marker bytes (e.g. {@code '?'}) in
+         *                      order, packed one per byte with the first in the highest byte
+         *                      used; 0 if there are none
+         */
+        void csiDispatch(int finalByte, int intermediates, int[] params, int paramCount);
+
+        void escDispatch(int finalByte, int intermediates);
+
+        /** An operating system command such as a window title; {@code data} is the raw string. */
+        default void oscDispatch(byte[] data, int length) {
+        }
+
+        default void hook(int finalByte, int intermediates, int[] params, int paramCount) {
+        }
+
+        default void put(int b) {
+        }
+
+        default void unhook() {
+        }
+    }
+
+    public static final int MAX_PARAMS = 32;
+    public static final int MAX_PARAM_VALUE = 65535;
+    public static final int MAX_OSC_LENGTH = 1024;
+
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_ENTRY = 3;
+    private static final int CSI_PARAM = 4;
+    private static final int CSI_INTERMEDIATE = 5;
+    private static final int CSI_IGNORE = 6;
+    private static final int DCS_ENTRY = 7;
+    private static final int DCS_PARAM = 8;
+    private static final int DCS_INTERMEDIATE = 9;
+    private static final int DCS_PASSTHROUGH = 10;
+    private static final int DCS_IGNORE = 11;
+    private static final int OSC_STRING = 12;
+    private static final int SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+    /** Next-state value meaning "stay". */
+    private static final int SAME = 15;
+
+    private static final int NONE = 0;
+    private static final int PRINT = 1;
+    private static final int EXECUTE = 2;
+    private static final int COLLECT = 3;
+    private static final int PARAM = 4;
+    private static final int ESC_DISPATCH = 5;
+    private static final int CSI_DISPATCH = 6;
+    private static final int PUT = 7;
+    private static final int OSC_PUT = 8;
+    private static final int IGNORE = 9;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** {@code action << 4 | nextState} per {@code state * 256 + byte}. */
+    private static final byte[] TABLE = new byte[STATE_COUNT * 256];
+
+    static {
+        for (int s = 0; s < STATE_COUNT; s++) {
+            // "anywhere" transitions first; the per-state rules below never override them
+            range(s, 0x00, 0xFF, IGNORE, SAME);
+            set(s, 0x18, EXECUTE, GROUND);
+            set(s, 0x1A, EXECUTE, GROUND);
+            set(s, 0x1B, NONE, ESCAPE);
+        }
+        ground();
+        escape();
+        csi();
+        dcs();
+        range(OSC_STRING, 0x20, 0xFF, OSC_PUT, SAME);
+        set(OSC_STRING, 0x07, NONE, GROUND); // xterm's BEL terminator
+        range(SOS_PM_APC_STRING, 0x20, 0xFF, IGNORE, SAME);
+    }
+
+    private static void ground() {
+        executes(GROUND);
+        range(GROUND, 0x20, 0xFF, PRINT, SAME);
+        set(GROUND, 0x7F, IGNORE, SAME);
+    }
+
+    private static void escape() {
+        executes(ESCAPE);
+        range(ESCAPE, 0x20, 0x2F, COLLECT, ESCAPE_INTERMEDIATE);
+        range(ESCAPE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+        set(ESCAPE, 'P', NONE, DCS_ENTRY);
+        set(ESCAPE, '[', NONE, CSI_ENTRY);
+        set(ESCAPE, ']', NONE, OSC_STRING);
+        set(ESCAPE, 'X', NONE, SOS_PM_APC_STRING);
+        set(ESCAPE, '^', NONE, SOS_PM_APC_STRING);
+        set(ESCAPE, '_', NONE, SOS_PM_APC_STRING);
+
+        executes(ESCAPE_INTERMEDIATE);
+        range(ESCAPE_INTERMEDIATE, 0x20, 0x2F, COLLECT, SAME);
+        range(ESCAPE_INTERMEDIATE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+    }
+
+    private static void csi() {
+        executes(CSI_ENTRY);
+        range(CSI_ENTRY, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+        range(CSI_ENTRY, 0x30, 0x3B, PARAM, CSI_PARAM);
+        range(CSI_ENTRY, 0x3C, 0x3F, COLLECT, CSI_PARAM);
+        range(CSI_ENTRY, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        executes(CSI_PARAM);
+        range(CSI_PARAM, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+        range(CSI_PARAM, 0x30, 0x3B, PARAM, SAME);
+        range(CSI_PARAM, 0x3C, 0x3F, IGNORE, CSI_IGNORE);
+        range(CSI_PARAM, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        executes(CSI_INTERMEDIATE);
+        range(CSI_INTERMEDIATE, 0x20, 0x2F, COLLECT, SAME);
+        range(CSI_INTERMEDIATE, 0x30, 0x3F, IGNORE, CSI_IGNORE);
+        range(CSI_INTERMEDIATE, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        executes(CSI_IGNORE);
+        range(CSI_IGNORE, 0x40, 0x7E, NONE, GROUND);
+    }
+
+    private static void dcs() {
+        range(DCS_ENTRY, 0x20, 0x2F, COLLECT, DCS_INTERMEDIATE);
+        range(DCS_ENTRY, 0x30, 0x3B, PARAM, DCS_PARAM);
+        range(DCS_ENTRY, 0x3C, 0x3F, COLLECT, DCS_PARAM);
+        range(DCS_ENTRY, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        range(DCS_PARAM, 0x20, 0x2F, COLLECT, DCS_INTERMEDIATE);
+        range(DCS_PARAM, 0x30, 0x3B, PARAM, SAME);
+        range(DCS_PARAM, 0x3C, 0x3F, IGNORE, DCS_IGNORE);
+        range(DCS_PARAM, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        range(DCS_INTERMEDIATE, 0x20, 0x2F, COLLECT, SAME);
+        range(DCS_INTERMEDIATE, 0x30, 0x3F, IGNORE, DCS_IGNORE);
+        range(DCS_INTERMEDIATE, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        range(DCS_PASSTHROUGH, 0x00, 0x17, PUT, SAME);
+        set(DCS_PASSTHROUGH, 0x19, PUT, SAME);
+        range(DCS_PASSTHROUGH, 0x1C, 0x1F, PUT, SAME);
+        range(DCS_PASSTHROUGH, 0x20, 0xFF, PUT, SAME);
+        set(DCS_PASSTHROUGH, 0x7F, IGNORE, SAME);
+    }
+
+    /** C0 controls other than CAN, SUB and ESC execute without leaving the state. */
+    private static void executes(int state) {
+        range(state, 0x00, 0x17, EXECUTE, SAME);
+        set(state, 0x19, EXECUTE, SAME);
+        range(state, 0x1C, 0x1F, EXECUTE, SAME);
+    }
+
+    private static void range(int state, int from, int to, int action, int next) {
+        for (int b = from; b <= to; b++) {
+            set(state, b, action, next);
+        }
+    }
+
+    private static void set(int state, int b, int action, int next) {
+        TABLE[state * 256 + b] = (byte) (action << 4 | next);
+    }
+
+    private final Handler handler;
+    private int state = GROUND;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean paramsOverflowed;
+    private int intermediates;
+    private int intermediateCount;
+    private final byte[] osc = new byte[MAX_OSC_LENGTH];
+    private int oscLength;
+    private int utf8Remaining;
+    private int utf8CodePoint;
+    private int utf8Min;
+    private final int[] run = new int[256];
+
+    public VtParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void feed(byte[] bytes, int off, int len) {
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            if (state == GROUND) {
+                int stop = nextControl(bytes, i, end);
+                if (stop > i) {
+                    printRun(bytes, i, stop);
+                    i = stop;
+                    continue;
+                }
+            }
+            feed(bytes[i++] & 0xFF);
+        }
+    }
+
+    /**
+     * Index of the first byte in {@code [from, to)} that is below 0x20 or is 0x7F, or
+     * {@code to}. Eight bytes at a time: a byte {@code x} is flagged by the high bit of
+     * {@code (x - 0x20) & ~x} (below 0x20) or of {@code (y - 1) & ~y} with {@code y = x ^ 0x7F}
+     * (equal to 0x7F). Borrows only carry into higher bytes, so the lowest flag is exact.
+     */
+    static int nextControl(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = (long) LONGS.get(bytes, i);
+            long y = x ^ (ONES * 0x7F);
+            long hit = ((x - ONES * 0x20) & ~x | (y - ONES) & ~y) & HIGH_BITS;
+            if (hit != 0) {
+                return i + (Long.numberOfTrailingZeros(hit) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x20 || b == 0x7F) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Decode {@code [from, to)}, which holds no controls, and print it in batches.
+     */
+    private void printRun(byte[] bytes, int from, int to) {
+        int[] out = run;
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            int b = bytes[i] & 0xFF;
+            int cp;
+            if (b < 0x80 && utf8Remaining == 0) {
+                cp = b;
+            } else if (utf8Remaining > 0 && (b & 0xC0) == 0x80) {
+                utf8CodePoint = utf8CodePoint << 6 | (b & 0x3F);
+                if (--utf8Remaining > 0) continue;
+                cp = decoded();
+            } else if (utf8Remaining > 0) {
+                utf8Remaining = 0;
+                cp = 0xFFFD;
+                i--; // b starts something new
+            } else {
+                cp = startUtf8(b);
+                if (cp < 0) continue;
+            }
+            out[n++] = cp;
+            if (n == out.length) {
+                handler.print(out, 0, n);
+                n = 0;
+            }
+        }
+        if (n > 0) {
+            handler.print(out, 0, n);
+        }
+    }
+
+    /**
+     * Back to the ground state, dropping any partial sequence or character.
+     */
+    public void reset() {
+        state = GROUND;
+        utf8Remaining = 0;
+        clear();
+    }
+
+    private void feed(int b) {
+        if (utf8Remaining > 0) {
+            if ((b & 0xC0) == 0x80) {
+                utf8CodePoint = utf8CodePoint << 6 | (b & 0x3F);
+                if (--utf8Remaining == 0) {
+                    handler.print(decoded());
+                }
+                return;
+            }
+            utf8Remaining = 0;
+            handler.print(0xFFFD);
+        }
+        int entry = TABLE[state * 256 + b];
+        int action = (entry >> 4) & 0xF;
+        int next = entry & 0xF;
+        if (next != SAME) {
+            leave(state);
+        }
+        perform(action, b);
+        if (next != SAME) {
+            state = next;
+            enter(next, b);
+        }
+    }
+
+    private void perform(int action, int b) {
+        switch (action) {
+            case PRINT -> {
+                int cp = b < 0x80 ? b : startUtf8(b);
+                if (cp >= 0) handler.print(cp);
+            }
+            case EXECUTE -> handler.execute(b);
+            case COLLECT -> collect(b);
+            case PARAM -> param(b);
+            case ESC_DISPATCH -> {
+                if (intermediateCount <= 3) handler.escDispatch(b, intermediates);
+            }
+            case CSI_DISPATCH -> {
+                if (intermediateCount <= 3 && !paramsOverflowed) handler.csiDispatch(b, intermediates, params, paramCount);
+            }
+            case PUT -> handler.put(b);
+            case OSC_PUT -> {
+                if (oscLength < osc.length) osc[oscLength++] = (byte) b;
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void enter(int next, int b) {
+        switch (next) {
+            case ESCAPE, CSI_ENTRY, DCS_ENTRY -> clear();
+            case OSC_STRING -> oscLength = 0;
+            case DCS_PASSTHROUGH -> {
+                if (intermediateCount <= 3 && !paramsOverflowed) {
+                    handler.hook(b, intermediates, params, paramCount);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void leave(int previous) {
+        if (previous == OSC_STRING) {
+            handler.oscDispatch(osc, oscLength);
+        } else if (previous == DCS_PASSTHROUGH) {
+            handler.unhook();
+        }
+    }
+
+    private void clear() {
+        paramCount = 0;
+        paramsOverflowed = false;
+        intermediates = 0;
+        intermediateCount = 0;
+    }
+
+    private void collect(int b) {
+        intermediates = intermediates << 8 | b;
+        intermediateCount++;
+    }
+
+    private void param(int b) {
+        if (paramCount == 0) {
+            params[0] = 0;
+            paramCount = 1;
+        }
+        if (b == ';' || b == ':') {
+            if (paramCount == MAX_PARAMS) {
+                paramsOverflowed = true;
+                return;
+            }
+            params[paramCount++] = 0;
+        } else if (!paramsOverflowed) {
+            int i = paramCount - 1;
+            params[i] = Math.min(MAX_PARAM_VALUE, params[i] * 10 + (b - '0'));
+        }
+    }
+
+    /**
+     * Start a UTF-8 sequence with lead byte {@code b}; -1 if one was started, U+FFFD if
+     * {@code b} cannot start one.
+     */
+    private int startUtf8(int b) {
+        if (b >= 0xC2 && b <= 0xDF) {
+            utf8Remaining = 1;
+            utf8CodePoint = b & 0x1F;
+            utf8Min = 0x80;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            utf8Remaining = 2;
+            utf8CodePoint = b & 0x0F;
+            utf8Min = 0x800;
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            utf8Remaining = 3;
+            utf8CodePoint = b & 0x07;
+            utf8Min = 0x10000;
+        } else {
+            return 0xFFFD;
+        }
+        return -1;
+    }
+
+    private int decoded() {
+        int cp = utf8CodePoint;
+        boolean valid = cp >= utf8Min && cp <= 0x10FFFF && (cp < 0xD800 || cp > 0xDFFF);
+        return valid ? cp : 0xFFFD;
+    }
+}
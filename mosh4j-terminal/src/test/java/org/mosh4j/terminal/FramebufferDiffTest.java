@@ -0,0 +1,161 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FramebufferDiffTest {
+
+    private static final String CSI = "\u001B[";
+
+    private static SimpleFramebuffer feed(int width, int height, String input) {
+        SimpleFramebuffer fb = new SimpleFramebuffer(width, height);
+        feed(fb, input);
+        return fb;
+    }
+
+    private static void feed(SimpleFramebuffer fb, String input) {
+        fb.feedHostBytes(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String diff(FramebufferSnapshot last, FramebufferSnapshot next) {
+        return new String(FramebufferDiff.newFrame(last, next), StandardCharsets.UTF_8);
+    }
+
+    /** Apply the diff to a receiver showing {@code last} and check it then shows {@code next}. */
+    private static void assertRoundTrip(FramebufferSnapshot last, FramebufferSnapshot next) {
+        SimpleFramebuffer receiver = new SimpleFramebuffer(next.getWidth(), next.getHeight());
+        if (last != null) {
+            receiver.restore(last);
+        } else {
+            feed(receiver, "\u001B[41mleft over\r\nscreen");
+        }
+        receiver.feedHostBytes(FramebufferDiff.newFrame(last, next));
+        for (int r = 0; r < next.getHeight(); r++) {
+            for (int c = 0; c < next.getWidth(); c++) {
+                assertEquals(next.getCell(r, c), receiver.getCell(r, c), "at " + r + "," + c);
+            }
+        }
+        assertEquals(next.getCursorRow(), receiver.getCursorRow());
+        assertEquals(next.getCursorCol(), receiver.getCursorCol());
+        assertEquals(next.isCursorVisible(), receiver.isCursorVisible());
+    }
+
+    @Test
+    void sameFrame_isEmpty() {
+        FramebufferSnapshot frame = feed(10, 3, "hello\r\nworld").snapshot();
+        assertEquals(0, FramebufferDiff.newFrame(frame, frame).length);
+        assertEquals("", diff(frame, feed(10, 3, "hello\r\nworld").snapshot()));
+    }
+
+    @Test
+    void noBase_redrawsEverything() {
+        FramebufferSnapshot next = feed(10, 3, "hello\r\n\u001B[1mworld").snapshot();
+        String out = diff(null, next);
+        assertTrue(out.startsWith(CSI + "0m" + CSI + "H" + CSI + "2J"), out);
+        assertTrue(out.endsWith(CSI + "?25h"), out);
+        assertRoundTrip(null, next);
+    }
+
+    @Test
+    void sizeChange_redrawsEverything() {
+        FramebufferSnapshot last = feed(10, 3, "hello").snapshot();
+        FramebufferSnapshot next = feed(12, 3, "hello").snapshot();
+        assertTrue(diff(last, next).startsWith(CSI + "0m" + CSI + "H" + CSI + "2J"));
+        assertTrue(diff(next, feed(12, 4, "hello").snapshot()).startsWith(CSI + "0m" + CSI + "H"));
+    }
+
+    @Test
+    void changedRow_drawsOnlyTheChangedSpan() {
+        SimpleFramebuffer fb = feed(20, 3, "hello world");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\u001B[7GW\u001B[1;12H");
+        FramebufferSnapshot next = fb.snapshot();
+        assertEquals(CSI + "1;7HW" + CSI + "1;12H", diff(last, next));
+        assertRoundTrip(last, next);
+
+        feed(fb, "\u001B[1;3Hxy\u001B[1;10Hz\u001B[1;12H");
+        assertEquals(CSI + "1;3Hxy" + "o Worz" + CSI + "1;12H", diff(next, fb.snapshot()));
+    }
+
+    @Test
+    void blankTail_isClearedWithEraseInLine() {
+        SimpleFramebuffer fb = feed(20, 3, "hello world");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\u001B[7G\u001B[K");
+        FramebufferSnapshot next = fb.snapshot();
+        assertEquals(CSI + "1;7H" + CSI + "K", diff(last, next));
+        assertRoundTrip(last, next);
+
+        feed(fb, "\u001B[2;1Hab\r\n\u001B[1;4HP\u001B[K");
+        FramebufferSnapshot shorter = fb.snapshot();
+        assertEquals(CSI + "1;4HP" + CSI + "K" + CSI + "2Hab" + CSI + "1;5H", diff(next, shorter));
+        assertRoundTrip(next, shorter);
+    }
+
+    @Test
+    void styles_setWithFullSgrAndResetAtTheEnd() {
+        SimpleFramebuffer fb = feed(20, 3, "");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "a\u001B[1;4;31mb\u001B[22;38;5;200mc\u001B[0;48;2;1;2;3md\u001B[0m");
+        FramebufferSnapshot next = fb.snapshot();
+        assertEquals("a" + CSI + "0;1;4;31mb" + CSI + "0;4;38;5;200mc" + CSI + "0;48;2;1;2;3md" + CSI + "0m",
+                diff(last, next));
+        assertRoundTrip(last, next);
+    }
+
+    @Test
+    void erasedStyledCells_useDefaultPen() {
+        SimpleFramebuffer fb = feed(20, 3, "\u001B[44mblue\u001B[0m text");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\r\u001B[K");
+        FramebufferSnapshot next = fb.snapshot();
+        String out = diff(last, next);
+        assertEquals("\r" + CSI + "K", out);
+        assertRoundTrip(last, next);
+    }
+
+    @Test
+    void scroll_movesTheScreenInsteadOfRedrawing() {
+        SimpleFramebuffer fb = feed(10, 4, "one\r\ntwo\r\nthree\r\nfour");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\r\nfive\r\nsix");
+        FramebufferSnapshot next = fb.snapshot();
+        String out = diff(last, next);
+        assertTrue(out.startsWith(CSI + "2S"), out);
+        assertFalse(out.contains("three") || out.contains("four"), out);
+        assertRoundTrip(last, next);
+    }
+
+    @Test
+    void scroll_notDetectedForBlankOrUnmovedRows() {
+        SimpleFramebuffer fb = feed(10, 4, "one");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\r\u001B[Kx");
+        FramebufferSnapshot next = fb.snapshot();
+        assertFalse(diff(last, next).contains("S"));
+        assertRoundTrip(last, next);
+    }
+
+    @Test
+    void wideCharacters_drawnWhole() {
+        SimpleFramebuffer fb = feed(10, 2, "a\u4E2D\u6587b");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\u001B[4G\u4E8C");
+        FramebufferSnapshot next = fb.snapshot();
+        assertEquals(CSI + "1;4H\u4E8C", diff(last, next));
+        assertRoundTrip(last, next);
+    }
+
+    @Test
+    void cursorVisibility_sentWhenChanged() {
+        SimpleFramebuffer fb = feed(10, 2, "x");
+        FramebufferSnapshot last = fb.snapshot();
+        feed(fb, "\u001B[?25l");
+        FramebufferSnapshot next = fb.snapshot();
+        assertEquals(CSI + "?25l", diff(last, next));
+        assertRoundTrip(last, next);
+    }
+}
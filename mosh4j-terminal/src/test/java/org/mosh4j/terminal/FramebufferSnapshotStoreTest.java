@@ -0,0 +1,135 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FramebufferSnapshotStoreTest {
+
+    private static List<FramebufferSnapshot> snapshots(int count) {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 2);
+        List<FramebufferSnapshot> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            fb.feedHostBytes(new byte[]{(byte) ('a' + i % 26)});
+            list.add(fb.snapshot());
+        }
+        return list;
+    }
+
+    @Test
+    void get_findsStoredStatesOnly() {
+        List<FramebufferSnapshot> snaps = snapshots(3);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(8);
+        assertNull(store.get(0));
+        store.put(0, snaps.get(0));
+        store.put(5, snaps.get(1));
+        store.put(9, snaps.get(2));
+        assertEquals(3, store.size());
+        assertSame(snaps.get(0), store.get(0));
+        assertSame(snaps.get(1), store.get(5));
+        assertSame(snaps.get(2), store.get(9));
+        assertNull(store.get(4));
+        assertNull(store.get(10));
+        assertNull(store.get(-1));
+    }
+
+    @Test
+    void put_rejectsStateNumbersThatDoNotIncrease() {
+        FramebufferSnapshot snap = snapshots(1).get(0);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(4);
+        store.put(3, snap);
+        assertThrows(IllegalArgumentException.class, () -> store.put(3, snap));
+        assertThrows(IllegalArgumentException.class, () -> store.put(2, snap));
+        assertEquals(1, store.size());
+
+        store.releaseBelow(4);
+        store.put(1, snap);
+        assertSame(snap, store.get(1), "an empty store takes any state");
+        assertThrows(IllegalArgumentException.class, () -> new FramebufferSnapshotStore(0));
+    }
+
+    @Test
+    void put_evictsOldestAtMaxSnapshots() {
+        List<FramebufferSnapshot> snaps = snapshots(5);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(3);
+        for (int i = 0; i < 5; i++) {
+            store.put(i, snaps.get(i));
+            assertEquals(Math.min(i + 1, 3), store.size());
+        }
+        assertNull(store.get(0));
+        assertNull(store.get(1));
+        assertSame(snaps.get(2), store.get(2));
+        assertSame(snaps.get(4), store.get(4));
+
+        FramebufferSnapshotStore single = new FramebufferSnapshotStore(1);
+        single.put(7, snaps.get(0));
+        single.put(8, snaps.get(1));
+        assertEquals(1, single.size());
+        assertNull(single.get(7));
+        assertSame(snaps.get(1), single.get(8));
+    }
+
+    @Test
+    void releaseBelow_dropsAcknowledgedHistory() {
+        List<FramebufferSnapshot> snaps = snapshots(4);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(8);
+        store.put(10, snaps.get(0));
+        store.put(20, snaps.get(1));
+        store.put(30, snaps.get(2));
+        store.put(40, snaps.get(3));
+        assertEquals(0, store.releaseBelow(10));
+        assertEquals(2, store.releaseBelow(25));
+        assertEquals(2, store.size());
+        assertNull(store.get(10));
+        assertNull(store.get(20));
+        assertSame(snaps.get(2), store.get(30));
+        assertEquals(2, store.releaseBelow(Long.MAX_VALUE));
+        assertEquals(0, store.size());
+        assertEquals(0, store.releaseBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void ringWrapsAcrossManyStates() {
+        // Capacity rounds 5 up to 8 slots; releasing and evicting moves the head around the ring.
+        List<FramebufferSnapshot> snaps = snapshots(100);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(5);
+        ArrayDeque<Integer> held = new ArrayDeque<>();
+        for (int i = 0; i < 100; i++) {
+            store.put(2L * i, snaps.get(i));
+            held.addLast(i);
+            if (held.size() > 5) held.removeFirst();
+            if (i % 7 == 6) {
+                int released = 0;
+                while (held.peekFirst() < i - 1) {
+                    held.removeFirst();
+                    released++;
+                }
+                assertEquals(released, store.releaseBelow(2L * i - 2));
+            }
+            assertEquals(held.size(), store.size());
+            for (int j = 0; j <= i; j++) {
+                FramebufferSnapshot expected = held.contains(j) ? snaps.get(j) : null;
+                assertSame(expected, store.get(2L * j), "state " + 2 * j + " after put " + i);
+                assertNull(store.get(2L * j + 1));
+            }
+        }
+    }
+
+    @Test
+    void clear_emptiesTheStore() {
+        List<FramebufferSnapshot> snaps = snapshots(3);
+        FramebufferSnapshotStore store = new FramebufferSnapshotStore(2);
+        store.put(1, snaps.get(0));
+        store.put(2, snaps.get(1));
+        store.put(3, snaps.get(2));
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get(3));
+        store.put(1, snaps.get(0));
+        assertSame(snaps.get(0), store.get(1));
+    }
+}
@@ -0,0 +1,32 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinimalAnsiParserTest {
+
+    private static SimpleFramebuffer feed(int width, int height, String input) {
+        SimpleFramebuffer fb = new SimpleFramebuffer(width, height);
+        fb.feedHostBytes(input.getBytes(StandardCharsets.UTF_8));
+        return fb;
+    }
+
+    @Test
+    void osc_setsTitleWithAnyTerminator() {
+        assertEquals("one", feed(10, 2, "\033]0;one\007").getTitle());
+        assertEquals("tw\u00F6", feed(10, 2, "\033]2;tw\u00F6\033\\").getTitle());
+        assertEquals("", feed(10, 2, "\033]1;icon\007").getTitle());
+    }
+
+    @Test
+    void sgr_extendedColors() {
+        SimpleFramebuffer fb = feed(10, 2, "\033[38;5;196;48;2;1;2;3ma\033[0mb");
+        Cell a = fb.getCell(0, 0);
+        assertEquals(30 + 196, a.getForeground());
+        assertEquals(0x1000000 | 0x010203, a.getBackground());
+        assertEquals(0, fb.getCell(0, 1).getForeground());
+    }
+}
@@ -0,0 +1,197 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PredictionEngineTest {
+
+    private static final long SLOW = 100;
+    private static final long FAST = 10;
+
+    private static FramebufferSnapshot screen(String line) {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 3);
+        fb.feedHostBytes(line.getBytes(StandardCharsets.UTF_8));
+        return fb.snapshot();
+    }
+
+    private static byte[] keys(String keys) {
+        return keys.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String line(FramebufferSnapshot screen) {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < screen.getWidth(); c++) {
+            sb.appendCodePoint(screen.getCell(0, c).getCodePoint(0));
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    /** An engine whose first epoch was confirmed by the echo of "a" in state 1. */
+    private static PredictionEngine confirmed(PredictionEngine.DisplayPreference preference, long srttMs) {
+        PredictionEngine engine = new PredictionEngine();
+        engine.setDisplayPreference(preference);
+        engine.serverState(screen("$ "), 0, srttMs, 0);
+        engine.newUserInput(keys("a"), 1, 0);
+        engine.serverState(screen("$ a"), 1, srttMs, 10);
+        return engine;
+    }
+
+    @Test
+    void firstEpoch_hiddenUntilConfirmed() {
+        PredictionEngine engine = new PredictionEngine();
+        engine.setDisplayPreference(PredictionEngine.DisplayPreference.ALWAYS);
+        assertNull(engine.overlay());
+        engine.newUserInput(keys("x"), 1, 0);
+        assertFalse(engine.hasPredictions(), "nothing to predict on before a server screen");
+
+        engine.serverState(screen("$ "), 0, SLOW, 0);
+        engine.newUserInput(keys("a"), 1, 0);
+        assertTrue(engine.hasPredictions());
+        assertEquals("$", line(engine.overlay()));
+        assertEquals(2, engine.overlay().getCursorCol());
+
+        engine.serverState(screen("$ a"), 1, SLOW, 10);
+        assertFalse(engine.hasPredictions());
+        engine.newUserInput(keys("bc"), 2, 20);
+        assertEquals("$ abc", line(engine.overlay()));
+        assertEquals(5, engine.overlay().getCursorCol());
+    }
+
+    @Test
+    void echoAck_checksOnlyPredictionsTheServerHasSeen() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("b"), 2, 20);
+        engine.newUserInput(keys("c"), 3, 30);
+
+        engine.serverState(screen("$ a"), 1, SLOW, 40);
+        assertEquals("$ abc", line(engine.overlay()), "not yet echoed: kept");
+
+        engine.serverState(screen("$ ab"), 2, SLOW, 50);
+        assertTrue(engine.hasPredictions());
+        assertEquals("$ abc", line(engine.overlay()));
+
+        engine.serverState(screen("$ abc"), 3, SLOW, 60);
+        assertFalse(engine.hasPredictions());
+        assertEquals("$ abc", line(engine.overlay()));
+    }
+
+    @Test
+    void mismatch_discardsAllPredictions() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("b"), 2, 20);
+        engine.newUserInput(keys("c"), 3, 30);
+
+        FramebufferSnapshot server = screen("$ aB");
+        engine.serverState(server, 2, SLOW, 40);
+        assertFalse(engine.hasPredictions());
+        assertSame(server, engine.overlay());
+
+        engine.newUserInput(keys("d"), 4, 50);
+        assertEquals("$ aB", line(engine.overlay()), "after a rollback predictions are tentative again");
+    }
+
+    @Test
+    void cursorMismatch_discardsAllPredictions() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("\u001B[D"), 2, 20);
+        assertEquals(2, engine.overlay().getCursorCol());
+
+        engine.serverState(screen("$ a"), 2, SLOW, 30);
+        assertFalse(engine.hasPredictions());
+        assertEquals(3, engine.overlay().getCursorCol());
+    }
+
+    @Test
+    void unpredictableInput_startsTentativeEpoch() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("\u0003"), 2, 20);
+        engine.newUserInput(keys("pw"), 2, 20);
+        assertEquals("$ a", line(engine.overlay()), "e.g. a password prompt: not echoed locally");
+        assertTrue(engine.hasPredictions());
+
+        engine.serverState(screen("$ apw"), 2, SLOW, 30);
+        engine.newUserInput(keys("\u001Bx"), 3, 40);
+        engine.newUserInput(keys("y"), 3, 40);
+        assertEquals("$ apw", line(engine.overlay()));
+    }
+
+    @Test
+    void backspaceAndArrows_arePredicted() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("bc\u001B[D\u001B[DX\u007F"), 2, 20);
+        assertEquals("$ abc", line(engine.overlay()));
+        assertEquals(3, engine.overlay().getCursorCol());
+        engine.newUserInput(keys("\u001BOC"), 2, 20);
+        assertEquals(4, engine.overlay().getCursorCol());
+    }
+
+    @Test
+    void never_predictsNothing() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("b"), 2, 20);
+        engine.setDisplayPreference(PredictionEngine.DisplayPreference.NEVER);
+        assertFalse(engine.hasPredictions());
+        engine.newUserInput(keys("c"), 3, 30);
+        assertFalse(engine.hasPredictions());
+    }
+
+    @Test
+    void adaptive_showsPredictionsOnlyWhenSrttIsHigh() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ADAPTIVE, FAST);
+        engine.newUserInput(keys("b"), 2, 20);
+        assertEquals("$ a", line(engine.overlay()), "fast link: no local echo");
+
+        engine.serverState(screen("$ ab"), 2, PredictionEngine.SRTT_TRIGGER_HIGH_MS + 1, 30);
+        engine.newUserInput(keys("c"), 3, 40);
+        assertEquals("$ abc", line(engine.overlay()));
+
+        engine.serverState(screen("$ ab"), 2, PredictionEngine.SRTT_TRIGGER_LOW_MS, 50);
+        assertEquals("$ abc", line(engine.overlay()), "kept on while a prediction is outstanding");
+        engine.serverState(screen("$ abc"), 3, PredictionEngine.SRTT_TRIGGER_LOW_MS, 60);
+        engine.serverState(screen("$ abc"), 3, PredictionEngine.SRTT_TRIGGER_LOW_MS, 70);
+        engine.newUserInput(keys("d"), 4, 80);
+        assertEquals("$ abc", line(engine.overlay()));
+    }
+
+    @Test
+    void adaptive_glitchShowsPredictionsOnFastLink() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ADAPTIVE, FAST);
+        engine.newUserInput(keys("b"), 2, 100);
+        engine.serverState(screen("$ a"), 1, FAST, 100 + PredictionEngine.GLITCH_THRESHOLD_MS - 1);
+        assertEquals("$ a", line(engine.overlay()));
+
+        engine.serverState(screen("$ a"), 1, FAST, 100 + PredictionEngine.GLITCH_THRESHOLD_MS);
+        assertEquals("$ ab", line(engine.overlay()));
+        assertEquals(0, engine.overlay().getCell(0, 3).getRenditions() & Cell.UNDERLINED);
+    }
+
+    @Test
+    void underline_whenSrttIsHighOrGlitchPersists() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, PredictionEngine.FLAG_TRIGGER_HIGH_MS + 1);
+        engine.newUserInput(keys("b"), 2, 20);
+        assertEquals(Cell.UNDERLINED, engine.overlay().getCell(0, 3).getRenditions() & Cell.UNDERLINED);
+        assertEquals(0, engine.overlay().getCell(0, 2).getRenditions() & Cell.UNDERLINED, "server cells untouched");
+
+        engine.serverState(screen("$ a"), 1, PredictionEngine.FLAG_TRIGGER_LOW_MS + 1, 30);
+        assertEquals(Cell.UNDERLINED, engine.overlay().getCell(0, 3).getRenditions() & Cell.UNDERLINED,
+                "between the thresholds the flag is kept");
+        engine.serverState(screen("$ a"), 1, PredictionEngine.FLAG_TRIGGER_LOW_MS, 40);
+        assertEquals(0, engine.overlay().getCell(0, 3).getRenditions() & Cell.UNDERLINED);
+
+        engine.serverState(screen("$ a"), 1, FAST, 20 + PredictionEngine.GLITCH_FLAG_THRESHOLD_MS);
+        engine.serverState(screen("$ a"), 1, FAST, 30 + PredictionEngine.GLITCH_FLAG_THRESHOLD_MS);
+        assertEquals(Cell.UNDERLINED, engine.overlay().getCell(0, 3).getRenditions() & Cell.UNDERLINED);
+    }
+
+    @Test
+    void resize_discardsPredictions() {
+        PredictionEngine engine = confirmed(PredictionEngine.DisplayPreference.ALWAYS, SLOW);
+        engine.newUserInput(keys("b"), 2, 20);
+        SimpleFramebuffer wider = new SimpleFramebuffer(20, 3);
+        engine.serverState(wider.snapshot(), 1, SLOW, 30);
+        assertFalse(engine.hasPredictions());
+    }
+}
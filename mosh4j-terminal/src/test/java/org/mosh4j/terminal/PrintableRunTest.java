@@ -0,0 +1,234 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrintableRunTest {
+
+    private static SimpleFramebuffer feed(int width, int height, String input) {
+        SimpleFramebuffer fb = new SimpleFramebuffer(width, height);
+        fb.feedHostBytes(input.getBytes(StandardCharsets.UTF_8));
+        return fb;
+    }
+
+    private static void assertNoHalfChars(Framebuffer fb) {
+        for (int r = 0; r < fb.getHeight(); r++) {
+            for (int c = 0; c < fb.getWidth(); c++) {
+                int width = fb.getCell(r, c).getWidth();
+                boolean leadBefore = c > 0 && fb.getCell(r, c - 1).getWidth() == 2;
+                boolean continuationAfter = c + 1 < fb.getWidth() && fb.getCell(r, c + 1).getWidth() == 0;
+                if (width == 2) {
+                    assertTrue(continuationAfter, "lead without continuation at " + r + "," + c);
+                } else if (width == 0) {
+                    assertTrue(leadBefore, "continuation without lead at " + r + "," + c);
+                }
+            }
+        }
+    }
+
+    private static void assertCell(Cell cell, int width, int... codePoints) {
+        assertEquals(width, cell.getWidth());
+        assertArrayEquals(codePoints, cell.getCodePoints());
+    }
+
+    @Test
+    void nextControl_findsFirstControlInEveryPosition() {
+        for (int len = 0; len <= 20; len++) {
+            for (int at = 0; at < len; at++) {
+                for (byte control : new byte[]{0x00, 0x1B, 0x1F, 0x7F}) {
+                    byte[] bytes = new byte[len];
+                    Arrays.fill(bytes, (byte) 0xC3);
+                    bytes[at] = control;
+                    assertEquals(at, VtParser.nextControl(bytes, 0, len));
+                }
+            }
+            byte[] text = new byte[len];
+            Arrays.fill(text, (byte) 0x20);
+            assertEquals(len, VtParser.nextControl(text, 0, len));
+        }
+    }
+
+    @Test
+    void charWidth_widths() {
+        assertEquals(1, CharWidth.of('a'));
+        assertEquals(1, CharWidth.of(0xE9));
+        assertEquals(0, CharWidth.of(0x301));
+        assertEquals(0, CharWidth.of(0x200B));
+        assertEquals(1, CharWidth.of(0xAD));
+        assertEquals(0, CharWidth.of(0x1160));
+        assertEquals(2, CharWidth.of(0x4E2D));
+        assertEquals(2, CharWidth.of(0xFF21));
+        assertEquals(2, CharWidth.of(0x1F600));
+        assertEquals(1, CharWidth.of(0x10FFFF));
+        assertEquals(1, CharWidth.of(Character.MAX_CODE_POINT + 1));
+    }
+
+    @Test
+    void wide_takesTwoCells() {
+        SimpleFramebuffer fb = feed(10, 2, "\u4E2Da");
+        assertCell(fb.getCell(0, 0), 2, 0x4E2D);
+        assertCell(fb.getCell(0, 1), 0, 0);
+        assertCell(fb.getCell(0, 2), 1, 'a');
+        assertEquals(3, fb.getCursorCol());
+    }
+
+    @Test
+    void wide_wrapsWhenOnlyOneColumnLeft() {
+        SimpleFramebuffer fb = feed(5, 2, "abcd\u4E2D");
+        assertCell(fb.getCell(0, 4), 1, ' ');
+        assertCell(fb.getCell(1, 0), 2, 0x4E2D);
+        assertEquals(1, fb.getCursorRow());
+        assertEquals(2, fb.getCursorCol());
+    }
+
+    @Test
+    void wide_withoutAutowrapStaysOnLastTwoColumns() {
+        SimpleFramebuffer fb = feed(5, 2, "\033[?7labcd\u4E2D");
+        assertCell(fb.getCell(0, 3), 2, 0x4E2D);
+        assertCell(fb.getCell(0, 4), 0, 0);
+        assertEquals(0, fb.getCursorRow());
+    }
+
+    @Test
+    void wide_overwritingHalfBlanksTheOtherHalf() {
+        SimpleFramebuffer fb = feed(10, 2, "\u4E2D\u56FD\rx\033[4Gy");
+        assertCell(fb.getCell(0, 0), 1, 'x');
+        assertCell(fb.getCell(0, 1), 1, ' ');
+        assertCell(fb.getCell(0, 2), 1, ' ');
+        assertCell(fb.getCell(0, 3), 1, 'y');
+    }
+
+    @Test
+    void combining_attachesToPreviousCell() {
+        SimpleFramebuffer fb = feed(10, 2, "e\u0301x");
+        assertCell(fb.getCell(0, 0), 1, 'e', 0x301);
+        assertCell(fb.getCell(0, 1), 1, 'x');
+        assertEquals(2, fb.getCursorCol());
+    }
+
+    @Test
+    void combining_attachesToWideCharacter() {
+        SimpleFramebuffer fb = feed(10, 2, "\u4E2D\u0301");
+        assertCell(fb.getCell(0, 0), 2, 0x4E2D, 0x301);
+        assertCell(fb.getCell(0, 1), 0, 0);
+        assertEquals(2, fb.getCursorCol());
+    }
+
+    @Test
+    void combining_withWrapPendingAttachesToLastColumn() {
+        SimpleFramebuffer fb = feed(3, 2, "abc\u0308");
+        assertCell(fb.getCell(0, 2), 1, 'c', 0x308);
+        assertEquals(0, fb.getCursorRow());
+        assertEquals(2, fb.getCursorCol());
+    }
+
+    @Test
+    void combining_atStartOfLineIsDropped() {
+        SimpleFramebuffer fb = feed(3, 2, "\u0301a");
+        assertCell(fb.getCell(0, 0), 1, 'a');
+    }
+
+    @Test
+    void zeroWidth_doesNotMoveCursor() {
+        SimpleFramebuffer fb = feed(10, 2, "a\u200Bb\u00ADc");
+        assertCell(fb.getCell(0, 0), 1, 'a', 0x200B);
+        assertCell(fb.getCell(0, 1), 1, 'b');
+        assertCell(fb.getCell(0, 2), 1, 0xAD);
+        assertCell(fb.getCell(0, 3), 1, 'c');
+        assertEquals(4, fb.getCursorCol());
+    }
+
+    @Test
+    void wide_erasingOneHalfBlanksBoth() {
+        // "a" then a wide character in columns 2-3 (1-based); each edit touches only one half
+        for (String edit : new String[]{"\u001B[3G\u001B[K", "\u001B[2G\u001B[1K", "\u001B[3G\u001B[X",
+                "\u001B[2G\u001B[X", "\u001B[3G\u001B[1P", "\u001B[2G\u001B[X", "\u001B[3G\u001B[1@"}) {
+            SimpleFramebuffer fb = feed(6, 2, "a\u4E2Db" + edit);
+            assertNoHalfChars(fb);
+            for (int c = 0; c < 6; c++) {
+                assertNotEquals(0x4E2D, fb.getCell(0, c).getCodePoints()[0], edit);
+            }
+        }
+    }
+
+    @Test
+    void wide_eraseToEndFromSecondHalf() {
+        SimpleFramebuffer fb = feed(4, 2, "\u4E2D\u001B[2G\u001B[K");
+        assertCell(fb.getCell(0, 0), 1, ' ');
+        assertCell(fb.getCell(0, 1), 1, ' ');
+    }
+
+    @Test
+    void wide_deleteShiftsWholeCharacters() {
+        SimpleFramebuffer fb = feed(6, 2, "ab\u4E2Dc\u001B[3G\u001B[1P");
+        assertNoHalfChars(fb);
+        assertCell(fb.getCell(0, 2), 1, ' ');
+        assertCell(fb.getCell(0, 3), 1, 'c');
+
+        fb = feed(6, 2, "ab\u4E2Dc\u001B[2G\u001B[1P");
+        assertCell(fb.getCell(0, 1), 2, 0x4E2D);
+        assertCell(fb.getCell(0, 2), 0, 0);
+        assertCell(fb.getCell(0, 3), 1, 'c');
+    }
+
+    @Test
+    void wide_insertInsideOrPushedPastMarginIsBlanked() {
+        SimpleFramebuffer fb = feed(6, 2, "\u4E2D\u001B[2G\u001B[1@");
+        assertNoHalfChars(fb);
+        assertCell(fb.getCell(0, 0), 1, ' ');
+
+        fb = feed(6, 2, "abcd\u4E2D\u001B[1G\u001B[1@");
+        assertNoHalfChars(fb);
+        assertCell(fb.getCell(0, 4), 1, 'd');
+        assertCell(fb.getCell(0, 5), 1, ' ');
+    }
+
+    @Test
+    void randomEdits_roundTripThroughFramebufferDiff() {
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int width = 2 + random.nextInt(10);
+            int height = 1 + random.nextInt(6);
+            SimpleFramebuffer host = feed(width, height, randomInput(random, 30));
+            FramebufferSnapshot last = host.snapshot();
+            host.feedHostBytes(randomInput(random, 1 + random.nextInt(10)).getBytes(StandardCharsets.UTF_8));
+            assertNoHalfChars(host);
+            FramebufferSnapshot next = host.snapshot();
+
+            SimpleFramebuffer client = new SimpleFramebuffer(width, height);
+            client.restore(last);
+            client.feedHostBytes(FramebufferDiff.newFrame(last, next));
+            for (int r = 0; r < height; r++) {
+                for (int c = 0; c < width; c++) {
+                    assertEquals(next.getCell(r, c), client.getCell(r, c), "round " + round + " at " + r + "," + c);
+                }
+            }
+            assertEquals(next.getCursorRow(), client.getCursorRow());
+            assertEquals(next.getCursorCol(), client.getCursorCol());
+        }
+    }
+
+    private static String randomInput(Random random, int edits) {
+        String[] text = {"a", "bc", "\u4E2D", "\u4E2D\u6587", "e\u0301", "\r\n", "\n"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < edits; i++) {
+            int n = 1 + random.nextInt(4);
+            switch (random.nextInt(8)) {
+                case 0, 1, 2 -> sb.append(text[random.nextInt(text.length)]);
+                case 3 -> sb.append("\u001B[").append(1 + random.nextInt(6)).append(';')
+                        .append(1 + random.nextInt(12)).append('H');
+                case 4 -> sb.append("\u001B[").append(random.nextInt(3)).append('K');
+                case 5 -> sb.append("\u001B[").append(n).append("XP@".charAt(random.nextInt(3)));
+                case 6 -> sb.append("\u001B[").append(n).append("SLM".charAt(random.nextInt(3)));
+                default -> sb.append("\u001B[").append(random.nextInt(2) == 0 ? "0" : "1;3" + random.nextInt(8))
+                        .append('m');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScrollbackTest {
+
+    private static final int SEGMENT = 1024;
+
+    private static CellRow row(int width, String text) {
+        CellRow row = new CellRow(width);
+        int c = 0;
+        for (int i = 0; i < text.length() && c < width; ) {
+            int cp = text.codePointAt(i);
+            row.set(c++, cp, 1, Style.DEFAULT);
+            i += Character.charCount(cp);
+        }
+        return row;
+    }
+
+    private static void assertLines(Scrollback sb, String prefix) {
+        for (long line = sb.getFirstLine(); line < sb.getEndLine(); line++) {
+            assertEquals(prefix + line, sb.getLineText(line), "line " + line);
+        }
+    }
+
+    @Test
+    void append_getLineRoundTripsCells() {
+        Scrollback sb = new Scrollback(new ScrollbackPool(4 * SEGMENT, SEGMENT), 4 * SEGMENT);
+        CellRow row = new CellRow(8);
+        long red = Style.of(31, 0, Cell.UNDERLINED);
+        row.set(0, 'a', 1, red);
+        row.set(1, 0x4E2D, 2, Style.DEFAULT);
+        row.set(2, 0, 0, Style.DEFAULT);
+        row.setCluster(3, new int[]{'e', 0x301}, 1, red);
+        row.set(4, 0xE9, 1, Style.of(0, 0x1000000 | 0x123456, 0));
+        sb.append(row);
+
+        assertEquals(0, sb.getFirstLine());
+        assertEquals(1, sb.getEndLine());
+        Cell[] cells = sb.getLine(0);
+        assertEquals(8, cells.length);
+        for (int c = 0; c < 8; c++) {
+            assertEquals(row.cell(c), cells[c], "column " + c);
+        }
+        assertEquals("a\u4E2De\u0301\u00E9", sb.getLineText(0));
+        assertNull(sb.getLine(1));
+        assertNull(sb.getLine(-1));
+    }
+
+    @Test
+    void append_manyLinesPerSegment() {
+        ScrollbackPool pool = new ScrollbackPool(8 * SEGMENT, SEGMENT);
+        Scrollback sb = new Scrollback(pool, 8 * SEGMENT);
+        for (int i = 0; i < 200; i++) {
+            sb.append(row(40, "line " + i));
+        }
+        assertEquals(0, sb.getFirstLine());
+        assertEquals(200, sb.getEndLine());
+        assertTrue(sb.getUsedBytes() < 200L * SEGMENT / 10, "lines share segments");
+        assertLines(sb, "line ");
+    }
+
+    @Test
+    void append_evictsOldestSegmentOverOwnBudget() {
+        ScrollbackPool pool = new ScrollbackPool(16 * SEGMENT, SEGMENT);
+        Scrollback sb = new Scrollback(pool, 2 * SEGMENT);
+        for (int i = 0; i < 1000; i++) {
+            sb.append(row(40, "line " + i));
+        }
+        assertEquals(1000, sb.getEndLine());
+        assertTrue(sb.getFirstLine() > 0);
+        assertEquals(2 * SEGMENT, sb.getUsedBytes());
+        assertEquals(2 * SEGMENT, pool.getUsedBytes());
+        assertNull(sb.getLine(sb.getFirstLine() - 1));
+        assertLines(sb, "line ");
+    }
+
+    @Test
+    void append_reclaimsOldestSegmentAcrossStores() {
+        ScrollbackPool pool = new ScrollbackPool(4 * SEGMENT, SEGMENT);
+        Scrollback a = new Scrollback(pool, 4 * SEGMENT);
+        Scrollback b = new Scrollback(pool, 4 * SEGMENT);
+        while (a.getUsedBytes() < 4 * SEGMENT) {
+            a.append(row(40, "a" + a.getEndLine()));
+        }
+        long aEnd = a.getEndLine();
+        for (int i = 0; i < 3; i++) {
+            b.append(row(40, "b" + i));
+        }
+        assertEquals(3 * SEGMENT, a.getUsedBytes());
+        assertEquals(SEGMENT, b.getUsedBytes());
+        assertTrue(a.getFirstLine() > 0);
+        assertEquals(aEnd, a.getEndLine());
+        assertLines(a, "a");
+        assertLines(b, "b");
+
+        // b keeps growing and takes every segment of a, oldest first
+        while (a.getUsedBytes() > 0) {
+            b.append(row(40, "b" + b.getEndLine()));
+        }
+        assertEquals(a.getEndLine(), a.getFirstLine());
+        assertNull(a.getLine(aEnd - 1));
+        assertEquals(4 * SEGMENT, pool.getUsedBytes());
+        assertLines(b, "b");
+
+        // a gets one back from b, b's oldest
+        long bFirst = b.getFirstLine();
+        a.append(row(40, "a" + a.getEndLine()));
+        assertTrue(b.getFirstLine() > bFirst);
+        assertLines(a, "a");
+        assertLines(b, "b");
+    }
+
+    @Test
+    void clear_releasesSegmentsAndKeepsNumbering() {
+        ScrollbackPool pool = new ScrollbackPool(4 * SEGMENT, SEGMENT);
+        Scrollback sb = new Scrollback(pool, 4 * SEGMENT);
+        for (int i = 0; i < 10; i++) {
+            sb.append(row(10, "x" + i));
+        }
+        sb.clear();
+        assertEquals(0, pool.getUsedBytes());
+        assertEquals(10, sb.getFirstLine());
+        assertEquals(10, sb.getEndLine());
+        assertNull(sb.getLine(9));
+        sb.append(row(10, "x10"));
+        assertEquals("x10", sb.getLineText(10));
+    }
+
+    @Test
+    void append_lineLargerThanSegmentIsKeptBlank() {
+        ScrollbackPool pool = new ScrollbackPool(4 * SEGMENT, SEGMENT);
+        Scrollback sb = new Scrollback(pool, 4 * SEGMENT);
+        CellRow wide = new CellRow(400);
+        for (int c = 0; c < 400; c++) {
+            wide.setCluster(c, new int[]{'a', 0x301, 0x302}, 1, Style.DEFAULT);
+        }
+        sb.append(wide);
+        sb.append(row(10, "after"));
+        assertEquals(400, sb.getLine(0).length);
+        assertEquals("", sb.getLineText(0));
+        assertEquals("after", sb.getLineText(1));
+    }
+
+    @Test
+    void framebuffer_appendsRowsScrolledOffTop() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 3);
+        Scrollback sb = new Scrollback(new ScrollbackPool(4 * SEGMENT, SEGMENT), 4 * SEGMENT);
+        fb.setScrollback(sb);
+        fb.feedHostBytes("1\r\n2\r\n3\r\n4\r\n5\033[2;3r\033[3;1H\n\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, sb.getEndLine());
+        assertEquals("1", sb.getLineText(0));
+        assertEquals("2", sb.getLineText(1));
+    }
+
+    @Test
+    void appendScrolledOff_detectsScrollBetweenSnapshots() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 4);
+        fb.feedHostBytes("1\r\n2\r\n3\r\n4".getBytes(StandardCharsets.UTF_8));
+        FramebufferSnapshot last = fb.snapshot();
+        fb.feedHostBytes("\r\n5\r\n6".getBytes(StandardCharsets.UTF_8));
+        FramebufferSnapshot next = fb.snapshot();
+
+        Scrollback sb = new Scrollback(new ScrollbackPool(4 * SEGMENT, SEGMENT), 4 * SEGMENT);
+        sb.appendScrolledOff(last, next);
+        assertEquals(2, sb.getEndLine());
+        assertEquals("1", sb.getLineText(0));
+        assertEquals("2", sb.getLineText(1));
+
+        sb.appendScrolledOff(next, next);
+        fb.feedHostBytes("\033[2J".getBytes(StandardCharsets.UTF_8));
+        sb.appendScrolledOff(next, fb.snapshot());
+        fb.resize(12, 4);
+        sb.appendScrolledOff(next, fb.snapshot());
+        assertEquals(2, sb.getEndLine());
+    }
+
+    @Test
+    void appendScrolledOff_ignoresRepeatedRowsThatDidNotMove() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 4);
+        fb.feedHostBytes("$ make\r\nx\r\n$ make\r\ny".getBytes(StandardCharsets.UTF_8));
+        FramebufferSnapshot last = fb.snapshot();
+        fb.feedHostBytes("\rz".getBytes(StandardCharsets.UTF_8));
+        FramebufferSnapshot next = fb.snapshot();
+
+        Scrollback sb = new Scrollback(new ScrollbackPool(4 * SEGMENT, SEGMENT), 4 * SEGMENT);
+        sb.appendScrolledOff(last, next);
+        assertEquals(0, sb.getEndLine());
+        assertFalse(new String(FramebufferDiff.newFrame(last, next), StandardCharsets.UTF_8).contains("S"));
+
+        // the old second row now also on top, but the rows below it did not follow
+        fb.feedHostBytes("\033[Hx\033[K".getBytes(StandardCharsets.UTF_8));
+        sb.appendScrolledOff(next, fb.snapshot());
+        assertEquals(0, sb.getEndLine());
+    }
+}
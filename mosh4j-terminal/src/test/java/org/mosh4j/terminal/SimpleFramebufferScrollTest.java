@@ -0,0 +1,186 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimpleFramebufferScrollTest {
+
+    /** Five rows A to E with the cursor on E. */
+    private static SimpleFramebuffer letters() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(4, 5);
+        feed(fb, "A\r\nB\r\nC\r\nD\r\nE");
+        return fb;
+    }
+
+    private static void feed(SimpleFramebuffer fb, String input) {
+        fb.feedHostBytes(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String screen(SimpleFramebuffer fb) {
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < fb.getHeight(); r++) {
+            if (r > 0) sb.append('|');
+            for (int c = 0; c < fb.getWidth(); c++) {
+                sb.appendCodePoint(fb.getCell(r, c).getCodePoint(0));
+            }
+        }
+        return sb.toString().replace(" ", "");
+    }
+
+    private static String screen(FramebufferSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < snapshot.getHeight(); r++) {
+            if (r > 0) sb.append('|');
+            for (int c = 0; c < snapshot.getWidth(); c++) {
+                sb.appendCodePoint(snapshot.getCell(r, c).getCodePoint(0));
+            }
+        }
+        return sb.toString().replace(" ", "");
+    }
+
+    @Test
+    void lineFeed_atBottomScrollsWholeScreen() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\r\nF");
+        assertEquals("B|C|D|E|F", screen(fb));
+        assertEquals(4, fb.getCursorRow());
+
+        // more lines than rows: the ring base wraps around several times
+        for (int i = 0; i < 12; i++) {
+            feed(fb, "\r\n" + (char) ('a' + i));
+        }
+        assertEquals("h|i|j|k|l", screen(fb));
+    }
+
+    @Test
+    void lineFeed_atBottomMarginScrollsOnlyRegion() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[4;1H\nX");
+        assertEquals("A|C|D|X|E", screen(fb));
+        assertEquals(3, fb.getCursorRow());
+    }
+
+    @Test
+    void lineFeed_belowRegionDoesNotScroll() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[1;3r\033[5;1H\n");
+        assertEquals("A|B|C|D|E", screen(fb));
+    }
+
+    @Test
+    void scrollUp_moreThanRegionBlanksIt() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[10S");
+        assertEquals("A||||E", screen(fb));
+
+        fb = letters();
+        feed(fb, "\033[100S");
+        assertEquals("||||", screen(fb));
+    }
+
+    @Test
+    void scrollDown_moreThanRegionBlanksIt() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[10T");
+        assertEquals("A||||E", screen(fb));
+
+        fb = letters();
+        feed(fb, "\033[2;4r\033[2T");
+        assertEquals("A|||B|E", screen(fb));
+    }
+
+    @Test
+    void insertLines_insideMargin() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[3;3H\033[L");
+        assertEquals("A|B||C|E", screen(fb));
+        assertEquals(2, fb.getCursorRow());
+        assertEquals(0, fb.getCursorCol());
+
+        feed(fb, "\033[5L");
+        assertEquals("A|B|||E", screen(fb));
+    }
+
+    @Test
+    void deleteLines_insideMargin() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[2;1H\033[M");
+        assertEquals("A|C|D||E", screen(fb));
+
+        feed(fb, "\033[3;1H\033[9M");
+        assertEquals("A|C|||E", screen(fb));
+    }
+
+    @Test
+    void insertAndDeleteLines_outsideMarginAreIgnored() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[5;1H\033[L\033[1;1H\033[M");
+        assertEquals("A|B|C|D|E", screen(fb));
+    }
+
+    @Test
+    void reverseIndex_atTopMarginScrollsRegionDown() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[2;4r\033[2;1H\033MX");
+        assertEquals("A|X|B|C|E", screen(fb));
+        assertEquals(1, fb.getCursorRow());
+    }
+
+    @Test
+    void reverseIndex_atTopOfScreenScrollsWholeScreenDown() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[1;1H\033M\033M");
+        assertEquals("||A|B|C", screen(fb));
+    }
+
+    @Test
+    void reverseIndex_aboveRegionOnlyMovesCursor() {
+        SimpleFramebuffer fb = letters();
+        feed(fb, "\033[3;5r\033[2;1H\033M\033M");
+        assertEquals("A|B|C|D|E", screen(fb));
+        assertEquals(0, fb.getCursorRow());
+    }
+
+    @Test
+    void snapshot_unchangedByLaterScrolls() {
+        SimpleFramebuffer fb = letters();
+        FramebufferSnapshot before = fb.snapshot();
+
+        feed(fb, "\r\nF\r\nG");
+        FramebufferSnapshot scrolled = fb.snapshot();
+        feed(fb, "\033[2;4r\033[2;1H\033[L\033[4;1H\033[M\033[2;1H\033MZ\033[3S\033[2T");
+        feed(fb, "\033[r\033[5;1H\r\nH");
+
+        assertEquals("A|B|C|D|E", screen(before));
+        assertEquals("C|D|E|F|G", screen(scrolled));
+        assertNotEquals(screen(scrolled), screen(fb));
+    }
+
+    @Test
+    void snapshot_unchangedWhenScrolledRowIsWritten() {
+        SimpleFramebuffer fb = letters();
+        FramebufferSnapshot before = fb.snapshot();
+        // the row recycled by the scroll is the one the snapshot holds as A
+        feed(fb, "\r\nF");
+        feed(fb, "\033[1;1HX\033[5;1HY");
+
+        assertEquals("A|B|C|D|E", screen(before));
+        assertEquals("X|C|D|E|Y", screen(fb));
+    }
+
+    @Test
+    void restore_thenScrollLeavesSnapshotIntact() {
+        SimpleFramebuffer fb = letters();
+        FramebufferSnapshot snapshot = fb.snapshot();
+        feed(fb, "\033[2J");
+        fb.restore(snapshot);
+        assertEquals("A|B|C|D|E", screen(fb));
+
+        feed(fb, "\033[5;1H\r\nF\033[1;1H\033M");
+        assertEquals("|B|C|D|E", screen(fb));
+        assertEquals("A|B|C|D|E", screen(snapshot));
+    }
+}
@@ -0,0 +1,181 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimpleFramebufferStateTest {
+
+    private static void feed(SimpleFramebuffer fb, String input) {
+        fb.feedHostBytes(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameScreen(SimpleFramebuffer expected, SimpleFramebuffer actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int r = 0; r < expected.getHeight(); r++) {
+            for (int c = 0; c < expected.getWidth(); c++) {
+                assertEquals(expected.getCell(r, c), actual.getCell(r, c), "cell " + r + "," + c);
+            }
+        }
+        assertEquals(expected.getCursorRow(), actual.getCursorRow());
+        assertEquals(expected.getCursorCol(), actual.getCursorCol());
+        assertEquals(expected.isCursorVisible(), actual.isCursorVisible());
+        assertEquals(expected.getTitle(), actual.getTitle());
+    }
+
+    private static SimpleFramebuffer roundTrip(SimpleFramebuffer fb) {
+        SimpleFramebuffer copy = new SimpleFramebuffer(1, 1);
+        copy.fromStateBytes(fb.toStateBytes());
+        assertSameScreen(fb, copy);
+        return copy;
+    }
+
+    /** A small screen with one of everything the encoding distinguishes. */
+    private static SimpleFramebuffer sample() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(20, 6);
+        feed(fb, "\033]0;t\u00EFtle\007");
+        feed(fb, "plain \033[1;4;31mbold red\033[0m \033[38;5;200;48;2;10;20;30mrgb\033[0m\r\n");
+        feed(fb, "\u4E2D\u6587 e\u0301 a\u200Bb \uD83D\uDE00\r\n");
+        feed(fb, "a          b\033[44m   \033[0m\r\n");
+        feed(fb, "\033[7m          \033[0m\r\n");
+        feed(fb, "\033[6;19H\u4E2D\033[?25l\033[3;5H");
+        return fb;
+    }
+
+    @Test
+    void roundTrip_colorsWideCellsClustersAndBlankRuns() {
+        roundTrip(sample());
+    }
+
+    @Test
+    void roundTrip_blankScreen() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(80, 24);
+        byte[] state = fb.toStateBytes();
+        assertTrue(state.length < 40, "blank rows take a byte each, got " + state.length);
+        roundTrip(fb);
+    }
+
+    @Test
+    void roundTrip_manyStyles() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(50, 20);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("\033[38;2;").append(i % 256).append(';').append(i / 256).append(";0m").append((char) ('a' + i % 26));
+        }
+        feed(fb, sb.toString());
+        roundTrip(fb);
+    }
+
+    @Test
+    void roundTrip_controlAndSurrogateCodePoints() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(6, 1);
+        fb.setCell(0, 0, new Cell(new int[]{0x01}, 1, 0, 0, 0));
+        fb.setCell(0, 1, new Cell(new int[]{0x0B}, 1, 0, 0, 0));
+        fb.setCell(0, 2, new Cell(new int[]{0xD800}, 1, 0, 0, 0));
+        fb.setCell(0, 3, new Cell(new int[]{0x10FFFF}, 1, 0, 0, 0));
+        fb.setCell(0, 4, new Cell(new int[]{0x7F}, 1, 31, 0, 0));
+        roundTrip(fb);
+    }
+
+    @Test
+    void toStateBytes_isStableAcrossCalls() {
+        SimpleFramebuffer fb = sample();
+        byte[] first = fb.toStateBytes();
+        SimpleFramebuffer other = new SimpleFramebuffer(3, 3);
+        other.fromStateBytes(first);
+        fb.fromStateBytes(new SimpleFramebuffer(5, 5).toStateBytes());
+        fb.fromStateBytes(first);
+        assertArrayEquals(first, fb.toStateBytes());
+        assertArrayEquals(first, other.toStateBytes());
+    }
+
+    @Test
+    void fromStateBytes_resizesAndOverwritesSharedRows() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(10, 3);
+        feed(fb, "old");
+        FramebufferSnapshot snapshot = fb.snapshot();
+        SimpleFramebuffer source = sample();
+        fb.fromStateBytes(source.toStateBytes());
+        assertSameScreen(source, fb);
+        assertEquals('o', snapshot.getCell(0, 0).getCodePoint(0));
+    }
+
+    @Test
+    void fromStateBytes_rejectsEveryTruncation() {
+        byte[] state = sample().toStateBytes();
+        for (int len = 1; len < state.length; len++) {
+            byte[] truncated = Arrays.copyOf(state, len);
+            SimpleFramebuffer fb = new SimpleFramebuffer(2, 2);
+            assertThrows(IllegalArgumentException.class, () -> fb.fromStateBytes(truncated), "length " + len);
+        }
+    }
+
+    /** State of a 4x1 screen without styles whose only row is {@code row}. */
+    private static byte[] oneRow(int... row) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b : new int[]{1, 4, 1, 0, 0, 1, 0, 0}) out.write(b);
+        for (int b : row) out.write(b);
+        return out.toByteArray();
+    }
+
+    @Test
+    void fromStateBytes_readsHandWrittenRow() {
+        SimpleFramebuffer fb = new SimpleFramebuffer(1, 1);
+        fb.fromStateBytes(oneRow('a', 0xC3, 0xA9, 0x01, 2, 0));
+        assertEquals('a', fb.getCell(0, 0).getCodePoint(0));
+        assertEquals(0xE9, fb.getCell(0, 1).getCodePoint(0));
+        assertTrue(fb.getCell(0, 2).isBlank());
+    }
+
+    @Test
+    void fromStateBytes_rejectsCorruptInput() {
+        byte[][] corrupt = {
+                {2, 4, 1, 0, 0, 1, 0, 0, 0},                        // unknown version
+                {1, 0, 1, 0, 0, 1, 0, 0, 0},                        // zero width
+                {1, 4, 1, 0, 0, 1, 0, 10, 0},                       // more styles than cells
+                oneRow(0x02, 1, 'a', 0),                            // style index past the list
+                oneRow(0x06, 0),                                    // unknown opcode
+                oneRow(0x05, 3, 1, 'a', 0),                         // cell width 3
+                oneRow(0x05, 1, 0, 0),                              // empty cluster
+                oneRow(0x03, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F, 0),      // code point out of range
+                oneRow(0x01, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0),      // varint too long
+                oneRow(0x80, 0x80, 0),                              // stray continuation byte
+                oneRow(0xBF, 0x80, 0),                              // stray continuation byte
+                oneRow(0xC0, 0xAF, 0),                              // overlong '/'
+                oneRow(0xC1, 0xBF, 0),                              // overlong
+                oneRow(0xE0, 0x80, 0xAF, 0),                        // overlong 3-byte
+                oneRow(0xF0, 0x80, 0x80, 0xAF, 0),                  // overlong 4-byte
+                oneRow(0xED, 0xA0, 0x80, 0),                        // surrogate
+                oneRow(0xF4, 0x90, 0x80, 0x80, 0),                  // beyond U+10FFFF
+                oneRow(0xF8, 0x88, 0x80, 0x80, 0),                  // 5-byte lead
+                oneRow(0xE2, 0x41, 0x41, 0),                        // missing continuation
+        };
+        for (int i = 0; i < corrupt.length; i++) {
+            byte[] bytes = corrupt[i];
+            assertThrows(IllegalArgumentException.class, () -> new SimpleFramebuffer(2, 2).fromStateBytes(bytes),
+                    "case " + i);
+        }
+    }
+
+    @Test
+    void styleIndex_numbersInOrderOfFirstUseAndClears() {
+        StyleIndex index = new StyleIndex();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 500; i++) {
+                assertEquals(i + 1, index.add(Style.of(30 + i % 200, 40 + i / 200, 0)));
+            }
+            for (int i = 0; i < 500; i++) {
+                assertEquals(i + 1, index.add(Style.of(30 + i % 200, 40 + i / 200, 0)));
+                assertEquals(Style.of(30 + i % 200, 40 + i / 200, 0), index.style(i + 1));
+            }
+            assertEquals(500, index.size());
+            index.clear();
+            assertEquals(0, index.size());
+        }
+    }
+}
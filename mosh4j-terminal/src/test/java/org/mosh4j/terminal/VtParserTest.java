@@ -0,0 +1,214 @@
+package org.mosh4j.terminal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VtParserTest {
+
+    /** Records every callback as a short string. */
+    private static final class Recorder implements VtParser.Handler {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void print(int codePoint) {
+            events.add("print " + Integer.toHexString(codePoint));
+        }
+
+        @Override
+        public void execute(int control) {
+            events.add("execute " + Integer.toHexString(control));
+        }
+
+        @Override
+        public void csiDispatch(int finalByte, int intermediates, int[] params, int paramCount) {
+            events.add("csi " + (char) finalByte + " " + Integer.toHexString(intermediates) + " "
+                    + Arrays.toString(Arrays.copyOf(params, paramCount)));
+        }
+
+        @Override
+        public void escDispatch(int finalByte, int intermediates) {
+            events.add("esc " + (char) finalByte + " " + Integer.toHexString(intermediates));
+        }
+
+        @Override
+        public void oscDispatch(byte[] data, int length) {
+            events.add("osc " + new String(data, 0, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void hook(int finalByte, int intermediates, int[] params, int paramCount) {
+            events.add("hook " + (char) finalByte + " " + Integer.toHexString(intermediates) + " "
+                    + Arrays.toString(Arrays.copyOf(params, paramCount)));
+        }
+
+        @Override
+        public void put(int b) {
+            events.add("put " + (char) b);
+        }
+
+        @Override
+        public void unhook() {
+            events.add("unhook");
+        }
+    }
+
+    private static List<String> parse(String input) {
+        Recorder recorder = new Recorder();
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        new VtParser(recorder).feed(bytes, 0, bytes.length);
+        return recorder.events;
+    }
+
+    @Test
+    void csi_paramsAndDefaults() {
+        assertEquals(List.of("csi H 0 [12, 40]"), parse("\033[12;40H"));
+        assertEquals(List.of("csi m 0 []"), parse("\033[m"));
+        assertEquals(List.of("csi H 0 [0, 5]"), parse("\033[;5H"));
+        assertEquals(List.of("csi m 0 [38, 2, 1, 2, 3]"), parse("\033[38:2:1:2:3m"));
+    }
+
+    @Test
+    void csi_privateMarkersAndIntermediates() {
+        assertEquals(List.of("csi h 3f [25]"), parse("\033[?25h"));
+        assertEquals(List.of("csi q 20 [2]"), parse("\033[2 q"));
+        assertEquals(List.of("csi p 3f24 [1]"), parse("\033[?1$p"));
+        assertEquals(List.of("csi c 3e []"), parse("\033[>c"));
+    }
+
+    @Test
+    void csi_malformedSequencesAreIgnored() {
+        // private marker after a parameter, parameter after an intermediate, too many intermediates
+        assertEquals(List.of("print 78"), parse("\033[1?hx"));
+        assertEquals(List.of("print 78"), parse("\033[ 1qx"));
+        assertEquals(List.of("print 78"), parse("\033[!!!!px"));
+        assertEquals(List.of("csi p 212121 []"), parse("\033[!!!p"));
+    }
+
+    @Test
+    void csi_controlsExecuteInsideSequence() {
+        assertEquals(List.of("execute d", "csi H 0 [12]"), parse("\033[1\r2H"));
+    }
+
+    @Test
+    void csi_paramOverflow() {
+        assertEquals(List.of("csi A 0 [65535]"), parse("\033[99999999999A"));
+
+        StringBuilder max = new StringBuilder("\033[");
+        for (int i = 0; i < VtParser.MAX_PARAMS; i++) {
+            max.append(i).append(';');
+        }
+        max.setLength(max.length() - 1);
+        List<String> atLimit = parse(max + "m");
+        assertEquals(1, atLimit.size());
+        assertTrue(atLimit.get(0).endsWith(", 31]"));
+
+        // one parameter too many drops the whole sequence, not just the extra parameter
+        assertEquals(List.of("print 78"), parse(max + ";1mx"));
+    }
+
+    @Test
+    void esc_dispatchWithIntermediates() {
+        assertEquals(List.of("esc 7 0"), parse("\0337"));
+        assertEquals(List.of("esc B 28"), parse("\033(B"));
+        assertEquals(List.of("esc 8 23"), parse("\033#8"));
+    }
+
+    @Test
+    void osc_terminatedByBel() {
+        assertEquals(List.of("osc 0;title", "print 78"), parse("\033]0;title\007x"));
+    }
+
+    @Test
+    void osc_terminatedBySt() {
+        assertEquals(List.of("osc 2;t\u00EFtle", "esc \\ 0", "print 78"), parse("\033]2;t\u00EFtle\033\\x"));
+    }
+
+    @Test
+    void osc_endedByCanOrSub() {
+        assertEquals(List.of("osc 0;ab", "execute 18", "print 78"), parse("\033]0;ab\030x"));
+        assertEquals(List.of("osc 0;ab", "execute 1a", "print 78"), parse("\033]0;ab\032x"));
+    }
+
+    @Test
+    void osc_longStringIsTruncated() {
+        String body = "0;" + "a".repeat(2 * VtParser.MAX_OSC_LENGTH);
+        List<String> events = parse("\033]" + body + "\007");
+        assertEquals(List.of("osc " + body.substring(0, VtParser.MAX_OSC_LENGTH)), events);
+    }
+
+    @Test
+    void dcs_passthrough() {
+        assertEquals(List.of("hook | 0 [1, 2]", "put a", "put \n", "put b", "unhook", "esc \\ 0"),
+                parse("\033P1;2|a\nb\033\\"));
+        assertEquals(List.of("hook q 24 []", "put x", "unhook", "esc \\ 0"), parse("\033P$qx\033\\"));
+        // DEL is dropped; CAN ends the string
+        assertEquals(List.of("hook p 3f [1]", "put a", "unhook", "execute 18", "print 79"),
+                parse("\033P?1pa\u007F\030y"));
+    }
+
+    @Test
+    void sosPmApc_areSwallowed() {
+        assertEquals(List.of("esc \\ 0", "print 78"), parse("\033_app\033\\x"));
+        assertEquals(List.of("esc \\ 0", "print 78"), parse("\033^pm\033\\x"));
+    }
+
+    @Test
+    void utf8_invalidBytesPrintReplacement() {
+        Recorder recorder = new Recorder();
+        VtParser parser = new VtParser(recorder);
+        byte[] bytes = {(byte) 0x80, 'a', (byte) 0xC0, (byte) 0xAF, (byte) 0xE2, (byte) 0x82, 'b',
+                (byte) 0xED, (byte) 0xA0, (byte) 0x80, (byte) 0xF5};
+        parser.feed(bytes, 0, bytes.length);
+        assertEquals(List.of("print fffd", "print 61", "print fffd", "print fffd", "print fffd", "print 62",
+                "print fffd", "print fffd"), recorder.events);
+    }
+
+    @Test
+    void utf8_controlInterruptsCharacter() {
+        Recorder recorder = new Recorder();
+        byte[] bytes = {(byte) 0xE2, (byte) 0x82, '\n', 'a'};
+        new VtParser(recorder).feed(bytes, 0, bytes.length);
+        assertEquals(List.of("print fffd", "execute a", "print 61"), recorder.events);
+    }
+
+    @Test
+    void feed_splitAtEveryByteBoundary() {
+        String input = "a\u00E9\u20AC\uD83D\uDE00\033[1;31mb\u4E2D\033]0;t\u00EFtle\007\033P1|x\033\\"
+                + "e\u0301\u200B" + "0123456789abcdef".repeat(3) + "\r\n";
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        List<String> expected = parse(input);
+
+        for (int split = 0; split <= bytes.length; split++) {
+            Recorder recorder = new Recorder();
+            VtParser parser = new VtParser(recorder);
+            parser.feed(bytes, 0, split);
+            parser.feed(bytes, split, bytes.length - split);
+            assertEquals(expected, recorder.events, "split at " + split);
+        }
+
+        Recorder recorder = new Recorder();
+        VtParser parser = new VtParser(recorder);
+        for (int i = 0; i < bytes.length; i++) {
+            parser.feed(bytes, i, 1);
+        }
+        assertEquals(expected, recorder.events);
+    }
+
+    @Test
+    void reset_dropsPartialSequenceAndCharacter() {
+        Recorder recorder = new Recorder();
+        VtParser parser = new VtParser(recorder);
+        byte[] partial = {0x1B, '[', '1', (byte) 0xE2};
+        parser.feed(partial, 0, 3);
+        parser.reset();
+        byte[] rest = {'2', 'H', (byte) 0xE2, (byte) 0x82, (byte) 0xAC};
+        parser.feed(rest, 0, rest.length);
+        assertEquals(List.of("print 32", "print 48", "print 20ac"), recorder.events);
+    }
+}
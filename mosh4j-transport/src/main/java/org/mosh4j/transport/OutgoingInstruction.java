@@ -0,0 +1,86 @@
+package org.mosh4j.transport;
+
+import org.mosh4j.protocol.TransportInstructionCodec;
+
+import TransportBuffers.Transportinstruction;
+
+/**
+ * An instruction produced by {@link TransportSender}, ready to be encoded with
+ * {@link TransportInstructionCodec}. The sender reuses one instance, so it is only valid
+ * until the sender's next call.
+ */
+public final class OutgoingInstruction {
+
+    private static final byte[] NO_DIFF = new byte[0];
+
+    private long oldNum;
+    private long newNum;
+    private long ackNum;
+    private long throwawayNum;
+    private byte[] diff = NO_DIFF;
+
+    OutgoingInstruction set(long oldNum, long newNum, long ackNum, long throwawayNum, byte[] diff) {
+        this.oldNum = oldNum;
+        this.newNum = newNum;
+        this.ackNum = ackNum;
+        this.throwawayNum = throwawayNum;
+        this.diff = diff != null ? diff : NO_DIFF;
+        return this;
+    }
+
+    public long getOldNum() {
+        return oldNum;
+    }
+
+    /**
+     * The target state number; -1 in a shutdown instruction.
+     */
+    public long getNewNum() {
+        return newNum;
+    }
+
+    public long getAckNum() {
+        return ackNum;
+    }
+
+    public long getThrowawayNum() {
+        return throwawayNum;
+    }
+
+    /**
+     * Whether this instruction carries a state the receiver has not seen from it before
+     * (not an ack, heartbeat or shutdown).
+     */
+    public boolean carriesNewState() {
+        return newNum > oldNum;
+    }
+
+    public int getDiffLength() {
+        return diff.length;
+    }
+
+    /**
+     * Encoded size with {@code chaffLength} bytes of chaff.
+     */
+    public int encodedLength(int chaffLength) {
+        return TransportInstructionCodec.encodedLength(oldNum, newNum, ackNum, throwawayNum, diff.length, chaffLength);
+    }
+
+    /**
+     * Encode into {@code out} at {@code pos}, which must have room for
+     * {@link #encodedLength(int) encodedLength(chaffLength)} bytes.
+     *
+     * @return the offset after the instruction
+     */
+    public int encode(byte[] out, int pos, byte[] chaff, int chaffLength) {
+        return TransportInstructionCodec.encode(out, pos, oldNum, newNum, ackNum, throwawayNum,
+                diff, 0, diff.length, chaff, 0, chaffLength);
+    }
+
+    /**
+     * The same instruction as a generated protobuf message, with random chaff.
+     */
+    public Transportinstruction.Instruction toInstruction() {
+        return TransportInstruction.create(oldNum, newNum, ackNum, throwawayNum, diff);
+    }
+}
@@ -0,0 +1,134 @@
+package org.mosh4j.transport;
+
+import org.mosh4j.protocol.InstructionView;
+
+import TransportBuffers.Transportinstruction;
+
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * SSP transport receiver over states of type {@code S}: receives Instructions, applies diffs,
+ * maintains state window. A state is whatever the diff function makes of a base state and a
+ * diff; it can be a handle the application resolves itself (such as a framebuffer snapshot)
+ * rather than serialized bytes. States are compared by number only, never by content.
+ * <p>
+ * States are kept in a bounded {@link StateWindow}; states below the sender's
+ * {@code throwaway_num} are discarded as each instruction arrives, at a cost proportional
+ * to the number discarded. An instruction for a state already held is not applied again.
+ */
+public class StateReceiver<S> {
+
+    /** mosh's receiver limit on queued states. */
+    public static final int DEFAULT_MAX_STATES = StateWindow.DEFAULT_MAX_STATES;
+    public static final long DEFAULT_MAX_BYTES = StateWindow.DEFAULT_MAX_BYTES;
+
+    private final StateWindow<S> states;
+    private long latestStateNum = 0;
+    private S latestState = null;
+    private final BiFunction<S, byte[], S> applyDiff;
+    private final Consumer<S> onNewState;
+
+    /**
+     * Receiver bounded by state count only.
+     *
+     * @param applyDiff    (baseState, diff) -> newState, or null to drop the instruction
+     * @param onNewState   called when we have a new latest state
+     * @param initialState state 0, the base of the first diff
+     */
+    public StateReceiver(BiFunction<S, byte[], S> applyDiff, Consumer<S> onNewState, S initialState) {
+        this(applyDiff, onNewState, initialState, DEFAULT_MAX_STATES, Long.MAX_VALUE, state -> 0);
+    }
+
+    /**
+     * @param maxStates most states held at once (mosh uses 1024)
+     * @param maxBytes  most total size of the states held; the newest state is always kept
+     * @param sizeOf    size of one state, in bytes or any unit matching {@code maxBytes}
+     */
+    public StateReceiver(
+            BiFunction<S, byte[], S> applyDiff,
+            Consumer<S> onNewState,
+            S initialState,
+            int maxStates,
+            long maxBytes,
+            ToLongFunction<? super S> sizeOf) {
+        this.applyDiff = applyDiff;
+        this.onNewState = onNewState;
+        this.states = new StateWindow<>(maxStates, maxBytes, sizeOf);
+        states.put(0L, initialState);
+    }
+
+    /**
+     * Process an incoming Instruction. Returns the ack_num we should send back (latest state we have).
+     */
+    public long receive(Transportinstruction.Instruction instruction) {
+        long newNum = instruction.getNewNum();
+        long throwawayNum = instruction.getThrowawayNum();
+        S base = baseFor(instruction.getOldNum(), newNum, throwawayNum);
+        if (base == null) {
+            return latestStateNum;
+        }
+        byte[] diff = instruction.hasDiff() ? instruction.getDiff().toByteArray() : new byte[0];
+        return apply(base, diff, newNum, throwawayNum);
+    }
+
+    /**
+     * Process an incoming instruction decoded in place. The diff is only copied out of the
+     * received bytes if the instruction is applied.
+     */
+    public long receive(InstructionView instruction) {
+        long newNum = instruction.getNewNum();
+        long throwawayNum = instruction.getThrowawayNum();
+        S base = baseFor(instruction.getOldNum(), newNum, throwawayNum);
+        if (base == null) {
+            return latestStateNum;
+        }
+        return apply(base, instruction.copyDiff(), newNum, throwawayNum);
+    }
+
+    /**
+     * The state to apply an instruction's diff to, or null if the instruction is to be
+     * skipped: its new state is held already or its base state is not.
+     */
+    private S baseFor(long oldNum, long newNum, long throwawayNum) {
+        if (states.contains(newNum)) {
+            // Retransmission or heartbeat for a state we already have.
+            states.discardBelow(throwawayNum);
+            return null;
+        }
+        return states.get(oldNum);
+    }
+
+    private long apply(S base, byte[] diff, long newNum, long throwawayNum) {
+        S newState = applyDiff.apply(base, diff);
+        if (newState == null) {
+            return latestStateNum;
+        }
+
+        states.put(newNum, newState);
+        if (newNum > latestStateNum) {
+            latestStateNum = newNum;
+            latestState = newState;
+            onNewState.accept(newState);
+        }
+
+        states.discardBelow(throwawayNum);
+        return latestStateNum;
+    }
+
+    public long getLatestStateNum() {
+        return latestStateNum;
+    }
+
+    /**
+     * Number of states currently held (at least one).
+     */
+    public int getHeldStateCount() {
+        return states.size();
+    }
+
+    public S getLatestState() {
+        return latestState;
+    }
+}
@@ -0,0 +1,181 @@
+package org.mosh4j.transport;
+
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * Received states ordered by state number, for {@link TransportReceiver}.
+ * <p>
+ * Kept as parallel arrays in a ring sorted by state number: states almost always arrive in
+ * increasing order and are discarded from the oldest end, so insertion is an append,
+ * {@link #discardBelow} costs O(states removed) and lookup is a binary search. The window
+ * is capped by state count and total size, as measured by a size function (byte length for
+ * {@code byte[]} states); when a cap is exceeded the oldest states are evicted, never the
+ * newest one.
+ * <p>
+ * Not thread-safe.
+ */
+final class StateWindow<S> {
+
+    /** mosh's receiver limit on queued states. */
+    static final int DEFAULT_MAX_STATES = 1024;
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 16; // power of two, doubled as needed
+
+    private final int maxStates;
+    private final long maxBytes;
+    private final ToLongFunction<? super S> sizeOf;
+    private long[] nums;
+    private Object[] states;
+    private int head;
+    private int size;
+    private long bytes;
+
+    /**
+     * @param maxBytes most total size of the states held
+     * @param sizeOf   size of one state
+     */
+    StateWindow(int maxStates, long maxBytes, ToLongFunction<? super S> sizeOf) {
+        if (maxStates < 1) throw new IllegalArgumentException("maxStates must be positive");
+        this.maxStates = maxStates;
+        this.maxBytes = maxBytes;
+        this.sizeOf = sizeOf;
+        this.nums = new long[INITIAL_CAPACITY];
+        this.states = new Object[INITIAL_CAPACITY];
+    }
+
+    static StateWindow<byte[]> ofBytes() {
+        return ofBytes(DEFAULT_MAX_STATES, DEFAULT_MAX_BYTES);
+    }
+
+    static StateWindow<byte[]> ofBytes(int maxStates, long maxBytes) {
+        return new StateWindow<>(maxStates, maxBytes, state -> state.length);
+    }
+
+    /**
+     * State numbered {@code num}, or null if not held.
+     */
+    @SuppressWarnings("unchecked")
+    S get(long num) {
+        int i = indexOf(num);
+        return i < 0 ? null : (S) states[slot(i)];
+    }
+
+    boolean contains(long num) {
+        return indexOf(num) >= 0;
+    }
+
+    /**
+     * Store {@code state} as {@code num}, replacing a state of the same number.
+     */
+    void put(long num, S state) {
+        int i = indexOf(num);
+        if (i >= 0) {
+            int s = slot(i);
+            bytes += sizeOf.applyAsLong(state) - sizeAt(s);
+            states[s] = state;
+        } else {
+            insertAt(-i - 1, num, state);
+        }
+        while (size > 1 && (size > maxStates || bytes > maxBytes)) {
+            removeFirst();
+        }
+    }
+
+    /**
+     * Remove all states numbered below {@code num}, keeping at least the newest one.
+     *
+     * @return number of states removed
+     */
+    int discardBelow(long num) {
+        int removed = 0;
+        while (size > 1 && nums[head] < num) {
+            removeFirst();
+            removed++;
+        }
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long byteSize() {
+        return bytes;
+    }
+
+    /**
+     * Lowest held state number; the window must not be empty.
+     */
+    long firstNum() {
+        return nums[head];
+    }
+
+    private void insertAt(int index, long num, S state) {
+        if (size == nums.length) {
+            grow();
+        }
+        // Shift the (usually empty) tail after the insertion point up by one.
+        for (int i = size; i > index; i--) {
+            int to = slot(i);
+            int from = slot(i - 1);
+            nums[to] = nums[from];
+            states[to] = states[from];
+        }
+        int s = slot(index);
+        nums[s] = num;
+        states[s] = state;
+        size++;
+        bytes += sizeOf.applyAsLong(state);
+    }
+
+    @SuppressWarnings("unchecked")
+    private long sizeAt(int slot) {
+        return sizeOf.applyAsLong((S) states[slot]);
+    }
+
+    private void removeFirst() {
+        bytes -= sizeAt(head);
+        states[head] = null;
+        head = (head + 1) & (nums.length - 1);
+        size--;
+    }
+
+    private void grow() {
+        int capacity = nums.length * 2;
+        long[] n = new long[capacity];
+        Object[] st = new Object[capacity];
+        for (int i = 0; i < size; i++) {
+            n[i] = nums[slot(i)];
+            st[i] = states[slot(i)];
+        }
+        nums = n;
+        states = st;
+        head = 0;
+    }
+
+    /**
+     * Binary search by state number; as {@link Arrays#binarySearch(long[], long)}, returns
+     * {@code -(insertion point) - 1} when absent.
+     */
+    private int indexOf(long num) {
+        int lo = 0;
+        int hi = size - 1;
+        if (size > 0 && nums[slot(hi)] < num) {
+            return -size - 1; // common case: newer than everything held
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = nums[slot(mid)];
+            if (v < num) lo = mid + 1;
+            else if (v > num) hi = mid - 1;
+            else return mid;
+        }
+        return -lo - 1;
+    }
+
+    private int slot(int index) {
+        return (head + index) & (nums.length - 1);
+    }
+}
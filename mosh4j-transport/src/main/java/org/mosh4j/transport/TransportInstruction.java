@@ -1,21 +1,30 @@
 package org.mosh4j.transport;
 
+import org.mosh4j.protocol.InstructionView;
+import org.mosh4j.protocol.TransportInstructionCodec;
+
 import TransportBuffers.Transportinstruction;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Objects;
 
 /**
  * Wrapper for SSP transport Instruction (TransportBuffers.Instruction): parse and serialize.
  * Matches native C++ mosh wire format: protocol_version=2, random chaff bytes.
+ * <p>
+ * These helpers build generated protobuf messages. The session send and receive paths use
+ * {@link OutgoingInstruction} and {@link InstructionView} instead, which do not allocate
+ * per instruction.
  */
 public final class TransportInstruction {
 
-    public static final int MOSH_PROTOCOL_VERSION = 2;
+    public static final int MOSH_PROTOCOL_VERSION = TransportInstructionCodec.PROTOCOL_VERSION;
+    /** Most random chaff bytes added to an instruction, as native mosh. */
+    public static final int MAX_CHAFF_BYTES = 16;
     private static final int MAX_FRAGMENT_SIZE = 1400;
-    private static final int MAX_CHAFF_BYTES = 16;
     private static final SecureRandom RANDOM = new SecureRandom();
 
     public static int getMaxFragmentSize() {
@@ -26,6 +35,13 @@ public final class TransportInstruction {
         return Transportinstruction.Instruction.parseFrom(bytes);
     }
 
+    /**
+     * Parse from the remaining bytes of {@code bytes} without copying them into an array first.
+     */
+    public static Transportinstruction.Instruction parse(ByteBuffer bytes) throws IOException {
+        return Transportinstruction.Instruction.parseFrom(bytes);
+    }
+
     public static Transportinstruction.Instruction parseFrom(InputStream in) throws IOException {
         return Transportinstruction.Instruction.parseFrom(in);
     }
@@ -89,4 +105,12 @@ public final class TransportInstruction {
         Objects.requireNonNull(inst, "instruction");
         return inst.hasProtocolVersion() && inst.getProtocolVersion() == MOSH_PROTOCOL_VERSION;
     }
+
+    /**
+     * Validate that a received instruction uses the expected protocol version.
+     */
+    public static boolean isProtocolVersionValid(InstructionView inst) {
+        Objects.requireNonNull(inst, "instruction");
+        return inst.hasProtocolVersion() && inst.getProtocolVersion() == MOSH_PROTOCOL_VERSION;
+    }
 }
@@ -1,9 +1,8 @@
 package org.mosh4j.transport;
 
-import TransportBuffers.Transportinstruction;
-
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 /**
@@ -12,28 +11,39 @@ import java.util.function.Supplier;
  * Timing constants from src/network/networktransport-impl.h:
  * <ul>
  *   <li>SEND_INTERVAL_MIN = 20ms</li>
+ *   <li>SEND_MINDELAY = 8ms</li>
  *   <li>SEND_INTERVAL_MAX = 250ms</li>
  *   <li>ACK_DELAY = 100ms</li>
  *   <li>ACK_INTERVAL = 3000ms</li>
  *   <li>SHUTDOWN_RETRIES = 16</li>
  *   <li>ACTIVE_RETRY_TIMEOUT = 10000ms</li>
  * </ul>
+ * Instructions are returned in one reused {@link OutgoingInstruction}, valid until the
+ * next call that produces one.
  */
 public class TransportSender {
 
     public static final long SEND_INTERVAL_MIN_MS = 20;
     public static final long SEND_INTERVAL_MAX_MS = 250;
+    /** Quiet time after a state change before it is sent, so a burst of output goes out as one state. */
+    public static final long SEND_MINDELAY_MS = 8;
     public static final long ACK_DELAY_MS = 100;
     public static final long ACK_INTERVAL_MS = 3000;
     public static final long ACTIVE_RETRY_TIMEOUT_MS = 10_000;
     public static final int SHUTDOWN_RETRIES = 16;
     public static final int MAX_PENDING_STATES = 32;
 
+    /**
+     * Origin of {@link #now()}, placed far enough in the past that a timestamp of 0 keeps
+     * meaning "long ago" for every interval above.
+     */
+    private static final long CLOCK_ORIGIN_NANOS = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+
     private long nextStateNum = 1;
     private long knownReceiverState = 0;
     private final List<SentState> sentStates = new ArrayList<>();
     private final Supplier<byte[]> currentStateSupplier;
-    private final Supplier<byte[]> diffSupplier;
+    private final DiffSource diffSource;
 
     private long lastSendTimestampMs = 0;
     private long lastAckTimestampMs = 0;
@@ -42,10 +52,51 @@ public class TransportSender {
     private int shutdownTries = 0;
     private boolean pendingDataAck = false;
     private long pendingDataAckDeadlineMs = 0;
+    private long ackNum = 0;
+    private boolean stateChanged = false;
+    private long stateChangedAtMs = 0;
+    private final OutgoingInstruction outgoing = new OutgoingInstruction();
+
+    /**
+     * What a scheduled sender should send next; see {@link #nextAction}.
+     */
+    public enum SendAction {
+        /** Nothing is due. */
+        NONE,
+        /** The current state differs from the last one sent: send it ({@link #nextInstruction}). */
+        NEW_STATE,
+        /** The last state sent is unacknowledged past the timeout: send it again ({@link #retransmitInstruction}). */
+        RETRANSMIT,
+        /** An ack or keepalive is due ({@link #createTrialInstruction}). */
+        ACK
+    }
+
+    /**
+     * Produces the diff carried by an instruction from one state to the next.
+     */
+    @FunctionalInterface
+    public interface DiffSource {
+
+        /**
+         * Diff that turns state {@code oldNum}, which the receiver is assumed to have, into
+         * the current state, about to be sent as {@code newNum}. For a retransmission
+         * {@code newNum} is a state produced by an earlier call, and the diff must lead to it.
+         *
+         * @return the diff; null or empty if there is nothing to change
+         */
+        byte[] diff(long oldNum, long newNum);
+    }
 
+    /**
+     * Sender whose diffs do not depend on the receiver's state (e.g. the full state each time).
+     */
     public TransportSender(Supplier<byte[]> currentStateSupplier, Supplier<byte[]> diffSupplier) {
+        this(currentStateSupplier, (oldNum, newNum) -> diffSupplier.get());
+    }
+
+    public TransportSender(Supplier<byte[]> currentStateSupplier, DiffSource diffSource) {
         this.currentStateSupplier = currentStateSupplier;
-        this.diffSupplier = diffSupplier;
+        this.diffSource = diffSource;
     }
 
     public void setProtocolVersion(int version) {
@@ -55,18 +106,47 @@ public class TransportSender {
     public void setKnownReceiverState(long ackNum) {
         if (ackNum > knownReceiverState) {
             knownReceiverState = ackNum;
-            lastAckTimestampMs = System.currentTimeMillis();
+            lastAckTimestampMs = now();
             pruneSentStates(ackNum);
         }
     }
 
+    /**
+     * Latest state of the remote side that we hold, sent as {@code ack_num} in every instruction.
+     */
+    public void setAckNum(long ackNum) {
+        this.ackNum = ackNum;
+    }
+
+    public long getAckNum() {
+        return ackNum;
+    }
+
+    /**
+     * The current state changed since it was last sent. The first change starts the
+     * {@link #SEND_MINDELAY_MS} coalescing delay; later ones until the next send do not extend it.
+     */
+    public void markStateChanged() {
+        if (!stateChanged) {
+            stateChanged = true;
+            stateChangedAtMs = now();
+        }
+    }
+
+    /**
+     * Number of the last state sent, 0 before the first one.
+     */
+    public long getLastSentStateNum() {
+        return nextStateNum - 1;
+    }
+
     /**
      * Called when we receive any packet from the remote (for ACK scheduling).
      */
     public void remoteHeard() {
         if (!pendingDataAck) {
             pendingDataAck = true;
-            pendingDataAckDeadlineMs = System.currentTimeMillis() + ACK_DELAY_MS;
+            pendingDataAckDeadlineMs = now() + ACK_DELAY_MS;
         }
     }
 
@@ -87,7 +167,7 @@ public class TransportSender {
      * passed for one RTT, assume the receiver has it.
      */
     public long getAssumedReceiverState(long rttMs) {
-        long now = System.currentTimeMillis();
+        long now = now();
         long assumed = knownReceiverState;
         for (SentState ss : sentStates) {
             if (ss.stateNum > assumed && (now - ss.sentAtMs) >= rttMs) {
@@ -102,7 +182,7 @@ public class TransportSender {
      * Returns the number of milliseconds until next send is needed, or 0 if send now.
      */
     public long millisUntilNextSend(long rttMs) {
-        long now = System.currentTimeMillis();
+        long now = now();
 
         if (shutdownInProgress) {
             return 0;
@@ -131,6 +211,54 @@ public class TransportSender {
         return Math.min(untilInterval, Math.min(untilAck, untilAckInterval));
     }
 
+    /**
+     * What is due now, in priority order: a changed state once {@code sendIntervalMs} has
+     * passed since the last send and the state has been quiet for {@link #SEND_MINDELAY_MS};
+     * a retransmission of the last state if it is unacknowledged {@code rtoMs} after it was
+     * sent; a delayed ack; a keepalive after {@link #ACK_INTERVAL_MS} without sending.
+     */
+    public SendAction nextAction(long sendIntervalMs, long rtoMs) {
+        long now = now();
+        if (stateChanged && now >= newStateDue(sendIntervalMs)) return SendAction.NEW_STATE;
+        if (knownReceiverState < getLastSentStateNum() && now >= lastSendTimestampMs + retransmitTimeout(rtoMs)) {
+            return SendAction.RETRANSMIT;
+        }
+        if (pendingDataAck && now >= pendingDataAckDeadlineMs) return SendAction.ACK;
+        if (now >= lastSendTimestampMs + ACK_INTERVAL_MS) return SendAction.ACK;
+        return SendAction.NONE;
+    }
+
+    /**
+     * Milliseconds until {@link #nextAction} has something to send; 0 if it has now.
+     */
+    public long millisUntilNextAction(long sendIntervalMs, long rtoMs) {
+        long now = now();
+        long due = lastSendTimestampMs + ACK_INTERVAL_MS;
+        if (stateChanged) {
+            due = Math.min(due, newStateDue(sendIntervalMs));
+        }
+        if (knownReceiverState < getLastSentStateNum()) {
+            due = Math.min(due, lastSendTimestampMs + retransmitTimeout(rtoMs));
+        }
+        if (pendingDataAck) {
+            due = Math.min(due, pendingDataAckDeadlineMs);
+        }
+        return Math.max(0, due - now);
+    }
+
+    private long newStateDue(long sendIntervalMs) {
+        long interval = Math.max(SEND_INTERVAL_MIN_MS, Math.min(SEND_INTERVAL_MAX_MS, sendIntervalMs));
+        return Math.max(lastSendTimestampMs + interval, stateChangedAtMs + SEND_MINDELAY_MS);
+    }
+
+    /**
+     * Retransmit after the RTO while the receiver answers; once it has been silent past
+     * {@link #ACTIVE_RETRY_TIMEOUT_MS}, only at the keepalive rate.
+     */
+    private long retransmitTimeout(long rtoMs) {
+        return isConnectionTimedOut() ? ACK_INTERVAL_MS : rtoMs;
+    }
+
     private long calculateSendInterval(long rttMs) {
         long interval = rttMs / 2;
         return Math.max(SEND_INTERVAL_MIN_MS, Math.min(SEND_INTERVAL_MAX_MS, interval));
@@ -144,50 +272,66 @@ public class TransportSender {
      * Produce the next instruction to send. Uses the assumed receiver state
      * for optimistic diff computation.
      */
-    public Transportinstruction.Instruction nextInstruction(long assumedReceiverState) {
+    public OutgoingInstruction nextInstruction(long assumedReceiverState) {
         byte[] current = currentStateSupplier.get();
         if (current == null && !shutdownInProgress) return null;
 
         long targetNum;
         byte[] diff;
 
+        if (sentStates.size() >= MAX_PENDING_STATES) {
+            assumedReceiverState = knownReceiverState;
+        }
+
         if (shutdownInProgress) {
             targetNum = -1;
             diff = null;
             shutdownTries++;
         } else {
             targetNum = nextStateNum++;
-            diff = diffSupplier.get();
+            diff = diffSource.diff(assumedReceiverState, targetNum);
             if (diff == null) diff = new byte[0];
         }
 
-        if (sentStates.size() >= MAX_PENDING_STATES) {
-            assumedReceiverState = knownReceiverState;
-        }
-
-        Transportinstruction.Instruction inst = TransportInstruction.create(
-                assumedReceiverState,
-                targetNum,
-                knownReceiverState,
-                knownReceiverState,
-                (diff != null && diff.length > 0) ? diff : null);
+        OutgoingInstruction inst = outgoing.set(assumedReceiverState, targetNum, ackNum, knownReceiverState, diff);
 
-        long now = System.currentTimeMillis();
+        long now = now();
         if (!shutdownInProgress) {
             sentStates.add(new SentState(targetNum, now));
         }
         lastSendTimestampMs = now;
         pendingDataAck = false;
+        stateChanged = false;
         return inst;
     }
 
     /**
-     * Build instruction for a heartbeat/ack only (empty diff).
+     * Send the last state again, as a diff from the state the receiver acknowledged, after
+     * it went unacknowledged. Null before the first state was sent.
      */
-    public Transportinstruction.Instruction createTrialInstruction() {
-        lastSendTimestampMs = System.currentTimeMillis();
+    public OutgoingInstruction retransmitInstruction() {
+        long lastNum = getLastSentStateNum();
+        if (lastNum <= knownReceiverState) return null;
+        byte[] diff = diffSource.diff(knownReceiverState, lastNum);
+        OutgoingInstruction inst = outgoing.set(knownReceiverState, lastNum, ackNum, knownReceiverState, diff);
+        long now = now();
+        if (!sentStates.isEmpty()) {
+            sentStates.set(sentStates.size() - 1, new SentState(lastNum, now));
+        }
+        lastSendTimestampMs = now;
         pendingDataAck = false;
-        return TransportInstruction.createAckOnly(knownReceiverState, knownReceiverState);
+        return inst;
+    }
+
+    /**
+     * Build instruction for a heartbeat/ack only (empty diff). It names the last state sent
+     * as both old and new state, so the receiver treats it as a duplicate of a state it has.
+     */
+    public OutgoingInstruction createTrialInstruction() {
+        lastSendTimestampMs = now();
+        pendingDataAck = false;
+        long lastNum = getLastSentStateNum();
+        return outgoing.set(lastNum, lastNum, ackNum, knownReceiverState, null);
     }
 
     /**
@@ -211,7 +355,14 @@ public class TransportSender {
      */
     public boolean isConnectionTimedOut() {
         if (lastAckTimestampMs == 0) return false;
-        return (System.currentTimeMillis() - lastAckTimestampMs) > ACTIVE_RETRY_TIMEOUT_MS;
+        return (now() - lastAckTimestampMs) > ACTIVE_RETRY_TIMEOUT_MS;
+    }
+
+    /**
+     * Monotonic milliseconds; unlike the wall clock it does not jump when the system time is set.
+     */
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - CLOCK_ORIGIN_NANOS);
     }
 
     private record SentState(long stateNum, long sentAtMs) {}
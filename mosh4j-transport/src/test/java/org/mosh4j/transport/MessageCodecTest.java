@@ -0,0 +1,114 @@
+package org.mosh4j.transport;
+
+import ClientBuffers.Userinput;
+import HostBuffers.Hostinput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ExtensionRegistry;
+import org.junit.jupiter.api.Test;
+import org.mosh4j.protocol.HostMessageCodec;
+import org.mosh4j.protocol.UserMessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    @Test
+    void userMessage_encodesLikeGeneratedClasses() throws Exception {
+        byte[] keys = "ls -l\r".getBytes();
+        byte[] out = new byte[UserMessageCodec.keystrokeLength(keys.length) + UserMessageCodec.resizeLength(132, 43)];
+        int pos = UserMessageCodec.writeKeystroke(out, 0, keys, 0, keys.length);
+        assertEquals(out.length, UserMessageCodec.writeResize(out, pos, 132, 43));
+
+        Userinput.UserMessage expected = Userinput.UserMessage.newBuilder()
+                .addInstruction(Userinput.Instruction.newBuilder()
+                        .setExtension(Userinput.keystroke, Userinput.Keystroke.newBuilder()
+                                .setKeys(ByteString.copyFrom(keys)).build()))
+                .addInstruction(Userinput.Instruction.newBuilder()
+                        .setExtension(Userinput.resize, Userinput.ResizeMessage.newBuilder()
+                                .setWidth(132).setHeight(43).build()))
+                .build();
+        assertArrayEquals(expected.toByteArray(), out);
+
+        ExtensionRegistry registry = ExtensionRegistry.newInstance();
+        Userinput.registerAllExtensions(registry);
+        assertEquals(expected, Userinput.UserMessage.parseFrom(out, registry));
+    }
+
+    @Test
+    void userMessage_decodesInOrder() {
+        byte[] out = new byte[UserMessageCodec.resizeLength(80, 24) + UserMessageCodec.keystrokeLength(2)];
+        int pos = UserMessageCodec.writeResize(out, 0, 80, 24);
+        UserMessageCodec.writeKeystroke(out, pos, "ab".getBytes(), 0, 2);
+
+        List<String> events = new ArrayList<>();
+        UserMessageCodec.decode(ByteBuffer.wrap(out), new UserMessageCodec.Handler() {
+            @Override
+            public void keystroke(ByteBuffer src, int offset, int length) {
+                byte[] keys = new byte[length];
+                src.get(offset, keys);
+                events.add("keys " + new String(keys));
+            }
+
+            @Override
+            public void resize(int width, int height) {
+                events.add("resize " + width + "x" + height);
+            }
+        });
+        assertEquals(List.of("resize 80x24", "keys ab"), events);
+    }
+
+    @Test
+    void hostMessage_roundTripsThroughGeneratedClasses() throws Exception {
+        byte[] ansi = "\u001b[Hhello".getBytes();
+        byte[] out = new byte[HostMessageCodec.resizeLength(100, 30) + HostMessageCodec.hostBytesLength(ansi.length)
+                + HostMessageCodec.echoAckLength(1234)];
+        int pos = HostMessageCodec.writeResize(out, 0, 100, 30);
+        pos = HostMessageCodec.writeHostBytes(out, pos, ansi, 0, ansi.length);
+        assertEquals(out.length, HostMessageCodec.writeEchoAck(out, pos, 1234));
+
+        Hostinput.HostMessage expected = Hostinput.HostMessage.newBuilder()
+                .addInstruction(Hostinput.Instruction.newBuilder()
+                        .setExtension(Hostinput.resize, Hostinput.ResizeMessage.newBuilder()
+                                .setWidth(100).setHeight(30).build()))
+                .addInstruction(Hostinput.Instruction.newBuilder()
+                        .setExtension(Hostinput.hostbytes, Hostinput.HostBytes.newBuilder()
+                                .setHoststring(ByteString.copyFrom(ansi)).build()))
+                .addInstruction(Hostinput.Instruction.newBuilder()
+                        .setExtension(Hostinput.echoack, Hostinput.EchoAck.newBuilder()
+                                .setEchoAckNum(1234).build()))
+                .build();
+        assertArrayEquals(expected.toByteArray(), out);
+
+        List<String> events = new ArrayList<>();
+        HostMessageCodec.decode(ByteBuffer.wrap(expected.toByteArray()), new HostMessageCodec.Handler() {
+            @Override
+            public void hostBytes(ByteBuffer src, int offset, int length) {
+                byte[] bytes = new byte[length];
+                src.get(offset, bytes);
+                events.add("bytes " + new String(bytes));
+            }
+
+            @Override
+            public void resize(int width, int height) {
+                events.add("resize " + width + "x" + height);
+            }
+
+            @Override
+            public void echoAck(long echoAckNum) {
+                events.add("echoack " + echoAckNum);
+            }
+        });
+        assertEquals(List.of("resize 100x30", "bytes \u001b[Hhello", "echoack 1234"), events);
+    }
+
+    @Test
+    void hostMessage_rejectsLengthBeyondInput() {
+        byte[] bad = {0x0A, 0x05, 0x12, 0x01};
+        assertThrows(IllegalArgumentException.class,
+                () -> HostMessageCodec.decode(ByteBuffer.wrap(bad), new HostMessageCodec.Handler() {}));
+    }
+}
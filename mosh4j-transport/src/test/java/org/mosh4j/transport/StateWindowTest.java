@@ -0,0 +1,76 @@
+package org.mosh4j.transport;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateWindowTest {
+
+    @Test
+    void putAndGet_outOfOrder() {
+        StateWindow<byte[]> w = StateWindow.ofBytes();
+        w.put(1, new byte[]{1});
+        w.put(3, new byte[]{3});
+        w.put(2, new byte[]{2});
+        assertArrayEquals(new byte[]{2}, w.get(2));
+        assertArrayEquals(new byte[]{3}, w.get(3));
+        assertNull(w.get(4));
+        assertEquals(1, w.firstNum());
+        assertEquals(3, w.byteSize());
+    }
+
+    @Test
+    void discardBelow_removesOnlyOlderStates() {
+        StateWindow<byte[]> w = StateWindow.ofBytes();
+        for (long i = 0; i < 100; i++) {
+            w.put(i, new byte[]{(byte) i});
+        }
+        assertEquals(40, w.discardBelow(40));
+        assertEquals(60, w.size());
+        assertNull(w.get(39));
+        assertNotNull(w.get(40));
+        assertEquals(0, w.discardBelow(40));
+    }
+
+    @Test
+    void discardBelow_keepsNewestState() {
+        StateWindow<byte[]> w = StateWindow.ofBytes();
+        w.put(5, new byte[0]);
+        w.put(6, new byte[0]);
+        w.discardBelow(100);
+        assertEquals(1, w.size());
+        assertTrue(w.contains(6));
+    }
+
+    @Test
+    void caps_evictOldestStates() {
+        StateWindow<byte[]> byCount = StateWindow.ofBytes(4, Long.MAX_VALUE);
+        for (long i = 0; i < 10; i++) {
+            byCount.put(i, new byte[1]);
+        }
+        assertEquals(4, byCount.size());
+        assertEquals(6, byCount.firstNum());
+
+        StateWindow<byte[]> byBytes = StateWindow.ofBytes(1024, 100);
+        byBytes.put(1, new byte[60]);
+        byBytes.put(2, new byte[60]);
+        assertEquals(1, byBytes.size());
+        assertTrue(byBytes.contains(2));
+        byBytes.put(3, new byte[500]);
+        assertEquals(1, byBytes.size());
+        assertTrue(byBytes.contains(3));
+    }
+
+    @Test
+    void ringWrapsAndGrows() {
+        StateWindow<byte[]> w = StateWindow.ofBytes();
+        for (long i = 0; i < 1000; i++) {
+            w.put(i, new byte[]{(byte) i});
+            w.discardBelow(i - 20);
+        }
+        assertEquals(21, w.size());
+        for (long i = 979; i < 1000; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, w.get(i));
+        }
+    }
+}
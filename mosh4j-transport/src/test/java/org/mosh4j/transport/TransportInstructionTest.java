@@ -1,7 +1,12 @@
 package org.mosh4j.transport;
 
 import TransportBuffers.Transportinstruction;
+import com.google.protobuf.ByteString;
 import org.junit.jupiter.api.Test;
+import org.mosh4j.protocol.InstructionView;
+import org.mosh4j.protocol.TransportInstructionCodec;
+
+import java.nio.ByteBuffer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -37,4 +42,63 @@ class TransportInstructionTest {
         assertEquals(3, ack.getThrowawayNum());
         assertFalse(ack.hasDiff());
     }
+
+    @Test
+    void codecEncode_matchesGeneratedSerialization() {
+        byte[] diff = "diff bytes".getBytes();
+        byte[] chaff = {1, 2, 3};
+        long[][] numbers = {{0, 0, 0, 0}, {1, 2, 300, 1}, {7, -1, 5, 3}, {Long.MAX_VALUE, 1L << 35, 127, 128}};
+        for (long[] n : numbers) {
+            Transportinstruction.Instruction expected = Transportinstruction.Instruction.newBuilder()
+                    .setProtocolVersion(TransportInstruction.MOSH_PROTOCOL_VERSION)
+                    .setOldNum(n[0]).setNewNum(n[1]).setAckNum(n[2]).setThrowawayNum(n[3])
+                    .setDiff(ByteString.copyFrom(diff))
+                    .setChaff(ByteString.copyFrom(chaff))
+                    .build();
+            byte[] out = new byte[TransportInstructionCodec.encodedLength(n[0], n[1], n[2], n[3], diff.length, chaff.length)];
+            int end = TransportInstructionCodec.encode(out, 0, n[0], n[1], n[2], n[3],
+                    diff, 0, diff.length, chaff, 0, chaff.length);
+            assertEquals(out.length, end);
+            assertArrayEquals(expected.toByteArray(), out);
+        }
+    }
+
+    @Test
+    void instructionView_readsGeneratedSerialization() {
+        byte[] bytes = TransportInstruction.toBytes(TransportInstruction.create(3, 9, 4, 2, "payload".getBytes()));
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4);
+        buffer.position(2);
+        buffer.put(bytes).flip().position(2);
+
+        InstructionView view = new InstructionView().wrap(buffer);
+        assertEquals(2, buffer.position());
+        assertTrue(TransportInstruction.isProtocolVersionValid(view));
+        assertEquals(3, view.getOldNum());
+        assertEquals(9, view.getNewNum());
+        assertTrue(view.hasAckNum());
+        assertEquals(4, view.getAckNum());
+        assertEquals(2, view.getThrowawayNum());
+        assertArrayEquals("payload".getBytes(), view.copyDiff());
+        assertEquals(ByteBuffer.wrap("payload".getBytes()), view.diff());
+    }
+
+    @Test
+    void instructionView_absentFieldsReadAsZero() {
+        byte[] bytes = Transportinstruction.Instruction.newBuilder().setNewNum(5).build().toByteArray();
+        InstructionView view = new InstructionView().wrap(ByteBuffer.wrap(bytes));
+        assertFalse(view.hasProtocolVersion());
+        assertFalse(view.hasAckNum());
+        assertFalse(view.hasDiff());
+        assertEquals(0, view.getOldNum());
+        assertEquals(5, view.getNewNum());
+        assertEquals(0, view.copyDiff().length);
+    }
+
+    @Test
+    void instructionView_rejectsTruncatedInput() {
+        byte[] bytes = TransportInstruction.toBytes(TransportInstruction.create(0, 1, 0, 0, "hello".getBytes()));
+        ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        InstructionView view = new InstructionView();
+        assertThrows(IllegalArgumentException.class, () -> view.wrap(truncated));
+    }
 }
@@ -2,7 +2,12 @@ package org.mosh4j.transport;
 
 import TransportBuffers.Transportinstruction;
 import org.junit.jupiter.api.Test;
+import org.mosh4j.protocol.InstructionView;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -31,4 +36,67 @@ class TransportReceiverTest {
         assertEquals(2, ack);
         assertArrayEquals("hi!".getBytes(), recv.getLatestState());
     }
+
+    @Test
+    void receive_duplicateStateIsNotReapplied() {
+        AtomicInteger applied = new AtomicInteger();
+        TransportReceiver recv = new TransportReceiver(
+                (base, diff) -> {
+                    applied.incrementAndGet();
+                    return diff;
+                },
+                state -> {});
+
+        recv.receive(TransportInstruction.create(0, 1, 0, 0, "a".getBytes()));
+        long ack = recv.receive(TransportInstruction.create(0, 1, 0, 0, "a".getBytes()));
+        assertEquals(1, ack);
+        assertEquals(1, applied.get());
+    }
+
+    @Test
+    void receive_discardsStatesBelowThrowaway() {
+        TransportReceiver recv = new TransportReceiver((base, diff) -> diff, state -> {});
+        for (long n = 1; n <= 50; n++) {
+            recv.receive(TransportInstruction.create(n - 1, n, 0, 0, new byte[]{(byte) n}));
+        }
+        assertEquals(51, recv.getHeldStateCount());
+
+        recv.receive(TransportInstruction.create(50, 51, 0, 48, new byte[]{51}));
+        assertEquals(4, recv.getHeldStateCount());
+
+        // Base 10 is gone, so the instruction cannot be applied.
+        assertEquals(51, recv.receive(TransportInstruction.create(10, 52, 0, 48, new byte[]{52})));
+        assertEquals(51, recv.getLatestStateNum());
+    }
+
+    @Test
+    void receive_instructionViewAppliesDiff() {
+        TransportReceiver recv = new TransportReceiver((base, diff) -> diff, state -> {});
+        InstructionView view = new InstructionView();
+        byte[] bytes = TransportInstruction.toBytes(TransportInstruction.create(0, 1, 0, 0, "abc".getBytes()));
+
+        assertEquals(1, recv.receive(view.wrap(ByteBuffer.wrap(bytes))));
+        assertArrayEquals("abc".getBytes(), recv.getLatestState());
+    }
+
+    @Test
+    void stateReceiver_holdsHandlesAndAppliesToOlderBase() {
+        List<String> bases = new ArrayList<>();
+        StateReceiver<StringBuilder> recv = new StateReceiver<>(
+                (base, diff) -> {
+                    bases.add(base.toString());
+                    return new StringBuilder(base).append(new String(diff));
+                },
+                state -> {},
+                new StringBuilder());
+
+        recv.receive(TransportInstruction.create(0, 1, 0, 0, "a".getBytes()));
+        recv.receive(TransportInstruction.create(1, 2, 0, 0, "b".getBytes()));
+        // The sender assumed state 1 again: the handle for state 1 is still the base.
+        recv.receive(TransportInstruction.create(1, 3, 0, 0, "c".getBytes()));
+
+        assertEquals(List.of("", "a", "a"), bases);
+        assertEquals("ac", recv.getLatestState().toString());
+        assertEquals(4, recv.getHeldStateCount());
+    }
 }
@@ -0,0 +1,139 @@
+package org.mosh4j.transport;
+
+import org.junit.jupiter.api.Test;
+import org.mosh4j.transport.TransportSender.SendAction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransportSenderTest {
+
+    private static final long LONG_INTERVAL_MS = 200;
+    private static final long LONG_RTO_MS = 2000;
+
+    private static TransportSender sender() {
+        return new TransportSender(() -> new byte[]{1}, () -> new byte[]{2});
+    }
+
+    /** A sender that just sent state 1. */
+    private static TransportSender sentOne() {
+        TransportSender sender = sender();
+        sender.markStateChanged();
+        sender.nextInstruction(0);
+        return sender;
+    }
+
+    @Test
+    void newState_atMostOncePerSendInterval() throws InterruptedException {
+        TransportSender sender = sentOne();
+        sender.markStateChanged();
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS));
+        long wait = sender.millisUntilNextAction(LONG_INTERVAL_MS, LONG_RTO_MS);
+        assertTrue(wait > LONG_INTERVAL_MS / 2 && wait <= LONG_INTERVAL_MS, "waits " + wait);
+
+        Thread.sleep(2 * TransportSender.SEND_INTERVAL_MIN_MS);
+        assertEquals(SendAction.NEW_STATE, sender.nextAction(TransportSender.SEND_INTERVAL_MIN_MS, LONG_RTO_MS));
+        OutgoingInstruction inst = sender.nextInstruction(1);
+        assertEquals(2, inst.getNewNum());
+        assertTrue(inst.carriesNewState());
+        assertEquals(SendAction.NONE, sender.nextAction(TransportSender.SEND_INTERVAL_MIN_MS, LONG_RTO_MS));
+    }
+
+    @Test
+    void newState_intervalClamped() {
+        TransportSender sender = sentOne();
+        sender.markStateChanged();
+        assertTrue(sender.millisUntilNextAction(10_000, LONG_RTO_MS) <= TransportSender.SEND_INTERVAL_MAX_MS);
+        assertTrue(sender.millisUntilNextAction(0, LONG_RTO_MS) > 0, "min interval applies");
+        assertEquals(SendAction.NONE, sender.nextAction(0, LONG_RTO_MS));
+    }
+
+    @Test
+    void newState_waitsForOutputToSettle() throws InterruptedException {
+        TransportSender sender = sender();
+        sender.markStateChanged();
+        assertNotEquals(SendAction.NEW_STATE, sender.nextAction(0, LONG_RTO_MS), "burst still coming");
+        assertTrue(sender.millisUntilNextAction(0, LONG_RTO_MS) <= TransportSender.SEND_MINDELAY_MS);
+        Thread.sleep(2 * TransportSender.SEND_MINDELAY_MS);
+        sender.markStateChanged(); // does not extend the delay
+        assertEquals(SendAction.NEW_STATE, sender.nextAction(0, LONG_RTO_MS));
+    }
+
+    @Test
+    void retransmit_afterRtoUntilAcknowledged() throws InterruptedException {
+        long rto = 50;
+        TransportSender sender = sentOne();
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, rto));
+        Thread.sleep(2 * rto);
+        assertEquals(SendAction.RETRANSMIT, sender.nextAction(LONG_INTERVAL_MS, rto));
+
+        OutgoingInstruction inst = sender.retransmitInstruction();
+        assertEquals(0, inst.getOldNum());
+        assertEquals(1, inst.getNewNum());
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, rto), "timer restarted");
+
+        sender.setKnownReceiverState(1);
+        Thread.sleep(2 * rto);
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, rto));
+        assertNull(sender.retransmitInstruction());
+    }
+
+    @Test
+    void heartbeat_afterAckIntervalWithoutSending() {
+        TransportSender sender = sender();
+        assertEquals(SendAction.ACK, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS), "nothing sent yet");
+
+        OutgoingInstruction heartbeat = sender.createTrialInstruction();
+        assertFalse(heartbeat.carriesNewState());
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS));
+        long wait = sender.millisUntilNextAction(LONG_INTERVAL_MS, LONG_RTO_MS);
+        assertTrue(wait > TransportSender.ACK_INTERVAL_MS - 100 && wait <= TransportSender.ACK_INTERVAL_MS,
+                "waits " + wait);
+
+        sender.markStateChanged();
+        sender.nextInstruction(0);
+        assertTrue(sender.millisUntilNextAction(LONG_INTERVAL_MS, TransportSender.ACK_INTERVAL_MS * 2)
+                > TransportSender.ACK_INTERVAL_MS - 100, "a state sent resets the heartbeat");
+    }
+
+    @Test
+    void ack_delayedAfterRemoteHeard() throws InterruptedException {
+        TransportSender sender = sentOne();
+        sender.setKnownReceiverState(1);
+        sender.setAckNum(5);
+        sender.remoteHeard();
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS));
+        long wait = sender.millisUntilNextAction(LONG_INTERVAL_MS, LONG_RTO_MS);
+        assertTrue(wait > TransportSender.ACK_DELAY_MS / 2 && wait <= TransportSender.ACK_DELAY_MS, "waits " + wait);
+
+        Thread.sleep(TransportSender.ACK_DELAY_MS / 2);
+        sender.remoteHeard(); // shares the pending ack
+        assertTrue(sender.millisUntilNextAction(LONG_INTERVAL_MS, LONG_RTO_MS) < TransportSender.ACK_DELAY_MS / 2 + 10);
+
+        Thread.sleep(TransportSender.ACK_DELAY_MS);
+        assertEquals(SendAction.ACK, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS));
+        OutgoingInstruction ack = sender.createTrialInstruction();
+        assertEquals(5, ack.getAckNum());
+        assertEquals(1, ack.getOldNum());
+        assertEquals(1, ack.getNewNum());
+        assertEquals(0, ack.getDiffLength());
+        assertEquals(SendAction.NONE, sender.nextAction(LONG_INTERVAL_MS, LONG_RTO_MS));
+    }
+
+    @Test
+    void ack_piggybackedOnNewState() throws InterruptedException {
+        TransportSender sender = sentOne();
+        sender.setKnownReceiverState(1);
+        sender.setAckNum(7);
+        sender.remoteHeard();
+        sender.markStateChanged();
+        Thread.sleep(2 * TransportSender.SEND_INTERVAL_MIN_MS);
+        assertEquals(SendAction.NEW_STATE, sender.nextAction(TransportSender.SEND_INTERVAL_MIN_MS, LONG_RTO_MS));
+
+        OutgoingInstruction inst = sender.nextInstruction(1);
+        assertTrue(inst.carriesNewState());
+        assertEquals(7, inst.getAckNum());
+        assertEquals(SendAction.NONE, sender.nextAction(TransportSender.SEND_INTERVAL_MIN_MS, LONG_RTO_MS));
+        assertTrue(sender.millisUntilNextAction(TransportSender.SEND_INTERVAL_MIN_MS, LONG_RTO_MS)
+                > TransportSender.ACK_DELAY_MS, "no separate ack left");
+    }
+}